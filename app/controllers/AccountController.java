@@ -1,18 +1,29 @@
 package controllers;
 
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import models.Account;
 import models.ApplicationStore;
 import org.apache.commons.lang3.StringUtils;
-import play.libs.Json;
+import play.libs.concurrent.HttpExecution;
 import play.mvc.Controller;
+import play.mvc.Http;
 import play.mvc.Result;
-import util.Util;
+import services.StorageProvider;
+import services.StoreExecutionContext;
+import util.JsonStreams;
+import util.ModelJson;
 
-import java.util.stream.Stream;
+import javax.inject.Inject;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Supplier;
 
+import static java.util.concurrent.CompletableFuture.completedFuture;
+import static java.util.concurrent.CompletableFuture.supplyAsync;
+import static util.Util.etag;
 import static util.Util.isAmountAtLeastZero;
+import static util.Util.matchesETag;
+import static util.Util.unwrap;
 
 /**
  * Controller for interacting with the Account resource.
@@ -20,17 +31,33 @@ import static util.Util.isAmountAtLeastZero;
  *  - list all accounts                 (GET /accounts)
  *  - create a new account              (POST /accounts)
  *  - retrieve an account               (GET /accounts/:id)
+ *  - summarize an account's transfers  (GET /accounts/:id/summary)
+ *  - list an account's recent transfers (GET /accounts/:id/transfers)
  *  - update an account                 (PUT /accounts/:id)
  *  - delete an account                 (DELETE /accounts/:id)
  *  - make a deposit on an account      (PUT /accounts/:id/deposit/:amount)
  *  - make a withdrawal on an account   (PUT /accounts/:id/withdraw/:amount)
  *  - list of options available         (OPTIONS /accounts)
+ * Storage operations run on the {@link StoreExecutionContext} and responses are rendered back on Play's context,
+ * so actions never block request handling threads.
  */
 public class AccountController extends Controller {
 
+    private final StoreExecutionContext storeContext;
+    private final StorageProvider storage;
+
+    @Inject
+    public AccountController(StoreExecutionContext storeContext, StorageProvider storage) {
+        this.storeContext = storeContext;
+        this.storage = storage;
+    }
+
     /**
      * Lists all {@link Account}s from the store.
      * Allows searching for specific field's values and sorting by a certain field.
+     * The list is streamed from the store as a chunked JSON array, so it is never held in memory as a whole.
+     * With a limit or a cursor only one page of accounts is listed, and the cursor of the next page, if any, is returned
+     * in the X-Next-Cursor header.
      * Refer to {@link ApplicationStore}'s listAccounts for more information.
      * @param name Optional account name to search for.
      * @param ownerName Optional owner name to search for.
@@ -38,81 +65,175 @@ public class AccountController extends Controller {
      * @param aboveBalance Optional balance to search accounts richer than that (non inclusive).
      * @param belowBalance Optional balance to search accounts poorer than that (non inclusive).
      * @param sort Optional argument for sorting. Should be field name and prepended with '-' for descending order.
-     * @return OK with a list of accounts according to input terms.
+     * @param limit Optional maximum number of accounts to list, 0 for no limit.
+     * @param cursor Optional X-Next-Cursor value of the previous page.
+     * @return BAD REQUEST if limit is negative or cursor is not valid for this sort. OK with a list of accounts according to input terms.
      */
-    public Result listAccounts(String name, String ownerName, Float balance, Float aboveBalance, Float belowBalance, String sort){
-        Stream<Account> accounts = ApplicationStore.getInstance().listAccounts(name, ownerName, balance, aboveBalance, belowBalance, sort);
-        ObjectMapper mapper = new ObjectMapper();
-        JsonNode jsonData = mapper.convertValue(accounts.toArray(), JsonNode.class);
-        return ok(jsonData);
+    public CompletionStage<Result> listAccounts(String name, String ownerName, Float balance, Float aboveBalance, Float belowBalance, String sort, int limit, String cursor){
+        if (limit < 0)
+            return completedFuture(badRequest("limit must be 0 (no limit) or greater"));
+        if (limit == 0 && cursor == null)
+            return onStore(() -> storage.accounts().listAccounts(name, ownerName, balance, aboveBalance, belowBalance, sort))
+                    .thenApplyAsync(accounts -> ok().chunked(JsonStreams.array(accounts)).as(Http.MimeTypes.JSON), HttpExecution.defaultContext());
+
+        int size = limit == 0 ? Integer.MAX_VALUE : limit;
+        return onStore(() -> storage.accounts().listAccounts(name, ownerName, balance, aboveBalance, belowBalance, sort, cursor, size))
+                .handleAsync((page, error) -> {
+                    if (error != null) {
+                        Throwable cause = unwrap(error);
+                        if (cause instanceof IllegalArgumentException)
+                            return badRequest(cause.getMessage());
+                        throw new CompletionException(cause);
+                    }
+                    Result result = ok().chunked(JsonStreams.array(page.getItems().stream())).as(Http.MimeTypes.JSON);
+                    return page.getNextCursor() == null ? result : result.withHeader("X-Next-Cursor", page.getNextCursor());
+                }, HttpExecution.defaultContext());
     }
 
     /**
      * Creates a new instance of an {@link Account} in {@link ApplicationStore}.
      * Validates request's body as a valid JSON payload for an Account.
      * If the request payload is valid this operation always succeeds because account ids are generated by the store.
-     * @return BAD REQUEST or CREATED with the new account and a Location header for its new path.
+     * @return BAD REQUEST, also if the storage rejects the account's fields, or CREATED with the new account and a Location header for its new path.
      */
-    public Result create() {
+    public CompletionStage<Result> create() {
         JsonNode json = request().body().asJson();
         if (json == null)
-            return badRequest("JSON data required");
+            return completedFuture(badRequest("JSON data required"));
 
-        Account account = Json.fromJson(json, Account.class);
+        Account account = ModelJson.readAccount(json);
         if (account == null || StringUtils.isEmpty(account.getName())|| StringUtils.isEmpty(account.getOwnerName()) || !isAmountAtLeastZero(account.getBalance()))
-            return badRequest("Invalid JSON data. Account's name and ownerName are required. Balance must be at least 0.");
+            return completedFuture(badRequest("Invalid JSON data. Account's name and ownerName are required. Balance must be at least 0."));
 
-        account = ApplicationStore.getInstance().createAccount(account);
-        return created(Json.toJson(account)).withHeader("Location", "/accounts/" + account.getId());
+        return onStore(() -> storage.accounts().createAccount(account))
+                .handleAsync((saved, error) -> {
+                    if (error != null) {
+                        Throwable cause = unwrap(error);
+                        if (cause instanceof IllegalArgumentException)
+                            return badRequest(cause.getMessage());
+                        throw new CompletionException(cause);
+                    }
+                    return created(ModelJson.toBytes(saved)).as(Http.MimeTypes.JSON).withHeader("Location", "/accounts/" + saved.getId());
+                }, HttpExecution.defaultContext());
     }
 
     /**
      * Retrieves an {@link Account} by its Id.
+     * The response carries the account's version as its ETag. A request whose If-None-Match header lists the current
+     * ETag is answered NOT MODIFIED without serializing the account. The version is read before the account is
+     * serialized, so an ETag never claims a newer state than the body it came with.
+     * @param id The account's id.
+     * @return NOT FOUND if the account does not exist, NOT MODIFIED if the client has the current version, or OK with the account.
+     */
+    public CompletionStage<Result> get(String id) {
+        String ifNoneMatch = request().getHeader("If-None-Match");
+        return onStore(() -> storage.accounts().getAccount(id))
+                .thenApplyAsync(account -> {
+                    if (account == null)
+                        return notFound("Account with id " + id + " not found");
+                    String etag = etag(account.getVersion(), "json");
+                    if (matchesETag(ifNoneMatch, etag))
+                        return status(NOT_MODIFIED).withHeader("ETag", etag);
+                    return ok(ModelJson.toBytes(account)).as(Http.MimeTypes.JSON).withHeader("ETag", etag);
+                }, HttpExecution.defaultContext());
+    }
+
+    /**
+     * Summarizes the transfers of an {@link Account}: total sent, total received and number of transfers.
+     * The default store keeps the totals up to date as transfers are made, so this never looks at the transfers themselves.
+     * @param id The account's id.
+     * @return NOT FOUND if the account does not exist or OK with the account's summary.
+     */
+    public CompletionStage<Result> summary(String id) {
+        return onStore(() -> storage.accounts().getAccount(id) == null ? null : storage.transfers().summarize(id))
+                .thenApplyAsync(summary -> {
+                    if (summary == null)
+                        return notFound("Account with id " + id + " not found");
+                    return ok(ModelJson.toBytes(summary)).as(Http.MimeTypes.JSON);
+                }, HttpExecution.defaultContext());
+    }
+
+    /**
+     * Lists the statement of an {@link Account}: its transfers, from or to it, most recent first.
+     * Only one page of transfers is listed, and the cursor of the next page, if any, is returned in the X-Next-Cursor header.
+     * The default store reads recent pages from a bounded buffer of each account's latest transfers, kept up to date as
+     * transfers are made, and only looks the account's transfers up in its indexes for deeper pages.
      * @param id The account's id.
-     * @return NOT FOUND if the account does not exist or OK with the account.
+     * @param limit Optional maximum number of transfers to list, 0 for no limit.
+     * @param cursor Optional X-Next-Cursor value of the previous page.
+     * @return BAD REQUEST if limit is negative or cursor is not valid. NOT FOUND if the account does not exist. OK with a list of transfers.
      */
-    public Result get(String id) {
-        Account account = ApplicationStore.getInstance().getAccount(id);
-        if (account == null)
-            return notFound("Account with id " + id + " not found");
-        return ok(Json.toJson(account));
+    public CompletionStage<Result> transfers(String id, int limit, String cursor) {
+        if (limit < 0)
+            return completedFuture(badRequest("limit must be 0 (no limit) or greater"));
+
+        int size = limit == 0 ? Integer.MAX_VALUE : limit;
+        return onStore(() -> storage.accounts().getAccount(id) == null ? null : storage.transfers().listAccountTransfers(id, cursor, size))
+                .handleAsync((page, error) -> {
+                    if (error != null) {
+                        Throwable cause = unwrap(error);
+                        if (cause instanceof IllegalArgumentException)
+                            return badRequest(cause.getMessage());
+                        throw new CompletionException(cause);
+                    }
+                    if (page == null)
+                        return notFound("Account with id " + id + " not found");
+                    Result result = ok().chunked(JsonStreams.array(page.getItems().stream())).as(Http.MimeTypes.JSON);
+                    return page.getNextCursor() == null ? result : result.withHeader("X-Next-Cursor", page.getNextCursor());
+                }, HttpExecution.defaultContext());
     }
 
     /**
      * Updates an {@link Account}, specified by its id.
      * @param id The id of the account that should be updated.
-     * @return BAD REQUEST if the request payload is invalid JSON for an account. FORBIDDEN if the resource id and updated account id do not match. OK with the new updated account.
+     * @return BAD REQUEST if the request payload is invalid JSON for an account, or the storage rejects its fields. FORBIDDEN if the resource id and updated account id do not match. OK with the new updated account.
      */
-    public Result update(String id) {
+    public CompletionStage<Result> update(String id) {
         if (id == null)
-            return badRequest("Resource id is necessary");
+            return completedFuture(badRequest("Resource id is necessary"));
 
         JsonNode json = request().body().asJson();
         if (json == null)
-            return badRequest("JSON data required");
+            return completedFuture(badRequest("JSON data required"));
 
-        Account account = Json.fromJson(json, Account.class);
+        Account account = ModelJson.readAccount(json);
         if (account == null || StringUtils.isEmpty(account.getId()) || StringUtils.isEmpty(account.getName()) || StringUtils.isEmpty(account.getOwnerName()) || !isAmountAtLeastZero(account.getBalance()))
-            return badRequest("Invalid JSON data. Account id, name and ownerName must be present and balance at least 0.");
+            return completedFuture(badRequest("Invalid JSON data. Account id, name and ownerName must be present and balance at least 0."));
         if (!id.equals(account.getId()))
-            return forbidden("Resource id does not match account id");
-
-        Account updated = ApplicationStore.getInstance().updateAccount(account);
-        if (updated == null)
-            return notFound("Account with id " +  account.getId() + " not found");
+            return completedFuture(forbidden("Resource id does not match account id"));
 
-        return noContent();
+        return onStore(() -> storage.accounts().updateAccount(account))
+                .handleAsync((updated, error) -> {
+                    if (error != null) {
+                        Throwable cause = unwrap(error);
+                        if (cause instanceof IllegalArgumentException)
+                            return badRequest(cause.getMessage());
+                        throw new CompletionException(cause);
+                    }
+                    if (updated == null)
+                        return notFound("Account with id " +  account.getId() + " not found");
+                    return noContent();
+                }, HttpExecution.defaultContext());
     }
 
     /**
      * Deletes a specific {@link Account}.
      * @param id The account's id.
-     * @return NOT FOUND if the id does not exist. NO CONTENT if successful.
+     * @return NOT FOUND if the id does not exist. CONFLICT if the account can't be deleted right now. NO CONTENT if successful.
      */
-    public Result delete(String id) {
-        if (!ApplicationStore.getInstance().deleteAccount(id))
-            return notFound("Account with id " + id + " not found");
-        return noContent();
+    public CompletionStage<Result> delete(String id) {
+        return onStore(() -> storage.accounts().deleteAccount(id))
+                .handleAsync((deleted, error) -> {
+                    if (error != null) {
+                        Throwable cause = unwrap(error);
+                        if (cause instanceof IllegalStateException)
+                            return status(CONFLICT, cause.getMessage());
+                        throw new CompletionException(cause);
+                    }
+                    if (!deleted)
+                        return notFound("Account with id " + id + " not found");
+                    return noContent();
+                }, HttpExecution.defaultContext());
     }
 
     /**
@@ -121,15 +242,19 @@ public class AccountController extends Controller {
      * @param amount The amount to be deposited.
      * @return NOT FOUND if the id does not exist. FORBIDDEN if amount is invalid. OK with the updated account.
      */
-    public Result deposit(String id, Float amount){
-        try {
-            Account account = ApplicationStore.getInstance().deposit(id, amount);
-            if (account == null)
-                return notFound("Account with id " + id + " not found");
-            return ok(Json.toJson(account));
-        } catch (IllegalArgumentException e){
-            return forbidden(e.getMessage());
-        }
+    public CompletionStage<Result> deposit(String id, Float amount){
+        return onStore(() -> storage.accounts().deposit(id, amount))
+                .handleAsync((account, error) -> {
+                    if (error != null) {
+                        Throwable cause = unwrap(error);
+                        if (cause instanceof IllegalArgumentException)
+                            return forbidden(cause.getMessage());
+                        throw new CompletionException(cause);
+                    }
+                    if (account == null)
+                        return notFound("Account with id " + id + " not found");
+                    return ok(ModelJson.toBytes(account)).as(Http.MimeTypes.JSON);
+                }, HttpExecution.defaultContext());
     }
 
     /**
@@ -138,16 +263,20 @@ public class AccountController extends Controller {
      * @param amount The amount to be withdrawn.
      * @return NOT FOUND if the id does not exist. FORBIDDEN if amount is invalid or has insufficient funds. OK with the updated account.
      */
-    public Result withdraw(String id, float amount){
-        try {
-            Account account = ApplicationStore.getInstance().withdraw(id, amount);
+    public CompletionStage<Result> withdraw(String id, float amount){
+        return onStore(() -> {
+            try {
+                return storage.accounts().withdraw(id, amount);
+            } catch (Account.InsufficientFundsException e) {
+                throw new CompletionException(e);
+            }
+        }).handleAsync((account, error) -> {
+            if (error != null)
+                return forbidden(unwrap(error).getMessage());
             if (account == null)
                 return notFound("Account with id " + id + " not found");
-            return ok(Json.toJson(account));
-        }
-        catch (Exception e){
-            return forbidden(e.getMessage());
-        }
+            return ok(ModelJson.toBytes(account)).as(Http.MimeTypes.JSON);
+        }, HttpExecution.defaultContext());
     }
 
     /**
@@ -157,4 +286,13 @@ public class AccountController extends Controller {
     public Result options() {
         return ok().withHeader("Allow", "GET,POST,PUT,DELETE,OPTIONS");
     }
-}
\ No newline at end of file
+
+    /**
+     * Runs a storage operation on the {@link StoreExecutionContext}.
+     * @param work The storage operation.
+     * @return A stage completed with the operation's result.
+     */
+    private <T> CompletionStage<T> onStore(Supplier<T> work) {
+        return supplyAsync(work, storeContext);
+    }
+}
@@ -0,0 +1,65 @@
+package controllers;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import models.LedgerStats;
+import play.libs.Json;
+import play.libs.concurrent.HttpExecution;
+import play.mvc.Controller;
+import play.mvc.Http;
+import play.mvc.Result;
+import services.IdempotencyCache;
+import services.StorageProvider;
+import services.StoreExecutionContext;
+import util.ModelJson;
+
+import javax.inject.Inject;
+import java.util.concurrent.CompletionStage;
+
+import static java.util.concurrent.CompletableFuture.supplyAsync;
+
+/**
+ * Controller for the statistics of the whole ledger.
+ * Provides the following operation:
+ *  - total balance, account and transfer counts, transfer volume   (GET /stats)
+ *  - size and hit rate of the idempotency cache                      (GET /stats/idempotency)
+ * Statistics are read on the {@link StoreExecutionContext} and rendered back on Play's context.
+ */
+public class StatsController extends Controller {
+
+    private final StoreExecutionContext storeContext;
+    private final IdempotencyCache idempotencyCache;
+    private final StorageProvider storage;
+
+    @Inject
+    public StatsController(StoreExecutionContext storeContext, IdempotencyCache idempotencyCache, StorageProvider storage) {
+        this.storeContext = storeContext;
+        this.idempotencyCache = idempotencyCache;
+        this.storage = storage;
+    }
+
+    /**
+     * Retrieves the {@link LedgerStats} of the store: money held by all accounts, number of accounts and transfers,
+     * volume of the transfers, overall and per minute over the last hour.
+     * The default store keeps these as running totals, so this never looks at the accounts or transfers themselves.
+     * @return OK with the statistics.
+     */
+    public CompletionStage<Result> get() {
+        return supplyAsync(() -> LedgerStats.of(storage.accounts(), storage.transfers()), storeContext)
+                .thenApplyAsync(stats -> ok(ModelJson.toBytes(stats)).as(Http.MimeTypes.JSON), HttpExecution.defaultContext());
+    }
+
+    /**
+     * Retrieves the statistics of the {@link IdempotencyCache} of POST /transfers: number of responses kept, capacity,
+     * hits, misses and hit rate. Read from counters, without going to the store.
+     * @return OK with the statistics.
+     */
+    public Result idempotency() {
+        ObjectNode stats = Json.newObject();
+        stats.put("size", idempotencyCache.size());
+        stats.put("capacity", idempotencyCache.capacity());
+        stats.put("hits", idempotencyCache.hits());
+        stats.put("misses", idempotencyCache.misses());
+        stats.put("hitRate", idempotencyCache.hitRate());
+        return ok(stats);
+    }
+}
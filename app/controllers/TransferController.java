@@ -1,86 +1,265 @@
 package controllers;
 
+import akka.util.ByteString;
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import models.Account;
 import models.ApplicationStore;
 import models.Transfer;
+import models.TransferOutcome;
 import org.apache.commons.lang3.StringUtils;
+import play.Configuration;
+import play.api.http.MediaRange;
+import play.http.HttpErrorHandler;
 import play.libs.Json;
+import play.libs.concurrent.HttpExecution;
+import play.mvc.BodyParser;
 import play.mvc.Controller;
+import play.mvc.Http;
 import play.mvc.Result;
+import services.IdempotencyCache;
+import services.StorageProvider;
+import services.StoreExecutionContext;
+import util.JsonStreams;
+import util.ModelJson;
+import util.TransferCodec;
+import javax.inject.Inject;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Supplier;
 import java.util.stream.Stream;
+import static java.util.concurrent.CompletableFuture.completedFuture;
+import static java.util.concurrent.CompletableFuture.supplyAsync;
+import static util.Util.etag;
 import static util.Util.isAmountPositive;
+import static util.Util.matchesETag;
+import static util.Util.unwrap;
 
 /**
  * Controller for interacting with the Transfer resource.
  * Provides the following list of operations:
  *  - list all transfers                (GET /transfers)
  *  - create a new transfer             (POST /transfers)
+ *  - create a batch of transfers       (POST /transfers/batch)
  *  - retrieve a transfer               (GET /transfers/:id)
  *  - delete a transfer                 (DELETE /transfers/:id)
  *  - list of options available         (OPTIONS /transfers)
+ * Storage operations run on the {@link StoreExecutionContext} and responses are rendered back on Play's context,
+ * so actions never block request handling threads.
  */
 public class TransferController extends Controller {
 
+    private static final int MAX_IDEMPOTENCY_KEY_LENGTH = 255;
+
+    private final StoreExecutionContext storeContext;
+    private final IdempotencyCache idempotencyCache;
+    private final StorageProvider storage;
+
+    @Inject
+    public TransferController(StoreExecutionContext storeContext, IdempotencyCache idempotencyCache, StorageProvider storage) {
+        this.storeContext = storeContext;
+        this.idempotencyCache = idempotencyCache;
+        this.storage = storage;
+    }
+
     /**
      * Lists all {@link Transfer}s from the store.
      * Allows searching for specific field's values and sorting by a certain field.
+     * The list is streamed from the store as a chunked JSON array, so it is never held in memory as a whole.
+     * With a limit or a cursor only one page of transfers is listed, and the cursor of the next page, if any, is returned
+     * in the X-Next-Cursor header.
+     * Clients that accept {@link TransferCodec#MEDIA_TYPE} ahead of JSON get the list in the binary encoding, so the
+     * response has a "Vary: Accept" header.
      * Refer to {@link ApplicationStore}'s listTransfers for more information.
      * @param originAccountId Optional origin account id to search for.
      * @param destinationAccountId Optional destination account id to search for.
      * @param amount Optional amount to search for.
      * @param aboveAmount Optional amount to search transfers bigger than that (non inclusive).
      * @param belowAmount Optional amount to search transfers smaller than that (non inclusive).
+     * @param from Optional ISO 8601 instant to search transfers made at or after it.
+     * @param to Optional ISO 8601 instant to search transfers made before it.
      * @param sort Optional argument for sorting. Should be field name and prepended with '-' for descending order.
-     * @return OK with a list of transfers according to input terms.
+     * @param limit Optional maximum number of transfers to list, 0 for no limit.
+     * @param cursor Optional X-Next-Cursor value of the previous page.
+     * @return BAD REQUEST if from or to are not valid instants, limit is negative or cursor is not valid for this sort.
+     * OK with a list of transfers according to input terms.
      */
-    public Result listTransfers(String originAccountId, String destinationAccountId, Float amount, Float aboveAmount, Float belowAmount, String sort) {
-        Stream<Transfer> transfers = ApplicationStore.getInstance().listTransfers(originAccountId, destinationAccountId, amount, aboveAmount, belowAmount, sort);
-        ObjectMapper mapper = new ObjectMapper();
-        JsonNode data = mapper.convertValue(transfers.toArray(), JsonNode.class);
-        return ok(data);
+    public CompletionStage<Result> listTransfers(String originAccountId, String destinationAccountId, Float amount, Float aboveAmount, Float belowAmount, String from, String to, String sort, int limit, String cursor) {
+        boolean binary = acceptsBinary(request());
+        if (limit < 0)
+            return completedFuture(badRequest("limit must be 0 (no limit) or greater"));
+        Instant fromInstant;
+        Instant toInstant;
+        try {
+            fromInstant = from == null ? null : Instant.parse(from);
+            toInstant = to == null ? null : Instant.parse(to);
+        } catch (DateTimeParseException e) {
+            return completedFuture(badRequest("from and to must be ISO 8601 instants, e.g. 2017-01-01T00:00:00Z"));
+        }
+
+        if (limit == 0 && cursor == null)
+            return onStore(() -> storage.transfers().listTransfers(originAccountId, destinationAccountId, amount, aboveAmount, belowAmount, fromInstant, toInstant, sort))
+                    .thenApplyAsync(transfers -> listed(transfers, binary), HttpExecution.defaultContext());
+
+        int size = limit == 0 ? Integer.MAX_VALUE : limit;
+        return onStore(() -> storage.transfers().listTransfers(originAccountId, destinationAccountId, amount, aboveAmount, belowAmount, fromInstant, toInstant, sort, cursor, size))
+                .handleAsync((page, error) -> {
+                    if (error != null) {
+                        Throwable cause = unwrap(error);
+                        if (cause instanceof IllegalArgumentException)
+                            return badRequest(cause.getMessage());
+                        throw new CompletionException(cause);
+                    }
+                    Result result = listed(page.getItems().stream(), binary);
+                    return page.getNextCursor() == null ? result : result.withHeader("X-Next-Cursor", page.getNextCursor());
+                }, HttpExecution.defaultContext());
     }
 
     /**
      * Retrieves an {@link Transfer} by its Id.
+     * Clients that accept {@link TransferCodec#MEDIA_TYPE} ahead of JSON get the transfer in the binary encoding, so the
+     * response has a "Vary: Accept" header.
+     * Transfers never change once created and ids are not reused, so each encoding has a single ETag. A request whose
+     * If-None-Match header lists it is answered NOT MODIFIED without encoding the transfer.
      * @param id The transfer's id.
-     * @return NOT FOUND if the transfer does not exist or OK with the transfer.
+     * @return NOT FOUND if the transfer does not exist, NOT MODIFIED if the client has it, or OK with the transfer.
      */
-    public Result get(String id){
-        Transfer transfer = ApplicationStore.getInstance().getTransfer(id);
-        if (transfer == null)
-            return notFound("Transfer with id " + id + " not found");
-        return ok(Json.toJson(transfer));
+    public CompletionStage<Result> get(String id){
+        boolean binary = acceptsBinary(request());
+        String ifNoneMatch = request().getHeader("If-None-Match");
+        return onStore(() -> storage.transfers().getTransfer(id))
+                .thenApplyAsync(transfer -> {
+                    if (transfer == null)
+                        return notFound("Transfer with id " + id + " not found");
+                    String etag = etag(0, binary ? "binary" : "json");
+                    if (matchesETag(ifNoneMatch, etag))
+                        return varying(status(NOT_MODIFIED).withHeader("ETag", etag));
+                    return varying(ok(encode(transfer, binary)).as(binary ? TransferCodec.MEDIA_TYPE : Http.MimeTypes.JSON).withHeader("ETag", etag));
+                }, HttpExecution.defaultContext());
     }
 
     /**
      * Creates a new instance of a {@link Transfer} in {@link ApplicationStore}.
      * Validates request's body as a valid JSON payload for a transfer and if amount is above 0.
-     * Asks {@link ApplicationStore} to create and process a new transfer.
-     * @return BAD REQUEST if payload is invalid, FORBIDDEN if account ids do not exist or origin account has insufficient funds. CREATED with the new transfer and a Location header for its new path.
+     * A body of type {@link TransferCodec#MEDIA_TYPE} is read in the binary encoding instead, and clients that accept it
+     * ahead of JSON get the new transfer in the binary encoding too, with a "Vary: Accept" header.
+     * Submits the transfer to the {@link models.TransferEngine}, which creates and processes it without blocking the request thread.
+     * With an Idempotency-Key header, the response is kept in the {@link IdempotencyCache} and a retry with the same key
+     * and transfer gets it again, without creating another transfer or going to the store. The response is replayed
+     * as it was first encoded, whatever the retry accepts, so it doesn't vary by Accept.
+     * @return BAD REQUEST if payload or Idempotency-Key are invalid, FORBIDDEN if account ids do not exist or origin account has insufficient funds.
+     * UNPROCESSABLE ENTITY if the Idempotency-Key was used for a different transfer. SERVICE UNAVAILABLE, with a Retry-After header,
+     * if the Idempotency-Key is new and the cache is full of transfers still running. CREATED with the new transfer and a Location header for its new path.
      */
-    public Result create(){
-        JsonNode json = request().body().asJson();
-        if (json == null)
-            return badRequest("JSON data required");
-
-        Transfer transfer = Json.fromJson(json, Transfer.class);
+    public CompletionStage<Result> create(){
+        boolean binaryBody = request().contentType().map(TransferCodec.MEDIA_TYPE::equals).orElse(false);
+        boolean binary = acceptsBinary(request());
+        Transfer transfer;
+        if (binaryBody) {
+            Http.RawBuffer body = request().body().asRaw();
+            // a body too large to be kept in memory was buffered to disk and has no bytes, it can't be a transfer anyway
+            ByteString bytes = body == null ? null : body.asBytes();
+            transfer = bytes == null ? null : TransferCodec.readNewTransfer(bytes.toByteBuffer());
+        } else {
+            JsonNode json = request().body().asJson();
+            if (json == null)
+                return completedFuture(badRequest("JSON data required"));
+            transfer = ModelJson.readTransfer(json);
+        }
         if (transfer == null || StringUtils.isEmpty(transfer.getOriginAccountId()) || StringUtils.isEmpty(transfer.getDestinationAccountId()) || !isAmountPositive(transfer.getAmount()))
-            return badRequest("Invalid JSON data. origin and destination account id must be present and amount must be greater than 0.");
+            return completedFuture(badRequest((binaryBody ? "Invalid binary data." : "Invalid JSON data.") + " origin and destination account id must be present and amount must be greater than 0."));
 
         if (transfer.getOriginAccountId().equals(transfer.getDestinationAccountId()))
-            return forbidden("Origin and destination account ids must not be the same.");
+            return completedFuture(forbidden("Origin and destination account ids must not be the same."));
 
         Float amount = transfer.getAmount();
         if (amount <= 0 || amount.isNaN() || amount.isInfinite())
-            return forbidden("Transfer amount must be above 0");
+            return completedFuture(forbidden("Transfer amount must be above 0"));
 
+        String key = request().getHeader("Idempotency-Key");
+        if (key == null)
+            return storage.transferEngine().submit(transfer).handleAsync((saved, error) -> {
+                if (error != null)
+                    return forbidden(unwrap(error).getMessage());
+                return varying(created(encode(saved, binary)).as(binary ? TransferCodec.MEDIA_TYPE : Http.MimeTypes.JSON).withHeader("Location", "/transfers/" + saved.getId()));
+            }, HttpExecution.defaultContext());
+
+        if (key.isEmpty() || key.length() > MAX_IDEMPOTENCY_KEY_LENGTH)
+            return completedFuture(badRequest("Idempotency-Key must have 1 to " + MAX_IDEMPOTENCY_KEY_LENGTH + " characters"));
+        String fingerprint = transfer.getOriginAccountId() + '\n' + transfer.getDestinationAccountId() + '\n' + Float.floatToIntBits(amount);
+        CompletionStage<IdempotencyCache.Response> response;
         try {
-            transfer = ApplicationStore.getInstance().createTransfer(transfer);
-            return created(Json.toJson(transfer)).withHeader("Location", "/transfers/" + transfer.getId());
-        } catch (Exception e){
-            return forbidden(e.getMessage());
+            response = idempotencyCache.get(key, fingerprint, () -> storage.transferEngine().submit(transfer).handle((saved, error) -> {
+                if (error == null)
+                    return new IdempotencyCache.Response(CREATED, encode(saved, binary), binary ? TransferCodec.MEDIA_TYPE : Http.MimeTypes.JSON, "/transfers/" + saved.getId());
+                Throwable cause = unwrap(error);
+                // refusals are answers too, anything else (e.g. the engine stopping) is not kept so it can be retried
+                if (isRejection(cause))
+                    return new IdempotencyCache.Response(FORBIDDEN, cause.getMessage().getBytes(StandardCharsets.UTF_8), Http.MimeTypes.TEXT + "; charset=utf-8", null);
+                throw new CompletionException(cause);
+            }));
+        } catch (IllegalArgumentException e) {
+            return completedFuture(status(UNPROCESSABLE_ENTITY, e.getMessage()));
+        } catch (IllegalStateException e) {
+            return completedFuture(status(SERVICE_UNAVAILABLE, e.getMessage()).withHeader("Retry-After", "1"));
         }
+        return response.handleAsync((kept, error) -> {
+            if (error != null)
+                return forbidden(unwrap(error).getMessage());
+            Result result = status(kept.getStatus(), kept.getBody()).as(kept.getContentType());
+            return kept.getLocation() == null ? result : result.withHeader("Location", kept.getLocation());
+        }, HttpExecution.defaultContext());
+    }
+
+    /**
+     * Creates a batch of {@link Transfer}s in one pass through the store.
+     * The request's body must be a JSON array of transfers, each one validated as in {@link #create()}.
+     * The response lists, in request order, either the created transfer's id or the reason it was rejected.
+     * If the store fails partway through a batch that isn't atomic, the transfers made before are still listed with
+     * their ids, and the ones that weren't made are listed with the error and "retry": true.
+     * @param atomic If true, the batch is all-or-nothing: if any transfer is rejected none is applied.
+     * @return BAD REQUEST if the body is not a JSON array. FORBIDDEN if an all-or-nothing batch was rejected. OK with one result per transfer otherwise.
+     */
+    @BodyParser.Of(BatchBodyParser.class)
+    public CompletionStage<Result> createBatch(Boolean atomic) {
+        JsonNode json = request().body().asJson();
+        if (json == null || !json.isArray())
+            return completedFuture(badRequest("JSON array of transfers required"));
+
+        // validate every item, only valid ones go to the store
+        String[] errors = new String[json.size()];
+        List<Transfer> valid = new ArrayList<>(json.size());
+        List<Integer> positions = new ArrayList<>(json.size());
+        for (int i = 0; i < json.size(); i++) {
+            errors[i] = validateBatchItem(json.get(i), valid);
+            if (errors[i] == null)
+                positions.add(i);
+        }
+
+        if (atomic)
+            for (int i = 0; i < errors.length; i++)
+                if (errors[i] != null)
+                    return completedFuture(forbidden(batchResults(errors, new ArrayList<>(), new ArrayList<>(), "Not applied, transfer " + i + " of the batch is invalid.")));
+
+        return onStore(() -> atomic ? storage.transfers().createTransfersAtomically(valid) : storage.transfers().createTransfers(valid))
+                .handleAsync((outcomes, error) -> {
+                    if (error != null) {
+                        Throwable cause = unwrap(error);
+                        if (cause instanceof UnsupportedOperationException)
+                            return status(NOT_IMPLEMENTED, cause.getMessage());
+                        throw new CompletionException(cause);
+                    }
+                    ArrayNode results = batchResults(errors, positions, outcomes, null);
+                    if (atomic && !outcomes.isEmpty() && !outcomes.get(0).isCreated())
+                        return forbidden(results);
+                    return ok(results);
+                }, HttpExecution.defaultContext());
     }
 
     /**
@@ -88,10 +267,13 @@ public class TransferController extends Controller {
      * @param id The transfer's id.
      * @return NOT FOUND if the id does not exist. NO CONTENT if successful.
      */
-    public Result delete(String id){
-        if (!ApplicationStore.getInstance().deleteTransfer(id))
-            return notFound("Transfer with id " + id + " not found");
-        return noContent();
+    public CompletionStage<Result> delete(String id){
+        return onStore(() -> storage.transfers().deleteTransfer(id))
+                .thenApplyAsync(deleted -> {
+                    if (!deleted)
+                        return notFound("Transfer with id " + id + " not found");
+                    return noContent();
+                }, HttpExecution.defaultContext());
     }
 
     /**
@@ -101,4 +283,115 @@ public class TransferController extends Controller {
     public Result options(){
         return ok().withHeader("Allow", "GET,POST,DELETE,OPTIONS");
     }
+
+    /**
+     * Validates one item of a batch.
+     * @param json The item's JSON.
+     * @param valid List where the parsed transfer is added if it is valid.
+     * @return The reason the item is invalid, null if it is valid.
+     */
+    private static String validateBatchItem(JsonNode json, List<Transfer> valid) {
+        Transfer transfer = ModelJson.readTransfer(json);
+        if (transfer == null)
+            return "Invalid JSON data.";
+        if (StringUtils.isEmpty(transfer.getOriginAccountId()) || StringUtils.isEmpty(transfer.getDestinationAccountId()) || !isAmountPositive(transfer.getAmount()))
+            return "Invalid JSON data. origin and destination account id must be present and amount must be greater than 0.";
+        if (transfer.getOriginAccountId().equals(transfer.getDestinationAccountId()))
+            return "Origin and destination account ids must not be the same.";
+        valid.add(transfer);
+        return null;
+    }
+
+    /**
+     * Builds the JSON response of a batch: one object per request item, with either the new transfer's id or an error.
+     * @param errors Validation errors per request item, null for valid items.
+     * @param positions Request position of each transfer sent to the store.
+     * @param outcomes Store outcome of each transfer sent to the store.
+     * @param notApplied Error for valid items that were not sent to the store, if any.
+     * @return The JSON array of results.
+     */
+    // refusals of the transfer itself, as opposed to failures of the server
+    private static boolean isRejection(Throwable cause) {
+        return cause instanceof ApplicationStore.AccountNotFoundException || cause instanceof Account.InsufficientFundsException || cause instanceof IllegalArgumentException;
+    }
+
+    private static ArrayNode batchResults(String[] errors, List<Integer> positions, List<TransferOutcome> outcomes, String notApplied) {
+        ObjectNode[] items = new ObjectNode[errors.length];
+        for (int i = 0; i < errors.length; i++) {
+            items[i] = Json.newObject();
+            if (errors[i] != null || notApplied != null)
+                items[i].put("error", errors[i] != null ? errors[i] : notApplied);
+        }
+        for (int i = 0; i < outcomes.size(); i++) {
+            TransferOutcome outcome = outcomes.get(i);
+            ObjectNode item = items[positions.get(i)];
+            if (outcome.isCreated()) {
+                item.put("id", outcome.getTransfer().getId());
+            } else {
+                item.put("error", outcome.getError().getMessage());
+                // e.g. the journal failed partway through the batch: the transfer wasn't made and can be sent again
+                if (!isRejection(outcome.getError()))
+                    item.put("retry", true);
+            }
+        }
+        ArrayNode results = Json.newArray();
+        for (ObjectNode item : items)
+            results.add(item);
+        return results;
+    }
+
+    /**
+     * JSON body parser for batches, which may be much bigger than Play's default memory buffer.
+     * Its limit is set by "transfers.batch.maxBodySize" in application.conf.
+     */
+    public static class BatchBodyParser extends BodyParser.Json {
+        @Inject
+        public BatchBodyParser(Configuration configuration, HttpErrorHandler errorHandler) {
+            super(configuration.getBytes("transfers.batch.maxBodySize"), errorHandler);
+        }
+    }
+
+    /**
+     * Tells whether a client prefers the binary encoding of transfers, i.e. accepts it ahead of JSON.
+     * JSON stays the default, also for clients that accept anything.
+     * @param request The request.
+     * @return True to answer in the binary encoding.
+     */
+    private static boolean acceptsBinary(Http.Request request) {
+        for (MediaRange range : request.acceptedTypes()) {
+            if (range.accepts(Http.MimeTypes.JSON))
+                return false;
+            if (range.accepts(TransferCodec.MEDIA_TYPE))
+                return true;
+        }
+        return false;
+    }
+
+    private static byte[] encode(Transfer transfer, boolean binary) {
+        return binary ? TransferCodec.write(transfer) : ModelJson.toBytes(transfer);
+    }
+
+    private static Result listed(Stream<Transfer> transfers, boolean binary) {
+        if (binary)
+            return varying(ok().chunked(TransferCodec.stream(transfers)).as(TransferCodec.MEDIA_TYPE));
+        return varying(ok().chunked(JsonStreams.array(transfers)).as(Http.MimeTypes.JSON));
+    }
+
+    /**
+     * Marks a response whose encoding was chosen by the request's Accept header, so caches keep one copy per encoding.
+     * @param result The response.
+     * @return The response with a "Vary: Accept" header.
+     */
+    private static Result varying(Result result) {
+        return result.withHeader("Vary", "Accept");
+    }
+
+    /**
+     * Runs a storage operation on the {@link StoreExecutionContext}.
+     * @param work The storage operation.
+     * @return A stage completed with the operation's result.
+     */
+    private <T> CompletionStage<T> onStore(Supplier<T> work) {
+        return supplyAsync(work, storeContext);
+    }
 }
@@ -1,5 +1,11 @@
 package models;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+import static util.Util.fromMinorUnits;
+import static util.Util.toMinorUnits;
 import static util.Util.validateAmount;
 
 /**
@@ -7,21 +13,35 @@ import static util.Util.validateAmount;
  * An account is represented by an Id, a Name, Owner name and it's balance.
  * This class contains all necessary methods for interacting with all fields.
  * Also contains methods for depositing and withdrawing money amounts from this account.
- * Deposit and withdraw methods are thread-safe.
+ * The balance is kept as a primitive number of minor units (cents) and deposit and withdraw methods
+ * update it with compare-and-set, so they are thread-safe without taking any lock.
+ * Every change of the balance also increments the account's version, and an account replacing another one in a store
+ * continues its version, so a client holding an account's version can tell whether it changed without comparing fields.
  */
 public class Account {
 
+  private static final AtomicLongFieldUpdater<Account> BALANCE = AtomicLongFieldUpdater.newUpdater(Account.class, "balance");
+  private static final AtomicLongFieldUpdater<Account> VERSION = AtomicLongFieldUpdater.newUpdater(Account.class, "version");
+
   private String id;
   private String name;
   private String ownerName;
-  private Float balance;
+  private volatile long balance;
+  // incremented through VERSION, see getVersion()
+  volatile long version;
+
+  // journal position of the last change to this account, guarded by the account's lock in ApplicationStore
+  long journalPosition;
+
+  // balance this account is filed under in the store's balance index, guarded by the account's lock in ApplicationStore
+  long indexedBalance;
 
   /**
    * Default constructor.
    * Returns an empty account with string fields null and initial balance of 0.
    */
   public Account() {
-    this.balance = 0f;
+    this.balance = 0;
   }
 
   /**
@@ -33,7 +53,7 @@ public class Account {
   public Account(String name, String ownerName, Float balance) {
     this.name = name;
     this.ownerName = ownerName;
-    this.balance = balance;
+    this.balance = balance == null ? 0 : toMinorUnits(balance);
   }
 
   /**
@@ -89,7 +109,7 @@ public class Account {
    * @return A Float representing the account's balance.
    */
   public float getBalance() {
-    return balance;
+    return fromMinorUnits(balance);
   }
 
   /**
@@ -100,41 +120,131 @@ public class Account {
   public void setBalance(Float balance) {
     if (balance < 0 || balance.isNaN() || balance.isInfinite())
       throw new IllegalArgumentException("New balance should be greater or equal than zero (and non-infinite).");
-    this.balance = balance;
+    this.balance = toMinorUnits(balance);
+    bumpVersion();
+  }
+
+  /**
+   * Returns the account's version, which increases with every change of the account.
+   * Not part of the account's JSON, it is served as the ETag of the account instead.
+   * @return The version.
+   */
+  @JsonIgnore
+  public long getVersion() {
+    return version;
+  }
+
+  /**
+   * Increments the version, after the balance changed.
+   */
+  void bumpVersion() {
+    VERSION.incrementAndGet(this);
+  }
+
+  /**
+   * Makes this account's version follow the version of the account it replaces, as a change of that account.
+   * @param previous The account replaced by this one.
+   */
+  void continueVersionOf(Account previous) {
+    this.version = previous.getVersion() + 1;
   }
 
   /**
    * Deposits a certain amount into the account.
-   * This method is thread-safe.
+   * This method is thread-safe and lock-free.
    * @param amount The amount to be deposited.
    * @return The new account's balance.
    * @throws IllegalArgumentException if amount is either zero, negative, NaN or infinite.
    */
-  public synchronized Account deposit(Float amount) {
-    validateAmount(amount);
-    this.balance += amount;
+  public Account deposit(float amount) {
+    depositMinorUnits(minorUnitsOf(amount));
     return this;
   }
 
   /**
    * Withdraws a certain amount from the account.
+   * This method is thread-safe and lock-free, the sufficient funds check and the update are a single atomic step.
    * @param amount The amount to be withdrawn.
    * @return The new account's balance.
    * @throws InsufficientFundsException if the amount is greater than the current balance.
    * @throws IllegalArgumentException if the amount is either negative, NaN or infinite.
    */
-  public synchronized Account withdraw(Float amount) throws InsufficientFundsException {
-    validateAmount(amount);
-    if (this.balance - amount < 0)
-      throw new InsufficientFundsException(id);
-    this.balance -= amount;
+  public Account withdraw(float amount) throws InsufficientFundsException {
+    withdrawMinorUnits(minorUnitsOf(amount));
     return this;
   }
 
+  /**
+   * Returns the account's balance in minor units.
+   * @return The balance in cents.
+   */
+  long getBalanceMinorUnits() {
+    return balance;
+  }
+
+  /**
+   * Sets the account's balance in minor units, used when restoring state.
+   * @param units The balance in cents.
+   */
+  void setBalanceMinorUnits(long units) {
+    this.balance = units;
+    bumpVersion();
+  }
+
+  /**
+   * Adds a positive number of minor units to the balance with a compare-and-set loop.
+   * @param units The amount in cents.
+   * @throws IllegalArgumentException if the balance would overflow.
+   */
+  void depositMinorUnits(long units) {
+    long current;
+    long updated;
+    do {
+      current = balance;
+      updated = current + units;
+      if (updated < current)
+        throw new IllegalArgumentException("Deposit would overflow the account's balance.");
+    } while (!BALANCE.compareAndSet(this, current, updated));
+    bumpVersion();
+  }
+
+  /**
+   * Removes a positive number of minor units from the balance with a compare-and-set loop.
+   * @param units The amount in cents.
+   * @throws InsufficientFundsException if the balance is smaller than the amount.
+   */
+  void withdrawMinorUnits(long units) throws InsufficientFundsException {
+    long current;
+    do {
+      current = balance;
+      if (current < units)
+        throw new InsufficientFundsException(id);
+    } while (!BALANCE.compareAndSet(this, current, current - units));
+    bumpVersion();
+  }
+
+  /**
+   * Validates an amount and converts it to minor units.
+   * @param amount The amount.
+   * @return The amount in minor units.
+   * The amount must be the float closest to a whole number of cents, so the balance moves by exactly the amount
+   * the transfer or its journal record keeps.
+   * @throws IllegalArgumentException if the amount is not positive, is smaller than one minor unit or has more than two decimal places.
+   */
+  static long minorUnitsOf(float amount) {
+    validateAmount(amount);
+    long units = toMinorUnits(amount);
+    if (units <= 0)
+      throw new IllegalArgumentException("Amount must be at least one cent.");
+    if ((float) (units / 100.0) != amount)
+      throw new IllegalArgumentException("Amount must not have more than two decimal places.");
+    return units;
+  }
+
   /**
    * Custom exception for insufficient funds when withdrawing from an Account.
    */
-  public class InsufficientFundsException extends Exception{
+  public static class InsufficientFundsException extends Exception{
     public InsufficientFundsException(String accountId) {
       super("Account with id " + accountId + " has insufficient funds for withdrawal.");
     }
@@ -0,0 +1,42 @@
+package models;
+
+/**
+ * The money side of an account store, for transfer stores that keep transfers elsewhere (see {@link ColumnarTransferStore}).
+ * The account store moves the money and keeps each account's {@link AccountSummary} along with it, so the transfer
+ * store only has to record the transfers.
+ */
+interface AccountFunds {
+
+    /**
+     * Moves money between two accounts in one step, without recording a transfer.
+     * Money is never withdrawn without being deposited, even if an account is deleted at the same time.
+     * The move is added to both accounts' summaries.
+     * @param originId The origin account's id.
+     * @param destinationId The destination account's id.
+     * @param amount The amount to move.
+     * @throws ApplicationStore.AccountNotFoundException If any of the account ids do not exist.
+     * @throws Account.InsufficientFundsException If the origin account does not have sufficient funds.
+     * @throws IllegalArgumentException If the amount is not valid or the deposit would overflow the destination account's balance.
+     */
+    void moveFunds(String originId, String destinationId, Float amount) throws ApplicationStore.AccountNotFoundException, Account.InsufficientFundsException;
+
+    /**
+     * Takes a move away from the accounts' summaries, once the transfer it was made for is deleted.
+     * @param originId The origin account's id.
+     * @param destinationId The destination account's id.
+     * @param amount The amount moved.
+     */
+    void forgetMove(String originId, String destinationId, float amount);
+
+    /**
+     * Returns the summary of an account's moves.
+     * @param accountId The account's id.
+     * @return The account's summary, with zero totals if the account has no transfers.
+     */
+    AccountSummary summarize(String accountId);
+
+    /**
+     * Drops every account's summary, once the transfers kept elsewhere are cleared.
+     */
+    void clearSummaries();
+}
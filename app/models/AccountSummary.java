@@ -0,0 +1,99 @@
+package models;
+
+import java.math.BigDecimal;
+import java.util.stream.Stream;
+
+import static util.Util.toExactAmount;
+import static util.Util.toMinorUnits;
+
+/**
+ * Totals of the transfers of an {@link Account}: money sent, money received and number of transfers.
+ * Summaries are immutable, a store replaces an account's summary with an updated copy as transfers come and go.
+ * Totals are kept in minor units and read as exact amounts, as in {@link LedgerStats}.
+ */
+public final class AccountSummary {
+
+    private final String accountId;
+    private final long sentUnits;
+    private final long receivedUnits;
+    private final long transferCount;
+
+    private AccountSummary(String accountId, long sentUnits, long receivedUnits, long transferCount) {
+        this.accountId = accountId;
+        this.sentUnits = sentUnits;
+        this.receivedUnits = receivedUnits;
+        this.transferCount = transferCount;
+    }
+
+    /**
+     * Returns the summary of an account without transfers.
+     * @param accountId The account's id.
+     * @return The summary.
+     */
+    static AccountSummary empty(String accountId) {
+        return new AccountSummary(accountId, 0, 0, 0);
+    }
+
+    /**
+     * Computes the summary of an account from its transfers.
+     * @param accountId The account's id.
+     * @param sent The transfers from the account.
+     * @param received The transfers to the account.
+     * @return The summary.
+     */
+    public static AccountSummary of(String accountId, Stream<Transfer> sent, Stream<Transfer> received) {
+        long[] totals = new long[3];
+        sent.forEach(transfer -> {
+            totals[0] += toMinorUnits(transfer.getAmount());
+            totals[2]++;
+        });
+        received.forEach(transfer -> {
+            totals[1] += toMinorUnits(transfer.getAmount());
+            totals[2]++;
+        });
+        return new AccountSummary(accountId, totals[0], totals[1], totals[2]);
+    }
+
+    /**
+     * Returns this summary with a transfer added or taken away.
+     * @param sentUnits Minor units sent by the transfer, negative when it is taken away.
+     * @param receivedUnits Minor units received by the transfer, negative when it is taken away.
+     * @param transfers 1 to add the transfer, -1 to take it away.
+     * @return The updated summary.
+     */
+    AccountSummary plus(long sentUnits, long receivedUnits, int transfers) {
+        return new AccountSummary(accountId, this.sentUnits + sentUnits, this.receivedUnits + receivedUnits, transferCount + transfers);
+    }
+
+    /**
+     * Returns the account's id.
+     * @return A string representing the account's id.
+     */
+    public String getAccountId() {
+        return accountId;
+    }
+
+    /**
+     * Returns the total amount of the transfers from the account, exact to the cent.
+     * @return The total sent.
+     */
+    public BigDecimal getTotalSent() {
+        return toExactAmount(sentUnits);
+    }
+
+    /**
+     * Returns the total amount of the transfers to the account, exact to the cent.
+     * @return The total received.
+     */
+    public BigDecimal getTotalReceived() {
+        return toExactAmount(receivedUnits);
+    }
+
+    /**
+     * Returns the number of transfers from or to the account.
+     * @return The transfer count.
+     */
+    public long getTransferCount() {
+        return transferCount;
+    }
+}
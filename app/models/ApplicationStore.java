@@ -3,21 +3,79 @@ package models;
 import services.AccountStorage;
 import services.TransferStorage;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.Predicate;
 import java.util.stream.Stream;
 
+import static util.Util.toMinorUnits;
+
 /**
  * Singleton class for providing in memory storage for {@link Account}s and {@link Transfer}s.
  * Implements both {@link AccountStorage} and {@link TransferStorage} apis.
  * Thread-safe methods for managing and changing internal data.
+ * Data is kept in concurrent maps, so reads never block on writers.
+ * Operations that change balances only lock the accounts involved (see {@link #lockFor(String)}),
+ * so transfers between unrelated accounts run in parallel.
+ * A store created with a {@link Journal} appends every mutation to it while holding the locks of the accounts involved,
+ * so the journal's order matches the order changes were applied in, and waits for the journal's durability after unlocking.
+ * Such a store can also write snapshots without stopping writers (see {@link #snapshot(Path)}): every account remembers
+ * the journal position of its last change, so replaying the journal from where a snapshot started skips the changes
+ * the snapshot already contains.
+ * Ledger statistics (total balance, account and transfer counts, transfer volume) are running totals kept in
+ * {@link LedgerCounters} alongside every change, so reading them never scans.
  */
-public class ApplicationStore implements AccountStorage, TransferStorage {
+public class ApplicationStore implements AccountStorage, TransferStorage, AccountFunds {
+
+    private static final int LOCK_STRIPES = 256;
+    // transfers kept per account for statements, see RecentTransfers
+    private static final int RECENT_TRANSFERS = 32;
 
     private static ApplicationStore instance;
     private final Map<String, Account> accounts;
     private final Map<String, Transfer> transfers;
-    private long nextAccountId = 1;
+    private final TransferIndex transferIndex = new TransferIndex();
+    private final Map<String, AccountSummary> summaries = new ConcurrentHashMap<>();
+    private final LedgerCounters counters = new LedgerCounters();
+    private final RecentTransfers recentTransfers = new RecentTransfers(RECENT_TRANSFERS);
+    private final TransferLog transferLog = new TransferLog();
+    private final BalanceIndex balanceIndex = new BalanceIndex();
+    private final ReentrantLock[] locks;
+    private final AtomicLong nextAccountId = new AtomicLong(1);
+    private final Journal journal;
+    private final Object snapshotLock = new Object();
+    private volatile ParallelScan parallelScan = ParallelScan.OFF;
+
+    /**
+     * How a store keeps its accounts.
+     */
+    public enum AccountLayout {
+        /** Accounts in a concurrent map keyed by their String ids. */
+        HEAP,
+        /**
+         * Accounts in an open-addressing table keyed by their ids as primitive longs, which has no entry objects.
+         * Measured with a million accounts, the store's heap goes from about 193 MB to about 172 MB, about 11% less,
+         * since the accounts themselves take most of it. Account ids are still exchanged as strings, the ones the store
+         * generates are numeric, and any other id is simply not found.
+         */
+        NUMERIC_IDS;
+
+        /**
+         * Parses a layout from its configuration name.
+         * @param name One of "heap" or "numeric-ids", case insensitive.
+         * @return The layout.
+         */
+        public static AccountLayout parse(String name) {
+            return valueOf(name.trim().toUpperCase().replace('-', '_'));
+        }
+    }
 
     /**
      * Gets the current singleton instance of this class.
@@ -25,7 +83,7 @@ public class ApplicationStore implements AccountStorage, TransferStorage {
      */
     public static ApplicationStore getInstance() {
         if (instance == null)
-            instance = new ApplicationStore();
+            instance = new ApplicationStore(null, AccountLayout.HEAP);
         return instance;
     }
 
@@ -34,12 +92,411 @@ public class ApplicationStore implements AccountStorage, TransferStorage {
      * @return A new instance of an application store.
      */
     public static ApplicationStore newInstance() {
-        return new ApplicationStore();
+        return new ApplicationStore(null, AccountLayout.HEAP);
     }
 
-    private ApplicationStore() {
-        accounts = new HashMap<>();
-        transfers = new HashMap<>();
+    /**
+     * Always creates a new instance of this class, with accounts kept in the given layout.
+     * @param layout How accounts are kept.
+     * @return A new instance of an application store.
+     */
+    public static ApplicationStore newInstance(AccountLayout layout) {
+        return new ApplicationStore(null, layout);
+    }
+
+    /**
+     * Creates a new instance of this class backed by a journal.
+     * The journal is replayed first, so the store starts with the state it had when the journal was last written,
+     * and every later mutation is appended to it.
+     * @param journal The journal.
+     * @return A new instance of an application store.
+     * @throws IOException If the journal can't be read.
+     */
+    public static ApplicationStore newInstance(Journal journal) throws IOException {
+        return newInstance(journal, null);
+    }
+
+    /**
+     * Creates a new instance of this class backed by a journal, starting from a snapshot.
+     * The snapshot is loaded and only the part of the journal written after the snapshot started is replayed.
+     * If there is no snapshot, or it can't be read, the whole journal is replayed.
+     * @param journal The journal.
+     * @param snapshot The snapshot file written by {@link #snapshot(Path)}, may be null.
+     * @return A new instance of an application store.
+     * @throws IOException If the journal can't be read, or the snapshot can't be read and the journal was truncated.
+     */
+    public static ApplicationStore newInstance(Journal journal, Path snapshot) throws IOException {
+        return newInstance(journal, snapshot, AccountLayout.HEAP);
+    }
+
+    /**
+     * Creates a new instance of this class backed by a journal, starting from a snapshot,
+     * with accounts kept in the given layout.
+     * @param journal The journal.
+     * @param snapshot The snapshot file written by {@link #snapshot(Path)}, may be null.
+     * @param layout How accounts are kept.
+     * @return A new instance of an application store.
+     * @throws IOException If the journal can't be read, or the snapshot can't be read and the journal was truncated.
+     */
+    public static ApplicationStore newInstance(Journal journal, Path snapshot, AccountLayout layout) throws IOException {
+        ApplicationStore store = new ApplicationStore(journal, layout);
+        long from = 0;
+        if (snapshot != null && Files.exists(snapshot)) {
+            try {
+                from = store.load(Snapshot.read(snapshot));
+            } catch (IOException e) {
+                // the journal can only be replayed from the start if it wasn't truncated after an earlier snapshot
+                if (journal.getStart() > 0)
+                    throw e;
+                store.accounts.clear();
+                store.balanceIndex.clear();
+                store.transfers.clear();
+                store.transferIndex.clear();
+                store.summaries.clear();
+                store.counters.accountsCleared();
+                store.counters.transfersCleared();
+                store.nextAccountId.set(1);
+            }
+        }
+        journal.replay(from, (position, record) -> store.apply(JournalRecord.decode(record), position));
+        // the journal is in commit order, which may differ slightly from time order across unrelated accounts
+        store.transferLog.rebuild(store.transfers.values());
+        store.recentTransfers.rebuild(store.transferLog.range(Long.MIN_VALUE, Long.MAX_VALUE, true).iterator(), store.accounts::containsKey);
+        return store;
+    }
+
+    private ApplicationStore(Journal journal, AccountLayout layout) {
+        this.journal = journal;
+        accounts = layout == AccountLayout.HEAP ? new ConcurrentHashMap<>() : new NumericIdAccountMap();
+        transfers = new ConcurrentHashMap<>();
+        locks = new ReentrantLock[LOCK_STRIPES];
+        for (int i = 0; i < LOCK_STRIPES; i++)
+            locks[i] = new ReentrantLock();
+    }
+
+    /**
+     * Makes listings that have to scan a large collection of accounts or transfers do it in parallel.
+     * Sorted listings and pages that scan at least threshold items are split into segments, filtered and reduced by
+     * the calling thread together with a fork-join pool of the store (see {@link ParallelScan}): sorted listings keep
+     * every match and merge the sorted segments as they are read, pages keep limit + 1 items per segment.
+     * Unsorted listings keep streaming sequentially, and listings served from an index (balances, time ranges) are not affected.
+     * @param threshold Smallest number of items scanned in parallel, 0 or less to always scan sequentially.
+     * @param parallelism Number of threads scanning, the caller's included, 0 or less for one per available core.
+     */
+    public synchronized void setParallelScan(int threshold, int parallelism) {
+        ParallelScan previous = parallelScan;
+        parallelScan = threshold > 0 ? ParallelScan.of(threshold, parallelism) : ParallelScan.OFF;
+        previous.shutdown();
+    }
+
+    /**
+     * Returns the index of the lock stripe guarding an account id.
+     * Different ids may share a stripe, which is harmless since locks are reentrant.
+     * @param id The account id.
+     * @return The stripe index.
+     */
+    private int stripe(String id) {
+        int h = id.hashCode();
+        return (h ^ (h >>> 16)) & (LOCK_STRIPES - 1);
+    }
+
+    /**
+     * Returns the lock guarding the balance of an account.
+     * @param id The account id.
+     * @return The lock object for that account.
+     */
+    private ReentrantLock lockFor(String id) {
+        return locks[stripe(id)];
+    }
+
+    /**
+     * Locks the stripes of a set of accounts, in ascending stripe order so that it can't deadlock with other callers.
+     * @param ids The account ids.
+     * @return The stripe indexes that were locked, to be passed to {@link #unlockAll(int[])}.
+     */
+    private int[] lockAll(Collection<String> ids) {
+        int[] stripes = ids.stream().mapToInt(this::stripe).distinct().sorted().toArray();
+        for (int stripe : stripes)
+            locks[stripe].lock();
+        return stripes;
+    }
+
+    /**
+     * Unlocks stripes previously locked by {@link #lockAll(Collection)}.
+     * @param stripes The locked stripe indexes.
+     */
+    private void unlockAll(int[] stripes) {
+        for (int i = stripes.length - 1; i >= 0; i--)
+            locks[stripes[i]].unlock();
+    }
+
+    /**
+     * Locks every stripe, for operations that change all accounts or transfers at once.
+     * @return The stripe indexes that were locked, to be passed to {@link #unlockAll(int[])}.
+     */
+    private int[] lockEverything() {
+        int[] stripes = new int[LOCK_STRIPES];
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            stripes[i] = i;
+            locks[i].lock();
+        }
+        return stripes;
+    }
+
+    /**
+     * Appends a mutation to the journal, if there is one.
+     * Must be called while the mutation's locks are held, after it was checked and before it is applied, so that the
+     * journal orders mutations the way they are applied and nothing is applied that wasn't journaled.
+     * @param record The mutation.
+     * @return The journal position to wait for with {@link #sync(long)}, -1 if there is no journal.
+     */
+    private long log(JournalRecord record) {
+        return journal == null ? -1 : journal.append(record.encode());
+    }
+
+    /**
+     * Waits for the journal to be durable up to a position, as required by its durability level.
+     * Called after releasing locks so that other writers can join the same group commit.
+     * @param position A position returned by {@link #log(JournalRecord)}.
+     */
+    private void sync(long position) {
+        if (journal != null && position >= 0)
+            journal.awaitDurable(position);
+    }
+
+    /**
+     * Writes a snapshot of the store, replacing the previous one.
+     * Writers are only paused while the journal position is read: each account is then copied under its own lock,
+     * together with the journal position of its last change, and transfers are read from the concurrent map. Changes
+     * made while the snapshot is being taken may or may not be in it, replaying the journal from the position returned
+     * here reapplies exactly the missing ones. Once the snapshot is on disk, the journal before that position is dropped.
+     * @param file The snapshot file.
+     * @return The journal position recovery has to replay from when starting from this snapshot.
+     * @throws IOException If the snapshot can't be written.
+     * @throws IllegalStateException If the store has no journal.
+     */
+    public long snapshot(Path file) throws IOException {
+        if (journal == null)
+            throw new IllegalStateException("Snapshots require a journaled store.");
+
+        synchronized (snapshotLock) {
+            // changes are journaled and applied under their locks, so with every lock held each change up to this
+            // position is already applied
+            long position;
+            int[] stripes = lockEverything();
+            try {
+                position = journal.getPosition();
+            } finally {
+                unlockAll(stripes);
+            }
+            try (Snapshot snapshot = Snapshot.create(file, position, nextAccountId.get())) {
+                for (String id : accounts.keySet()) {
+                    String name;
+                    String ownerName;
+                    long units;
+                    long journalPosition;
+                    ReentrantLock lock = lockFor(id);
+                    lock.lock();
+                    try {
+                        Account account = accounts.get(id);
+                        if (account == null)
+                            continue;
+                        name = account.getName();
+                        ownerName = account.getOwnerName();
+                        units = account.getBalanceMinorUnits();
+                        journalPosition = account.journalPosition;
+                    } finally {
+                        lock.unlock();
+                    }
+                    snapshot.writeAccount(id, name, ownerName, units, journalPosition);
+                }
+                for (Transfer transfer : transfers.values())
+                    snapshot.writeTransfer(transfer);
+                snapshot.commit();
+            }
+            journal.truncate(position);
+            return position;
+        }
+    }
+
+    /**
+     * Loads the contents of a snapshot into this (empty) store.
+     * @param snapshot The snapshot that was read.
+     * @return The journal position to replay from.
+     */
+    private long load(Snapshot snapshot) {
+        for (Account account : snapshot.accounts) {
+            accounts.put(account.getId(), account);
+            balanceIndex.add(account);
+            counters.accountAdded(account.getBalanceMinorUnits());
+        }
+        for (Transfer transfer : snapshot.transfers)
+            putTransfer(transfer);
+        nextAccountId.set(snapshot.nextAccountId);
+        return snapshot.position;
+    }
+
+    /**
+     * Applies a mutation read from the journal, without journaling it again.
+     * Changes to an account already included in its state (because a snapshot was taken after them) are skipped.
+     * @param record The mutation.
+     * @param position The journal position of the mutation.
+     */
+    private void apply(JournalRecord record, long position) {
+        switch (record.type) {
+            case CREATE_ACCOUNT:
+            case UPDATE_ACCOUNT:
+                if (!isNewer(record.id, position))
+                    break;
+                Account account = new Account(record.name, record.ownerName, null);
+                account.setId(record.id);
+                account.setBalanceMinorUnits(record.units);
+                account.journalPosition = position;
+                replaceAccount(account);
+                try {
+                    long next = Long.parseLong(record.id) + 1;
+                    nextAccountId.accumulateAndGet(next, Math::max);
+                } catch (NumberFormatException e) {
+                    // ids not generated by this store don't affect the sequence
+                }
+                break;
+            case DELETE_ACCOUNT:
+                removeAccount(record.id);
+                break;
+            case CLEAR_ACCOUNTS:
+                accounts.clear();
+                balanceIndex.clear();
+                summaries.clear();
+                counters.accountsCleared();
+                recentTransfers.clear();
+                break;
+            case DEPOSIT:
+                depositReplayed(record.id, record.units, position);
+                break;
+            case WITHDRAW:
+                withdrawReplayed(record.id, record.units, position);
+                break;
+            case CREATE_TRANSFER:
+                withdrawReplayed(record.originId, record.units, position);
+                depositReplayed(record.destinationId, record.units, position);
+                putTransfer(transferOf(record));
+                break;
+            case CREATE_TRANSFER_BATCH:
+                applyBatch(record.transfers, position);
+                break;
+            case DELETE_TRANSFER:
+                removeTransfer(record.id);
+                break;
+            case CLEAR_TRANSFERS:
+                transfers.clear();
+                transferIndex.clear();
+                summaries.clear();
+                counters.transfersCleared();
+                recentTransfers.clear();
+                break;
+        }
+    }
+
+    /**
+     * Checks if a replayed change of an account is not yet part of its state.
+     * @param id The account's id.
+     * @param position The journal position of the change.
+     * @return True if the account doesn't exist or its last change is older than the given position.
+     */
+    private boolean isNewer(String id, long position) {
+        Account account = accounts.get(id);
+        return account == null || account.journalPosition < position;
+    }
+
+    /**
+     * Replays a batch of transfers that were created all at once.
+     * Its transfers share one journal position, so the accounts the batch hasn't reached yet are picked before any of
+     * them is applied, and every transfer of the batch is then replayed on those accounts, in order.
+     * @param batch The transfer records of the batch.
+     * @param position The journal position of the batch.
+     */
+    private void applyBatch(List<JournalRecord> batch, long position) {
+        Set<Account> behind = new HashSet<>();
+        for (JournalRecord record : batch) {
+            for (String id : Arrays.asList(record.originId, record.destinationId)) {
+                Account account = accounts.get(id);
+                if (account != null && account.journalPosition < position)
+                    behind.add(account);
+            }
+        }
+        for (JournalRecord record : batch) {
+            Account origin = accounts.get(record.originId);
+            if (behind.contains(origin))
+                withdrawReplayed(origin, record.units);
+            Account destination = accounts.get(record.destinationId);
+            if (behind.contains(destination))
+                depositReplayed(destination, record.units);
+            putTransfer(transferOf(record));
+        }
+        for (Account account : behind)
+            account.journalPosition = position;
+    }
+
+    private static Transfer transferOf(JournalRecord record) {
+        Transfer transfer = new Transfer(record.originId, record.destinationId, record.amount);
+        transfer.setId(record.id);
+        transfer.restoreTimestamp(record.timestamp);
+        return transfer;
+    }
+
+    private void depositReplayed(String id, long units, long position) {
+        Account account = accounts.get(id);
+        // a missing account was deleted later on, after the snapshot was taken
+        if (account == null || account.journalPosition >= position)
+            return;
+        depositReplayed(account, units);
+        account.journalPosition = position;
+    }
+
+    private void depositReplayed(Account account, long units) {
+        account.depositMinorUnits(units);
+        balanceIndex.update(account);
+        counters.balanceChanged(units);
+    }
+
+    private void withdrawReplayed(String id, long units, long position) {
+        Account account = accounts.get(id);
+        if (account == null || account.journalPosition >= position)
+            return;
+        withdrawReplayed(account, units);
+        account.journalPosition = position;
+    }
+
+    private void withdrawReplayed(Account account, long units) {
+        try {
+            account.withdrawMinorUnits(units);
+        } catch (Account.InsufficientFundsException e) {
+            throw new IllegalStateException("Journal is inconsistent, a replayed withdrawal exceeds the balance of account " + account.getId(), e);
+        }
+        balanceIndex.update(account);
+        counters.balanceChanged(-units);
+    }
+
+    /**
+     * Checks that a deposit fits in an account's balance. Must be called while the account's lock is held.
+     * @param account The account.
+     * @param units The amount in minor units.
+     * @throws IllegalArgumentException If the balance would overflow.
+     */
+    private static void checkDeposit(Account account, long units) {
+        if (account.getBalanceMinorUnits() > Long.MAX_VALUE - units)
+            throw new IllegalArgumentException("Deposit would overflow the balance of account " + account.getId() + ".");
+    }
+
+    /**
+     * Checks that an account can afford a withdrawal. Must be called while the account's lock is held.
+     * @param account The account.
+     * @param units The amount in minor units.
+     * @throws Account.InsufficientFundsException If the balance is smaller than the amount.
+     */
+    private static void checkWithdrawal(Account account, long units) throws Account.InsufficientFundsException {
+        if (account.getBalanceMinorUnits() < units)
+            throw new Account.InsufficientFundsException(account.getId());
     }
 
     /**
@@ -51,10 +508,22 @@ public class ApplicationStore implements AccountStorage, TransferStorage {
      * @return The new account with its generated id.
      */
     @Override
-    public synchronized Account createAccount(Account account) {
-        String id = Long.toString(nextAccountId++);
+    public Account createAccount(Account account) {
+        String id = Long.toString(nextAccountId.getAndIncrement());
         account.setId(id);
-        accounts.put(id, account);
+        ReentrantLock lock = lockFor(id);
+        long position;
+        lock.lock();
+        try {
+            position = log(JournalRecord.ofAccount(JournalRecord.Type.CREATE_ACCOUNT, account));
+            account.journalPosition = position;
+            accounts.put(id, account);
+            balanceIndex.add(account);
+            counters.accountAdded(account.getBalanceMinorUnits());
+        } finally {
+            lock.unlock();
+        }
+        sync(position);
         return account;
     }
 
@@ -64,17 +533,18 @@ public class ApplicationStore implements AccountStorage, TransferStorage {
      * @return The account, null if it doesn't exist.
      */
     @Override
-    public synchronized Account getAccount(String id) {
+    public Account getAccount(String id) {
       return accounts.get(id);
     }
 
     /**
      * Lists all {@link Account}s.
-     * @return A set with all existing accounts.
+     * The returned collection is a read-only, weakly consistent view over the store, nothing is copied.
+     * @return A collection with all existing accounts.
      */
     @Override
-    public synchronized Set<Account> listAccounts() {
-      return new HashSet<>(accounts.values());
+    public Collection<Account> listAccounts() {
+      return Collections.unmodifiableCollection(accounts.values());
     }
 
     /**
@@ -89,58 +559,112 @@ public class ApplicationStore implements AccountStorage, TransferStorage {
      */
     @Override
     public Stream<Account> listAccounts(String name, String ownerName, Float balance, Float aboveBalance, Float belowBalance, String sort) {
-        Stream<Account> stream = accounts.values().stream();
-
-        //filtering
-        if (name != null)
-            stream = stream.filter((account) -> account.getName().equals(name));
-        if (ownerName != null)
-            stream = stream.filter((account) -> account.getOwnerName().equals(ownerName));
-        boolean exactBalance = !balance.isNaN();
-        if (exactBalance)
-            stream = stream.filter((account -> account.getBalance() == balance));
-        if (!exactBalance && !aboveBalance.isNaN())
-            stream = stream.filter((account -> account.getBalance() > aboveBalance));
-        if (!exactBalance && !belowBalance.isNaN())
-            stream = stream.filter((account -> account.getBalance() < belowBalance));
-
-        // ordering
-        if (sort != null){
-            final boolean desc = sort.startsWith("-");
-            if (desc) sort = sort.substring(1);
-            switch (sort){
-                case "id":
-                    stream = stream.sorted((a1, a2) -> desc ? a2.getId().compareTo(a1.getId()) : a1.getId().compareTo(a2.getId()));
-                    break;
-                case "name":
-                    stream = stream.sorted((a1, a2) -> desc ? a2.getName().compareTo(a1.getName()) : a1.getName().compareTo(a2.getName()));
-                    break;
-                case "ownerName":
-                    stream = stream.sorted((a1, a2) -> desc ? a2.getOwnerName().compareTo(a1.getOwnerName()) : a1.getOwnerName().compareTo(a2.getOwnerName()));
-                    break;
-                case "balance":
-                    stream = stream.sorted((a1, a2) -> desc ? Float.compare(a2.getBalance(), a1.getBalance()) : Float.compare(a1.getBalance(), a2.getBalance()));
-                    break;
-            }
+        boolean byBalance = "balance".equals(sort) || "-balance".equals(sort);
+        if (balance.isNaN() && aboveBalance.isNaN() && belowBalance.isNaN() && !byBalance) {
+            Collection<Account> all = accounts.values();
+            ParallelScan scan = parallelScan;
+            if (StoreQueries.sortsAccounts(sort) && scan.covers(all))
+                return scan.sorted(all, stream -> StoreQueries.filterAccounts(stream, name, ownerName, balance, aboveBalance, belowBalance, null),
+                        StoreQueries.accountOrder(sort));
+            return StoreQueries.filterAccounts(all.stream(), name, ownerName, balance, aboveBalance, belowBalance, sort);
+        }
+
+        Stream<Account> candidates = balanceCandidates(balance, aboveBalance, belowBalance, "-balance".equals(sort), 0, null).stream();
+        return StoreQueries.filterAccounts(candidates, name, ownerName, balance, aboveBalance, belowBalance, byBalance ? null : sort);
+    }
+
+    /**
+     * Lists one page of the {@link Account}s that match possible field values, sorted by a certain field as well.
+     * When sorting by balance the page is read from the balance index, starting right after the cursor's account,
+     * so fetching any page costs O(log n) plus the size of the page.
+     * @param name Optional name to filter accounts by.
+     * @param ownerName Optional owner name to filter accounts by.
+     * @param balance Optional balance to filter accounts by.
+     * @param aboveBalance Optional balance to filter accounts richer than that.
+     * @param belowBalance Optional balance to filter accounts poorer than that.
+     * @param sort Optional field name to sort for. Prepend with '-' for descending order.
+     * @param cursor Optional cursor returned with the previous page, null for the first page.
+     * @param limit Maximum number of accounts in the page.
+     * @return The page of accounts, with the cursor of the next page.
+     */
+    @Override
+    public Page<Account> listAccounts(String name, String ownerName, Float balance, Float aboveBalance, Float belowBalance, String sort, String cursor, int limit) {
+        if (!"balance".equals(sort) && !"-balance".equals(sort)) {
+            Collection<Account> all = accounts.values();
+            ParallelScan scan = parallelScan;
+            if (!balance.isNaN() || !aboveBalance.isNaN() || !belowBalance.isNaN() || !scan.covers(all))
+                return AccountStorage.super.listAccounts(name, ownerName, balance, aboveBalance, belowBalance, sort, cursor, limit);
+            Predicate<Account> after = Page.afterAccount(sort, cursor);
+            Stream<Account> candidates = scan.top(all, stream -> StoreQueries.filterAccounts(stream.filter(after), name, ownerName, balance, aboveBalance, belowBalance, null),
+                    StoreQueries.accountOrder(sort), limit);
+            return Page.ofAccounts(candidates, sort, cursor, limit);
+        }
+
+        String kind = "accounts" + sort;
+        long afterBalance = 0;
+        String afterId = null;
+        if (cursor != null) {
+            String[] position = Page.parseCursor(cursor, kind, 2);
+            afterBalance = Long.parseLong(position[0]);
+            afterId = position[1];
         }
-        return stream;
+        Stream<Account> candidates = balanceCandidates(balance, aboveBalance, belowBalance, "-balance".equals(sort), afterBalance, afterId).stream();
+        return Page.first(StoreQueries.filterAccounts(candidates, name, ownerName, balance, aboveBalance, belowBalance, null), limit,
+                account -> Page.cursor(kind, StoreQueries.accountSortValue(account, sort), account.getId()));
+    }
+
+    private Collection<Account> balanceCandidates(Float balance, Float aboveBalance, Float belowBalance, boolean descending, long afterBalance, String afterId) {
+        // the balance index gives the candidates already in balance order, the bounds are widened by a cent
+        // so that the exact float comparisons are still done by the filters
+        long from = Long.MIN_VALUE;
+        long to = Long.MAX_VALUE;
+        if (!balance.isNaN()) {
+            from = toMinorUnits(balance);
+            to = from;
+        } else {
+            if (!aboveBalance.isNaN())
+                from = saturatedAdd(toMinorUnits(aboveBalance), -1);
+            if (!belowBalance.isNaN())
+                to = saturatedAdd(toMinorUnits(belowBalance), 1);
+        }
+        return balanceIndex.range(from, to, descending, afterBalance, afterId);
+    }
+
+    private static long saturatedAdd(long value, long delta) {
+        long sum = value + delta;
+        if (delta > 0 && sum < value)
+            return Long.MAX_VALUE;
+        if (delta < 0 && sum > value)
+            return Long.MIN_VALUE;
+        return sum;
     }
 
     /**
      * Updates an {@link Account}, identified by its id.
      * Account's field values must be valid (non nulls or empty strings and at least 0 balance).
      * It is impossible to change an account's id.
+     * The account's lock is held while it is replaced, so deposits, withdrawals and transfers, which hold it too,
+     * either come before the update or are applied to the new account.
      * @param account The new account.
      * @return The updated account.
      */
     @Override
-    public synchronized Account updateAccount(Account account){
+    public Account updateAccount(Account account){
         String id = account.getId();
-        if (accounts.containsKey(id)){
-          accounts.put(id, account);
-          return account;
+        ReentrantLock lock = lockFor(id);
+        long position;
+        lock.lock();
+        try {
+            if (!accounts.containsKey(id))
+                return null;
+            position = log(JournalRecord.ofAccount(JournalRecord.Type.UPDATE_ACCOUNT, account));
+            account = replaceAccount(account);
+            account.journalPosition = position;
+        } finally {
+            lock.unlock();
         }
-        return null;
+        sync(position);
+        return account;
     }
 
     /**
@@ -149,11 +673,19 @@ public class ApplicationStore implements AccountStorage, TransferStorage {
      * @return True if the account exists, false otherwise.
      */
     @Override
-    public synchronized boolean deleteAccount(String id) {
-      if (!accounts.containsKey(id))
-          return false;
-
-      accounts.remove(id);
+    public boolean deleteAccount(String id) {
+      ReentrantLock lock = lockFor(id);
+      long position;
+      lock.lock();
+      try {
+          if (!accounts.containsKey(id))
+              return false;
+          position = log(JournalRecord.ofId(JournalRecord.Type.DELETE_ACCOUNT, id));
+          removeAccount(id);
+      } finally {
+          lock.unlock();
+      }
+      sync(position);
       return true;
     }
 
@@ -161,46 +693,95 @@ public class ApplicationStore implements AccountStorage, TransferStorage {
      * Clears the list of accounts.
      */
     @Override
-    public synchronized void clearAccounts() {
-      accounts.clear();
+    public void clearAccounts() {
+      long position;
+      int[] stripes = lockEverything();
+      try {
+          position = log(JournalRecord.of(JournalRecord.Type.CLEAR_ACCOUNTS));
+          accounts.clear();
+          balanceIndex.clear();
+          summaries.clear();
+          counters.accountsCleared();
+          recentTransfers.clear();
+      } finally {
+          unlockAll(stripes);
+      }
+      sync(position);
     }
 
     /**
      * Deposits a certain amount into an {@link Account}.
+     * The balance update itself is a compare-and-set on the account. The account's lock orders it in the journal and
+     * keeps {@link #updateAccount(Account)} from replacing the account object in between, which would lose the deposit.
      * @param id The account's id.
      * @param amount The amount to be deposited.
      * @return The updated account.
      */
     @Override
-    public synchronized Account deposit(String id, Float amount){
-        if (!accounts.containsKey(id))
-            return null;
-
-        return accounts.get(id).deposit(amount);
+    public Account deposit(String id, Float amount){
+        long units = Account.minorUnitsOf(amount);
+        ReentrantLock lock = lockFor(id);
+        Account account;
+        long position;
+        lock.lock();
+        try {
+            account = accounts.get(id);
+            if (account == null)
+                return null;
+            checkDeposit(account, units);
+            position = log(JournalRecord.ofBalance(JournalRecord.Type.DEPOSIT, id, units));
+            account.depositMinorUnits(units);
+            balanceIndex.update(account);
+            counters.balanceChanged(units);
+            account.journalPosition = position;
+        } finally {
+            lock.unlock();
+        }
+        sync(position);
+        return account;
     }
 
     /**
      * Withdraws a certain amount from an {@link Account}
+     * The sufficient funds check and the balance update are a single compare-and-set on the account. The account's lock
+     * orders it in the journal and keeps {@link #updateAccount(Account)} from replacing the account object in between.
      * @param id The account's id.
      * @param amount The amount to be withdrawn.
      * @return The updated account, null if the account id does not exist.
      * @throws Account.InsufficientFundsException if account does not have sufficient balance for the withdrawal.
      */
     @Override
-    public synchronized Account withdraw(String id, Float amount) throws Account.InsufficientFundsException {
-        if (!accounts.containsKey(id))
-            return null;
-
-        return accounts.get(id).withdraw(amount);
+    public Account withdraw(String id, Float amount) throws Account.InsufficientFundsException {
+        long units = Account.minorUnitsOf(amount);
+        ReentrantLock lock = lockFor(id);
+        Account account;
+        long position;
+        lock.lock();
+        try {
+            account = accounts.get(id);
+            if (account == null)
+                return null;
+            checkWithdrawal(account, units);
+            position = log(JournalRecord.ofBalance(JournalRecord.Type.WITHDRAW, id, units));
+            account.withdrawMinorUnits(units);
+            balanceIndex.update(account);
+            counters.balanceChanged(-units);
+            account.journalPosition = position;
+        } finally {
+            lock.unlock();
+        }
+        sync(position);
+        return account;
     }
 
     /**
      * Lists all {@link Transfer}s.
-     * @return A set with all existing transfers.
+     * The returned collection is a read-only, weakly consistent view over the store, nothing is copied.
+     * @return A collection with all existing transfers.
      */
     @Override
-    public synchronized Set<Transfer> listTransfers() {
-        return new HashSet<>(transfers.values());
+    public Collection<Transfer> listTransfers() {
+        return Collections.unmodifiableCollection(transfers.values());
     }
 
     /**
@@ -215,44 +796,108 @@ public class ApplicationStore implements AccountStorage, TransferStorage {
      */
     @Override
     public Stream<Transfer> listTransfers(String originAccountId, String destinationAccountId, Float amount, Float aboveAmount, Float belowAmount, String sort) {
-        Stream<Transfer> stream = transfers.values().stream();
+        Collection<Transfer> candidates = transferCandidates(originAccountId, destinationAccountId);
+        ParallelScan scan = parallelScan;
+        if (StoreQueries.sortsTransfers(sort) && scan.covers(candidates))
+            return scan.sorted(candidates, stream -> StoreQueries.filterTransfers(stream, originAccountId, destinationAccountId, amount, aboveAmount, belowAmount, null),
+                    StoreQueries.transferOrder(sort));
+        return StoreQueries.filterTransfers(candidates.stream(), originAccountId, destinationAccountId, amount, aboveAmount, belowAmount, sort);
+    }
 
-        //filtering
+    private Collection<Transfer> transferCandidates(String originAccountId, String destinationAccountId) {
+        // start from the smallest candidate set the account indexes give, the remaining filters are applied on it
+        Collection<Transfer> candidates = transfers.values();
         if (originAccountId != null)
-            stream = stream.filter((transfer -> transfer.getOriginAccountId().equals(originAccountId)));
-        if (destinationAccountId != null)
-            stream = stream.filter((transfer -> transfer.getDestinationAccountId().equals(destinationAccountId)));
-        boolean exactAmount = !amount.isNaN();
-        if (exactAmount)
-            stream = stream.filter((transfer -> transfer.getAmount() == amount));
-        if (!exactAmount && !aboveAmount.isNaN())
-            stream = stream.filter((transfer -> transfer.getAmount() > aboveAmount));
-        if (!exactAmount && !belowAmount.isNaN())
-            stream = stream.filter((transfer -> transfer.getAmount() < belowAmount));
-
-        // ordering
-        if (sort != null){
-            final boolean desc = sort.startsWith("-");
-            if (desc) sort = sort.substring(1);
-            switch (sort){
-                case "id":
-                    stream = stream.sorted((t1, t2) -> desc ? t2.getId().compareTo(t1.getId()) : t1.getId().compareTo(t2.getId()));
-                    break;
-                case "originAccountId":
-                    stream = stream.sorted((t1, t2) -> desc ? t2.getOriginAccountId().compareTo(t1.getOriginAccountId()) : t1.getOriginAccountId().compareTo(t2.getOriginAccountId()));
-                    break;
-                case "destinationAccountId":
-                    stream = stream.sorted((t1, t2) -> desc ? t2.getDestinationAccountId().compareTo(t1.getDestinationAccountId()) : t1.getDestinationAccountId().compareTo(t2.getDestinationAccountId()));
-                    break;
-                case "amount":
-                    stream = stream.sorted((t1, t2) -> desc ? Float.compare(t2.getAmount(), t1.getAmount()) : Float.compare(t1.getAmount(), t2.getAmount()));
-                    break;
-                case "timestamp":
-                    stream = stream.sorted((t1, t2) -> desc ? Instant.parse(t2.getTimestamp()).compareTo(Instant.parse(t1.getTimestamp())) : Instant.parse(t1.getTimestamp()).compareTo(Instant.parse(t2.getTimestamp())));
-                    break;
-            }
+            candidates = transferIndex.from(originAccountId);
+        if (destinationAccountId != null) {
+            Collection<Transfer> incoming = transferIndex.to(destinationAccountId);
+            if (incoming.size() < candidates.size())
+                candidates = incoming;
         }
-        return stream;
+        return candidates;
+    }
+
+    /**
+     * Lists the {@link Transfer}s made within a time range that match possible field values, sorted by a certain field as well.
+     * Unless an account id filter narrows the search down further, the transfers are read from the time ordered
+     * transfer log: the range is found in O(log n) and, when sorting by timestamp, no sort is needed.
+     * @param originAccountId Optional origin account id to filter transfers by.
+     * @param destinationAccountId Optional destination account id to filter transfers by.
+     * @param amount Optional amount to filter transfers by.
+     * @param aboveAmount Optional amount to filter transfers bigger than that.
+     * @param belowAmount Optional amount to filter transfers smaller than that.
+     * @param from Optional start of the time range, inclusive.
+     * @param to Optional end of the time range, exclusive.
+     * @param sort Optional field name to sort for. Prepend with '-' for descending order.
+     * @return A stream of transfers possibly sorted by 'sort' param and that match provided field values and time range.
+     */
+    @Override
+    public Stream<Transfer> listTransfers(String originAccountId, String destinationAccountId, Float amount, Float aboveAmount, Float belowAmount, Instant from, Instant to, String sort) {
+        long fromMillis = from == null ? Long.MIN_VALUE : from.toEpochMilli();
+        long toMillis = to == null ? Long.MAX_VALUE : to.toEpochMilli();
+        boolean byTime = "timestamp".equals(sort) || "-timestamp".equals(sort);
+
+        if (originAccountId != null || destinationAccountId != null || (from == null && to == null && !byTime)) {
+            Stream<Transfer> stream = listTransfers(originAccountId, destinationAccountId, amount, aboveAmount, belowAmount, sort);
+            if (from == null && to == null)
+                return stream;
+            return stream.filter(transfer -> transfer.getTimestampMillis() >= fromMillis && transfer.getTimestampMillis() < toMillis);
+        }
+
+        Stream<Transfer> logged = transferLog.range(fromMillis, toMillis, "-timestamp".equals(sort));
+        return StoreQueries.filterTransfers(logged, null, null, amount, aboveAmount, belowAmount, byTime ? null : sort);
+    }
+
+    /**
+     * Lists one page of the {@link Transfer}s made within a time range that match possible field values, sorted by a certain field as well.
+     * When sorting by timestamp without account id filters the page is read from the transfer log, starting right after
+     * the cursor's transfer, so fetching any page costs O(log n) plus the size of the page.
+     * @param originAccountId Optional origin account id to filter transfers by.
+     * @param destinationAccountId Optional destination account id to filter transfers by.
+     * @param amount Optional amount to filter transfers by.
+     * @param aboveAmount Optional amount to filter transfers bigger than that.
+     * @param belowAmount Optional amount to filter transfers smaller than that.
+     * @param from Optional start of the time range, inclusive.
+     * @param to Optional end of the time range, exclusive.
+     * @param sort Optional field name to sort for. Prepend with '-' for descending order.
+     * @param cursor Optional cursor returned with the previous page, null for the first page.
+     * @param limit Maximum number of transfers in the page.
+     * @return The page of transfers, with the cursor of the next page.
+     */
+    @Override
+    public Page<Transfer> listTransfers(String originAccountId, String destinationAccountId, Float amount, Float aboveAmount, Float belowAmount, Instant from, Instant to, String sort, String cursor, int limit) {
+        boolean byTime = "timestamp".equals(sort) || "-timestamp".equals(sort);
+        boolean byAccount = originAccountId != null || destinationAccountId != null;
+        if (!byTime || byAccount) {
+            Collection<Transfer> candidates = transferCandidates(originAccountId, destinationAccountId);
+            ParallelScan scan = parallelScan;
+            // without account filters a time range is read from the transfer log rather than scanned
+            if ((!byAccount && (from != null || to != null)) || !scan.covers(candidates))
+                return TransferStorage.super.listTransfers(originAccountId, destinationAccountId, amount, aboveAmount, belowAmount, from, to, sort, cursor, limit);
+            long fromMillis = from == null ? Long.MIN_VALUE : from.toEpochMilli();
+            long toMillis = to == null ? Long.MAX_VALUE : to.toEpochMilli();
+            Predicate<Transfer> after = Page.afterTransfer(sort, cursor);
+            Stream<Transfer> candidatesOfPage = scan.top(candidates,
+                    stream -> StoreQueries.filterTransfers(stream.filter(after), originAccountId, destinationAccountId, amount, aboveAmount, belowAmount, null)
+                            .filter(transfer -> transfer.getTimestampMillis() >= fromMillis && transfer.getTimestampMillis() < toMillis),
+                    StoreQueries.transferOrder(sort), limit);
+            return Page.ofTransfers(candidatesOfPage, sort, cursor, limit);
+        }
+
+        // log cursors hold the position in the log rather than the id, they can't be mixed with the generic ones
+        String kind = "log" + sort;
+        boolean descending = "-timestamp".equals(sort);
+        long fromMillis = from == null ? Long.MIN_VALUE : from.toEpochMilli();
+        long toMillis = to == null ? Long.MAX_VALUE : to.toEpochMilli();
+        Stream<Transfer> logged;
+        if (cursor != null) {
+            String[] position = Page.parseCursor(cursor, kind, 2);
+            logged = transferLog.range(fromMillis, toMillis, descending, Long.parseLong(position[0]), Long.parseLong(position[1]));
+        } else {
+            logged = transferLog.range(fromMillis, toMillis, descending);
+        }
+        return Page.first(StoreQueries.filterTransfers(logged, null, null, amount, aboveAmount, belowAmount, null), limit,
+                transfer -> Page.cursor(kind, Long.toString(transfer.getTimestampMillis()), Long.toString(transfer.logSequence)));
     }
 
     /**
@@ -261,62 +906,530 @@ public class ApplicationStore implements AccountStorage, TransferStorage {
      * @return The transfer.
      */
     @Override
-    public synchronized Transfer getTransfer(String id) {
+    public Transfer getTransfer(String id) {
         return transfers.get(id);
     }
 
+    /**
+     * Summarizes the {@link Transfer}s of an account in O(1).
+     * Summaries are updated along with the transfers map whenever a transfer is created, deleted or recovered.
+     * @param accountId The account's id.
+     * @return The account's summary, with zero totals if the account has no transfers.
+     */
+    @Override
+    public AccountSummary summarize(String accountId) {
+        return summaries.getOrDefault(accountId, AccountSummary.empty(accountId));
+    }
+
+    /**
+     * Lists one page of an account's statement: its transfers, from or to it, most recent first.
+     * Pages within the account's most recent transfers are read from its ring of recent transfers (see {@link RecentTransfers})
+     * without looking at its other transfers. Deeper pages are read from the account indexes and sorted.
+     * @param accountId The account's id.
+     * @param cursor Optional cursor returned with the previous page, null for the first page.
+     * @param limit Maximum number of transfers in the page.
+     * @return The page of transfers, with the cursor of the next page.
+     * @throws IllegalArgumentException If the cursor is not a statement cursor.
+     */
+    @Override
+    public Page<Transfer> listAccountTransfers(String accountId, String cursor, int limit) {
+        long beforeSequence = cursor == null ? Long.MAX_VALUE : Long.parseLong(Page.parseCursor(cursor, "statement", 1)[0]);
+        Function<Transfer, String> cursorOf = transfer -> Page.cursor("statement", Long.toString(transfer.logSequence));
+
+        // one more than the limit tells whether there is a next page
+        int wanted = limit == Integer.MAX_VALUE ? limit : limit + 1;
+        List<Transfer> recent = recentTransfers.page(accountId, beforeSequence, wanted);
+        if (recent != null && recent.stream().allMatch(transfer -> transfers.get(transfer.getId()) == transfer))
+            return Page.first(recent.stream(), limit, cursorOf);
+
+        Stream<Transfer> older = Stream.concat(transferIndex.from(accountId).stream(), transferIndex.to(accountId).stream())
+                .filter(transfer -> transfer.logSequence < beforeSequence)
+                .sorted(Comparator.comparingLong((Transfer transfer) -> transfer.logSequence).reversed());
+        return Page.first(older, limit, cursorOf);
+    }
+
+    /**
+     * Counts the accounts, from a running total.
+     * @return The number of existing accounts.
+     */
+    @Override
+    public long countAccounts() {
+        return counters.accounts();
+    }
+
+    /**
+     * Adds up the balances of all accounts, from a running total updated by every change of a balance.
+     * @return The money held by all accounts, in minor units.
+     */
+    @Override
+    public long totalBalanceMinorUnits() {
+        return counters.balanceUnits();
+    }
+
+    /**
+     * Counts the transfers, from a running total.
+     * @return The number of existing transfers.
+     */
+    @Override
+    public long countTransfers() {
+        return counters.transfers();
+    }
+
+    /**
+     * Adds up the amounts of all transfers, from a running total updated as transfers are created and deleted.
+     * @return The money moved by all transfers, in minor units.
+     */
+    @Override
+    public long transferVolumeMinorUnits() {
+        return counters.volumeUnits();
+    }
+
+    /**
+     * Returns the number and volume of the transfers made in each of the last minutes, counted as transfers are created
+     * and deleted (see {@link LedgerCounters}).
+     * @return The buckets, oldest first, including those without transfers.
+     */
+    @Override
+    public List<LedgerStats.Volume> recentVolume() {
+        return counters.recentVolume(System.currentTimeMillis());
+    }
+
     /**
      * Creates a new transfer.
      * Transfer's field values must be valid (non nulls or empty strings and positive amount).
      * Verifies if both accounts exists and are not the same and tries to withdraw from one and deposit into the other.
      * Id and timestamp are generated and assigned to the transfer.
+     * Locks of both accounts are held for the whole operation, always acquired in stripe order so that
+     * concurrent transfers in opposite directions cannot deadlock.
      * @param transfer The transfer to be created.
      * @return The transfer with its new id and timestamp.
      * @throws ApplicationStore.AccountNotFoundException If any of the account ids do not exist.
      * @throws Account.InsufficientFundsException If the origin account does not have sufficient funds for the transfer.
      */
     @Override
-    public synchronized Transfer createTransfer(Transfer transfer) throws AccountNotFoundException, Account.InsufficientFundsException {
+    public Transfer createTransfer(Transfer transfer) throws AccountNotFoundException, Account.InsufficientFundsException {
         if (transfer == null)
             return null;
 
-        // check validity of origin account id
-        String originId = transfer.getOriginAccountId();
-        if (!accounts.containsKey(originId))
-            throw new AccountNotFoundException(originId);
+        sync(commitTransfer(transfer, UUID.randomUUID().toString(), System.currentTimeMillis()));
+        return transfer;
+    }
+
+    /**
+     * Creates a batch of transfers, in order.
+     * All transfers of the batch share one timestamp and their ids are derived from a single random UUID,
+     * so the clock read and the secure random generator are only used once per batch.
+     * The journal is waited for once, after the last transfer, so the whole batch shares one group commit.
+     * If the journal fails (e.g. it was closed or can't grow), the transfer being journaled is not applied and neither is
+     * any later one: they all fail with the journal's exception, while the transfers before it stay created and are
+     * still waited for.
+     * @param batch The transfers to be created.
+     * @return One outcome per transfer, in the same order.
+     */
+    @Override
+    public List<TransferOutcome> createTransfers(List<Transfer> batch) {
+        long timestamp = System.currentTimeMillis();
+        UUID base = UUID.randomUUID();
+
+        List<TransferOutcome> outcomes = new ArrayList<>(batch.size());
+        long position = -1;
+        RuntimeException journalFailure = null;
+        for (int i = 0; i < batch.size(); i++) {
+            Transfer transfer = batch.get(i);
+            if (journalFailure != null) {
+                outcomes.add(TransferOutcome.failed(transfer, journalFailure));
+                continue;
+            }
+            try {
+                if (transfer == null)
+                    throw new IllegalArgumentException("Transfer must not be null.");
+                position = Math.max(position, commitTransfer(transfer, batchTransferId(base, i), timestamp));
+                outcomes.add(TransferOutcome.created(transfer));
+            } catch (AccountNotFoundException | Account.InsufficientFundsException | IllegalArgumentException e) {
+                outcomes.add(TransferOutcome.failed(transfer, e));
+            } catch (RuntimeException e) {
+                // nothing is applied before it is journaled, so this transfer wasn't made
+                journalFailure = e;
+                outcomes.add(TransferOutcome.failed(transfer, e));
+            }
+        }
+        sync(position);
+        return outcomes;
+    }
+
+    /**
+     * Creates a batch of transfers as a single all-or-nothing operation.
+     * The locks of every account involved are held while the batch is checked in order against the current balances,
+     * so a transfer may spend money received earlier in the same batch, and must not overflow the balance it deposits to.
+     * If every transfer passes, the whole batch is journaled as a single record, then each account's net change is
+     * applied: withdrawals first, then deposits. The balances can't change while the locks are held, so applying a
+     * batch that passed the check can't fail.
+     * @param batch The transfers to be created.
+     * @return One outcome per transfer, in the same order. Either all of them are created or none is.
+     */
+    @Override
+    public List<TransferOutcome> createTransfersAtomically(List<Transfer> batch) {
+        Set<String> ids = new HashSet<>();
+        for (Transfer transfer : batch) {
+            if (transfer == null || transfer.getOriginAccountId() == null || transfer.getDestinationAccountId() == null)
+                return rejectBatch(batch, batch.indexOf(transfer), new IllegalArgumentException("Transfer must have origin and destination account ids."));
+            ids.add(transfer.getOriginAccountId());
+            ids.add(transfer.getDestinationAccountId());
+        }
 
+        List<TransferOutcome> outcomes = new ArrayList<>(batch.size());
+        long position = -1;
+        int[] stripes = lockAll(ids);
+        try {
+            // check the whole batch in order against the balances it would produce
+            Map<String, Long> balances = new HashMap<>();
+            Map<String, Long> changes = new HashMap<>();
+            long[] units = new long[batch.size()];
+            for (int i = 0; i < batch.size(); i++) {
+                Transfer transfer = batch.get(i);
+                String originId = transfer.getOriginAccountId();
+                String destinationId = transfer.getDestinationAccountId();
+                try {
+                    Account origin = accounts.get(originId);
+                    if (origin == null)
+                        throw new AccountNotFoundException(originId);
+                    Account destination = accounts.get(destinationId);
+                    if (destination == null)
+                        throw new AccountNotFoundException(destinationId);
+
+                    units[i] = Account.minorUnitsOf(transfer.getAmount());
+                    long available = balances.computeIfAbsent(originId, id -> origin.getBalanceMinorUnits());
+                    if (available < units[i])
+                        throw new Account.InsufficientFundsException(originId);
+                    balances.put(originId, available - units[i]);
+                    long received = balances.computeIfAbsent(destinationId, id -> destination.getBalanceMinorUnits());
+                    if (received > Long.MAX_VALUE - units[i])
+                        throw new IllegalArgumentException("Deposit would overflow the balance of account " + destinationId + ".");
+                    balances.put(destinationId, received + units[i]);
+                    changes.merge(originId, -units[i], Long::sum);
+                    changes.merge(destinationId, units[i], Long::sum);
+                } catch (AccountNotFoundException | Account.InsufficientFundsException | IllegalArgumentException e) {
+                    return rejectBatch(batch, i, e);
+                }
+            }
+
+            long timestamp = System.currentTimeMillis();
+            UUID base = UUID.randomUUID();
+            List<JournalRecord> records = new ArrayList<>(batch.size());
+            for (int i = 0; i < batch.size(); i++) {
+                Transfer transfer = batch.get(i);
+                transfer.setId(batchTransferId(base, i));
+                transfer.setTimestampMillis(timestamp);
+                records.add(JournalRecord.ofTransfer(transfer, units[i]));
+            }
+            position = log(JournalRecord.ofBatch(records));
+
+            // apply the net change of every account, withdrawals first
+            List<Map.Entry<String, Long>> ordered = new ArrayList<>(changes.entrySet());
+            ordered.sort(Comparator.comparingLong(Map.Entry::getValue));
+            for (Map.Entry<String, Long> change : ordered) {
+                Account account = accounts.get(change.getKey());
+                try {
+                    if (change.getValue() < 0)
+                        account.withdrawMinorUnits(-change.getValue());
+                    else if (change.getValue() > 0)
+                        account.depositMinorUnits(change.getValue());
+                } catch (Account.InsufficientFundsException e) {
+                    throw new IllegalStateException("Unable to apply a checked change of account " + change.getKey() + " held under its lock.", e);
+                }
+                balanceIndex.update(account);
+                account.journalPosition = position;
+            }
+
+            for (Transfer transfer : batch) {
+                transferLog.append(transfer);
+                putTransfer(transfer);
+                recentTransfers.add(transfer);
+                outcomes.add(TransferOutcome.created(transfer));
+            }
+        } finally {
+            unlockAll(stripes);
+        }
+        sync(position);
+        return outcomes;
+    }
+
+    /**
+     * Builds the outcomes of an all-or-nothing batch that was rejected because of one of its transfers.
+     * @param batch The transfers of the batch.
+     * @param rejected Index of the transfer that caused the rejection.
+     * @param reason Why that transfer was rejected.
+     * @return One failed outcome per transfer.
+     */
+    private static List<TransferOutcome> rejectBatch(List<Transfer> batch, int rejected, Exception reason) {
+        List<TransferOutcome> outcomes = new ArrayList<>(batch.size());
+        for (int i = 0; i < batch.size(); i++)
+            outcomes.add(TransferOutcome.failed(batch.get(i), i == rejected ? reason
+                    : new IllegalStateException("Not applied, transfer " + rejected + " of the batch was rejected.")));
+        return outcomes;
+    }
+
+    /**
+     * Derives the id of the i-th transfer of a batch from the batch's random UUID.
+     * The IETF variant bits of the base UUID are kept while counting within the batch.
+     * @param base The batch's random UUID.
+     * @param index Position of the transfer within the batch.
+     * @return The transfer id.
+     */
+    private static String batchTransferId(UUID base, int index) {
+        long leastSigBits = base.getLeastSignificantBits();
+        return new UUID(base.getMostSignificantBits(), (leastSigBits & 0xC000000000000000L) | ((leastSigBits + index) & 0x3FFFFFFFFFFFFFFFL)).toString();
+    }
+
+    /**
+     * Moves the money of a transfer and records it with the given id and timestamp.
+     * The transfer is journaled but not waited for, callers pass the returned position to {@link #sync(long)}.
+     * @param transfer The transfer to be created, its id and timestamp are set.
+     * @param id The id assigned to the transfer.
+     * @param timestamp The time of the transfer in milliseconds since the epoch.
+     * @return The journal position of the transfer, -1 if there is no journal.
+     * @throws ApplicationStore.AccountNotFoundException If any of the account ids do not exist.
+     * @throws Account.InsufficientFundsException If the origin account does not have sufficient funds for the transfer.
+     */
+    private long commitTransfer(Transfer transfer, String id, long timestamp) throws AccountNotFoundException, Account.InsufficientFundsException {
+        String originId = transfer.getOriginAccountId();
+        if (originId == null)
+            throw new AccountNotFoundException(null);
         String destinationId = transfer.getDestinationAccountId();
-        // check validity of destination account id
-        if (!accounts.containsKey(destinationId))
-            throw new AccountNotFoundException(destinationId);
+        if (destinationId == null)
+            throw new AccountNotFoundException(null);
+
+        int first = stripe(originId);
+        int second = stripe(destinationId);
+        if (first > second) {
+            int tmp = first;
+            first = second;
+            second = tmp;
+        }
 
-        Account origin = accounts.get(originId);
-        Account destination = accounts.get(destinationId);
+        locks[first].lock();
+        locks[second].lock();
+        try {
+            // check validity of origin account id
+            Account origin = accounts.get(originId);
+            if (origin == null)
+                throw new AccountNotFoundException(originId);
 
-        // try to withdraw from origin
-        float amount = transfer.getAmount();
-        origin.withdraw(amount);
-        destination.deposit(amount);
+            // check validity of destination account id
+            Account destination = accounts.get(destinationId);
+            if (destination == null)
+                throw new AccountNotFoundException(destinationId);
 
-        UUID uuid = UUID.randomUUID();
-        transfer.setId(uuid.toString());
-        transfer.setTimestamp(Instant.now().toString());
+            // check that origin can afford the transfer and destination can hold it
+            long units = Account.minorUnitsOf(transfer.getAmount());
+            checkWithdrawal(origin, units);
+            if (destination != origin)
+                checkDeposit(destination, units);
 
-        transfers.put(transfer.getId(), transfer);
+            transfer.setId(id);
+            transfer.setTimestampMillis(timestamp);
+            long position = log(JournalRecord.ofTransfer(transfer, units));
 
-        return transfer;
+            origin.withdrawMinorUnits(units);
+            destination.depositMinorUnits(units);
+            balanceIndex.update(origin);
+            balanceIndex.update(destination);
+            transferLog.append(transfer);
+            putTransfer(transfer);
+            recentTransfers.add(transfer);
+            origin.journalPosition = position;
+            destination.journalPosition = position;
+            return position;
+        } finally {
+            locks[second].unlock();
+            locks[first].unlock();
+        }
+    }
+
+    /**
+     * Moves money between two accounts in one step, without recording a transfer, for stores that keep transfers
+     * elsewhere (see {@link ColumnarTransferStore}). Both accounts' locks are held, so neither can be deleted or
+     * replaced halfway and the money is never left outside of both. Journaled as a withdrawal and a deposit.
+     * The move is added to both accounts' summaries, which {@link #summarize(String)} serves to that store too.
+     * @param originId The origin account's id.
+     * @param destinationId The destination account's id.
+     * @param amount The amount to move.
+     * @throws ApplicationStore.AccountNotFoundException If any of the account ids do not exist.
+     * @throws Account.InsufficientFundsException If the origin account does not have sufficient funds.
+     * @throws IllegalArgumentException If the deposit would overflow the destination account's balance.
+     */
+    @Override
+    public void moveFunds(String originId, String destinationId, Float amount) throws AccountNotFoundException, Account.InsufficientFundsException {
+        long units = Account.minorUnitsOf(amount);
+        long position;
+        int[] stripes = lockAll(Arrays.asList(originId, destinationId));
+        try {
+            Account origin = accounts.get(originId);
+            if (origin == null)
+                throw new AccountNotFoundException(originId);
+            Account destination = accounts.get(destinationId);
+            if (destination == null)
+                throw new AccountNotFoundException(destinationId);
+            checkWithdrawal(origin, units);
+            if (destination != origin)
+                checkDeposit(destination, units);
+
+            long withdrawn = log(JournalRecord.ofBalance(JournalRecord.Type.WITHDRAW, originId, units));
+            position = log(JournalRecord.ofBalance(JournalRecord.Type.DEPOSIT, destinationId, units));
+            origin.withdrawMinorUnits(units);
+            destination.depositMinorUnits(units);
+            balanceIndex.update(origin);
+            balanceIndex.update(destination);
+            origin.journalPosition = withdrawn;
+            destination.journalPosition = position;
+            summarize(originId, destinationId, units, 1);
+        } finally {
+            unlockAll(stripes);
+        }
+        sync(position);
+    }
+
+    /**
+     * Takes a move of {@link #moveFunds(String, String, Float)} away from the accounts' summaries, once the transfer
+     * it was made for is deleted.
+     * @param originId The origin account's id.
+     * @param destinationId The destination account's id.
+     * @param amount The amount moved.
+     */
+    @Override
+    public void forgetMove(String originId, String destinationId, float amount) {
+        summarize(originId, destinationId, toMinorUnits(amount), -1);
+    }
+
+    /**
+     * Drops every account's summary, once the transfers kept elsewhere are cleared.
+     */
+    @Override
+    public void clearSummaries() {
+        summaries.clear();
+    }
+
+    /**
+     * Puts an account in the accounts map and the balance index, replacing the account with the same id if there is one.
+     * Must be called while the account's lock is held.
+     * The account continues the version of the one it replaces.
+     * @param account The account, with its id.
+     * @return The account that was stored.
+     */
+    private Account replaceAccount(Account account) {
+        Account current = accounts.get(account.getId());
+        if (current != null)
+            account.continueVersionOf(current);
+        Account previous = accounts.put(account.getId(), account);
+        if (previous != null) {
+            balanceIndex.remove(previous);
+            counters.balanceChanged(account.getBalanceMinorUnits() - previous.getBalanceMinorUnits());
+        } else {
+            counters.accountAdded(account.getBalanceMinorUnits());
+        }
+        balanceIndex.add(account);
+        return account;
+    }
+
+    /**
+     * Removes an account from the accounts map and the balance index. Must be called while the account's lock is held.
+     * @param id The account's id.
+     * @return The removed account, null if it didn't exist.
+     */
+    private Account removeAccount(String id) {
+        Account removed = accounts.remove(id);
+        if (removed != null) {
+            balanceIndex.remove(removed);
+            summaries.remove(id);
+            recentTransfers.removeAccount(id);
+            counters.accountRemoved(removed.getBalanceMinorUnits());
+        }
+        return removed;
+    }
+
+    /**
+     * Records a transfer in the transfers map and in the account indexes.
+     * @param transfer The transfer, with its id.
+     */
+    private void putTransfer(Transfer transfer) {
+        Transfer previous = transfers.put(transfer.getId(), transfer);
+        if (previous != null) {
+            transferIndex.remove(previous);
+            transferLog.remove(previous);
+            summarize(previous, -1);
+            counters.transferRemoved(previous.getTimestampMillis(), toMinorUnits(previous.getAmount()));
+        }
+        transferIndex.add(transfer);
+        summarize(transfer, 1);
+        counters.transferAdded(transfer.getTimestampMillis(), toMinorUnits(transfer.getAmount()));
+    }
+
+    /**
+     * Adds a transfer to the summaries of its accounts, or takes it away.
+     * Only existing accounts have a summary: a deleted account's summary is dropped with it, and transferring from or to
+     * an account that doesn't exist (e.g. deleted since) creates none. Must be called while the accounts' locks are held.
+     * @param transfer The transfer.
+     * @param sign 1 to add the transfer, -1 to take it away.
+     */
+    private void summarize(Transfer transfer, int sign) {
+        summarize(transfer.getOriginAccountId(), transfer.getDestinationAccountId(), toMinorUnits(transfer.getAmount()), sign);
+    }
+
+    private void summarize(String originId, String destinationId, long amountUnits, int sign) {
+        long units = sign * amountUnits;
+        if (sign > 0) {
+            if (accounts.containsKey(originId))
+                summaries.compute(originId, (id, summary) -> (summary == null ? AccountSummary.empty(id) : summary).plus(units, 0, 1));
+            if (accounts.containsKey(destinationId))
+                summaries.compute(destinationId, (id, summary) -> (summary == null ? AccountSummary.empty(id) : summary).plus(0, units, 1));
+        } else {
+            summaries.computeIfPresent(originId, (id, summary) -> summary.plus(units, 0, -1));
+            summaries.computeIfPresent(destinationId, (id, summary) -> summary.plus(0, units, -1));
+        }
+    }
+
+    /**
+     * Removes a transfer from the transfers map, the account indexes and the transfer log.
+     * @param id The transfer's id.
+     * @return The removed transfer, null if it didn't exist.
+     */
+    private Transfer removeTransfer(String id) {
+        Transfer removed = transfers.remove(id);
+        if (removed != null) {
+            transferIndex.remove(removed);
+            transferLog.remove(removed);
+            summarize(removed, -1);
+            recentTransfers.remove(removed);
+            counters.transferRemoved(removed.getTimestampMillis(), toMinorUnits(removed.getAmount()));
+        }
+        return removed;
     }
 
     /**
      * Deletes a certain {@link Transfer}.
+     * The locks of the transfer's accounts are held, so the deletion is journaled after the transfer's creation,
+     * which holds them too.
      * @param id The transfer's id.
      * @return True if the transfer exists, false otherwise.
      */
     @Override
-    public synchronized boolean deleteTransfer(String id) {
-        if(!transfers.containsKey(id))
+    public boolean deleteTransfer(String id) {
+        Transfer transfer = transfers.get(id);
+        if (transfer == null)
             return false;
-        transfers.remove(id);
+
+        long position;
+        int[] stripes = lockAll(Arrays.asList(transfer.getOriginAccountId(), transfer.getDestinationAccountId()));
+        try {
+            // deleted or replaced by a concurrent call in between
+            if (transfers.get(id) != transfer)
+                return false;
+            position = log(JournalRecord.ofId(JournalRecord.Type.DELETE_TRANSFER, id));
+            removeTransfer(id);
+        } finally {
+            unlockAll(stripes);
+        }
+        sync(position);
         return true;
     }
 
@@ -324,14 +1437,27 @@ public class ApplicationStore implements AccountStorage, TransferStorage {
      * Deletes all transfers.
      */
     @Override
-    public synchronized void clearTransfers() {
-        transfers.clear();
+    public void clearTransfers() {
+        long position;
+        int[] stripes = lockEverything();
+        try {
+            position = log(JournalRecord.of(JournalRecord.Type.CLEAR_TRANSFERS));
+            transfers.clear();
+            transferIndex.clear();
+            transferLog.clear();
+            summaries.clear();
+            counters.transfersCleared();
+            recentTransfers.clear();
+        } finally {
+            unlockAll(stripes);
+        }
+        sync(position);
     }
 
     /**
      * Custom exception for when an account does not exist.
      */
-    public class AccountNotFoundException extends Exception{
+    public static class AccountNotFoundException extends Exception{
         public AccountNotFoundException(String accountId) {
             super("Account with id " + accountId + " was not found.");
         }
@@ -0,0 +1,131 @@
+package models;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Index of {@link Account}s ordered by balance, then by id.
+ * Answers balance range queries and balance ordered listings in O(log n + k).
+ * Every change to an account's balance must be followed by {@link #update(Account)} while the account's lock is held,
+ * the index remembers the balance each account was indexed with so it can find its old entry.
+ * Readers are weakly consistent: an account whose balance is being updated may be briefly missing from a range.
+ */
+final class BalanceIndex {
+
+    private final ConcurrentSkipListMap<Key, Account> index = new ConcurrentSkipListMap<>();
+
+    /**
+     * Adds a new account to the index.
+     * @param account The account.
+     */
+    void add(Account account) {
+        account.indexedBalance = account.getBalanceMinorUnits();
+        index.put(new Key(account.indexedBalance, account.getId()), account);
+    }
+
+    /**
+     * Moves an account to the position of its current balance.
+     * @param account The account, whose balance has changed.
+     */
+    void update(Account account) {
+        long balance = account.getBalanceMinorUnits();
+        if (balance == account.indexedBalance)
+            return;
+        index.remove(new Key(account.indexedBalance, account.getId()));
+        account.indexedBalance = balance;
+        index.put(new Key(balance, account.getId()), account);
+    }
+
+    /**
+     * Removes an account from the index.
+     * @param account The account.
+     */
+    void remove(Account account) {
+        index.remove(new Key(account.indexedBalance, account.getId()), account);
+    }
+
+    /**
+     * Removes every account from the index.
+     */
+    void clear() {
+        index.clear();
+    }
+
+    /**
+     * Returns the accounts whose balance is within a range, ordered by balance.
+     * @param from Minimum balance in minor units, inclusive.
+     * @param to Maximum balance in minor units, inclusive.
+     * @param descending True for the richest accounts first.
+     * @return A weakly consistent view of the accounts in the range.
+     */
+    Collection<Account> range(long from, long to, boolean descending) {
+        return range(from, to, descending, 0, null);
+    }
+
+    /**
+     * Returns the accounts whose balance is within a range and that come after a given account, ordered by balance.
+     * Resumes a listing where a previous page ended by seeking straight to the account in the index.
+     * @param from Minimum balance in minor units, inclusive.
+     * @param to Maximum balance in minor units, inclusive.
+     * @param descending True for the richest accounts first.
+     * @param afterBalance Balance in minor units of the last account already listed.
+     * @param afterId Id of the last account already listed, null to list the whole range.
+     * @return A weakly consistent view of the accounts in the range after the given one.
+     */
+    Collection<Account> range(long from, long to, boolean descending, long afterBalance, String afterId) {
+        Key low = new Key(from, null);
+        boolean lowInclusive = true;
+        Key high = to < Long.MAX_VALUE ? new Key(to + 1, null) : null;
+        if (afterId != null) {
+            Key after = new Key(afterBalance, afterId);
+            if (!descending && after.compareTo(low) >= 0) {
+                low = after;
+                lowInclusive = false;
+            } else if (descending && (high == null || after.compareTo(high) < 0)) {
+                high = after;
+            }
+        }
+        if (high != null && high.compareTo(low) <= 0)
+            return Collections.emptyList();
+        NavigableMap<Key, Account> range = index.tailMap(low, lowInclusive);
+        if (high != null)
+            range = range.headMap(high, false);
+        return (descending ? range.descendingMap() : range).values();
+    }
+
+    /**
+     * Entry of the index: a balance in minor units and the account id, ordered by balance then id.
+     * A null id sorts before every id, for range bounds.
+     */
+    private static final class Key implements Comparable<Key> {
+        private final long balance;
+        private final String id;
+
+        private Key(long balance, String id) {
+            this.balance = balance;
+            this.id = id;
+        }
+
+        @Override
+        public int compareTo(Key other) {
+            int byBalance = Long.compare(balance, other.balance);
+            if (byBalance != 0)
+                return byBalance;
+            if (id == null)
+                return other.id == null ? 0 : -1;
+            return other.id == null ? 1 : id.compareTo(other.id);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Key && compareTo((Key) other) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(balance) * 31 + (id == null ? 0 : id.hashCode());
+        }
+    }
+}
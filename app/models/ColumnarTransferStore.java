@@ -0,0 +1,408 @@
+package models;
+
+import services.TransferStorage;
+
+import java.time.Instant;
+import java.util.AbstractCollection;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.IntPredicate;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static util.Util.toMinorUnits;
+
+/**
+ * In memory storage for {@link Transfer}s kept in columns instead of objects.
+ * Implements the {@link TransferStorage} api on top of an {@link ApplicationStore} or an {@link OffHeapAccountStore},
+ * which holds the accounts.
+ * Every transfer is a row of parallel primitive arrays (origin account id, destination account id, amount, timestamp)
+ * split in fixed-size segments, so a transfer takes 28 bytes instead of a Transfer object with its strings and boxed amount.
+ * Filters run over the columns and Transfer objects are only created for the rows a listing returns, as they are consumed.
+ * Transfer ids are row numbers: the store generates sequential numeric ids, and account ids must be numeric too,
+ * as the stores generate them.
+ * Rows are appended one at a time and published by a volatile row count, so readers never lock. Deleted rows are marked
+ * in an atomic bitmap, one bit per row, so readers see a deletion as soon as it is made.
+ * Timestamps never go backwards, so rows are in time order and time ranges are found by binary search.
+ * Moving the money is done by the account store in one step under both accounts' locks, so money is never withdrawn
+ * without being deposited, even if an account is deleted at the same time.
+ * Statistics are kept up to date as rows are appended and deleted, as in {@link ApplicationStore}: transfer count, volume
+ * and volume per minute in {@link LedgerCounters}, and account summaries by the account store along with the money moves.
+ */
+public class ColumnarTransferStore implements TransferStorage {
+
+    // 2^12 rows per segment
+    private static final int SEGMENT_SHIFT = 12;
+    private static final int SEGMENT_ROWS = 1 << SEGMENT_SHIFT;
+    private static final int ROW_MASK = SEGMENT_ROWS - 1;
+
+    private final AccountFunds accounts;
+    private final Object appendLock = new Object();
+    private final LedgerCounters counters = new LedgerCounters();
+    // replaced as a whole when the transfers are cleared
+    private volatile Columns columns = new Columns(1);
+
+    /**
+     * Creates a new instance of a columnar transfer store.
+     * @param accounts The store of the accounts transfers move money between.
+     * @return A new columnar transfer store.
+     */
+    public static ColumnarTransferStore newInstance(ApplicationStore accounts) {
+        return new ColumnarTransferStore(accounts);
+    }
+
+    /**
+     * Creates a new instance of a columnar transfer store for accounts kept off the heap.
+     * @param accounts The store of the accounts transfers move money between.
+     * @return A new columnar transfer store.
+     */
+    public static ColumnarTransferStore newInstance(OffHeapAccountStore accounts) {
+        return new ColumnarTransferStore(accounts);
+    }
+
+    private ColumnarTransferStore(AccountFunds accounts) {
+        this.accounts = accounts;
+    }
+
+    /**
+     * Lists all {@link Transfer}s.
+     * @return A weakly consistent view of the transfers, created as they are iterated over.
+     */
+    @Override
+    public Collection<Transfer> listTransfers() {
+        Columns current = columns;
+        int rows = current.size;
+        return new AbstractCollection<Transfer>() {
+            @Override
+            public Iterator<Transfer> iterator() {
+                return rows(current, 0, rows, row -> true, false).mapToObj(current::transfer).iterator();
+            }
+
+            @Override
+            public int size() {
+                return current.live;
+            }
+        };
+    }
+
+    /**
+     * Lists all {@link Transfer}s that match possible field values and sorted by a certain field as well.
+     * @param originAccountId Optional origin account id to filter transfers by.
+     * @param destinationAccountId Optional destination account id to filter transfers by.
+     * @param amount Optional amount to filter transfers by.
+     * @param aboveAmount Optional amount to filter transfers bigger than that.
+     * @param belowAmount Optional amount to filter transfers smaller than that.
+     * @param sort Optional field name to sort for. Prepend with '-' for descending order.
+     * @return A stream of transfers possibly sorted by 'sort' param and that match provided field values.
+     */
+    @Override
+    public Stream<Transfer> listTransfers(String originAccountId, String destinationAccountId, Float amount, Float aboveAmount, Float belowAmount, String sort) {
+        return listTransfers(originAccountId, destinationAccountId, amount, aboveAmount, belowAmount, null, null, sort);
+    }
+
+    /**
+     * Lists the {@link Transfer}s made within a time range that match possible field values, sorted by a certain field as well.
+     * Only the rows within the time range are scanned, and sorting by timestamp or amount is done on the columns.
+     * @param originAccountId Optional origin account id to filter transfers by.
+     * @param destinationAccountId Optional destination account id to filter transfers by.
+     * @param amount Optional amount to filter transfers by.
+     * @param aboveAmount Optional amount to filter transfers bigger than that.
+     * @param belowAmount Optional amount to filter transfers smaller than that.
+     * @param from Optional start of the time range, inclusive.
+     * @param to Optional end of the time range, exclusive.
+     * @param sort Optional field name to sort for. Prepend with '-' for descending order.
+     * @return A stream of transfers possibly sorted by 'sort' param and that match provided field values and time range.
+     */
+    @Override
+    public Stream<Transfer> listTransfers(String originAccountId, String destinationAccountId, Float amount, Float aboveAmount, Float belowAmount, Instant from, Instant to, String sort) {
+        Columns current = columns;
+        int rows = current.size;
+        int first = from == null ? 0 : current.firstRowAt(from.toEpochMilli(), rows);
+        int last = to == null ? rows : current.firstRowAt(to.toEpochMilli(), rows);
+
+        IntPredicate filter = row -> true;
+        if (originAccountId != null) {
+            long origin = NumericIdAccountMap.parse(originAccountId);
+            filter = filter.and(row -> current.segment(row).origins[row & ROW_MASK] == origin);
+        }
+        if (destinationAccountId != null) {
+            long destination = NumericIdAccountMap.parse(destinationAccountId);
+            filter = filter.and(row -> current.segment(row).destinations[row & ROW_MASK] == destination);
+        }
+        boolean exactAmount = !amount.isNaN();
+        if (exactAmount) {
+            float value = amount;
+            filter = filter.and(row -> current.segment(row).amounts[row & ROW_MASK] == value);
+        }
+        if (!exactAmount && !aboveAmount.isNaN()) {
+            float value = aboveAmount;
+            filter = filter.and(row -> current.segment(row).amounts[row & ROW_MASK] > value);
+        }
+        if (!exactAmount && !belowAmount.isNaN()) {
+            float value = belowAmount;
+            filter = filter.and(row -> current.segment(row).amounts[row & ROW_MASK] < value);
+        }
+
+        boolean desc = sort != null && sort.startsWith("-");
+        String field = sort == null ? "" : desc ? sort.substring(1) : sort;
+        switch (field) {
+            case "":
+            case "timestamp":
+                // rows are in time order already
+                return rows(current, first, last, filter, desc).mapToObj(current::transfer);
+            case "amount":
+                return byAmount(current, rows(current, first, last, filter, false), desc);
+            default:
+                return StoreQueries.filterTransfers(rows(current, first, last, filter, false).mapToObj(current::transfer),
+                        null, null, Float.NaN, Float.NaN, Float.NaN, sort);
+        }
+    }
+
+    /**
+     * Returns the live rows of a range that pass a filter, in row order or in reverse.
+     */
+    private static IntStream rows(Columns columns, int first, int last, IntPredicate filter, boolean reverse) {
+        IntStream rows = IntStream.range(first, last);
+        if (reverse)
+            rows = rows.map(i -> first + last - 1 - i);
+        return rows.filter(row -> !columns.segment(row).isDeleted(row & ROW_MASK) && filter.test(row));
+    }
+
+    /**
+     * Sorts rows by amount on the amount column, ties in row order.
+     * Each row is packed in a long with the amount's bits (amounts are positive, so their bits sort like them) above the row number.
+     */
+    private static Stream<Transfer> byAmount(Columns columns, IntStream rows, boolean desc) {
+        long[] keys = rows
+                .mapToLong(row -> (long) Float.floatToIntBits(columns.segment(row).amounts[row & ROW_MASK]) << 32 | row)
+                .toArray();
+        Arrays.sort(keys);
+        return IntStream.range(0, keys.length)
+                .mapToObj(i -> columns.transfer((int) keys[desc ? keys.length - 1 - i : i]));
+    }
+
+    /**
+     * Retrieves a certain {@link Transfer}.
+     * @param id The transfer's id.
+     * @return The transfer, null if it doesn't exist.
+     */
+    @Override
+    public Transfer getTransfer(String id) {
+        Columns current = columns;
+        int row = current.rowOf(id);
+        return row < 0 ? null : current.transfer(row);
+    }
+
+    /**
+     * Creates a new transfer.
+     * The amount is moved from the origin account to the destination account by the account store in one step.
+     * @param transfer The transfer to be created.
+     * @return The transfer with its new id and timestamp.
+     * @throws ApplicationStore.AccountNotFoundException If any of the account ids do not exist.
+     * @throws Account.InsufficientFundsException If the origin account does not have sufficient funds for the transfer.
+     * @throws IllegalArgumentException If the deposit would overflow the destination account's balance.
+     */
+    @Override
+    public Transfer createTransfer(Transfer transfer) throws ApplicationStore.AccountNotFoundException, Account.InsufficientFundsException {
+        if (transfer == null)
+            return null;
+        String originId = transfer.getOriginAccountId();
+        String destinationId = transfer.getDestinationAccountId();
+        long origin = originId == null ? -1 : NumericIdAccountMap.parse(originId);
+        if (origin < 0)
+            throw new ApplicationStore.AccountNotFoundException(originId);
+        long destination = destinationId == null ? -1 : NumericIdAccountMap.parse(destinationId);
+        if (destination < 0)
+            throw new ApplicationStore.AccountNotFoundException(destinationId);
+
+        accounts.moveFunds(originId, destinationId, transfer.getAmount());
+
+        synchronized (appendLock) {
+            Columns current = columns;
+            int row = current.size;
+            long millis = Math.max(System.currentTimeMillis(), current.lastMillis);
+            current.append(row, origin, destination, transfer.getAmount(), millis);
+            current.lastMillis = millis;
+            current.live++;
+            current.size = row + 1;
+            counters.transferAdded(millis, toMinorUnits(transfer.getAmount()));
+            transfer.setId(Long.toString(current.firstId + row));
+            transfer.setTimestampMillis(millis);
+        }
+        return transfer;
+    }
+
+    /**
+     * Deletes a certain {@link Transfer}. Its row is only marked as deleted.
+     * @param id The transfer's id.
+     * @return True if the transfer exists, false otherwise.
+     */
+    @Override
+    public boolean deleteTransfer(String id) {
+        synchronized (appendLock) {
+            Columns current = columns;
+            int row = current.rowOf(id);
+            if (row < 0)
+                return false;
+            Segment segment = current.segment(row);
+            int i = row & ROW_MASK;
+            segment.delete(i);
+            current.live--;
+            counters.transferRemoved(segment.timestamps[i], toMinorUnits(segment.amounts[i]));
+            accounts.forgetMove(Long.toString(segment.origins[i]), Long.toString(segment.destinations[i]), segment.amounts[i]);
+            return true;
+        }
+    }
+
+    /**
+     * Deletes all transfers. Ids keep counting from where they were, so a deleted transfer's id is never reused.
+     */
+    @Override
+    public void clearTransfers() {
+        synchronized (appendLock) {
+            Columns current = columns;
+            columns = new Columns(current.firstId + current.size);
+            counters.transfersCleared();
+            accounts.clearSummaries();
+        }
+    }
+
+    /**
+     * Returns the summary of an account's transfers, kept by the account store as money is moved.
+     * @param accountId The account's id.
+     * @return The account's summary, with zero totals if the account has no transfers.
+     */
+    @Override
+    public AccountSummary summarize(String accountId) {
+        return accounts.summarize(accountId);
+    }
+
+    /**
+     * Counts the {@link Transfer}s, from the running totals.
+     * @return The number of existing transfers.
+     */
+    @Override
+    public long countTransfers() {
+        return counters.transfers();
+    }
+
+    /**
+     * Returns the money moved by all {@link Transfer}s, from the running totals.
+     * @return The sum of the transfers' amounts, in minor units.
+     */
+    @Override
+    public long transferVolumeMinorUnits() {
+        return counters.volumeUnits();
+    }
+
+    /**
+     * Returns the number and volume of the {@link Transfer}s made in each of the last {@link LedgerStats#BUCKETS} minutes,
+     * from the running totals.
+     * @return The buckets, oldest first, including those without transfers.
+     */
+    @Override
+    public List<LedgerStats.Volume> recentVolume() {
+        return counters.recentVolume(System.currentTimeMillis());
+    }
+
+    /**
+     * Parallel primitive arrays holding a segment of rows.
+     */
+    private static final class Segment {
+        private final long[] origins = new long[SEGMENT_ROWS];
+        private final long[] destinations = new long[SEGMENT_ROWS];
+        private final float[] amounts = new float[SEGMENT_ROWS];
+        private final long[] timestamps = new long[SEGMENT_ROWS];
+        // one bit per row, set when the row is deleted
+        private final AtomicLongArray deleted = new AtomicLongArray(SEGMENT_ROWS / 64);
+
+        private boolean isDeleted(int i) {
+            return (deleted.get(i >>> 6) & (1L << i)) != 0;
+        }
+
+        private void delete(int i) {
+            deleted.accumulateAndGet(i >>> 6, 1L << i, (bits, bit) -> bits | bit);
+        }
+    }
+
+    /**
+     * The rows of the store since it was last cleared. Written while holding the store's append lock.
+     * A row's columns are written before the row count is, so readers see complete rows up to the count they read.
+     */
+    private static final class Columns {
+        // id of the first row
+        private final long firstId;
+        private volatile Segment[] segments = new Segment[0];
+        private volatile int size;
+        private volatile int live;
+        private long lastMillis;
+
+        private Columns(long firstId) {
+            this.firstId = firstId;
+        }
+
+        private Segment segment(int row) {
+            return segments[row >>> SEGMENT_SHIFT];
+        }
+
+        private void append(int row, long origin, long destination, float amount, long millis) {
+            int index = row >>> SEGMENT_SHIFT;
+            if (index == segments.length)
+                segments = Arrays.copyOf(segments, Math.max(4, segments.length * 2));
+            if (segments[index] == null)
+                segments[index] = new Segment();
+            Segment segment = segments[index];
+            int i = row & ROW_MASK;
+            segment.origins[i] = origin;
+            segment.destinations[i] = destination;
+            segment.amounts[i] = amount;
+            segment.timestamps[i] = millis;
+        }
+
+        /**
+         * Returns the row of a transfer id.
+         * @return The row, -1 if there is no live transfer with that id.
+         */
+        private int rowOf(String id) {
+            long number = id == null ? -1 : NumericIdAccountMap.parse(id);
+            long row = number - firstId;
+            if (number < 0 || row < 0 || row >= size || segment((int) row).isDeleted((int) row & ROW_MASK))
+                return -1;
+            return (int) row;
+        }
+
+        /**
+         * Finds the first of the rows made at or after a time, by binary search over the timestamp column.
+         * @param millis The time in milliseconds since the epoch.
+         * @param rows Number of rows to search.
+         * @return The row, rows if every row is older.
+         */
+        private int firstRowAt(long millis, int rows) {
+            int low = 0;
+            int high = rows;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (segment(middle).timestamps[middle & ROW_MASK] < millis)
+                    low = middle + 1;
+                else
+                    high = middle;
+            }
+            return low;
+        }
+
+        /**
+         * Creates the Transfer of a row.
+         */
+        private Transfer transfer(int row) {
+            Segment segment = segment(row);
+            int i = row & ROW_MASK;
+            Transfer transfer = new Transfer(Long.toString(segment.origins[i]), Long.toString(segment.destinations[i]), segment.amounts[i]);
+            transfer.setId(Long.toString(firstId + row));
+            transfer.setTimestampMillis(segment.timestamps[i]);
+            return transfer;
+        }
+    }
+}
@@ -0,0 +1,400 @@
+package models;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only, memory-mapped journal of store mutations.
+ * The journal is made of fixed-size chunks, each in its own memory-mapped file named after the journal and the
+ * chunk's number (store.journal.0, store.journal.1, ...), and every record is written as [length][crc32][payload].
+ * Positions count bytes from the start of the first chunk ever written, so they keep growing across chunks.
+ * Once a snapshot holds everything up to a position, the chunks before it can be dropped with {@link #truncate(long)}.
+ * Durability is set by {@link Durability}: with group commit a background thread forces the mapped chunks to disk
+ * and every writer waiting for durability at that moment is released by the same force, so many requests share one fsync.
+ * A record with a length of zero marks the end of the journal, a record with a negative length marks the end of a chunk.
+ */
+public class Journal implements Closeable {
+
+    /**
+     * Receives the records of the journal when it is replayed.
+     */
+    public interface RecordHandler {
+        /**
+         * Handles a record.
+         * @param position The journal position right after the record, as returned by {@link #append(byte[])} when it was written.
+         * @param payload The record's bytes.
+         */
+        void accept(long position, ByteBuffer payload);
+    }
+
+    /**
+     * How long writers wait for their records to reach the disk.
+     */
+    public enum Durability {
+        /** Writers never wait, chunks are forced to disk periodically in the background. */
+        ASYNC,
+        /** Writers wait for the next group commit, which forces every record written so far with a single fsync. */
+        GROUP,
+        /** Every record is forced to disk before it is acknowledged. */
+        SYNC;
+
+        /**
+         * Parses a durability level from its configuration name.
+         * @param name One of "async", "group" or "sync", case insensitive.
+         * @return The durability level.
+         */
+        public static Durability parse(String name) {
+            return valueOf(name.trim().toUpperCase());
+        }
+    }
+
+    private static final int HEADER_SIZE = 8;
+    private static final int END_OF_CHUNK = -1;
+
+    private final Path path;
+    private final Durability durability;
+    private final int chunkSize;
+    private final long flushIntervalMillis;
+
+    // guarded by appendLock
+    private final Object appendLock = new Object();
+    private final List<MappedByteBuffer> dirty = new ArrayList<>();
+    private MappedByteBuffer chunk;
+    private long chunkStart;
+    private long written;
+    private long start;
+
+    private final Object flushSignal = new Object();
+    private final Object durableSignal = new Object();
+    private boolean flushRequested;
+    private volatile long durable;
+    private volatile boolean open = true;
+    private final Thread flusher;
+
+    /**
+     * Opens a journal, creating it if it doesn't exist.
+     * New records are appended after the last valid record already in the journal, a torn record at the end is discarded.
+     * @param path The journal, its chunk files are named after it.
+     * @param durability How long writers wait for their records to reach the disk.
+     * @param chunkSize Size of each memory-mapped region of the file, in bytes.
+     * @param flushIntervalMillis How often records are forced to disk when nobody is waiting for them.
+     * @return The open journal.
+     * @throws IOException If the file can't be opened or mapped.
+     */
+    public static Journal open(Path path, Durability durability, int chunkSize, long flushIntervalMillis) throws IOException {
+        return new Journal(path, durability, chunkSize, flushIntervalMillis);
+    }
+
+    private Journal(Path path, Durability durability, int chunkSize, long flushIntervalMillis) throws IOException {
+        if (chunkSize < 1024)
+            throw new IllegalArgumentException("Journal chunk size must be at least 1KB.");
+        this.path = path;
+        this.durability = durability;
+        this.chunkSize = chunkSize;
+        this.flushIntervalMillis = Math.max(1, flushIntervalMillis);
+        if (path.getParent() != null)
+            Files.createDirectories(path.getParent());
+
+        long[] chunks = chunkNumbers();
+        start = chunks.length == 0 ? 0 : chunks[0] * chunkSize;
+        long end = scan(start, null);
+        chunkStart = end - end % chunkSize;
+        // chunks after the end hold nothing valid, e.g. one created right before a crash
+        for (long number : chunks)
+            if (number * chunkSize > chunkStart)
+                Files.delete(chunkFile(number * chunkSize));
+        chunk = map(chunkStart, false);
+        chunk.position((int) (end - chunkStart));
+        // wipe whatever a torn write may have left after the last valid record
+        while (chunk.hasRemaining())
+            chunk.put((byte) 0);
+        chunk.position((int) (end - chunkStart));
+        written = end;
+        durable = end;
+
+        flusher = new Thread(this::flushLoop, "journal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Returns the journal's path, which its chunk files are named after.
+     * @return The path of the journal.
+     */
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * Returns the journal's durability level.
+     * @return The durability level.
+     */
+    public Durability getDurability() {
+        return durability;
+    }
+
+    /**
+     * Returns the position right after the last record appended so far.
+     * @return The current end of the journal.
+     */
+    public long getPosition() {
+        synchronized (appendLock) {
+            return written;
+        }
+    }
+
+    /**
+     * Returns the position of the oldest record the journal still has, 0 unless it was truncated.
+     * @return The start of the journal.
+     */
+    public long getStart() {
+        synchronized (appendLock) {
+            return start;
+        }
+    }
+
+    /**
+     * Appends a record to the journal.
+     * The record is in the mapped file when this returns, but not necessarily on disk, see {@link #awaitDurable(long)}.
+     * @param payload The record's bytes.
+     * @return The journal position right after the record.
+     * @throws UncheckedIOException If a new chunk of the file can't be mapped.
+     */
+    public long append(byte[] payload) {
+        if (payload.length + 2 * HEADER_SIZE > chunkSize)
+            throw new IllegalArgumentException("Journal record of " + payload.length + " bytes doesn't fit in a chunk.");
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+
+        synchronized (appendLock) {
+            if (!open)
+                throw new IllegalStateException("Journal is closed.");
+            if (chunk.remaining() < payload.length + HEADER_SIZE + 4) {
+                chunk.putInt(END_OF_CHUNK);
+                dirty.add(chunk);
+                chunkStart += chunkSize;
+                try {
+                    chunk = map(chunkStart, true);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            chunk.putInt(payload.length);
+            chunk.putInt((int) crc.getValue());
+            chunk.put(payload);
+            written = chunkStart + chunk.position();
+
+            if (durability == Durability.SYNC) {
+                forceDirty();
+                durable = written;
+            }
+            return written;
+        }
+    }
+
+    /**
+     * Waits until every record up to a position is on disk, as required by the durability level.
+     * With {@link Durability#ASYNC} it returns immediately. With {@link Durability#GROUP} it asks for a group commit
+     * and waits for it. With {@link Durability#SYNC} the record was already forced by {@link #append(byte[])}.
+     * @param position A position returned by {@link #append(byte[])}.
+     */
+    public void awaitDurable(long position) {
+        if (durability != Durability.GROUP || durable >= position)
+            return;
+
+        synchronized (flushSignal) {
+            flushRequested = true;
+            flushSignal.notify();
+        }
+        synchronized (durableSignal) {
+            while (durable < position && open) {
+                try {
+                    durableSignal.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the records of the journal, in order, starting at a position.
+     * @param from The position to start reading at, 0 for the whole journal.
+     * @param handler Receives every record.
+     * @return The position after the last record read.
+     * @throws IOException If the files can't be read, or the records from that position on were truncated.
+     */
+    public long replay(long from, RecordHandler handler) throws IOException {
+        synchronized (appendLock) {
+            if (from < start)
+                throw new IOException("Journal records before position " + start + " were truncated, unable to replay from " + from + ".");
+            return scan(from, handler);
+        }
+    }
+
+    /**
+     * Drops the records before a position, once they are no longer needed to recover, e.g. after a durable snapshot.
+     * Only whole chunks are dropped, so records right before the position may be kept.
+     * @param position The position from which records must be kept.
+     * @throws IOException If a chunk file can't be deleted.
+     */
+    public void truncate(long position) throws IOException {
+        synchronized (appendLock) {
+            long keep = Math.min(position - position % chunkSize, chunkStart);
+            for (; start < keep; start += chunkSize)
+                Files.deleteIfExists(chunkFile(start));
+        }
+    }
+
+    /**
+     * Forces every record to disk and closes the journal.
+     * @throws IOException If the file can't be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (appendLock) {
+            if (!open)
+                return;
+            forceDirty();
+            durable = written;
+            open = false;
+        }
+        synchronized (flushSignal) {
+            flushSignal.notify();
+        }
+        synchronized (durableSignal) {
+            durableSignal.notifyAll();
+        }
+    }
+
+    /**
+     * Background group commit: forces all chunks written since the last commit and releases the waiting writers.
+     */
+    private void flushLoop() {
+        while (open) {
+            synchronized (flushSignal) {
+                if (!flushRequested) {
+                    try {
+                        flushSignal.wait(flushIntervalMillis);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                flushRequested = false;
+            }
+
+            long target;
+            List<MappedByteBuffer> toForce;
+            synchronized (appendLock) {
+                if (!open || written == durable)
+                    continue;
+                target = written;
+                toForce = new ArrayList<>(dirty);
+                toForce.add(chunk);
+                dirty.clear();
+            }
+            // the force runs outside the append lock so writers keep appending to the next group meanwhile
+            for (MappedByteBuffer buffer : toForce)
+                buffer.force();
+
+            durable = target;
+            synchronized (durableSignal) {
+                durableSignal.notifyAll();
+            }
+        }
+    }
+
+    private void forceDirty() {
+        for (MappedByteBuffer buffer : dirty)
+            buffer.force();
+        dirty.clear();
+        chunk.force();
+    }
+
+    /**
+     * Maps the file of a chunk. The mapping stays valid once the file is closed.
+     * @param start The position the chunk starts at.
+     * @param fresh True for a new chunk, which replaces whatever an older file of the same name held.
+     */
+    private MappedByteBuffer map(long start, boolean fresh) throws IOException {
+        try (FileChannel channel = fresh
+                ? FileChannel.open(chunkFile(start), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)
+                : FileChannel.open(chunkFile(start), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, chunkSize);
+        }
+    }
+
+    private Path chunkFile(long start) {
+        return path.resolveSibling(path.getFileName() + "." + start / chunkSize);
+    }
+
+    /**
+     * Lists the numbers of the chunk files there are, in ascending order.
+     */
+    private long[] chunkNumbers() throws IOException {
+        String prefix = path.getFileName() + ".";
+        try (Stream<Path> files = Files.list(path.toAbsolutePath().getParent())) {
+            return files.map(file -> file.getFileName().toString())
+                    .filter(name -> name.startsWith(prefix) && name.length() > prefix.length()
+                            && name.substring(prefix.length()).chars().allMatch(Character::isDigit))
+                    .mapToLong(name -> Long.parseLong(name.substring(prefix.length())))
+                    .sorted()
+                    .toArray();
+        }
+    }
+
+    /**
+     * Walks the records of the chunk files from a position until the end of the journal or the first torn record.
+     * @param from The position to start at.
+     * @param handler Receives each record's payload, may be null.
+     * @return The position after the last valid record.
+     */
+    private long scan(long from, RecordHandler handler) throws IOException {
+        long position = from;
+        CRC32 crc = new CRC32();
+        while (true) {
+            long start = position - position % chunkSize;
+            Path file = chunkFile(start);
+            if (!Files.exists(file))
+                return position;
+            ByteBuffer region;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                region = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(chunkSize, channel.size()));
+            }
+            region.position((int) (position - start));
+            while (true) {
+                if (region.remaining() < 4)
+                    return position;
+                int length = region.getInt();
+                if (length == END_OF_CHUNK)
+                    break;
+                if (length <= 0 || region.remaining() < 4 || length > region.remaining() - 4)
+                    return position;
+                int checksum = region.getInt();
+                ByteBuffer payload = region.slice();
+                payload.limit(length);
+                crc.reset();
+                crc.update(payload.duplicate());
+                if ((int) crc.getValue() != checksum)
+                    return position;
+                region.position(region.position() + length);
+                position = start + region.position();
+                if (handler != null)
+                    handler.accept(position, payload.asReadOnlyBuffer());
+            }
+            position = start + chunkSize;
+        }
+    }
+}
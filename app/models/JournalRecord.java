@@ -0,0 +1,165 @@
+package models;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A single store mutation as written to the {@link Journal}.
+ * Every record has the same layout, fields that don't apply to its type are left empty:
+ * [type][id][name][ownerName][originId][destinationId][units][amount][timestamp], strings as UTF-8 prefixed by their length.
+ * A batch of transfers created all at once is a single record, followed by the count of its transfers and each
+ * transfer's record prefixed by its length, so the batch is either replayed as a whole or not at all.
+ */
+final class JournalRecord {
+
+    enum Type {
+        CREATE_ACCOUNT, UPDATE_ACCOUNT, DELETE_ACCOUNT, CLEAR_ACCOUNTS,
+        DEPOSIT, WITHDRAW,
+        CREATE_TRANSFER, DELETE_TRANSFER, CLEAR_TRANSFERS,
+        CREATE_TRANSFER_BATCH
+    }
+
+    final Type type;
+    final String id;
+    final String name;
+    final String ownerName;
+    final String originId;
+    final String destinationId;
+    final long units;
+    final float amount;
+    final String timestamp;
+    // the transfers of a batch, empty for other types
+    final List<JournalRecord> transfers;
+
+    private JournalRecord(Type type, String id, String name, String ownerName, String originId, String destinationId, long units, float amount, String timestamp) {
+        this(type, id, name, ownerName, originId, destinationId, units, amount, timestamp, Collections.emptyList());
+    }
+
+    private JournalRecord(Type type, String id, String name, String ownerName, String originId, String destinationId, long units, float amount, String timestamp, List<JournalRecord> transfers) {
+        this.type = type;
+        this.id = id;
+        this.name = name;
+        this.ownerName = ownerName;
+        this.originId = originId;
+        this.destinationId = destinationId;
+        this.units = units;
+        this.amount = amount;
+        this.timestamp = timestamp;
+        this.transfers = transfers;
+    }
+
+    static JournalRecord ofAccount(Type type, Account account) {
+        return new JournalRecord(type, account.getId(), account.getName(), account.getOwnerName(), null, null, account.getBalanceMinorUnits(), 0f, null);
+    }
+
+    static JournalRecord ofBalance(Type type, String accountId, long units) {
+        return new JournalRecord(type, accountId, null, null, null, null, units, 0f, null);
+    }
+
+    static JournalRecord ofTransfer(Transfer transfer, long units) {
+        return new JournalRecord(Type.CREATE_TRANSFER, transfer.getId(), null, null, transfer.getOriginAccountId(), transfer.getDestinationAccountId(), units, transfer.getAmount(), transfer.getTimestamp());
+    }
+
+    static JournalRecord ofBatch(List<JournalRecord> transfers) {
+        return new JournalRecord(Type.CREATE_TRANSFER_BATCH, null, null, null, null, null, 0L, 0f, null, transfers);
+    }
+
+    static JournalRecord ofId(Type type, String id) {
+        return new JournalRecord(type, id, null, null, null, null, 0L, 0f, null);
+    }
+
+    static JournalRecord of(Type type) {
+        return ofId(type, null);
+    }
+
+    /**
+     * Serializes the record.
+     * @return The record's bytes.
+     */
+    byte[] encode() {
+        byte[][] strings = { bytes(id), bytes(name), bytes(ownerName), bytes(originId), bytes(destinationId), bytes(timestamp) };
+        int size = 1 + 8 + 4;
+        for (byte[] string : strings)
+            size += 4 + (string == null ? 0 : string.length);
+        List<byte[]> parts = new ArrayList<>(transfers.size());
+        if (type == Type.CREATE_TRANSFER_BATCH) {
+            size += 4;
+            for (JournalRecord transfer : transfers) {
+                byte[] part = transfer.encode();
+                parts.add(part);
+                size += 4 + part.length;
+            }
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.put((byte) type.ordinal());
+        for (int i = 0; i < 5; i++)
+            putString(buffer, strings[i]);
+        buffer.putLong(units);
+        buffer.putFloat(amount);
+        putString(buffer, strings[5]);
+        if (type == Type.CREATE_TRANSFER_BATCH) {
+            buffer.putInt(parts.size());
+            for (byte[] part : parts) {
+                buffer.putInt(part.length);
+                buffer.put(part);
+            }
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Deserializes a record.
+     * @param buffer The record's bytes, as given by {@link Journal#replay}.
+     * @return The record.
+     */
+    static JournalRecord decode(ByteBuffer buffer) {
+        Type type = Type.values()[buffer.get()];
+        String id = getString(buffer);
+        String name = getString(buffer);
+        String ownerName = getString(buffer);
+        String originId = getString(buffer);
+        String destinationId = getString(buffer);
+        long units = buffer.getLong();
+        float amount = buffer.getFloat();
+        String timestamp = getString(buffer);
+        if (type != Type.CREATE_TRANSFER_BATCH)
+            return new JournalRecord(type, id, name, ownerName, originId, destinationId, units, amount, timestamp);
+
+        int count = buffer.getInt();
+        List<JournalRecord> transfers = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int length = buffer.getInt();
+            ByteBuffer part = buffer.slice();
+            part.limit(length);
+            transfers.add(decode(part));
+            buffer.position(buffer.position() + length);
+        }
+        return new JournalRecord(type, id, name, ownerName, originId, destinationId, units, amount, timestamp, transfers);
+    }
+
+    private static byte[] bytes(String value) {
+        return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void putString(ByteBuffer buffer, byte[] value) {
+        if (value == null) {
+            buffer.putInt(-1);
+            return;
+        }
+        buffer.putInt(value.length);
+        buffer.put(value);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0)
+            return null;
+        byte[] value = new byte[length];
+        buffer.get(value);
+        return new String(value, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,136 @@
+package models;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Running totals of a store, read by {@link ApplicationStore}'s statistics instead of looking at its accounts and transfers.
+ * Every total is a {@link LongAdder}, so writers updating it from different threads add to cells of their own rather than
+ * contending on a single value, and reading it never takes a lock.
+ * Transfer volume is also counted per minute, in a ring of {@link LedgerStats#BUCKETS} buckets: a slot is taken over by
+ * a newer minute when the ring comes round to it, and transfers older than the minute in their slot are not counted.
+ * The store updates the totals along with the changes they describe, so totals read while writers run may be
+ * momentarily apart from one another, as with any other read of the store.
+ */
+final class LedgerCounters {
+
+    private final LongAdder balanceUnits = new LongAdder();
+    private final LongAdder accounts = new LongAdder();
+    private final LongAdder transfers = new LongAdder();
+    private final LongAdder volumeUnits = new LongAdder();
+    private final AtomicReferenceArray<Bucket> buckets = new AtomicReferenceArray<>(LedgerStats.BUCKETS);
+
+    void accountAdded(long units) {
+        accounts.increment();
+        balanceUnits.add(units);
+    }
+
+    void accountRemoved(long units) {
+        accounts.decrement();
+        balanceUnits.add(-units);
+    }
+
+    void balanceChanged(long units) {
+        balanceUnits.add(units);
+    }
+
+    void accountsCleared() {
+        accounts.reset();
+        balanceUnits.reset();
+    }
+
+    void transferAdded(long timestampMillis, long units) {
+        transfers.increment();
+        volumeUnits.add(units);
+        Bucket bucket = bucket(timestampMillis, true);
+        if (bucket != null) {
+            bucket.transfers.increment();
+            bucket.units.add(units);
+        }
+    }
+
+    void transferRemoved(long timestampMillis, long units) {
+        transfers.decrement();
+        volumeUnits.add(-units);
+        Bucket bucket = bucket(timestampMillis, false);
+        if (bucket != null) {
+            bucket.transfers.decrement();
+            bucket.units.add(-units);
+        }
+    }
+
+    void transfersCleared() {
+        transfers.reset();
+        volumeUnits.reset();
+        for (int i = 0; i < LedgerStats.BUCKETS; i++)
+            buckets.set(i, null);
+    }
+
+    long balanceUnits() {
+        return balanceUnits.sum();
+    }
+
+    long accounts() {
+        return accounts.sum();
+    }
+
+    long transfers() {
+        return transfers.sum();
+    }
+
+    long volumeUnits() {
+        return volumeUnits.sum();
+    }
+
+    /**
+     * Reads the volume of the last {@link LedgerStats#BUCKETS} minutes up to a point in time.
+     * @param now The point in time, in milliseconds since the epoch.
+     * @return The buckets, oldest first, including those without transfers.
+     */
+    List<LedgerStats.Volume> recentVolume(long now) {
+        long oldest = Math.floorDiv(now, LedgerStats.BUCKET_MILLIS) - LedgerStats.BUCKETS + 1;
+        List<LedgerStats.Volume> volume = new ArrayList<>(LedgerStats.BUCKETS);
+        for (long minute = oldest; minute < oldest + LedgerStats.BUCKETS; minute++) {
+            Bucket bucket = buckets.get(slot(minute));
+            boolean current = bucket != null && bucket.minute == minute;
+            volume.add(new LedgerStats.Volume(minute * LedgerStats.BUCKET_MILLIS,
+                    current ? bucket.transfers.sum() : 0, current ? bucket.units.sum() : 0));
+        }
+        return volume;
+    }
+
+    /**
+     * Returns the bucket of the minute a transfer was made in.
+     * @param timestampMillis The time of the transfer, in milliseconds since the epoch.
+     * @param create True to take over the minute's slot if it holds an older minute.
+     * @return The bucket, null if the slot holds a newer minute, or an older one and create is false.
+     */
+    private Bucket bucket(long timestampMillis, boolean create) {
+        long minute = Math.floorDiv(timestampMillis, LedgerStats.BUCKET_MILLIS);
+        int slot = slot(minute);
+        while (true) {
+            Bucket bucket = buckets.get(slot);
+            if (bucket != null && bucket.minute == minute)
+                return bucket;
+            if (!create || bucket != null && bucket.minute > minute)
+                return null;
+            buckets.compareAndSet(slot, bucket, new Bucket(minute));
+        }
+    }
+
+    private static int slot(long minute) {
+        return (int) Math.floorMod(minute, (long) LedgerStats.BUCKETS);
+    }
+
+    private static final class Bucket {
+        private final long minute;
+        private final LongAdder transfers = new LongAdder();
+        private final LongAdder units = new LongAdder();
+
+        private Bucket(long minute) {
+            this.minute = minute;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package models;
+
+import services.AccountStorage;
+import services.TransferStorage;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.List;
+
+import static util.Util.toExactAmount;
+
+/**
+ * Statistics of the whole ledger: money held by all accounts, number of accounts and transfers, volume of the transfers,
+ * and that volume per minute over the last hour.
+ * Statistics are immutable, each one is read from the storages at the time it is asked for.
+ */
+public final class LedgerStats {
+
+    /**
+     * Length of a volume bucket in milliseconds.
+     */
+    public static final long BUCKET_MILLIS = 60_000;
+
+    /**
+     * Number of volume buckets, the last hour in one minute buckets.
+     */
+    public static final int BUCKETS = 60;
+
+    private final long balanceUnits;
+    private final long accountCount;
+    private final long transferCount;
+    private final long volumeUnits;
+    private final List<Volume> recentVolume;
+
+    LedgerStats(long balanceUnits, long accountCount, long transferCount, long volumeUnits, List<Volume> recentVolume) {
+        this.balanceUnits = balanceUnits;
+        this.accountCount = accountCount;
+        this.transferCount = transferCount;
+        this.volumeUnits = volumeUnits;
+        this.recentVolume = Collections.unmodifiableList(recentVolume);
+    }
+
+    /**
+     * Reads the statistics of a ledger from its storages.
+     * @param accounts The storage of the accounts.
+     * @param transfers The storage of the transfers.
+     * @return The statistics.
+     */
+    public static LedgerStats of(AccountStorage accounts, TransferStorage transfers) {
+        return new LedgerStats(accounts.totalBalanceMinorUnits(), accounts.countAccounts(),
+                transfers.countTransfers(), transfers.transferVolumeMinorUnits(), transfers.recentVolume());
+    }
+
+    /**
+     * Returns the money held by all accounts.
+     * Exact to the cent, however large: the sum of many balances is beyond what a float holds.
+     * @return The sum of the balances.
+     */
+    public BigDecimal getTotalBalance() {
+        return toExactAmount(balanceUnits);
+    }
+
+    /**
+     * Returns the number of accounts.
+     * @return The account count.
+     */
+    public long getAccountCount() {
+        return accountCount;
+    }
+
+    /**
+     * Returns the number of transfers.
+     * @return The transfer count.
+     */
+    public long getTransferCount() {
+        return transferCount;
+    }
+
+    /**
+     * Returns the money moved by all transfers, exact to the cent.
+     * @return The sum of the transfers' amounts.
+     */
+    public BigDecimal getTransferVolume() {
+        return toExactAmount(volumeUnits);
+    }
+
+    /**
+     * Returns the volume of the transfers per minute over the last hour, oldest minute first.
+     * @return {@link #BUCKETS} buckets, including those without transfers.
+     */
+    public List<Volume> getRecentVolume() {
+        return recentVolume;
+    }
+
+    /**
+     * Number and volume of the transfers made within one bucket of time.
+     */
+    public static final class Volume {
+        private final long startMillis;
+        private final long transferCount;
+        private final long volumeUnits;
+
+        /**
+         * Creates a bucket.
+         * @param startMillis Start of the bucket in milliseconds since the epoch, a multiple of {@link #BUCKET_MILLIS}.
+         * @param transferCount Number of transfers made within the bucket.
+         * @param volumeUnits Minor units moved by those transfers.
+         */
+        public Volume(long startMillis, long transferCount, long volumeUnits) {
+            this.startMillis = startMillis;
+            this.transferCount = transferCount;
+            this.volumeUnits = volumeUnits;
+        }
+
+        /**
+         * Returns the start of the bucket.
+         * @return A string representing the start of the bucket (ISO 8601), inclusive.
+         */
+        public String getStart() {
+            return Instant.ofEpochMilli(startMillis).toString();
+        }
+
+        /**
+         * Returns the number of transfers made within the bucket.
+         * @return The transfer count.
+         */
+        public long getTransferCount() {
+            return transferCount;
+        }
+
+        /**
+         * Returns the money moved by the transfers made within the bucket, exact to the cent.
+         * @return The sum of the transfers' amounts.
+         */
+        public BigDecimal getTransferVolume() {
+            return toExactAmount(volumeUnits);
+        }
+    }
+}
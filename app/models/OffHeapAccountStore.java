@@ -0,0 +1,700 @@
+package models;
+
+import services.AccountStorage;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractCollection;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static util.Util.toMinorUnits;
+
+/**
+ * In memory storage for {@link Account}s kept off the heap, for stores of tens of millions of accounts.
+ * Every account is a fixed-width slot of direct memory: its id, balance and version, the totals of its
+ * {@link AccountSummary}, and its name and owner name as UTF-8 of at most {@link #MAX_TEXT_BYTES} bytes each.
+ * Slots are allocated in segments of 4096 (1 MB), and the slots of deleted accounts are reused.
+ * The heap only holds the index from numeric account id to slot, a long and an int per account, so the garbage
+ * collector has no account to look at. Account objects are only built when an account is read, as copies of its
+ * slot, and changing one has no effect on the store.
+ * Slots are guarded by lock stripes, as the accounts of {@link ApplicationStore} are: every read and write of a slot
+ * holds its stripe's lock, so a balance update is atomic with its check and a slot is never read halfway written.
+ * Creating, deleting and clearing accounts are serialized by the store. Since slots are reused, a reader that found
+ * a slot in the index checks, under the slot's lock, that the slot still holds the account it is looking for.
+ * Only the numeric ids the store generates are found. This store is not journaled.
+ * Transfers are kept by a {@link ColumnarTransferStore}, which moves money through {@link #moveFunds(String, String, Float)}.
+ */
+public class OffHeapAccountStore implements AccountStorage, AccountFunds {
+
+    /**
+     * Maximum length of an account's name, and of its owner name, in UTF-8 bytes.
+     */
+    public static final int MAX_TEXT_BYTES = 96;
+
+    // 2^12 slots per segment
+    private static final int SEGMENT_SHIFT = 12;
+    private static final int SEGMENT_SLOTS = 1 << SEGMENT_SHIFT;
+    private static final int SLOT_MASK = SEGMENT_SLOTS - 1;
+    private static final int SLOT_BYTES = 256;
+
+    // layout of a slot, the id is 0 while the slot is free
+    private static final int ID = 0;
+    private static final int BALANCE = 8;
+    private static final int VERSION = 16;
+    private static final int SENT = 24;
+    private static final int RECEIVED = 32;
+    private static final int TRANSFERS = 40;
+    // lengths are shorts, -1 for null
+    private static final int NAME_LENGTH = 48;
+    private static final int OWNER_NAME_LENGTH = 50;
+    private static final int NAME = 52;
+    private static final int OWNER_NAME = NAME + MAX_TEXT_BYTES;
+
+    private static final int STRIPES = 256;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final ReentrantLock[] locks = new ReentrantLock[STRIPES];
+    private final AtomicLong nextAccountId = new AtomicLong(1);
+    private final LedgerCounters counters = new LedgerCounters();
+
+    // replaced while holding the store's monitor, and every stripe's lock when the accounts are cleared
+    private volatile ByteBuffer[] segments = new ByteBuffer[0];
+    private volatile SlotIndex index = new SlotIndex(INITIAL_CAPACITY);
+    // slots handed out since the accounts were last cleared, free ones included
+    private volatile int slotCount;
+    // guarded by the store's monitor
+    private int[] freeSlots = new int[16];
+    private int freeCount;
+    private int size;
+
+    /**
+     * Creates a new instance of an off-heap account store.
+     * @return A new, empty store.
+     */
+    public static OffHeapAccountStore newInstance() {
+        return new OffHeapAccountStore();
+    }
+
+    private OffHeapAccountStore() {
+        for (int i = 0; i < STRIPES; i++)
+            locks[i] = new ReentrantLock();
+    }
+
+    /**
+     * Lists all {@link Account}s.
+     * @return A weakly consistent view of the accounts, built from their slots as they are iterated over.
+     */
+    @Override
+    public Collection<Account> listAccounts() {
+        int slots = slotCount;
+        return new AbstractCollection<Account>() {
+            @Override
+            public Iterator<Account> iterator() {
+                return accounts(slots).iterator();
+            }
+
+            @Override
+            public int size() {
+                return (int) counters.accounts();
+            }
+        };
+    }
+
+    /**
+     * Lists all {@link Account}s that match possible field values and sorted by a certain field as well.
+     * Accounts are built from their slots as the stream is consumed, and only kept if they match.
+     * @param name Optional name to filter accounts by.
+     * @param ownerName Optional owner name to filter accounts by.
+     * @param balance Optional balance to filter accounts by.
+     * @param aboveBalance Optional balance to filter accounts richer than that.
+     * @param belowBalance Optional balance to filter accounts poorer than that.
+     * @param sort Optional field name to sort for. Prepend with '-' for descending order.
+     * @return A stream of accounts possibly sorted by 'sort' param and that match provided field values.
+     */
+    @Override
+    public Stream<Account> listAccounts(String name, String ownerName, Float balance, Float aboveBalance, Float belowBalance, String sort) {
+        return StoreQueries.filterAccounts(accounts(slotCount), name, ownerName, balance, aboveBalance, belowBalance, sort);
+    }
+
+    /**
+     * Retrieves an {@link Account} by its id.
+     * @param id The account id.
+     * @return A copy of the account, null if it doesn't exist.
+     */
+    @Override
+    public Account getAccount(String id) {
+        int slot = lock(id);
+        if (slot < 0)
+            return null;
+        try {
+            return read(slot);
+        } finally {
+            unlock(slot);
+        }
+    }
+
+    /**
+     * Counts the {@link Account}s, from the running totals.
+     * @return The number of existing accounts.
+     */
+    @Override
+    public long countAccounts() {
+        return counters.accounts();
+    }
+
+    /**
+     * Returns the money held by all {@link Account}s, from the running totals.
+     * @return The sum of the accounts' balances, in minor units.
+     */
+    @Override
+    public long totalBalanceMinorUnits() {
+        return counters.balanceUnits();
+    }
+
+    /**
+     * Creates a new {@link Account} in a free slot.
+     * @param account The new account to be created.
+     * @return The new account with its generated id.
+     * @throws IllegalArgumentException If the name or the owner name is longer than {@link #MAX_TEXT_BYTES} bytes.
+     */
+    @Override
+    public Account createAccount(Account account) {
+        byte[] name = text(account.getName(), "name");
+        byte[] ownerName = text(account.getOwnerName(), "ownerName");
+        long id = nextAccountId.getAndIncrement();
+        account.setId(Long.toString(id));
+        synchronized (this) {
+            int slot = allocate();
+            lockSlot(slot);
+            try {
+                ByteBuffer segment = segment(slot);
+                int at = offset(slot);
+                write(segment, at, account, name, ownerName);
+                segment.putLong(at + SENT, 0);
+                segment.putLong(at + RECEIVED, 0);
+                segment.putLong(at + TRANSFERS, 0);
+                // the id goes in last, readers that check it see the rest of the slot
+                segment.putLong(at + ID, id);
+                counters.accountAdded(account.getBalanceMinorUnits());
+            } finally {
+                unlock(slot);
+            }
+            SlotIndex current = index;
+            if (current.used + 1 > current.threshold()) {
+                current = current.rebuild(size);
+                index = current;
+            }
+            current.put(id, slot);
+            size++;
+        }
+        return account;
+    }
+
+    /**
+     * Updates an {@link Account}, identified by its id, writing the new account over its slot.
+     * It is impossible to change an account's id.
+     * @param account The new account.
+     * @return The updated account, null if it doesn't exist.
+     * @throws IllegalArgumentException If the name or the owner name is longer than {@link #MAX_TEXT_BYTES} bytes.
+     */
+    @Override
+    public Account updateAccount(Account account) {
+        byte[] name = text(account.getName(), "name");
+        byte[] ownerName = text(account.getOwnerName(), "ownerName");
+        int slot = lock(account.getId());
+        if (slot < 0)
+            return null;
+        try {
+            ByteBuffer segment = segment(slot);
+            int at = offset(slot);
+            long previous = segment.getLong(at + BALANCE);
+            account.version = segment.getLong(at + VERSION) + 1;
+            write(segment, at, account, name, ownerName);
+            counters.balanceChanged(account.getBalanceMinorUnits() - previous);
+        } finally {
+            unlock(slot);
+        }
+        return account;
+    }
+
+    /**
+     * Deletes an {@link Account}. Its slot is freed, to be reused by a new account.
+     * @param id The account's id.
+     * @return True if the account exists, false otherwise.
+     */
+    @Override
+    public synchronized boolean deleteAccount(String id) {
+        int slot = lock(id);
+        if (slot < 0)
+            return false;
+        try {
+            ByteBuffer segment = segment(slot);
+            int at = offset(slot);
+            counters.accountRemoved(segment.getLong(at + BALANCE));
+            segment.putLong(at + ID, 0);
+        } finally {
+            unlock(slot);
+        }
+        index.remove(NumericIdAccountMap.parse(id));
+        size--;
+        if (freeCount == freeSlots.length)
+            freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+        freeSlots[freeCount++] = slot;
+        return true;
+    }
+
+    /**
+     * Clears the list of accounts. The direct memory of the slots is released once the collector drops its buffers.
+     */
+    @Override
+    public synchronized void clearAccounts() {
+        for (ReentrantLock lock : locks)
+            lock.lock();
+        try {
+            segments = new ByteBuffer[0];
+            index = new SlotIndex(INITIAL_CAPACITY);
+            slotCount = 0;
+            freeSlots = new int[16];
+            freeCount = 0;
+            size = 0;
+            counters.accountsCleared();
+        } finally {
+            for (ReentrantLock lock : locks)
+                lock.unlock();
+        }
+    }
+
+    /**
+     * Deposits a certain amount into an {@link Account}.
+     * @param id The account's id.
+     * @param amount The amount to be deposited.
+     * @return A copy of the updated account, null if the account id does not exist.
+     * @throws IllegalArgumentException If the amount is not valid or the deposit would overflow the account's balance.
+     */
+    @Override
+    public Account deposit(String id, Float amount) {
+        long units = Account.minorUnitsOf(amount);
+        int slot = lock(id);
+        if (slot < 0)
+            return null;
+        try {
+            add(slot, units);
+            counters.balanceChanged(units);
+            return read(slot);
+        } finally {
+            unlock(slot);
+        }
+    }
+
+    /**
+     * Withdraws a certain amount from an {@link Account}
+     * @param id The account's id.
+     * @param amount The amount to be withdrawn.
+     * @return A copy of the updated account, null if the account id does not exist.
+     * @throws Account.InsufficientFundsException if account does not have sufficient balance for the withdrawal.
+     */
+    @Override
+    public Account withdraw(String id, Float amount) throws Account.InsufficientFundsException {
+        long units = Account.minorUnitsOf(amount);
+        int slot = lock(id);
+        if (slot < 0)
+            return null;
+        try {
+            take(slot, units, id);
+            counters.balanceChanged(-units);
+            return read(slot);
+        } finally {
+            unlock(slot);
+        }
+    }
+
+    /**
+     * Moves money between two accounts in one step, without recording a transfer, for {@link ColumnarTransferStore}.
+     * Both slots' locks are held, so neither account can be deleted or replaced halfway and the money is never left
+     * outside of both. The move is added to the summary totals of both slots.
+     * @param originId The origin account's id.
+     * @param destinationId The destination account's id.
+     * @param amount The amount to move.
+     * @throws ApplicationStore.AccountNotFoundException If any of the account ids do not exist.
+     * @throws Account.InsufficientFundsException If the origin account does not have sufficient funds.
+     * @throws IllegalArgumentException If the deposit would overflow the destination account's balance.
+     */
+    @Override
+    public void moveFunds(String originId, String destinationId, Float amount) throws ApplicationStore.AccountNotFoundException, Account.InsufficientFundsException {
+        long units = Account.minorUnitsOf(amount);
+        long origin = parse(originId);
+        int originSlot = origin < 0 ? -1 : index.get(origin);
+        if (originSlot < 0)
+            throw new ApplicationStore.AccountNotFoundException(originId);
+        long destination = parse(destinationId);
+        int destinationSlot = destination < 0 ? -1 : index.get(destination);
+        if (destinationSlot < 0)
+            throw new ApplicationStore.AccountNotFoundException(destinationId);
+
+        // stripes are always taken in order, so two moves in opposite directions never wait for each other
+        int first = Math.min(stripe(originSlot), stripe(destinationSlot));
+        int second = Math.max(stripe(originSlot), stripe(destinationSlot));
+        locks[first].lock();
+        if (second != first)
+            locks[second].lock();
+        try {
+            if (!holds(originSlot, origin))
+                throw new ApplicationStore.AccountNotFoundException(originId);
+            if (!holds(destinationSlot, destination))
+                throw new ApplicationStore.AccountNotFoundException(destinationId);
+            take(originSlot, units, originId);
+            try {
+                add(destinationSlot, units);
+            } catch (IllegalArgumentException e) {
+                add(originSlot, units);
+                throw e;
+            }
+            summarize(originSlot, units, 0, 1);
+            summarize(destinationSlot, 0, units, 1);
+        } finally {
+            if (second != first)
+                locks[second].unlock();
+            locks[first].unlock();
+        }
+    }
+
+    /**
+     * Takes a move of {@link #moveFunds(String, String, Float)} away from the accounts' summary totals, once the
+     * transfer it was made for is deleted.
+     * @param originId The origin account's id.
+     * @param destinationId The destination account's id.
+     * @param amount The amount moved.
+     */
+    @Override
+    public void forgetMove(String originId, String destinationId, float amount) {
+        long units = toMinorUnits(amount);
+        int slot = lock(originId);
+        if (slot >= 0) {
+            try {
+                summarize(slot, -units, 0, -1);
+            } finally {
+                unlock(slot);
+            }
+        }
+        slot = lock(destinationId);
+        if (slot >= 0) {
+            try {
+                summarize(slot, 0, -units, -1);
+            } finally {
+                unlock(slot);
+            }
+        }
+    }
+
+    /**
+     * Returns the summary of an account's transfers, read from the totals of its slot.
+     * @param accountId The account's id.
+     * @return The account's summary, with zero totals if the account has no transfers.
+     */
+    @Override
+    public AccountSummary summarize(String accountId) {
+        int slot = lock(accountId);
+        if (slot < 0)
+            return AccountSummary.empty(accountId);
+        try {
+            ByteBuffer segment = segment(slot);
+            int at = offset(slot);
+            return AccountSummary.empty(accountId).plus(segment.getLong(at + SENT), segment.getLong(at + RECEIVED), (int) segment.getLong(at + TRANSFERS));
+        } finally {
+            unlock(slot);
+        }
+    }
+
+    /**
+     * Zeroes the summary totals of every slot, once the transfers are cleared.
+     */
+    @Override
+    public void clearSummaries() {
+        int slots = slotCount;
+        for (int slot = 0; slot < slots; slot++) {
+            lockSlot(slot);
+            try {
+                ByteBuffer[] current = segments;
+                if ((slot >>> SEGMENT_SHIFT) >= current.length)
+                    return;
+                ByteBuffer segment = current[slot >>> SEGMENT_SHIFT];
+                int at = offset(slot);
+                segment.putLong(at + SENT, 0);
+                segment.putLong(at + RECEIVED, 0);
+                segment.putLong(at + TRANSFERS, 0);
+            } finally {
+                unlock(slot);
+            }
+        }
+    }
+
+    // builds the accounts of the first slots as the stream is consumed
+    private Stream<Account> accounts(int slots) {
+        return IntStream.range(0, slots).mapToObj(this::readSlot).filter(Objects::nonNull);
+    }
+
+    /**
+     * Finds the slot of an account and locks it.
+     * @param id The account's id.
+     * @return The slot, locked, -1 with no lock held if the account doesn't exist.
+     */
+    private int lock(String id) {
+        long key = parse(id);
+        int slot = key < 0 ? -1 : index.get(key);
+        if (slot < 0)
+            return -1;
+        lockSlot(slot);
+        if (holds(slot, key))
+            return slot;
+        // deleted or cleared since it was looked up
+        unlock(slot);
+        return -1;
+    }
+
+    /**
+     * Reads the account of a slot, if the slot holds one.
+     * @param slot The slot.
+     * @return A copy of the account, null if the slot is free.
+     */
+    private Account readSlot(int slot) {
+        lockSlot(slot);
+        try {
+            ByteBuffer[] current = segments;
+            if ((slot >>> SEGMENT_SHIFT) >= current.length || current[slot >>> SEGMENT_SHIFT].getLong(offset(slot) + ID) == 0)
+                return null;
+            return read(slot);
+        } finally {
+            unlock(slot);
+        }
+    }
+
+    /**
+     * Tells whether a slot holds an account. Must be called while the slot's lock is held.
+     * @param slot The slot.
+     * @param id The account's id.
+     * @return True if the slot exists and holds the account.
+     */
+    private boolean holds(int slot, long id) {
+        ByteBuffer[] current = segments;
+        return (slot >>> SEGMENT_SHIFT) < current.length && current[slot >>> SEGMENT_SHIFT].getLong(offset(slot) + ID) == id;
+    }
+
+    // must be called while the slot's lock is held
+    private Account read(int slot) {
+        ByteBuffer segment = segment(slot);
+        int at = offset(slot);
+        Account account = new Account();
+        account.setId(Long.toString(segment.getLong(at + ID)));
+        account.setName(readText(segment, at + NAME_LENGTH, at + NAME));
+        account.setOwnerName(readText(segment, at + OWNER_NAME_LENGTH, at + OWNER_NAME));
+        account.setBalanceMinorUnits(segment.getLong(at + BALANCE));
+        account.version = segment.getLong(at + VERSION);
+        return account;
+    }
+
+    // writes every field of an account but its id and summary totals, must be called while the slot's lock is held
+    private static void write(ByteBuffer segment, int at, Account account, byte[] name, byte[] ownerName) {
+        segment.putLong(at + BALANCE, account.getBalanceMinorUnits());
+        segment.putLong(at + VERSION, account.getVersion());
+        writeText(segment, at + NAME_LENGTH, at + NAME, name);
+        writeText(segment, at + OWNER_NAME_LENGTH, at + OWNER_NAME, ownerName);
+    }
+
+    // adds to a slot's balance, must be called while the slot's lock is held
+    private void add(int slot, long units) {
+        ByteBuffer segment = segment(slot);
+        int at = offset(slot);
+        long balance = segment.getLong(at + BALANCE);
+        if (balance + units < balance)
+            throw new IllegalArgumentException("Deposit would overflow the account's balance.");
+        segment.putLong(at + BALANCE, balance + units);
+        segment.putLong(at + VERSION, segment.getLong(at + VERSION) + 1);
+    }
+
+    // takes from a slot's balance, must be called while the slot's lock is held
+    private void take(int slot, long units, String id) throws Account.InsufficientFundsException {
+        ByteBuffer segment = segment(slot);
+        int at = offset(slot);
+        long balance = segment.getLong(at + BALANCE);
+        if (balance < units)
+            throw new Account.InsufficientFundsException(id);
+        segment.putLong(at + BALANCE, balance - units);
+        segment.putLong(at + VERSION, segment.getLong(at + VERSION) + 1);
+    }
+
+    // adds to a slot's summary totals, must be called while the slot's lock is held
+    private void summarize(int slot, long sentUnits, long receivedUnits, int transfers) {
+        ByteBuffer segment = segment(slot);
+        int at = offset(slot);
+        segment.putLong(at + SENT, segment.getLong(at + SENT) + sentUnits);
+        segment.putLong(at + RECEIVED, segment.getLong(at + RECEIVED) + receivedUnits);
+        segment.putLong(at + TRANSFERS, segment.getLong(at + TRANSFERS) + transfers);
+    }
+
+    /**
+     * Hands out a free slot, adding a segment when every slot is taken. Must be called while holding the store's monitor.
+     * @return The slot.
+     */
+    private int allocate() {
+        if (freeCount > 0)
+            return freeSlots[--freeCount];
+        int slot = slotCount;
+        ByteBuffer[] current = segments;
+        if ((slot >>> SEGMENT_SHIFT) == current.length) {
+            ByteBuffer[] grown = Arrays.copyOf(current, current.length + 1);
+            grown[current.length] = ByteBuffer.allocateDirect(SEGMENT_SLOTS * SLOT_BYTES);
+            segments = grown;
+        }
+        slotCount = slot + 1;
+        return slot;
+    }
+
+    private ByteBuffer segment(int slot) {
+        return segments[slot >>> SEGMENT_SHIFT];
+    }
+
+    private static int offset(int slot) {
+        return (slot & SLOT_MASK) * SLOT_BYTES;
+    }
+
+    private static int stripe(int slot) {
+        return slot & (STRIPES - 1);
+    }
+
+    private void lockSlot(int slot) {
+        locks[stripe(slot)].lock();
+    }
+
+    private void unlock(int slot) {
+        locks[stripe(slot)].unlock();
+    }
+
+    private static long parse(String id) {
+        return id == null ? -1 : NumericIdAccountMap.parse(id);
+    }
+
+    private static byte[] text(String value, String field) {
+        if (value == null)
+            return null;
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_TEXT_BYTES)
+            throw new IllegalArgumentException("Account's " + field + " must not be longer than " + MAX_TEXT_BYTES + " bytes.");
+        return bytes;
+    }
+
+    private static void writeText(ByteBuffer segment, int lengthAt, int at, byte[] value) {
+        segment.putShort(lengthAt, (short) (value == null ? -1 : value.length));
+        if (value != null)
+            for (int i = 0; i < value.length; i++)
+                segment.put(at + i, value[i]);
+    }
+
+    private static String readText(ByteBuffer segment, int lengthAt, int at) {
+        int length = segment.getShort(lengthAt);
+        if (length < 0)
+            return null;
+        byte[] value = new byte[length];
+        for (int i = 0; i < length; i++)
+            value[i] = segment.get(at + i);
+        return new String(value, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Index from numeric account id to slot: a linear probing table of primitive keys and slots.
+     * Reads never lock: a slot's key is written before its value, and a slot never goes back to empty, removed ids
+     * leave a tombstone that is only dropped when the table is rebuilt. Written while holding the store's monitor.
+     */
+    private static final class SlotIndex {
+        // values are the account's slot + 1, 0 while empty
+        private static final int TOMBSTONE = -1;
+
+        private final long[] keys;
+        private final AtomicIntegerArray values;
+        private final int mask;
+        // entries ever used, tombstones included
+        private int used;
+
+        private SlotIndex(int capacity) {
+            keys = new long[capacity];
+            values = new AtomicIntegerArray(capacity);
+            mask = capacity - 1;
+        }
+
+        private int threshold() {
+            return keys.length / 4 * 3;
+        }
+
+        private int entry(long id) {
+            return (int) ((id * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+        }
+
+        /**
+         * Looks up an account's slot.
+         * @param id The account's id.
+         * @return The slot, -1 if the id is not indexed.
+         */
+        private int get(long id) {
+            for (int i = entry(id); ; i = (i + 1) & mask) {
+                int value = values.get(i);
+                if (value == 0)
+                    return -1;
+                if (keys[i] == id)
+                    return value == TOMBSTONE ? -1 : value - 1;
+            }
+        }
+
+        private void put(long id, int slot) {
+            for (int i = entry(id); ; i = (i + 1) & mask) {
+                int value = values.get(i);
+                if (value == 0) {
+                    keys[i] = id;
+                    values.set(i, slot + 1);
+                    used++;
+                    return;
+                }
+                if (keys[i] == id) {
+                    values.set(i, slot + 1);
+                    return;
+                }
+            }
+        }
+
+        private void remove(long id) {
+            for (int i = entry(id); ; i = (i + 1) & mask) {
+                int value = values.get(i);
+                if (value == 0)
+                    return;
+                if (keys[i] == id) {
+                    values.set(i, TOMBSTONE);
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Copies the live entries to a new table, at most half full once the new entry is added.
+         * @param size Number of live entries.
+         * @return The new table.
+         */
+        private SlotIndex rebuild(int size) {
+            int capacity = INITIAL_CAPACITY;
+            while (capacity / 2 < size + 1)
+                capacity <<= 1;
+            SlotIndex rebuilt = new SlotIndex(capacity);
+            for (int i = 0; i < keys.length; i++) {
+                int value = values.get(i);
+                if (value > 0)
+                    rebuilt.put(keys[i], value - 1);
+            }
+            return rebuilt;
+        }
+    }
+}
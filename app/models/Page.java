@@ -0,0 +1,204 @@
+package models;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+/**
+ * One page of a listing, with an opaque cursor to fetch the next one.
+ * The cursor encodes the sort field's value and the id of the last item of the page, so the next page starts right after it
+ * no matter how many items were added or removed in between. Pages of unordered listings are picked with a bounded heap,
+ * keeping only limit + 1 items in memory instead of sorting every match.
+ * @param <T> The type of the listed items.
+ */
+public final class Page<T> {
+
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    private final List<T> items;
+    private final String nextCursor;
+
+    private Page(List<T> items, String nextCursor) {
+        this.items = items;
+        this.nextCursor = nextCursor;
+    }
+
+    /**
+     * Returns the items of the page, in listing order.
+     * @return The items.
+     */
+    public List<T> getItems() {
+        return items;
+    }
+
+    /**
+     * Returns the cursor for the next page.
+     * @return The cursor, null if this is the last page.
+     */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    /**
+     * Picks a page of {@link Account}s from the accounts that match a listing's filters.
+     * @param accounts The matching accounts, in any order.
+     * @param sort Optional field name to sort for. Prepend with '-' for descending order.
+     * @param cursor Optional cursor returned with the previous page.
+     * @param limit Maximum number of accounts in the page.
+     * @return The page.
+     * @throws IllegalArgumentException If the cursor is not valid for this sort.
+     */
+    public static Page<Account> ofAccounts(Stream<Account> accounts, String sort, String cursor, int limit) {
+        if (cursor != null)
+            accounts = accounts.filter(afterAccount(sort, cursor));
+        return select(accounts, StoreQueries.accountOrder(sort), limit, account -> cursor("accounts" + sort, StoreQueries.accountSortValue(account, sort), account.getId()));
+    }
+
+    /**
+     * Picks a page of {@link Transfer}s from the transfers that match a listing's filters.
+     * @param transfers The matching transfers, in any order.
+     * @param sort Optional field name to sort for. Prepend with '-' for descending order.
+     * @param cursor Optional cursor returned with the previous page.
+     * @param limit Maximum number of transfers in the page.
+     * @return The page.
+     * @throws IllegalArgumentException If the cursor is not valid for this sort.
+     */
+    public static Page<Transfer> ofTransfers(Stream<Transfer> transfers, String sort, String cursor, int limit) {
+        if (cursor != null)
+            transfers = transfers.filter(afterTransfer(sort, cursor));
+        return select(transfers, StoreQueries.transferOrder(sort), limit, transfer -> cursor("transfers" + sort, StoreQueries.transferSortValue(transfer, sort), transfer.getId()));
+    }
+
+    /**
+     * Tells whether an {@link Account} comes after a cursor of {@link #ofAccounts(Stream, String, String, int)}.
+     * @param sort Optional field name to sort for. Prepend with '-' for descending order.
+     * @param cursor Optional cursor returned with the previous page.
+     * @return The test, true for every account without a cursor.
+     * @throws IllegalArgumentException If the cursor is not valid for this sort.
+     */
+    static Predicate<Account> afterAccount(String sort, String cursor) {
+        if (cursor == null)
+            return account -> true;
+        String[] position = parseCursor(cursor, "accounts" + sort, 2);
+        Account last = StoreQueries.accountProbe(position[0], position[1], sort);
+        Comparator<Account> order = StoreQueries.accountOrder(sort);
+        return account -> order.compare(account, last) > 0;
+    }
+
+    /**
+     * Tells whether a {@link Transfer} comes after a cursor of {@link #ofTransfers(Stream, String, String, int)}.
+     * @param sort Optional field name to sort for. Prepend with '-' for descending order.
+     * @param cursor Optional cursor returned with the previous page.
+     * @return The test, true for every transfer without a cursor.
+     * @throws IllegalArgumentException If the cursor is not valid for this sort.
+     */
+    static Predicate<Transfer> afterTransfer(String sort, String cursor) {
+        if (cursor == null)
+            return transfer -> true;
+        String[] position = parseCursor(cursor, "transfers" + sort, 2);
+        Transfer last = StoreQueries.transferProbe(position[0], position[1], sort);
+        Comparator<Transfer> order = StoreQueries.transferOrder(sort);
+        return transfer -> order.compare(transfer, last) > 0;
+    }
+
+    /**
+     * Picks the items a page can be made of: the limit + 1 first ones, the extra one telling whether there is a next page.
+     * Only those are kept in memory, in a bounded heap.
+     * @param candidates The items, in any order.
+     * @param order The order of the listing.
+     * @param limit Maximum number of items in the page.
+     * @param <T> The type of the listed items.
+     * @return The first items, in listing order.
+     */
+    static <T> List<T> top(Stream<T> candidates, Comparator<? super T> order, int limit) {
+        // max-heap of the limit + 1 smallest items seen so far
+        int keep = limit == Integer.MAX_VALUE ? limit : limit + 1;
+        PriorityQueue<T> heap = new PriorityQueue<>(Math.min(keep, 1024), Collections.reverseOrder(order));
+        candidates.sequential().forEach(candidate -> {
+            if (heap.size() < keep) {
+                heap.add(candidate);
+            } else if (order.compare(candidate, heap.peek()) < 0) {
+                heap.poll();
+                heap.add(candidate);
+            }
+        });
+        List<T> items = new ArrayList<>(heap);
+        items.sort(order);
+        return items;
+    }
+
+    /**
+     * Takes the first items of a listing that is already in order, e.g. read from an index after the cursor's position.
+     * @param ordered The items, in listing order.
+     * @param limit Maximum number of items in the page.
+     * @param cursorOf Builds the cursor that resumes the listing after an item.
+     * @param <T> The type of the listed items.
+     * @return The page.
+     */
+    static <T> Page<T> first(Stream<T> ordered, int limit, Function<T, String> cursorOf) {
+        List<T> items = new ArrayList<>(Math.min(limit, 1024));
+        Iterator<T> iterator = ordered.iterator();
+        while (items.size() < limit && iterator.hasNext())
+            items.add(iterator.next());
+        String next = iterator.hasNext() && !items.isEmpty() ? cursorOf.apply(items.get(items.size() - 1)) : null;
+        return new Page<>(Collections.unmodifiableList(items), next);
+    }
+
+    /**
+     * Encodes a cursor.
+     * @param kind Identifies the listing and order the cursor belongs to, checked when it is parsed.
+     * @param parts The position of the last listed item.
+     * @return The opaque cursor.
+     */
+    static String cursor(String kind, String... parts) {
+        StringBuilder cursor = new StringBuilder(encode(kind));
+        for (String part : parts)
+            cursor.append('.').append(encode(part));
+        return cursor.toString();
+    }
+
+    /**
+     * Decodes a cursor.
+     * @param cursor The opaque cursor.
+     * @param kind The listing and order the cursor must belong to.
+     * @param length Number of parts of the position.
+     * @return The position of the last listed item.
+     * @throws IllegalArgumentException If the cursor is malformed or belongs to another listing or order.
+     */
+    static String[] parseCursor(String cursor, String kind, int length) {
+        String[] encoded = cursor.split("\\.", -1);
+        if (encoded.length != length + 1 || !decode(encoded[0]).equals(kind))
+            throw new IllegalArgumentException("Invalid cursor for this listing and sort: " + cursor);
+        String[] parts = new String[length];
+        for (int i = 0; i < length; i++)
+            parts[i] = decode(encoded[i + 1]);
+        return parts;
+    }
+
+    private static <T> Page<T> select(Stream<T> candidates, Comparator<T> order, int limit, Function<T, String> cursorOf) {
+        List<T> items = top(candidates, order, limit);
+        String next = null;
+        if (items.size() > limit) {
+            items = items.subList(0, limit);
+            next = limit > 0 ? cursorOf.apply(items.get(limit - 1)) : null;
+        }
+        return new Page<>(Collections.unmodifiableList(items), next);
+    }
+
+    private static String encode(String part) {
+        return ENCODER.encodeToString(String.valueOf(part).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String decode(String part) {
+        return new String(DECODER.decode(part), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,196 @@
+package models;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Scans large collections in segments on a fork-join pool, for the listings that have to look at every match before
+ * returning the first one: sorted listings and pages.
+ * The collection is split into segments with its spliterator. The calling thread and the threads of the pool take
+ * segments one at a time until none is left, so the caller never sits idle while the pool works, it only waits for
+ * the segments already taken when it runs out. Each segment is reduced on its own, to a sorted run or to the best
+ * items of a page (see {@link Page}), so a page never holds more than limit + 1 items per segment.
+ * The store's collections are concurrent and weakly consistent, so scanning them takes no lock and writers are never
+ * blocked, as with a sequential scan. Unsorted listings are not scanned here, they stream as they are filtered.
+ */
+final class ParallelScan {
+
+    /**
+     * A scan mode that never runs in parallel.
+     */
+    static final ParallelScan OFF = new ParallelScan(null, Integer.MAX_VALUE);
+
+    // smallest segment scanned on its own
+    private static final int MIN_SEGMENT = 4096;
+
+    private final ForkJoinPool pool;
+    private final int threshold;
+
+    private ParallelScan(ForkJoinPool pool, int threshold) {
+        this.pool = pool;
+        this.threshold = threshold;
+    }
+
+    /**
+     * Creates a parallel scan mode with a pool of its own.
+     * @param threshold Collections with at least this many items are scanned in parallel.
+     * @param parallelism Number of threads scanning, the caller's included, 0 or less for one per available core.
+     * @return The scan mode.
+     */
+    static ParallelScan of(int threshold, int parallelism) {
+        int threads = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+        return new ParallelScan(threads > 1 ? new ForkJoinPool(threads - 1) : null, threshold);
+    }
+
+    /**
+     * Stops the threads of the pool once the scans running on it are done.
+     */
+    void shutdown() {
+        if (pool != null)
+            pool.shutdown();
+    }
+
+    /**
+     * Tells whether a collection is large enough to be scanned in parallel.
+     * @param items The collection.
+     * @return True to use {@link #sorted(Collection, UnaryOperator, Comparator)} or {@link #top(Collection, UnaryOperator, Comparator, int)}.
+     */
+    boolean covers(Collection<?> items) {
+        return pool != null && items.size() >= threshold;
+    }
+
+    /**
+     * Filters and sorts a collection in parallel.
+     * Every match is kept, as a sequential sort would, and the sorted runs of the segments are merged as the
+     * returned stream is read.
+     * @param items The collection.
+     * @param filter Filters a segment's stream, must not sort it.
+     * @param order The order of the results.
+     * @param <T> The type of the items.
+     * @return A stream of the results, in order.
+     */
+    <T> Stream<T> sorted(Collection<T> items, UnaryOperator<Stream<T>> filter, Comparator<? super T> order) {
+        List<List<T>> runs = scan(items, segment -> filter.apply(segment).sorted(order).collect(Collectors.toList()));
+        Iterator<T> merged = new Merge<>(runs, order);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(merged, Spliterator.ORDERED), false);
+    }
+
+    /**
+     * Picks in parallel the candidates for a page of a collection.
+     * Each segment keeps its limit + 1 first matches, so the page, picked from the returned candidates by
+     * {@link Page}, is the same as if it were picked from the whole collection.
+     * @param items The collection.
+     * @param filter Filters a segment's stream, must not sort it.
+     * @param order The order of the listing.
+     * @param limit Maximum number of items in the page.
+     * @param <T> The type of the items.
+     * @return The candidates, in no particular order.
+     */
+    <T> Stream<T> top(Collection<T> items, UnaryOperator<Stream<T>> filter, Comparator<? super T> order, int limit) {
+        return scan(items, segment -> Page.top(filter.apply(segment), order, limit)).stream().flatMap(List::stream);
+    }
+
+    // reduces every segment, on the pool's threads and the caller's, and returns the results in encounter order
+    private <T, R> List<R> scan(Collection<T> items, Function<Stream<T>, R> reduce) {
+        List<Spliterator<T>> segments = new ArrayList<>();
+        split(items.spliterator(), Math.max(MIN_SEGMENT, items.size() / ((pool.getParallelism() + 1) * 4)), segments);
+        AtomicReferenceArray<R> results = new AtomicReferenceArray<>(segments.size());
+        AtomicInteger next = new AtomicInteger();
+        Runnable worker = () -> {
+            for (int i = next.getAndIncrement(); i < segments.size(); i = next.getAndIncrement())
+                results.set(i, reduce.apply(StreamSupport.stream(segments.get(i), false)));
+        };
+        List<ForkJoinTask<?>> helpers = new ArrayList<>();
+        try {
+            for (int i = Math.min(pool.getParallelism(), segments.size() - 1); i > 0; i--)
+                helpers.add(pool.submit(worker));
+        } catch (RejectedExecutionException e) {
+            // the scan mode was replaced and its pool shut down, the caller scans what the helpers don't
+        }
+        worker.run();
+        // the segments the helpers are still on are all that is left
+        for (ForkJoinTask<?> helper : helpers)
+            helper.join();
+        List<R> reduced = new ArrayList<>(segments.size());
+        for (int i = 0; i < segments.size(); i++)
+            reduced.add(results.get(i));
+        return reduced;
+    }
+
+    private static <T> void split(Spliterator<T> items, long size, List<Spliterator<T>> segments) {
+        Spliterator<T> prefix = items.estimateSize() > size ? items.trySplit() : null;
+        if (prefix == null) {
+            segments.add(items);
+            return;
+        }
+        split(prefix, size, segments);
+        split(items, size, segments);
+    }
+
+    /**
+     * Merges sorted runs as it is read, with a heap of the runs' next items.
+     * Runs are taken in encounter order on ties, so equal items keep the order of the collection.
+     */
+    private static final class Merge<T> implements Iterator<T> {
+        private final List<Iterator<T>> runs = new ArrayList<>();
+        private final PriorityQueue<Head<T>> heads;
+
+        private Merge(List<List<T>> runs, Comparator<? super T> order) {
+            heads = new PriorityQueue<>(Math.max(1, runs.size()), (h1, h2) -> {
+                int byOrder = order.compare(h1.item, h2.item);
+                return byOrder != 0 ? byOrder : Integer.compare(h1.run, h2.run);
+            });
+            for (List<T> run : runs) {
+                this.runs.add(run.iterator());
+                advance(this.runs.size() - 1);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !heads.isEmpty();
+        }
+
+        @Override
+        public T next() {
+            Head<T> head = heads.poll();
+            if (head == null)
+                throw new NoSuchElementException();
+            advance(head.run);
+            return head.item;
+        }
+
+        private void advance(int run) {
+            Iterator<T> items = runs.get(run);
+            if (items.hasNext())
+                heads.add(new Head<>(items.next(), run));
+        }
+    }
+
+    private static final class Head<T> {
+        private final T item;
+        private final int run;
+
+        private Head(T item, int run) {
+            this.item = item;
+            this.run = run;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package models;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * The most recent {@link Transfer}s of each account, from or to it, in bounded rings ordered by log sequence.
+ * A statement page of recent transfers is read straight from an account's ring, without looking at its other transfers
+ * or sorting them. Once a ring has dropped its oldest transfer to make room it can no longer tell what came before,
+ * so pages reaching past its oldest transfer are left to the caller (see {@link #page(String, long, int)}).
+ * Rings start small and grow up to their capacity, so accounts with few transfers don't pay for a full ring.
+ * Each ring is guarded by its own monitor, rings of different accounts never contend.
+ */
+final class RecentTransfers {
+
+    private static final int INITIAL_RING_SIZE = 4;
+
+    private final int capacity;
+    private final Map<String, Ring> rings = new ConcurrentHashMap<>();
+
+    /**
+     * Creates empty rings.
+     * @param capacity Maximum number of transfers kept per account.
+     */
+    RecentTransfers(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Adds a transfer to the rings of its accounts, as their most recent one.
+     * Transfers of an account must be added in log sequence order, i.e. while the account's lock is held.
+     * @param transfer The transfer, already in the log.
+     */
+    void add(Transfer transfer) {
+        ring(transfer.getOriginAccountId()).addNewest(transfer);
+        ring(transfer.getDestinationAccountId()).addNewest(transfer);
+    }
+
+    /**
+     * Removes a deleted transfer from the rings of its accounts.
+     * @param transfer The transfer.
+     */
+    void remove(Transfer transfer) {
+        Ring origin = rings.get(transfer.getOriginAccountId());
+        if (origin != null)
+            origin.remove(transfer);
+        Ring destination = rings.get(transfer.getDestinationAccountId());
+        if (destination != null)
+            destination.remove(transfer);
+    }
+
+    /**
+     * Drops the ring of a deleted account.
+     * @param accountId The account's id.
+     */
+    void removeAccount(String accountId) {
+        rings.remove(accountId);
+    }
+
+    /**
+     * Drops every ring.
+     */
+    void clear() {
+        rings.clear();
+    }
+
+    /**
+     * Refills the rings from transfers that are already in the log, e.g. after recovering the store.
+     * Only existing accounts get a ring, as deleting or clearing accounts drops theirs.
+     * @param newestFirst The transfers, most recent first.
+     * @param accountExists Tells whether an account id belongs to an existing account.
+     */
+    void rebuild(Iterator<Transfer> newestFirst, Predicate<String> accountExists) {
+        rings.clear();
+        while (newestFirst.hasNext()) {
+            Transfer transfer = newestFirst.next();
+            if (accountExists.test(transfer.getOriginAccountId()))
+                ring(transfer.getOriginAccountId()).addOldest(transfer);
+            if (accountExists.test(transfer.getDestinationAccountId()))
+                ring(transfer.getDestinationAccountId()).addOldest(transfer);
+        }
+    }
+
+    /**
+     * Lists the most recent transfers of an account that come before a position of the log.
+     * @param accountId The account's id.
+     * @param beforeSequence Log sequence of the last transfer already listed, Long.MAX_VALUE for the first page.
+     * @param count Number of transfers wanted.
+     * @return Up to count transfers, most recent first, fewer only if the account has no others.
+     *         Null if the ring dropped some of the account's transfers and can't tell whether there are more.
+     */
+    List<Transfer> page(String accountId, long beforeSequence, int count) {
+        Ring ring = rings.get(accountId);
+        return ring == null ? Collections.emptyList() : ring.page(beforeSequence, count);
+    }
+
+    private Ring ring(String accountId) {
+        return rings.computeIfAbsent(accountId, id -> new Ring(capacity));
+    }
+
+    /**
+     * Transfers of one account, oldest to newest from head, in a circular array.
+     */
+    private static final class Ring {
+        private final int capacity;
+        private Transfer[] transfers;
+        private int head;
+        private int size;
+        // true once a transfer was dropped to make room, older pages can't be served from the ring anymore
+        private boolean truncated;
+
+        private Ring(int capacity) {
+            this.capacity = capacity;
+            this.transfers = new Transfer[Math.min(INITIAL_RING_SIZE, capacity)];
+        }
+
+        synchronized void addNewest(Transfer transfer) {
+            if (size == capacity) {
+                transfers[head] = transfer;
+                head = (head + 1) % capacity;
+                truncated = true;
+                return;
+            }
+            grow();
+            transfers[(head + size++) % transfers.length] = transfer;
+        }
+
+        synchronized void addOldest(Transfer transfer) {
+            if (size == capacity) {
+                truncated = true;
+                return;
+            }
+            grow();
+            head = (head - 1 + transfers.length) % transfers.length;
+            transfers[head] = transfer;
+            size++;
+        }
+
+        synchronized void remove(Transfer transfer) {
+            for (int i = 0; i < size; i++) {
+                if (transfers[(head + i) % transfers.length] != transfer)
+                    continue;
+                // close the gap by moving the newer transfers one place back
+                for (int j = i; j < size - 1; j++)
+                    transfers[(head + j) % transfers.length] = transfers[(head + j + 1) % transfers.length];
+                transfers[(head + --size) % transfers.length] = null;
+                return;
+            }
+        }
+
+        synchronized List<Transfer> page(long beforeSequence, int count) {
+            List<Transfer> page = new ArrayList<>(Math.min(count, size));
+            for (int i = size - 1; i >= 0 && page.size() < count; i--) {
+                Transfer transfer = transfers[(head + i) % transfers.length];
+                if (transfer.logSequence < beforeSequence)
+                    page.add(transfer);
+            }
+            return page.size() < count && truncated ? null : page;
+        }
+
+        private void grow() {
+            if (size < transfers.length)
+                return;
+            Transfer[] grown = new Transfer[Math.min(transfers.length * 2, capacity)];
+            for (int i = 0; i < size; i++)
+                grown[i] = transfers[(head + i) % transfers.length];
+            transfers = grown;
+            head = 0;
+        }
+    }
+}
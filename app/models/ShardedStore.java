@@ -0,0 +1,576 @@
+package models;
+
+import services.AccountStorage;
+import services.TransferStorage;
+
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import static util.Util.toMinorUnits;
+
+/**
+ * In memory storage for {@link Account}s and {@link Transfer}s partitioned into shards.
+ * Implements both {@link AccountStorage} and {@link TransferStorage} apis.
+ * Accounts are assigned to a shard by the hash of their id, transfers by the hash of the transfer id.
+ * Every shard is owned by a single writer thread and all reads and writes of a shard run on that thread,
+ * so shard data lives in plain maps and operations within a shard need no locks at all.
+ * Transfers between accounts of different shards are coordinated in steps: the origin shard withdraws the amount
+ * and the destination shard deposits it, or hands it back to the origin account if the deposit can't be made.
+ * Money is never created nor lost, it is only briefly in flight between the two steps: the origin shard counts the
+ * transfers in flight from each of its accounts, an account can't be deleted while any of its money is in flight,
+ * and clearing the accounts first stops new transfers between shards and waits for those in flight to land,
+ * so a refund always finds its account.
+ * Statistics are kept up to date by the writes, as in {@link ApplicationStore}: totals and volume per minute in
+ * {@link LedgerCounters}, shared by the shards, and account summaries in the shard of each account, updated on its
+ * thread as money moves in or out of the account.
+ */
+public class ShardedStore implements AccountStorage, TransferStorage {
+
+    private final Shard[] shards;
+    private final AtomicLong nextAccountId = new AtomicLong(1);
+    private final LedgerCounters counters = new LedgerCounters();
+    // set while the accounts are being cleared, transfers between shards are refused meanwhile
+    private volatile boolean clearing;
+
+    /**
+     * Creates a new instance of a sharded store.
+     * @param shards Number of shards, 0 or less for one shard per available core.
+     * @return A new sharded store.
+     */
+    public static ShardedStore newInstance(int shards) {
+        return new ShardedStore(shards > 0 ? shards : Runtime.getRuntime().availableProcessors());
+    }
+
+    private ShardedStore(int count) {
+        shards = new Shard[count];
+        for (int i = 0; i < count; i++)
+            shards[i] = new Shard(i);
+    }
+
+    /**
+     * Returns the number of shards of this store.
+     * @return The shard count.
+     */
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * Stops the writer threads of all shards.
+     */
+    public void shutdown() {
+        for (Shard shard : shards)
+            shard.writer.shutdown();
+    }
+
+    /**
+     * Creates a new {@link Account} in the shard its generated id belongs to.
+     * @param account The new account to be created.
+     * @return The new account with its generated id.
+     */
+    @Override
+    public Account createAccount(Account account) {
+        String id = Long.toString(nextAccountId.getAndIncrement());
+        account.setId(id);
+        return query(shardOf(id), shard -> {
+            shard.accounts.put(id, account);
+            counters.accountAdded(account.getBalanceMinorUnits());
+            return account;
+        });
+    }
+
+    /**
+     * Retrieves an {@link Account} by its id.
+     * @param id The account id.
+     * @return The account, null if it doesn't exist.
+     */
+    @Override
+    public Account getAccount(String id) {
+        return query(shardOf(id), shard -> shard.accounts.get(id));
+    }
+
+    /**
+     * Lists all {@link Account}s.
+     * Each shard contributes a copy of its accounts, taken on its writer thread.
+     * @return A collection with all existing accounts.
+     */
+    @Override
+    public Collection<Account> listAccounts() {
+        List<Account> all = new ArrayList<>();
+        for (Shard shard : shards)
+            all.addAll(query(shard, s -> new ArrayList<>(s.accounts.values())));
+        return all;
+    }
+
+    /**
+     * Lists all {@link Account}s that match possible field values and sorted by a certain field as well.
+     * @param name Optional name to filter accounts by.
+     * @param ownerName Optional owner name to filter accounts by.
+     * @param balance Optional balance to filter accounts by.
+     * @param aboveBalance Optional balance to filter accounts richer than that.
+     * @param belowBalance Optional balance to filter accounts poorer than that.
+     * @param sort Optional field name to sort for. Prepend with '-' for descending order.
+     * @return An array of accounts possibly sorted by 'sort' param and that match provided field values.
+     */
+    @Override
+    public Stream<Account> listAccounts(String name, String ownerName, Float balance, Float aboveBalance, Float belowBalance, String sort) {
+        return StoreQueries.filterAccounts(listAccounts().stream(), name, ownerName, balance, aboveBalance, belowBalance, sort);
+    }
+
+    /**
+     * Updates an {@link Account}, identified by its id.
+     * It is impossible to change an account's id.
+     * @param account The new account.
+     * @return The updated account, null if it doesn't exist.
+     */
+    @Override
+    public Account updateAccount(Account account) {
+        String id = account.getId();
+        return query(shardOf(id), shard -> {
+            Account previous = shard.accounts.get(id);
+            if (previous == null)
+                return null;
+            account.continueVersionOf(previous);
+            shard.accounts.put(id, account);
+            counters.balanceChanged(account.getBalanceMinorUnits() - previous.getBalanceMinorUnits());
+            return account;
+        });
+    }
+
+    /**
+     * Deletes an {@link Account}.
+     * @param id The account's id.
+     * @return True if the account exists, false otherwise.
+     * @throws IllegalStateException If money withdrawn from the account by a transfer to another shard is still in flight.
+     */
+    @Override
+    public boolean deleteAccount(String id) {
+        return query(shardOf(id), shard -> {
+            if (shard.inFlight.containsKey(id))
+                throw new IllegalStateException("Account with id " + id + " has a transfer in progress, try again.");
+            Account removed = shard.accounts.remove(id);
+            if (removed == null)
+                return false;
+            counters.accountRemoved(removed.getBalanceMinorUnits());
+            shard.summaries.remove(id);
+            return true;
+        });
+    }
+
+    /**
+     * Clears the list of accounts in every shard.
+     * New transfers between shards are refused until it is done, and the accounts are only cleared once the money of
+     * the transfers already in flight has landed or was refunded.
+     */
+    @Override
+    public synchronized void clearAccounts() {
+        clearing = true;
+        try {
+            // a transfer that saw the flag unset counts its money in flight in the same origin shard task,
+            // so the shard's next task sees it
+            while (!Arrays.stream(shards).allMatch(shard -> query(shard, s -> s.inFlight.isEmpty())))
+                Thread.yield();
+            for (Shard shard : shards)
+                query(shard, s -> {
+                    s.accounts.clear();
+                    s.summaries.clear();
+                    return null;
+                });
+            counters.accountsCleared();
+        } finally {
+            clearing = false;
+        }
+    }
+
+    /**
+     * Deposits a certain amount into an {@link Account}.
+     * @param id The account's id.
+     * @param amount The amount to be deposited.
+     * @return The updated account.
+     */
+    @Override
+    public Account deposit(String id, Float amount) {
+        return query(shardOf(id), shard -> {
+            Account account = shard.accounts.get(id);
+            if (account == null)
+                return null;
+            long before = account.getBalanceMinorUnits();
+            account.deposit(amount);
+            counters.balanceChanged(account.getBalanceMinorUnits() - before);
+            return account;
+        });
+    }
+
+    /**
+     * Withdraws a certain amount from an {@link Account}
+     * @param id The account's id.
+     * @param amount The amount to be withdrawn.
+     * @return The updated account, null if the account id does not exist.
+     * @throws Account.InsufficientFundsException if account does not have sufficient balance for the withdrawal.
+     */
+    @Override
+    public Account withdraw(String id, Float amount) throws Account.InsufficientFundsException {
+        try {
+            return execute(shardOf(id), shard -> {
+                Account account = shard.accounts.get(id);
+                if (account == null)
+                    return null;
+                long before = account.getBalanceMinorUnits();
+                account.withdraw(amount);
+                counters.balanceChanged(account.getBalanceMinorUnits() - before);
+                return account;
+            });
+        } catch (ApplicationStore.AccountNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Lists all {@link Transfer}s.
+     * Each shard contributes a copy of its transfers, taken on its writer thread.
+     * @return A collection with all existing transfers.
+     */
+    @Override
+    public Collection<Transfer> listTransfers() {
+        List<Transfer> all = new ArrayList<>();
+        for (Shard shard : shards)
+            all.addAll(query(shard, s -> new ArrayList<>(s.transfers.values())));
+        return all;
+    }
+
+    /**
+     * Lists all {@link Transfer}s that match possible field values and sorted by a certain field as well.
+     * @param originAccountId Optional origin account id to filter transfers by.
+     * @param destinationAccountId Optional destination account id to filter transfers by.
+     * @param amount Optional amount to filter transfers by.
+     * @param aboveAmount Optional amount to filter transfers bigger than that.
+     * @param belowAmount Optional amount to filter transfers smaller than that.
+     * @param sort Optional field name to sort for. Prepend with '-' for descending order.
+     * @return An array of transfers possibly sorted by 'sort' param and that match provided field values.
+     */
+    @Override
+    public Stream<Transfer> listTransfers(String originAccountId, String destinationAccountId, Float amount, Float aboveAmount, Float belowAmount, String sort) {
+        return StoreQueries.filterTransfers(listTransfers().stream(), originAccountId, destinationAccountId, amount, aboveAmount, belowAmount, sort);
+    }
+
+    /**
+     * Retrieves a certain {@link Transfer}.
+     * @param id The transfer's id.
+     * @return The transfer.
+     */
+    @Override
+    public Transfer getTransfer(String id) {
+        return query(shardOf(id), shard -> shard.transfers.get(id));
+    }
+
+    /**
+     * Creates a new transfer.
+     * When both accounts live in the same shard the whole transfer runs as a single task on that shard.
+     * Otherwise the destination shard is asked if the account exists, the origin shard withdraws the amount and
+     * finally the destination shard deposits it. If the deposit fails, because the destination was deleted meanwhile
+     * or its balance would overflow, the origin account is refunded: it can't have been deleted, since the origin shard
+     * keeps it while the transfer is in flight, and clearing the accounts waits for it.
+     * @param transfer The transfer to be created.
+     * @return The transfer with its new id and timestamp.
+     * @throws ApplicationStore.AccountNotFoundException If any of the account ids do not exist.
+     * @throws Account.InsufficientFundsException If the origin account does not have sufficient funds for the transfer.
+     * @throws IllegalStateException If the accounts are being cleared and the accounts live in different shards.
+     */
+    @Override
+    public Transfer createTransfer(Transfer transfer) throws ApplicationStore.AccountNotFoundException, Account.InsufficientFundsException {
+        if (transfer == null)
+            return null;
+
+        String originId = transfer.getOriginAccountId();
+        if (originId == null)
+            throw new ApplicationStore.AccountNotFoundException(null);
+        String destinationId = transfer.getDestinationAccountId();
+        if (destinationId == null)
+            throw new ApplicationStore.AccountNotFoundException(null);
+
+        float amount = transfer.getAmount();
+        long units = toMinorUnits(amount);
+        Shard origin = shardOf(originId);
+        Shard destination = shardOf(destinationId);
+
+        if (origin == destination) {
+            execute(origin, shard -> {
+                Account from = shard.accounts.get(originId);
+                if (from == null)
+                    throw new ApplicationStore.AccountNotFoundException(originId);
+                Account to = shard.accounts.get(destinationId);
+                if (to == null)
+                    throw new ApplicationStore.AccountNotFoundException(destinationId);
+                from.withdraw(amount);
+                try {
+                    to.deposit(amount);
+                } catch (IllegalArgumentException e) {
+                    from.deposit(amount);
+                    throw e;
+                }
+                shard.summarize(originId, units, 0, 1);
+                shard.summarize(destinationId, 0, units, 1);
+                return null;
+            });
+        } else {
+            boolean destinationExists = query(destination, shard -> shard.accounts.containsKey(destinationId));
+            execute(origin, shard -> {
+                Account from = shard.accounts.get(originId);
+                if (from == null)
+                    throw new ApplicationStore.AccountNotFoundException(originId);
+                if (!destinationExists)
+                    throw new ApplicationStore.AccountNotFoundException(destinationId);
+                if (clearing)
+                    throw new IllegalStateException("Accounts are being cleared, try again.");
+                from.withdraw(amount);
+                counters.balanceChanged(-units);
+                shard.inFlight.merge(originId, 1, Integer::sum);
+                return from;
+            });
+            try {
+                execute(destination, shard -> {
+                    Account to = shard.accounts.get(destinationId);
+                    if (to == null)
+                        throw new ApplicationStore.AccountNotFoundException(destinationId);
+                    to.deposit(amount);
+                    counters.balanceChanged(units);
+                    shard.summarize(destinationId, 0, units, 1);
+                    return to;
+                });
+            } catch (ApplicationStore.AccountNotFoundException | RuntimeException e) {
+                // the destination was deleted after it was checked or can't take the amount, hand the money back
+                query(origin, shard -> {
+                    shard.landed(originId);
+                    Account refunded = shard.accounts.get(originId).deposit(amount);
+                    counters.balanceChanged(units);
+                    return refunded;
+                });
+                throw e;
+            }
+            // nobody waits for the origin shard to learn that the money landed
+            origin.writer.execute(() -> {
+                origin.landed(originId);
+                origin.summarize(originId, units, 0, 1);
+            });
+        }
+
+        transfer.setId(UUID.randomUUID().toString());
+        transfer.setTimestampMillis(System.currentTimeMillis());
+        String id = transfer.getId();
+        return query(shardOf(id), shard -> {
+            shard.transfers.put(id, transfer);
+            counters.transferAdded(transfer.getTimestampMillis(), units);
+            return transfer;
+        });
+    }
+
+    /**
+     * Deletes a certain {@link Transfer}.
+     * @param id The transfer's id.
+     * @return True if the transfer exists, false otherwise.
+     */
+    @Override
+    public boolean deleteTransfer(String id) {
+        Transfer removed = query(shardOf(id), shard -> {
+            Transfer transfer = shard.transfers.remove(id);
+            if (transfer != null)
+                counters.transferRemoved(transfer.getTimestampMillis(), toMinorUnits(transfer.getAmount()));
+            return transfer;
+        });
+        if (removed == null)
+            return false;
+        long units = toMinorUnits(removed.getAmount());
+        String originId = removed.getOriginAccountId();
+        String destinationId = removed.getDestinationAccountId();
+        query(shardOf(originId), shard -> shard.summaries.computeIfPresent(originId, (accountId, summary) -> summary.plus(-units, 0, -1)));
+        query(shardOf(destinationId), shard -> shard.summaries.computeIfPresent(destinationId, (accountId, summary) -> summary.plus(0, -units, -1)));
+        return true;
+    }
+
+    /**
+     * Deletes all transfers in every shard.
+     */
+    @Override
+    public void clearTransfers() {
+        for (Shard shard : shards)
+            query(shard, s -> {
+                s.transfers.clear();
+                s.summaries.clear();
+                return null;
+            });
+        counters.transfersCleared();
+    }
+
+    /**
+     * Returns the summary of an account's transfers, kept by the account's shard as money moves.
+     * @param accountId The account's id.
+     * @return The account's summary, with zero totals if the account has no transfers.
+     */
+    @Override
+    public AccountSummary summarize(String accountId) {
+        return query(shardOf(accountId), shard -> shard.summaries.getOrDefault(accountId, AccountSummary.empty(accountId)));
+    }
+
+    /**
+     * Counts the {@link Account}s, from the running totals.
+     * @return The number of existing accounts.
+     */
+    @Override
+    public long countAccounts() {
+        return counters.accounts();
+    }
+
+    /**
+     * Returns the money held by all {@link Account}s, from the running totals.
+     * Money in flight between shards is in neither account.
+     * @return The sum of the accounts' balances, in minor units.
+     */
+    @Override
+    public long totalBalanceMinorUnits() {
+        return counters.balanceUnits();
+    }
+
+    /**
+     * Counts the {@link Transfer}s, from the running totals.
+     * @return The number of existing transfers.
+     */
+    @Override
+    public long countTransfers() {
+        return counters.transfers();
+    }
+
+    /**
+     * Returns the money moved by all {@link Transfer}s, from the running totals.
+     * @return The sum of the transfers' amounts, in minor units.
+     */
+    @Override
+    public long transferVolumeMinorUnits() {
+        return counters.volumeUnits();
+    }
+
+    /**
+     * Returns the number and volume of the {@link Transfer}s made in each of the last {@link LedgerStats#BUCKETS} minutes,
+     * from the running totals.
+     * @return The buckets, oldest first, including those without transfers.
+     */
+    @Override
+    public List<LedgerStats.Volume> recentVolume() {
+        return counters.recentVolume(System.currentTimeMillis());
+    }
+
+    /**
+     * Returns the shard owning a certain id.
+     * @param id An account or transfer id.
+     * @return The shard for that id.
+     */
+    private Shard shardOf(String id) {
+        if (id == null)
+            return shards[0];
+        int h = id.hashCode();
+        return shards[Math.floorMod(h ^ (h >>> 16), shards.length)];
+    }
+
+    /**
+     * Runs a task that can't fail on the writer thread of a shard and waits for its result.
+     */
+    private <T> T query(Shard shard, ShardQuery<T> task) {
+        try {
+            return execute(shard, task::run);
+        } catch (ApplicationStore.AccountNotFoundException | Account.InsufficientFundsException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Runs a task on the writer thread of a shard and waits for its result.
+     * Exceptions thrown by the task are rethrown to the caller.
+     */
+    private <T> T execute(Shard shard, ShardTask<T> task) throws ApplicationStore.AccountNotFoundException, Account.InsufficientFundsException {
+        if (Thread.currentThread() == shard.thread)
+            return task.run(shard);
+
+        Future<T> future = shard.writer.submit(() -> task.run(shard));
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for shard " + shard.index, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ApplicationStore.AccountNotFoundException)
+                throw (ApplicationStore.AccountNotFoundException) cause;
+            if (cause instanceof Account.InsufficientFundsException)
+                throw (Account.InsufficientFundsException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * A unit of work executed on a shard's writer thread.
+     */
+    private interface ShardTask<T> {
+        T run(Shard shard) throws ApplicationStore.AccountNotFoundException, Account.InsufficientFundsException;
+    }
+
+    /**
+     * A unit of work executed on a shard's writer thread that doesn't throw checked exceptions.
+     */
+    private interface ShardQuery<T> {
+        T run(Shard shard);
+    }
+
+    /**
+     * A partition of the store, owned by a single writer thread.
+     * Its maps are only ever touched from that thread.
+     */
+    private static final class Shard {
+        private final int index;
+        private final Map<String, Account> accounts = new HashMap<>();
+        private final Map<String, Transfer> transfers = new HashMap<>();
+        // number of transfers to other shards whose money left an account of this shard but didn't land yet
+        private final Map<String, Integer> inFlight = new HashMap<>();
+        // summaries of the accounts of this shard that have transfers
+        private final Map<String, AccountSummary> summaries = new HashMap<>();
+        private final ExecutorService writer;
+        private volatile Thread thread;
+
+        private Shard(int index) {
+            this.index = index;
+            this.writer = Executors.newSingleThreadExecutor(runnable -> {
+                Thread t = new Thread(runnable, "store-shard-" + index);
+                t.setDaemon(true);
+                thread = t;
+                return t;
+            });
+        }
+
+        /**
+         * Records that one of the transfers in flight from an account landed or was refunded.
+         * @param accountId The origin account's id.
+         */
+        private void landed(String accountId) {
+            inFlight.computeIfPresent(accountId, (id, count) -> count == 1 ? null : count - 1);
+        }
+
+        /**
+         * Adds a transfer to the summary of an account of this shard, if the account still exists.
+         * @param accountId The account's id.
+         * @param sentUnits Minor units sent by the account.
+         * @param receivedUnits Minor units received by the account.
+         * @param transfers Number of transfers.
+         */
+        private void summarize(String accountId, long sentUnits, long receivedUnits, int transfers) {
+            if (accounts.containsKey(accountId))
+                summaries.compute(accountId, (id, summary) -> (summary == null ? AccountSummary.empty(id) : summary).plus(sentUnits, receivedUnits, transfers));
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package models;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Compact binary snapshot of an {@link ApplicationStore}, taken together with the {@link Journal} position it starts from.
+ * The snapshot is written to a temporary file and renamed over the previous one when complete, so a crash while
+ * writing it leaves the previous snapshot in place. The file ends with a CRC32 of its content.
+ * Strings are written as UTF-8 prefixed by their length, -1 for null, as in the journal, so names of any length fit.
+ * Snapshots of the first version, whose strings were written with {@link DataOutput#writeUTF(String)}, can still be read.
+ */
+final class Snapshot implements Closeable {
+
+    private static final int MAGIC = 0x534E4150;
+    private static final int VERSION = 2;
+    // strings written with writeUTF, limited to 64 KB
+    private static final int MODIFIED_UTF_VERSION = 1;
+    private static final byte END = 0;
+    private static final byte ACCOUNT = 1;
+    private static final byte TRANSFER = 2;
+
+    private final Path file;
+    private final Path temporary;
+    private final CheckedOutputStream checked;
+    private final DataOutputStream out;
+    private final FileOutputStream stream;
+    private boolean committed;
+
+    // contents of a snapshot that was read
+    final long position;
+    final long nextAccountId;
+    final List<Account> accounts;
+    final List<Transfer> transfers;
+
+    /**
+     * Starts writing a snapshot.
+     * @param file The snapshot file, replaced when the snapshot is committed.
+     * @param position The journal position the snapshot starts from.
+     * @param nextAccountId The next account id the store will generate.
+     * @return The snapshot being written.
+     * @throws IOException If the temporary file can't be created.
+     */
+    static Snapshot create(Path file, long position, long nextAccountId) throws IOException {
+        return new Snapshot(file, position, nextAccountId);
+    }
+
+    private Snapshot(Path file, long position, long nextAccountId) throws IOException {
+        if (file.getParent() != null)
+            Files.createDirectories(file.getParent());
+        this.file = file;
+        this.temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        this.stream = new FileOutputStream(temporary.toFile());
+        this.checked = new CheckedOutputStream(new BufferedOutputStream(stream, 1 << 16), new CRC32());
+        this.out = new DataOutputStream(checked);
+        this.position = position;
+        this.nextAccountId = nextAccountId;
+        this.accounts = null;
+        this.transfers = null;
+
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(position);
+        out.writeLong(nextAccountId);
+    }
+
+    private Snapshot(long position, long nextAccountId, List<Account> accounts, List<Transfer> transfers) {
+        this.file = null;
+        this.temporary = null;
+        this.stream = null;
+        this.checked = null;
+        this.out = null;
+        this.position = position;
+        this.nextAccountId = nextAccountId;
+        this.accounts = accounts;
+        this.transfers = transfers;
+    }
+
+    /**
+     * Writes an account.
+     * @param id The account's id.
+     * @param name The account's name.
+     * @param ownerName The account's owner name.
+     * @param units The account's balance in minor units.
+     * @param journalPosition Journal position of the last change included in this state of the account.
+     * @throws IOException If the snapshot can't be written.
+     */
+    void writeAccount(String id, String name, String ownerName, long units, long journalPosition) throws IOException {
+        out.writeByte(ACCOUNT);
+        writeString(id);
+        writeString(name);
+        writeString(ownerName);
+        out.writeLong(units);
+        out.writeLong(journalPosition);
+    }
+
+    /**
+     * Writes a transfer.
+     * @param transfer The transfer.
+     * @throws IOException If the snapshot can't be written.
+     */
+    void writeTransfer(Transfer transfer) throws IOException {
+        out.writeByte(TRANSFER);
+        writeString(transfer.getId());
+        writeString(transfer.getOriginAccountId());
+        writeString(transfer.getDestinationAccountId());
+        out.writeFloat(transfer.getAmount());
+        writeString(transfer.getTimestamp());
+    }
+
+    /**
+     * Completes the snapshot, forces it to disk and replaces the previous one.
+     * The directory is forced too, so the replacement survives a crash before the journal is truncated.
+     * @throws IOException If the snapshot can't be written.
+     */
+    void commit() throws IOException {
+        out.writeByte(END);
+        out.flush();
+        new DataOutputStream(stream).writeInt((int) checked.getChecksum().getValue());
+        stream.getFD().sync();
+        stream.close();
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        committed = true;
+        try (FileChannel directory = FileChannel.open(file.toAbsolutePath().getParent(), StandardOpenOption.READ)) {
+            directory.force(true);
+        }
+    }
+
+    /**
+     * Discards the snapshot if it wasn't committed.
+     * @throws IOException If the temporary file can't be deleted.
+     */
+    @Override
+    public void close() throws IOException {
+        if (committed || stream == null)
+            return;
+        stream.close();
+        Files.deleteIfExists(temporary);
+    }
+
+    /**
+     * Reads a snapshot.
+     * @param file The snapshot file.
+     * @return The snapshot's contents.
+     * @throws IOException If the file can't be read or is corrupt.
+     */
+    static Snapshot read(Path file) throws IOException {
+        try (InputStream stream = new BufferedInputStream(Files.newInputStream(file), 1 << 16)) {
+            CheckedInputStream checked = new CheckedInputStream(stream, new CRC32());
+            DataInputStream in = new DataInputStream(checked);
+            if (in.readInt() != MAGIC)
+                throw new IOException("Unknown snapshot format in " + file);
+            int version = in.readInt();
+            if (version != VERSION && version != MODIFIED_UTF_VERSION)
+                throw new IOException("Unknown snapshot format in " + file);
+            StringReader strings = version == VERSION ? new StringReader(in, Files.size(file)) : null;
+            long position = in.readLong();
+            long nextAccountId = in.readLong();
+
+            List<Account> accounts = new ArrayList<>();
+            List<Transfer> transfers = new ArrayList<>();
+            for (byte type = in.readByte(); type != END; type = in.readByte()) {
+                if (type == ACCOUNT) {
+                    Account account = new Account();
+                    account.setId(strings != null ? strings.read() : in.readUTF());
+                    account.setName(strings != null ? strings.read() : readNullable(in));
+                    account.setOwnerName(strings != null ? strings.read() : readNullable(in));
+                    account.setBalanceMinorUnits(in.readLong());
+                    account.journalPosition = in.readLong();
+                    accounts.add(account);
+                } else if (type == TRANSFER) {
+                    Transfer transfer = new Transfer();
+                    transfer.setId(strings != null ? strings.read() : in.readUTF());
+                    transfer.setOriginAccountId(strings != null ? strings.read() : in.readUTF());
+                    transfer.setDestinationAccountId(strings != null ? strings.read() : in.readUTF());
+                    transfer.setAmount(in.readFloat());
+                    String timestamp = strings != null ? strings.read() : readNullable(in);
+                    try {
+                        if (timestamp != null)
+                            transfer.restoreTimestamp(timestamp);
+                    } catch (DateTimeParseException e) {
+                        throw new IOException("Corrupt snapshot " + file, e);
+                    }
+                    transfers.add(transfer);
+                } else {
+                    throw new IOException("Corrupt snapshot " + file);
+                }
+            }
+
+            int expected = (int) checked.getChecksum().getValue();
+            if (new DataInputStream(stream).readInt() != expected)
+                throw new IOException("Checksum mismatch in snapshot " + file);
+            return new Snapshot(position, nextAccountId, accounts, transfers);
+        }
+    }
+
+    private void writeString(String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    // reads a string of the first version
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    /**
+     * Reads the length prefixed strings of a snapshot, rejecting lengths that can't be right before allocating them.
+     */
+    private static final class StringReader {
+        private final DataInputStream in;
+        private final long fileSize;
+
+        private StringReader(DataInputStream in, long fileSize) {
+            this.in = in;
+            this.fileSize = fileSize;
+        }
+
+        private String read() throws IOException {
+            int length = in.readInt();
+            if (length == -1)
+                return null;
+            if (length < 0 || length > fileSize)
+                throw new IOException("Corrupt snapshot, string of " + length + " bytes");
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+}
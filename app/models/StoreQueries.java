@@ -0,0 +1,254 @@
+package models;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * Filtering and sorting of {@link Account} and {@link Transfer} streams, shared by the storage implementations.
+ * Implements the query semantics described by the listAccounts and listTransfers storage apis.
+ */
+final class StoreQueries {
+
+    private static final Set<String> ACCOUNT_SORTS = new HashSet<>(Arrays.asList("id", "name", "ownerName", "balance"));
+    private static final Set<String> TRANSFER_SORTS = new HashSet<>(Arrays.asList("id", "originAccountId", "destinationAccountId", "amount", "timestamp"));
+
+    private StoreQueries() {
+    }
+
+    /**
+     * Filters a stream of {@link Account}s by possible field values and sorts it by a certain field as well.
+     * @param stream The accounts to filter.
+     * @param name Optional name to filter accounts by.
+     * @param ownerName Optional owner name to filter accounts by.
+     * @param balance Optional balance to filter accounts by.
+     * @param aboveBalance Optional balance to filter accounts richer than that.
+     * @param belowBalance Optional balance to filter accounts poorer than that.
+     * @param sort Optional field name to sort for. Prepend with '-' for descending order.
+     * @return The filtered and possibly sorted stream.
+     */
+    static Stream<Account> filterAccounts(Stream<Account> stream, String name, String ownerName, Float balance, Float aboveBalance, Float belowBalance, String sort) {
+        //filtering
+        if (name != null)
+            stream = stream.filter((account) -> account.getName().equals(name));
+        if (ownerName != null)
+            stream = stream.filter((account) -> account.getOwnerName().equals(ownerName));
+        boolean exactBalance = !balance.isNaN();
+        if (exactBalance)
+            stream = stream.filter((account -> account.getBalance() == balance));
+        if (!exactBalance && !aboveBalance.isNaN())
+            stream = stream.filter((account -> account.getBalance() > aboveBalance));
+        if (!exactBalance && !belowBalance.isNaN())
+            stream = stream.filter((account -> account.getBalance() < belowBalance));
+
+        // ordering
+        if (sortsAccounts(sort))
+            stream = stream.sorted(accountOrder(sort));
+        return stream;
+    }
+
+    /**
+     * Filters a stream of {@link Transfer}s by possible field values and sorts it by a certain field as well.
+     * @param stream The transfers to filter.
+     * @param originAccountId Optional origin account id to filter transfers by.
+     * @param destinationAccountId Optional destination account id to filter transfers by.
+     * @param amount Optional amount to filter transfers by.
+     * @param aboveAmount Optional amount to filter transfers bigger than that.
+     * @param belowAmount Optional amount to filter transfers smaller than that.
+     * @param sort Optional field name to sort for. Prepend with '-' for descending order.
+     * @return The filtered and possibly sorted stream.
+     */
+    static Stream<Transfer> filterTransfers(Stream<Transfer> stream, String originAccountId, String destinationAccountId, Float amount, Float aboveAmount, Float belowAmount, String sort) {
+        //filtering
+        if (originAccountId != null)
+            stream = stream.filter((transfer -> transfer.getOriginAccountId().equals(originAccountId)));
+        if (destinationAccountId != null)
+            stream = stream.filter((transfer -> transfer.getDestinationAccountId().equals(destinationAccountId)));
+        boolean exactAmount = !amount.isNaN();
+        if (exactAmount)
+            stream = stream.filter((transfer -> transfer.getAmount() == amount));
+        if (!exactAmount && !aboveAmount.isNaN())
+            stream = stream.filter((transfer -> transfer.getAmount() > aboveAmount));
+        if (!exactAmount && !belowAmount.isNaN())
+            stream = stream.filter((transfer -> transfer.getAmount() < belowAmount));
+
+        // ordering
+        if (sortsTransfers(sort))
+            stream = stream.sorted(transferOrder(sort));
+        return stream;
+    }
+
+    /**
+     * Tells whether a sort param sorts {@link Account} listings, i.e. names one of their sortable fields.
+     * @param sort Optional field name to sort for. Prepend with '-' for descending order.
+     * @return True if listings are sorted by {@link #accountOrder(String)}, false if they are left unsorted.
+     */
+    static boolean sortsAccounts(String sort) {
+        return sort != null && ACCOUNT_SORTS.contains(sortField(sort));
+    }
+
+    /**
+     * Tells whether a sort param sorts {@link Transfer} listings, i.e. names one of their sortable fields.
+     * @param sort Optional field name to sort for. Prepend with '-' for descending order.
+     * @return True if listings are sorted by {@link #transferOrder(String)}, false if they are left unsorted.
+     */
+    static boolean sortsTransfers(String sort) {
+        return sort != null && TRANSFER_SORTS.contains(sortField(sort));
+    }
+
+    /**
+     * Returns the total order of {@link Account}s for a sort param, used for pagination.
+     * Ties are broken by id, and no sort (or an unknown field) orders by id.
+     * @param sort Optional field name to sort for. Prepend with '-' for descending order.
+     * @return The comparator.
+     */
+    static Comparator<Account> accountOrder(String sort) {
+        Comparator<Account> order;
+        switch (sortField(sort)) {
+            case "name":
+                order = Comparator.comparing(Account::getName, Comparator.nullsFirst(Comparator.naturalOrder()));
+                break;
+            case "ownerName":
+                order = Comparator.comparing(Account::getOwnerName, Comparator.nullsFirst(Comparator.naturalOrder()));
+                break;
+            case "balance":
+                order = Comparator.comparingLong(Account::getBalanceMinorUnits);
+                break;
+            default:
+                order = (a1, a2) -> 0;
+        }
+        order = order.thenComparing(Account::getId);
+        return isDescending(sort) ? order.reversed() : order;
+    }
+
+    /**
+     * Returns the value of the sort field of an {@link Account}, as kept in a pagination cursor.
+     * @param account The account.
+     * @param sort The sort param.
+     * @return The field's value as a string.
+     */
+    static String accountSortValue(Account account, String sort) {
+        switch (sortField(sort)) {
+            case "name":
+                return account.getName();
+            case "ownerName":
+                return account.getOwnerName();
+            case "balance":
+                return Long.toString(account.getBalanceMinorUnits());
+            default:
+                return "";
+        }
+    }
+
+    /**
+     * Builds an {@link Account} with the sort field and id of a pagination cursor, to compare against with {@link #accountOrder(String)}.
+     * @param value The sort field's value, from {@link #accountSortValue(Account, String)}.
+     * @param id The account id.
+     * @param sort The sort param.
+     * @return An account that only has the fields the order looks at.
+     */
+    static Account accountProbe(String value, String id, String sort) {
+        Account probe = new Account();
+        probe.setId(id);
+        switch (sortField(sort)) {
+            case "name":
+                probe.setName(value);
+                break;
+            case "ownerName":
+                probe.setOwnerName(value);
+                break;
+            case "balance":
+                probe.setBalanceMinorUnits(Long.parseLong(value));
+                break;
+        }
+        return probe;
+    }
+
+    /**
+     * Returns the total order of {@link Transfer}s for a sort param, used for pagination.
+     * Ties are broken by id, and no sort (or an unknown field) orders by id.
+     * @param sort Optional field name to sort for. Prepend with '-' for descending order.
+     * @return The comparator.
+     */
+    static Comparator<Transfer> transferOrder(String sort) {
+        Comparator<Transfer> order;
+        switch (sortField(sort)) {
+            case "originAccountId":
+                order = Comparator.comparing(Transfer::getOriginAccountId);
+                break;
+            case "destinationAccountId":
+                order = Comparator.comparing(Transfer::getDestinationAccountId);
+                break;
+            case "amount":
+                order = (t1, t2) -> Float.compare(t1.getAmount(), t2.getAmount());
+                break;
+            case "timestamp":
+                order = Comparator.comparingLong(Transfer::getTimestampMillis);
+                break;
+            default:
+                order = (t1, t2) -> 0;
+        }
+        order = order.thenComparing(Transfer::getId);
+        return isDescending(sort) ? order.reversed() : order;
+    }
+
+    /**
+     * Returns the value of the sort field of a {@link Transfer}, as kept in a pagination cursor.
+     * @param transfer The transfer.
+     * @param sort The sort param.
+     * @return The field's value as a string.
+     */
+    static String transferSortValue(Transfer transfer, String sort) {
+        switch (sortField(sort)) {
+            case "originAccountId":
+                return transfer.getOriginAccountId();
+            case "destinationAccountId":
+                return transfer.getDestinationAccountId();
+            case "amount":
+                return Float.toString(transfer.getAmount());
+            case "timestamp":
+                return Long.toString(transfer.getTimestampMillis());
+            default:
+                return "";
+        }
+    }
+
+    /**
+     * Builds a {@link Transfer} with the sort field and id of a pagination cursor, to compare against with {@link #transferOrder(String)}.
+     * @param value The sort field's value, from {@link #transferSortValue(Transfer, String)}.
+     * @param id The transfer id.
+     * @param sort The sort param.
+     * @return A transfer that only has the fields the order looks at.
+     */
+    static Transfer transferProbe(String value, String id, String sort) {
+        Transfer probe = new Transfer();
+        probe.setId(id);
+        switch (sortField(sort)) {
+            case "originAccountId":
+                probe.setOriginAccountId(value);
+                break;
+            case "destinationAccountId":
+                probe.setDestinationAccountId(value);
+                break;
+            case "amount":
+                probe.setAmount(Float.parseFloat(value));
+                break;
+            case "timestamp":
+                probe.setTimestampMillis(Long.parseLong(value));
+                break;
+        }
+        return probe;
+    }
+
+    private static boolean isDescending(String sort) {
+        return sort != null && sort.startsWith("-");
+    }
+
+    private static String sortField(String sort) {
+        if (sort == null)
+            return "id";
+        return isDescending(sort) ? sort.substring(1) : sort;
+    }
+}
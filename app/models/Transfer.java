@@ -1,5 +1,10 @@
 package models;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+
 /**
  * Simple model of a money transfer operation.
  * A transfer is represented by an Id, origin Account id, destination Account id, amount to be transferred and a timestamp.
@@ -12,6 +17,11 @@ public class Transfer {
     private String destinationAccountId;
     private Float amount;
     private String timestamp;
+    // the timestamp in milliseconds since the epoch, set by the store along with the ISO 8601 string
+    private long timestampMillis;
+
+    // position of this transfer in the store's transfer log, assigned by the log when it is appended
+    long logSequence;
 
     /**
      * Default constructor.
@@ -106,10 +116,43 @@ public class Transfer {
     }
 
     /**
-     * Sets the transfer's timestamp.
+     * Sets the transfer's timestamp, along with its numeric value.
      * @param timestamp A string representing the timestamp (ISO 8601)
      */
     public void setTimestamp(String timestamp) {
         this.timestamp = timestamp;
+        try {
+            this.timestampMillis = timestamp == null ? 0 : Instant.parse(timestamp).toEpochMilli();
+        } catch (DateTimeParseException e) {
+            this.timestampMillis = 0;
+        }
+    }
+
+    /**
+     * Returns the transfer's timestamp as a number, for ordering and encoding without parsing.
+     * Not part of the transfer's JSON, which has the ISO 8601 string.
+     * @return Milliseconds since the epoch, 0 if the transfer has no valid timestamp.
+     */
+    @JsonIgnore
+    public long getTimestampMillis() {
+        return timestampMillis;
+    }
+
+    /**
+     * Sets the transfer's timestamp from a number of milliseconds, along with its ISO 8601 string.
+     * @param millis Milliseconds since the epoch.
+     */
+    void setTimestampMillis(long millis) {
+        this.timestampMillis = millis;
+        this.timestamp = Instant.ofEpochMilli(millis).toString();
+    }
+
+    /**
+     * Restores a timestamp string the store assigned earlier, along with its numeric value.
+     * @param timestamp A string representing the timestamp (ISO 8601)
+     */
+    void restoreTimestamp(String timestamp) {
+        this.timestamp = timestamp;
+        this.timestampMillis = Instant.parse(timestamp).toEpochMilli();
     }
 }
@@ -0,0 +1,171 @@
+package models;
+
+import services.TransferStorage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sequencing engine for creating {@link Transfer}s.
+ * Requests are published into a pre-allocated ring buffer by any number of threads and a single consumer thread
+ * takes them out in batches, applies each batch with {@link TransferStorage#createTransfers(List)} and completes
+ * every request's future. Request threads never enter the storage themselves, and per-transfer overhead
+ * (id generation, timestamping, journaling) is paid once per batch by the storage.
+ * When the ring is full publishers wait for the consumer to free a slot.
+ * Claiming a slot and stopping the engine are compare-and-sets on the same counter, so every transfer is either
+ * claimed before the engine stops, and applied before the consumer exits, or rejected.
+ */
+public class TransferEngine {
+
+    private static final long IDLE_PARK_NANOS = 1_000_000L;
+    private static final long FULL_PARK_NANOS = 1_000L;
+    // set in claimed once the engine is stopped, the other bits keep the number of slots claimed until then
+    private static final long STOPPED = Long.MIN_VALUE;
+
+    private final TransferStorage storage;
+    private final Slot[] ring;
+    private final int mask;
+    private final int batchSize;
+    private final AtomicLong claimed = new AtomicLong(0);
+    private final AtomicLong consumed = new AtomicLong(0);
+    private final Thread consumer;
+    private volatile boolean sleeping;
+
+    /**
+     * Creates and starts a transfer engine.
+     * @param storage The storage transfers are applied to.
+     * @param ringSize Number of slots in the ring buffer, rounded up to a power of two.
+     * @param batchSize Maximum number of transfers applied in one batch.
+     * @return A running engine.
+     */
+    public static TransferEngine start(TransferStorage storage, int ringSize, int batchSize) {
+        TransferEngine engine = new TransferEngine(storage, ringSize, batchSize);
+        engine.consumer.start();
+        return engine;
+    }
+
+    private TransferEngine(TransferStorage storage, int ringSize, int batchSize) {
+        if (ringSize < 1 || batchSize < 1)
+            throw new IllegalArgumentException("Ring size and batch size must be at least 1.");
+        int size = Integer.highestOneBit(ringSize);
+        if (size < ringSize)
+            size <<= 1;
+        this.storage = storage;
+        this.ring = new Slot[size];
+        for (int i = 0; i < size; i++)
+            ring[i] = new Slot();
+        this.mask = size - 1;
+        this.batchSize = Math.min(batchSize, size);
+        this.consumer = new Thread(this::consume, "transfer-engine");
+        this.consumer.setDaemon(true);
+    }
+
+    /**
+     * Submits a transfer to be created.
+     * @param transfer The transfer to be created.
+     * @return A stage completed with the created transfer, or exceptionally with the reason it was rejected
+     * ({@link ApplicationStore.AccountNotFoundException}, {@link Account.InsufficientFundsException} or {@link IllegalArgumentException}),
+     * or with an {@link IllegalStateException} if the engine is stopped.
+     */
+    public CompletionStage<Transfer> submit(Transfer transfer) {
+        CompletableFuture<Transfer> future = new CompletableFuture<>();
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if ((sequence & STOPPED) != 0) {
+                future.completeExceptionally(new IllegalStateException("Transfer engine is stopped."));
+                return future;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+        // wait until the consumer is done with the previous lap's use of this slot
+        while (sequence - ring.length >= consumed.get())
+            LockSupport.parkNanos(FULL_PARK_NANOS);
+
+        Slot slot = ring[(int) (sequence & mask)];
+        slot.transfer = transfer;
+        slot.future = future;
+        slot.sequence = sequence;
+
+        if (sleeping)
+            LockSupport.unpark(consumer);
+        return future;
+    }
+
+    /**
+     * Stops the consumer thread once every transfer already submitted has been applied.
+     */
+    public void shutdown() {
+        long current;
+        do {
+            current = claimed.get();
+        } while ((current & STOPPED) == 0 && !claimed.compareAndSet(current, current | STOPPED));
+        LockSupport.unpark(consumer);
+    }
+
+    /**
+     * Consumer loop: drains published slots in order, up to a batch at a time.
+     */
+    private void consume() {
+        List<Transfer> batch = new ArrayList<>(batchSize);
+        List<CompletableFuture<Transfer>> futures = new ArrayList<>(batchSize);
+        long next = 0;
+
+        while (true) {
+            long state = claimed.get();
+            // once stopped nothing more can be claimed, the consumer exits after the last claimed slot
+            if ((state & STOPPED) != 0 && next >= (state & ~STOPPED))
+                break;
+
+            while (batch.size() < batchSize) {
+                Slot slot = ring[(int) ((next + batch.size()) & mask)];
+                if (slot.sequence != next + batch.size())
+                    break;
+                batch.add(slot.transfer);
+                futures.add(slot.future);
+                slot.transfer = null;
+                slot.future = null;
+            }
+
+            if (batch.isEmpty()) {
+                sleeping = true;
+                if (ring[(int) (next & mask)].sequence != next && (claimed.get() & STOPPED) == 0)
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                sleeping = false;
+                continue;
+            }
+
+            try {
+                List<TransferOutcome> outcomes = storage.createTransfers(batch);
+                for (int i = 0; i < outcomes.size(); i++) {
+                    TransferOutcome outcome = outcomes.get(i);
+                    if (outcome.isCreated())
+                        futures.get(i).complete(outcome.getTransfer());
+                    else
+                        futures.get(i).completeExceptionally(outcome.getError());
+                }
+            } catch (RuntimeException e) {
+                for (CompletableFuture<Transfer> future : futures)
+                    future.completeExceptionally(e);
+            }
+
+            next += batch.size();
+            consumed.set(next);
+            batch.clear();
+            futures.clear();
+        }
+    }
+
+    /**
+     * A pre-allocated ring buffer entry.
+     * The sequence is written last by the publisher, once it reads the expected value the consumer can use the slot.
+     */
+    private static final class Slot {
+        private volatile long sequence = -1;
+        private Transfer transfer;
+        private CompletableFuture<Transfer> future;
+    }
+}
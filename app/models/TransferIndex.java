@@ -0,0 +1,77 @@
+package models;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Secondary index of {@link Transfer}s by origin and destination account id.
+ * Each account id maps to the set of its outgoing or incoming transfers, so the transfers of one account
+ * can be listed without scanning all of them. Updates of one account's entry are atomic and empty entries are dropped.
+ */
+final class TransferIndex {
+
+    private final Map<String, Set<Transfer>> outgoing = new ConcurrentHashMap<>();
+    private final Map<String, Set<Transfer>> incoming = new ConcurrentHashMap<>();
+
+    /**
+     * Adds a transfer to the index.
+     * @param transfer The transfer.
+     */
+    void add(Transfer transfer) {
+        add(outgoing, transfer.getOriginAccountId(), transfer);
+        add(incoming, transfer.getDestinationAccountId(), transfer);
+    }
+
+    /**
+     * Removes a transfer from the index.
+     * @param transfer The transfer.
+     */
+    void remove(Transfer transfer) {
+        remove(outgoing, transfer.getOriginAccountId(), transfer);
+        remove(incoming, transfer.getDestinationAccountId(), transfer);
+    }
+
+    /**
+     * Removes every transfer from the index.
+     */
+    void clear() {
+        outgoing.clear();
+        incoming.clear();
+    }
+
+    /**
+     * Returns the transfers made from an account.
+     * @param accountId The account id.
+     * @return A read-only, weakly consistent view of the account's outgoing transfers.
+     */
+    Set<Transfer> from(String accountId) {
+        return Collections.unmodifiableSet(outgoing.getOrDefault(accountId, Collections.emptySet()));
+    }
+
+    /**
+     * Returns the transfers made to an account.
+     * @param accountId The account id.
+     * @return A read-only, weakly consistent view of the account's incoming transfers.
+     */
+    Set<Transfer> to(String accountId) {
+        return Collections.unmodifiableSet(incoming.getOrDefault(accountId, Collections.emptySet()));
+    }
+
+    private static void add(Map<String, Set<Transfer>> index, String accountId, Transfer transfer) {
+        index.compute(accountId, (id, transfers) -> {
+            if (transfers == null)
+                transfers = ConcurrentHashMap.newKeySet();
+            transfers.add(transfer);
+            return transfers;
+        });
+    }
+
+    private static void remove(Map<String, Set<Transfer>> index, String accountId, Transfer transfer) {
+        index.computeIfPresent(accountId, (id, transfers) -> {
+            transfers.remove(transfer);
+            return transfers.isEmpty() ? null : transfers;
+        });
+    }
+}
@@ -0,0 +1,128 @@
+package models;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Time-ordered log of {@link Transfer}s, kept in a concurrent skip list.
+ * Transfers keep the timestamp they were given. Each appended transfer also gets an increasing log sequence from an
+ * atomic counter, and the log is ordered by timestamp and then by sequence, so transfers of the same millisecond keep
+ * their append order and a paged listing can resume right after any transfer.
+ * Time range queries and resuming after a transfer are O(log n) lookups, and time ordered listings are read straight
+ * from the skip list without sorting. Appends and removals take no lock shared by the whole log, reads never block.
+ * Deleted transfers are removed from the log, so it only ever holds existing transfers.
+ */
+final class TransferLog {
+
+    private final ConcurrentSkipListMap<Position, Transfer> entries = new ConcurrentSkipListMap<>();
+    // never reset, so sequences are not reused even after the log is cleared
+    private final AtomicLong lastSequence = new AtomicLong();
+
+    /**
+     * Appends a transfer and assigns its log sequence.
+     * Transfers of an account must be appended while the account's lock is held, so its transfers get increasing sequences.
+     * @param transfer The transfer, with its timestamp.
+     */
+    void append(Transfer transfer) {
+        transfer.logSequence = lastSequence.incrementAndGet();
+        entries.put(new Position(transfer.getTimestampMillis(), transfer.logSequence), transfer);
+    }
+
+    /**
+     * Removes a deleted transfer.
+     * @param transfer The transfer, as it was appended.
+     */
+    void remove(Transfer transfer) {
+        entries.remove(new Position(transfer.getTimestampMillis(), transfer.logSequence), transfer);
+    }
+
+    /**
+     * Replaces the contents of the log with transfers that already have timestamps, e.g. after recovering the store.
+     * Sequences are assigned in time order.
+     * @param transfers The transfers, in any order.
+     */
+    void rebuild(Collection<Transfer> transfers) {
+        clear();
+        List<Transfer> sorted = new ArrayList<>(transfers);
+        sorted.sort(Comparator.comparingLong(Transfer::getTimestampMillis));
+        for (Transfer transfer : sorted)
+            append(transfer);
+    }
+
+    /**
+     * Removes every transfer from the log.
+     */
+    void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Lists the transfers within a time range, in time order.
+     * @param from Start of the range in milliseconds since the epoch, inclusive.
+     * @param to End of the range in milliseconds since the epoch, exclusive.
+     * @param descending True for the most recent transfers first.
+     * @return The transfers in the range.
+     */
+    Stream<Transfer> range(long from, long to, boolean descending) {
+        return range(from, to, descending, null);
+    }
+
+    /**
+     * Lists the transfers within a time range that come after a transfer of the log, in time order.
+     * Resumes a listing where a previous page ended without reading the transfers before it.
+     * @param from Start of the range in milliseconds since the epoch, inclusive.
+     * @param to End of the range in milliseconds since the epoch, exclusive.
+     * @param descending True for the most recent transfers first.
+     * @param afterMillis Timestamp of the last transfer already listed.
+     * @param afterSequence Log sequence of the last transfer already listed. Only later transfers are listed,
+     *                      or earlier ones if descending.
+     * @return The transfers in the range after the given one.
+     */
+    Stream<Transfer> range(long from, long to, boolean descending, long afterMillis, long afterSequence) {
+        return range(from, to, descending, new Position(afterMillis, afterSequence));
+    }
+
+    private Stream<Transfer> range(long from, long to, boolean descending, Position after) {
+        if (from >= to)
+            return Stream.empty();
+        // sequences start at 1, so the smallest sequence stands for the start of a millisecond
+        Position low = new Position(from, Long.MIN_VALUE);
+        Position high = new Position(to, Long.MIN_VALUE);
+        boolean lowInclusive = true;
+        if (after != null && !descending && after.compareTo(low) >= 0) {
+            low = after;
+            lowInclusive = false;
+        }
+        if (after != null && descending && after.compareTo(high) < 0)
+            high = after;
+        if (low.compareTo(high) >= 0)
+            return Stream.empty();
+        NavigableMap<Position, Transfer> covered = entries.subMap(low, lowInclusive, high, false);
+        return (descending ? covered.descendingMap() : covered).values().stream();
+    }
+
+    /**
+     * Where a transfer is in the log: its timestamp, then its sequence.
+     */
+    private static final class Position implements Comparable<Position> {
+        private final long millis;
+        private final long sequence;
+
+        private Position(long millis, long sequence) {
+            this.millis = millis;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Position other) {
+            int byTime = Long.compare(millis, other.millis);
+            return byTime != 0 ? byTime : Long.compare(sequence, other.sequence);
+        }
+    }
+}
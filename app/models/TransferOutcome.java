@@ -0,0 +1,59 @@
+package models;
+
+/**
+ * Outcome of creating one {@link Transfer} as part of a batch.
+ * Either holds the created transfer or the exception that rejected it.
+ */
+public class TransferOutcome {
+
+    private final Transfer transfer;
+    private final Exception error;
+
+    private TransferOutcome(Transfer transfer, Exception error) {
+        this.transfer = transfer;
+        this.error = error;
+    }
+
+    /**
+     * Creates the outcome of a transfer that was successfully created.
+     * @param transfer The created transfer, with its id and timestamp.
+     * @return A successful outcome.
+     */
+    public static TransferOutcome created(Transfer transfer) {
+        return new TransferOutcome(transfer, null);
+    }
+
+    /**
+     * Creates the outcome of a transfer that was rejected.
+     * @param transfer The rejected transfer.
+     * @param error The reason it was rejected.
+     * @return A failed outcome.
+     */
+    public static TransferOutcome failed(Transfer transfer, Exception error) {
+        return new TransferOutcome(transfer, error);
+    }
+
+    /**
+     * Returns the transfer this outcome refers to.
+     * @return The transfer, with id and timestamp if it was created.
+     */
+    public Transfer getTransfer() {
+        return transfer;
+    }
+
+    /**
+     * Returns the reason the transfer was rejected.
+     * @return The exception, null if the transfer was created.
+     */
+    public Exception getError() {
+        return error;
+    }
+
+    /**
+     * Whether the transfer was created.
+     * @return True if the transfer was created, false otherwise.
+     */
+    public boolean isCreated() {
+        return error == null;
+    }
+}
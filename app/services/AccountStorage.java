@@ -1,19 +1,22 @@
 package services;
 
 import models.Account;
+import models.Page;
 
-import java.util.Set;
+import java.util.Collection;
 import java.util.stream.Stream;
 
+import static util.Util.toMinorUnits;
+
 /**
  * Basic API for storing and maintaining a list of {@link Account}s.
  */
 public interface AccountStorage {
     /**
      * Lists all {@link Account}s.
-     * @return A set with all existing accounts.
+     * @return A collection with all existing accounts.
      */
-    Set<Account> listAccounts();
+    Collection<Account> listAccounts();
     /**
      * Lists all {@link Account}s that match possible field values and sorted by a certain field as well.
      * @param name Optional name to filter accounts by.
@@ -25,12 +28,46 @@ public interface AccountStorage {
      * @return An array of accounts possibly sorted by 'sort' param and that match provided field values.
      */
     Stream<Account> listAccounts(String name, String ownerName, Float balance, Float aboveBalance, Float belowBalance, String sort);
+    /**
+     * Lists one page of the {@link Account}s that match possible field values, sorted by a certain field as well.
+     * Accounts with the same value of the sort field are ordered by id, so pages never overlap or skip accounts.
+     * Storages can override this to resume from the cursor without looking at every account,
+     * by default the accounts listed by {@link #listAccounts(String, String, Float, Float, Float, String)} are narrowed down to the page.
+     * @param name Optional name to filter accounts by.
+     * @param ownerName Optional owner name to filter accounts by.
+     * @param balance Optional balance to filter accounts by.
+     * @param aboveBalance Optional balance to filter accounts richer than that.
+     * @param belowBalance Optional balance to filter accounts poorer than that.
+     * @param sort Optional field name to sort for. Prepend with '-' for descending order.
+     * @param cursor Optional cursor returned with the previous page, null for the first page.
+     * @param limit Maximum number of accounts in the page.
+     * @return The page of accounts, with the cursor of the next page.
+     * @throws IllegalArgumentException If the cursor is not valid for this sort.
+     */
+    default Page<Account> listAccounts(String name, String ownerName, Float balance, Float aboveBalance, Float belowBalance, String sort, String cursor, int limit) {
+        return Page.ofAccounts(listAccounts(name, ownerName, balance, aboveBalance, belowBalance, null), sort, cursor, limit);
+    }
     /**
      * Retrieves an {@link Account} by its id.
      * @param id The account id.
      * @return The account, null if it doesn't exist.
      */
     Account getAccount(String id);
+    /**
+     * Counts the {@link Account}s.
+     * @return The number of existing accounts.
+     */
+    default long countAccounts() {
+        return listAccounts().size();
+    }
+    /**
+     * Adds up the balances of all {@link Account}s.
+     * Storages can override this to keep the total up to date as balances change, by default every account is read.
+     * @return The money held by all accounts, in minor units.
+     */
+    default long totalBalanceMinorUnits() {
+        return listAccounts().stream().mapToLong(account -> toMinorUnits(account.getBalance())).sum();
+    }
     /**
      * Creates a new {@link Account}.
      * Account's field values must be valid (non nulls or empty strings and at least 0 balance).
@@ -51,6 +88,7 @@ public interface AccountStorage {
      * Deletes an {@link Account}.
      * @param id The account's id.
      * @return True if the account exists, false otherwise.
+     * @throws IllegalStateException If the account can't be deleted right now, e.g. while money of a transfer is in flight.
      */
     boolean deleteAccount(String id);
     /**
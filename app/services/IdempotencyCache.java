@@ -0,0 +1,256 @@
+package services;
+
+import play.Configuration;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Responses of requests made with an Idempotency-Key header, so that a client retrying a request gets the response of
+ * the first attempt instead of having it executed again.
+ * Responses are kept in a concurrent map for a fixed time to live, and at most capacity of them: keys are also queued in
+ * insertion order, which is expiry order too, and every new key drops expired keys from the head of the queue and the
+ * oldest ones beyond capacity. Lookups and insertions never lock, only one thread at a time drops keys.
+ * A retry arriving while the first attempt is still running waits for that attempt's response, so a key is only dropped
+ * once its request is done, however old it is: dropping it earlier would run the request again on a retry. When every
+ * one of the capacity keys is still running, new keys are refused until one is done. Attempts that fail without a
+ * response are forgotten, so they can be retried.
+ * Hits and misses are counted with {@link LongAdder}s, see {@link #hitRate()}.
+ * Sized by "transfers.idempotency" in application.conf.
+ */
+@Singleton
+public class IdempotencyCache {
+
+    private final int capacity;
+    private final long ttlMillis;
+    private final LongSupplier clock;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Queue<Entry> order = new ConcurrentLinkedQueue<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final AtomicInteger running = new AtomicInteger();
+    private final ReentrantLock evicting = new ReentrantLock();
+
+    @Inject
+    public IdempotencyCache(Configuration configuration) {
+        this(configuration.getInt("transfers.idempotency.capacity"), configuration.getMilliseconds("transfers.idempotency.ttl"), System::currentTimeMillis);
+    }
+
+    /**
+     * Creates an empty cache.
+     * @param capacity Maximum number of responses kept.
+     * @param ttlMillis How long a response is kept, in milliseconds.
+     * @param clock The current time in milliseconds.
+     */
+    public IdempotencyCache(int capacity, long ttlMillis, LongSupplier clock) {
+        if (capacity < 1 || ttlMillis < 1)
+            throw new IllegalArgumentException("Idempotency cache capacity and time to live must be at least 1.");
+        this.capacity = capacity;
+        this.ttlMillis = ttlMillis;
+        this.clock = clock;
+    }
+
+    /**
+     * Returns the response of the first request made with a key, running the request if it is the first.
+     * @param key The Idempotency-Key.
+     * @param fingerprint Identifies the request's contents, a key must not be reused for a different request.
+     * @param request Runs the request. Its stage completes with the response to keep, or fails to keep nothing.
+     * @return The response of the first request made with the key.
+     * @throws IllegalArgumentException If the key was used for a request with a different fingerprint.
+     * @throws IllegalStateException If the key is new and capacity requests are already running, the request is not run.
+     */
+    public CompletionStage<Response> get(String key, String fingerprint, Supplier<CompletionStage<Response>> request) {
+        long now = clock.getAsLong();
+        Entry entry = new Entry(key, fingerprint, now + ttlMillis);
+        while (true) {
+            Entry current = entries.get(key);
+            if (current != null && (current.expiresAt > now || !current.response.isDone())) {
+                if (!current.fingerprint.equals(fingerprint))
+                    throw new IllegalArgumentException("Idempotency-Key " + key + " was already used for a different request.");
+                hits.increment();
+                return current.response;
+            }
+            if (current == null ? entries.putIfAbsent(key, entry) == null : entries.replace(key, current, entry))
+                break;
+        }
+        if (running.incrementAndGet() > capacity) {
+            // retries that found the entry meanwhile fail with it, as if the request had failed
+            IllegalStateException full = new IllegalStateException("Idempotency cache is full of requests still running, try again later.");
+            fail(entry, full);
+            throw full;
+        }
+        misses.increment();
+        order.add(entry);
+        evict(now);
+
+        CompletionStage<Response> response;
+        try {
+            response = request.get();
+        } catch (RuntimeException e) {
+            fail(entry, e);
+            throw e;
+        }
+        response.whenComplete((value, error) -> {
+            if (error != null) {
+                fail(entry, error);
+            } else {
+                entry.response.complete(value);
+                running.decrementAndGet();
+            }
+        });
+        return entry.response;
+    }
+
+    private void fail(Entry entry, Throwable error) {
+        entries.remove(entry.key, entry);
+        entry.response.completeExceptionally(error);
+        running.decrementAndGet();
+    }
+
+    // drops expired keys from the head of the queue, then the oldest keys while the cache is over capacity,
+    // skipping keys whose request is still running. One thread at a time: others skip it, the next new key
+    // evicts what they would have
+    private void evict(long now) {
+        if (!evicting.tryLock())
+            return;
+        try {
+            Entry oldest;
+            while ((oldest = order.peek()) != null && oldest.expiresAt <= now && oldest.response.isDone()) {
+                order.poll();
+                entries.remove(oldest.key, oldest);
+            }
+            for (Iterator<Entry> queued = order.iterator(); entries.size() > capacity && queued.hasNext(); ) {
+                Entry entry = queued.next();
+                if (entry.response.isDone()) {
+                    queued.remove();
+                    entries.remove(entry.key, entry);
+                }
+            }
+        } finally {
+            evicting.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of responses kept, including expired ones not dropped yet.
+     * @return The size of the cache.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the maximum number of responses kept.
+     * @return The capacity of the cache.
+     */
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the number of requests answered with the response of an earlier one.
+     * @return The number of hits.
+     */
+    public long hits() {
+        return hits.sum();
+    }
+
+    /**
+     * Returns the number of requests that were run because their key was new or had expired.
+     * @return The number of misses.
+     */
+    public long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * Returns the share of requests answered with the response of an earlier one.
+     * @return Hits over hits and misses, 0 before any request.
+     */
+    public double hitRate() {
+        long hit = hits.sum();
+        long total = hit + misses.sum();
+        return total == 0 ? 0 : (double) hit / total;
+    }
+
+    /**
+     * A response kept for replaying: status, body and the headers a retry needs.
+     */
+    public static final class Response {
+        private final int status;
+        private final byte[] body;
+        private final String contentType;
+        private final String location;
+
+        /**
+         * Creates a response.
+         * @param status The HTTP status.
+         * @param body The body, not copied, it must not be changed afterwards.
+         * @param contentType The body's content type.
+         * @param location The Location header, null if there is none.
+         */
+        public Response(int status, byte[] body, String contentType, String location) {
+            this.status = status;
+            this.body = body;
+            this.contentType = contentType;
+            this.location = location;
+        }
+
+        /**
+         * Returns the HTTP status.
+         * @return The status code.
+         */
+        public int getStatus() {
+            return status;
+        }
+
+        /**
+         * Returns the body.
+         * @return The body's bytes, not to be changed.
+         */
+        public byte[] getBody() {
+            return body;
+        }
+
+        /**
+         * Returns the body's content type.
+         * @return The content type.
+         */
+        public String getContentType() {
+            return contentType;
+        }
+
+        /**
+         * Returns the Location header.
+         * @return The location, null if there is none.
+         */
+        public String getLocation() {
+            return location;
+        }
+    }
+
+    private static final class Entry {
+        private final String key;
+        private final String fingerprint;
+        private final long expiresAt;
+        private final CompletableFuture<Response> response = new CompletableFuture<>();
+
+        private Entry(String key, String fingerprint, long expiresAt) {
+            this.key = key;
+            this.fingerprint = fingerprint;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
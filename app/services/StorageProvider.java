@@ -0,0 +1,193 @@
+package services;
+
+import com.typesafe.config.Config;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import models.ApplicationStore;
+import models.ColumnarTransferStore;
+import models.Journal;
+import models.OffHeapAccountStore;
+import models.ShardedStore;
+import models.TransferEngine;
+import play.Configuration;
+import play.Logger;
+import play.inject.ApplicationLifecycle;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Provides the {@link AccountStorage} and {@link TransferStorage} used by the application.
+ * The implementation is chosen by the "store.mode" setting in application.conf:
+ *  - default   {@link ApplicationStore}, journaled to disk if "store.journal.enabled" is set,
+ *              keeping accounts in the "store.accountLayout" layout
+ *  - sharded   {@link ShardedStore}, with "store.shards" shards
+ *  - columnar  accounts in an {@link ApplicationStore} as with default but never journaled,
+ *              transfers in a {@link ColumnarTransferStore}
+ *  - off-heap  accounts in an {@link OffHeapAccountStore}, transfers in a {@link ColumnarTransferStore}
+ * Sorted listings and pages of the ApplicationStore scan in parallel from "store.parallelScan.threshold" items on
+ * (off when 0), on "store.parallelScan.parallelism" threads.
+ * New transfers go through a {@link TransferEngine} on top of the transfer storage,
+ * sized by "store.engine.ringSize" and "store.engine.batchSize".
+ * Settings are read from the application's injected {@link Configuration}, so overrides made by tests or at startup apply.
+ * When the application stops, the engine stops taking transfers and the journal, if any, is forced to disk and closed.
+ */
+@Singleton
+public final class StorageProvider {
+
+    private final AccountStorage accounts;
+    private final TransferStorage transfers;
+    private final TransferEngine transferEngine;
+    private Journal journal;
+    private ScheduledExecutorService snapshotScheduler;
+
+    @Inject
+    public StorageProvider(Configuration configuration, ApplicationLifecycle lifecycle) {
+        this(configuration.underlying());
+        lifecycle.addStopHook(() -> {
+            stop();
+            return CompletableFuture.completedFuture(null);
+        });
+    }
+
+    private StorageProvider(Config config) {
+        String mode = config.hasPath("store.mode") ? config.getString("store.mode") : "default";
+        switch (mode) {
+            case "default":
+                ApplicationStore.AccountLayout layout = layout(config);
+                ApplicationStore store;
+                if (config.hasPath("store.journal.enabled") && config.getBoolean("store.journal.enabled"))
+                    store = journaledStore(config.getConfig("store.journal"), layout);
+                else
+                    store = layout == ApplicationStore.AccountLayout.HEAP ? ApplicationStore.getInstance() : ApplicationStore.newInstance(layout);
+                parallelScan(store, config);
+                accounts = store;
+                transfers = store;
+                break;
+            case "columnar":
+                ApplicationStore accountStore = layout(config) == ApplicationStore.AccountLayout.HEAP
+                        ? ApplicationStore.getInstance() : ApplicationStore.newInstance(layout(config));
+                parallelScan(accountStore, config);
+                accounts = accountStore;
+                transfers = ColumnarTransferStore.newInstance(accountStore);
+                break;
+            case "off-heap":
+                OffHeapAccountStore offHeap = OffHeapAccountStore.newInstance();
+                accounts = offHeap;
+                transfers = ColumnarTransferStore.newInstance(offHeap);
+                break;
+            case "sharded":
+                ShardedStore sharded = ShardedStore.newInstance(config.hasPath("store.shards") ? config.getInt("store.shards") : 0);
+                accounts = sharded;
+                transfers = sharded;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown store.mode '" + mode + "'");
+        }
+        transferEngine = TransferEngine.start(transfers,
+                config.hasPath("store.engine.ringSize") ? config.getInt("store.engine.ringSize") : 4096,
+                config.hasPath("store.engine.batchSize") ? config.getInt("store.engine.batchSize") : 256);
+    }
+
+    private static void parallelScan(ApplicationStore store, Config config) {
+        if (config.hasPath("store.parallelScan.threshold"))
+            store.setParallelScan(config.getInt("store.parallelScan.threshold"),
+                    config.hasPath("store.parallelScan.parallelism") ? config.getInt("store.parallelScan.parallelism") : 0);
+    }
+
+    private static ApplicationStore.AccountLayout layout(Config config) {
+        return config.hasPath("store.accountLayout")
+                ? ApplicationStore.AccountLayout.parse(config.getString("store.accountLayout"))
+                : ApplicationStore.AccountLayout.HEAP;
+    }
+
+    /**
+     * Opens the journal described by the "store.journal" settings and recovers an {@link ApplicationStore} from it,
+     * starting from the latest snapshot. Snapshots are then taken every "store.journal.snapshot.interval".
+     * @param config The "store.journal" settings.
+     * @param layout How the store keeps its accounts.
+     * @return The recovered store.
+     */
+    private ApplicationStore journaledStore(Config config, ApplicationStore.AccountLayout layout) {
+        Path snapshot = Paths.get(config.getString("snapshot.path"));
+        ApplicationStore store;
+        try {
+            long start = System.nanoTime();
+            journal = Journal.open(Paths.get(config.getString("path")),
+                    Journal.Durability.parse(config.getString("durability")),
+                    (int) config.getBytes("chunkSize").longValue(),
+                    config.getDuration("flushInterval").toMillis());
+            store = ApplicationStore.newInstance(journal, snapshot, layout);
+            Logger.info("Store recovered in {} ms: {} accounts, {} transfers",
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), store.listAccounts().size(), store.listTransfers().size());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to open the store journal", e);
+        }
+
+        long interval = config.getDuration("snapshot.interval").toMillis();
+        if (interval > 0) {
+            snapshotScheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "store-snapshot");
+                thread.setDaemon(true);
+                return thread;
+            });
+            snapshotScheduler.scheduleWithFixedDelay(() -> {
+                try {
+                    long start = System.nanoTime();
+                    store.snapshot(snapshot);
+                    Logger.info("Store snapshot written in {} ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                } catch (IOException | RuntimeException e) {
+                    Logger.error("Unable to write the store snapshot", e);
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+        }
+        return store;
+    }
+
+    /**
+     * Stops the transfer engine and the snapshots, then closes the journal.
+     * Transfers the engine is still applying are then rejected by the closed journal rather than applied unjournaled.
+     */
+    private void stop() throws IOException, InterruptedException {
+        transferEngine.shutdown();
+        if (transfers instanceof ShardedStore)
+            ((ShardedStore) transfers).shutdown();
+        if (snapshotScheduler != null) {
+            snapshotScheduler.shutdown();
+            // let a snapshot being written finish before closing the journal it reads
+            snapshotScheduler.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        if (journal != null)
+            journal.close();
+    }
+
+    /**
+     * Gets the account storage configured for the application.
+     * @return The account storage.
+     */
+    public AccountStorage accounts() {
+        return accounts;
+    }
+
+    /**
+     * Gets the transfer storage configured for the application.
+     * @return The transfer storage.
+     */
+    public TransferStorage transfers() {
+        return transfers;
+    }
+
+    /**
+     * Gets the engine through which new transfers are created.
+     * @return The transfer engine.
+     */
+    public TransferEngine transferEngine() {
+        return transferEngine;
+    }
+}
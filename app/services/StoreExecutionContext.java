@@ -0,0 +1,29 @@
+package services;
+
+import akka.actor.ActorSystem;
+import scala.concurrent.ExecutionContextExecutor;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.concurrent.Executor;
+
+/**
+ * Execution context on which controllers run their storage operations.
+ * Backed by the Akka dispatcher configured under "contexts.store" in application.conf, so request handling
+ * threads never block on the store and the number of threads doing store work can be sized on its own.
+ */
+@Singleton
+public class StoreExecutionContext implements Executor {
+
+    private final ExecutionContextExecutor executor;
+
+    @Inject
+    public StoreExecutionContext(ActorSystem actorSystem) {
+        this.executor = actorSystem.dispatchers().lookup("contexts.store");
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        executor.execute(command);
+    }
+}
@@ -1,20 +1,30 @@
 package services;
 
 import models.Account;
+import models.AccountSummary;
 import models.ApplicationStore;
+import models.LedgerStats;
+import models.Page;
 import models.Transfer;
-import java.util.Set;
+import models.TransferOutcome;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.stream.Stream;
 
+import static util.Util.toMinorUnits;
+
 /**
  * Basic API for storing and maintaining a list of {@link Transfer}s.
  */
 public interface TransferStorage {
     /**
      * Lists all {@link Transfer}s.
-     * @return A set with all existing transfers.
+     * @return A collection with all existing transfers.
      */
-    Set<Transfer> listTransfers();
+    Collection<Transfer> listTransfers();
     /**
      * Lists all {@link Transfer}s that match possible field values and sorted by a certain field as well.
      * @param originAccountId Optional origin account id to filter transfers by.
@@ -26,6 +36,114 @@ public interface TransferStorage {
      * @return An array of transfers possibly sorted by 'sort' param and that match provided field values.
      */
     Stream<Transfer> listTransfers(String originAccountId, String destinationAccountId, Float amount, Float aboveAmount, Float belowAmount, String sort);
+    /**
+     * Lists the {@link Transfer}s made within a time range that match possible field values, sorted by a certain field as well.
+     * Storages can override this to answer time ranges without looking at every transfer,
+     * by default the transfers listed by {@link #listTransfers(String, String, Float, Float, Float, String)} are filtered by timestamp.
+     * @param originAccountId Optional origin account id to filter transfers by.
+     * @param destinationAccountId Optional destination account id to filter transfers by.
+     * @param amount Optional amount to filter transfers by.
+     * @param aboveAmount Optional amount to filter transfers bigger than that.
+     * @param belowAmount Optional amount to filter transfers smaller than that.
+     * @param from Optional start of the time range, inclusive.
+     * @param to Optional end of the time range, exclusive.
+     * @param sort Optional field name to sort for. Prepend with '-' for descending order.
+     * @return A stream of transfers possibly sorted by 'sort' param and that match provided field values and time range.
+     */
+    default Stream<Transfer> listTransfers(String originAccountId, String destinationAccountId, Float amount, Float aboveAmount, Float belowAmount, Instant from, Instant to, String sort) {
+        Stream<Transfer> stream = listTransfers(originAccountId, destinationAccountId, amount, aboveAmount, belowAmount, sort);
+        if (from == null && to == null)
+            return stream;
+        return stream.filter(transfer -> {
+            Instant timestamp = Instant.parse(transfer.getTimestamp());
+            return (from == null || !timestamp.isBefore(from)) && (to == null || timestamp.isBefore(to));
+        });
+    }
+    /**
+     * Lists one page of the {@link Transfer}s made within a time range that match possible field values, sorted by a certain field as well.
+     * Transfers with the same value of the sort field are ordered by id, so pages never overlap or skip transfers.
+     * Storages can override this to resume from the cursor without looking at every transfer, by default the transfers listed by
+     * {@link #listTransfers(String, String, Float, Float, Float, Instant, Instant, String)} are narrowed down to the page.
+     * @param originAccountId Optional origin account id to filter transfers by.
+     * @param destinationAccountId Optional destination account id to filter transfers by.
+     * @param amount Optional amount to filter transfers by.
+     * @param aboveAmount Optional amount to filter transfers bigger than that.
+     * @param belowAmount Optional amount to filter transfers smaller than that.
+     * @param from Optional start of the time range, inclusive.
+     * @param to Optional end of the time range, exclusive.
+     * @param sort Optional field name to sort for. Prepend with '-' for descending order.
+     * @param cursor Optional cursor returned with the previous page, null for the first page.
+     * @param limit Maximum number of transfers in the page.
+     * @return The page of transfers, with the cursor of the next page.
+     * @throws IllegalArgumentException If the cursor is not valid for this sort.
+     */
+    default Page<Transfer> listTransfers(String originAccountId, String destinationAccountId, Float amount, Float aboveAmount, Float belowAmount, Instant from, Instant to, String sort, String cursor, int limit) {
+        return Page.ofTransfers(listTransfers(originAccountId, destinationAccountId, amount, aboveAmount, belowAmount, from, to, null), sort, cursor, limit);
+    }
+    /**
+     * Lists one page of an account's statement: its {@link Transfer}s, from or to it, most recent first.
+     * Storages can override this to keep each account's recent transfers at hand, by default the account's transfers
+     * are listed and narrowed down to the page.
+     * @param accountId The account's id.
+     * @param cursor Optional cursor returned with the previous page, null for the first page.
+     * @param limit Maximum number of transfers in the page.
+     * @return The page of transfers, with the cursor of the next page.
+     * @throws IllegalArgumentException If the cursor is not valid for this listing.
+     */
+    default Page<Transfer> listAccountTransfers(String accountId, String cursor, int limit) {
+        return Page.ofTransfers(Stream.concat(listTransfers(accountId, null, Float.NaN, Float.NaN, Float.NaN, null),
+                listTransfers(null, accountId, Float.NaN, Float.NaN, Float.NaN, null)), "-timestamp", cursor, limit);
+    }
+    /**
+     * Summarizes the {@link Transfer}s of an account: total sent, total received and number of transfers.
+     * Storages can override this to keep the totals up to date as transfers are created and deleted,
+     * by default the account's transfers are listed and added up.
+     * @param accountId The account's id.
+     * @return The account's summary, with zero totals if the account has no transfers.
+     */
+    default AccountSummary summarize(String accountId) {
+        return AccountSummary.of(accountId,
+                listTransfers(accountId, null, Float.NaN, Float.NaN, Float.NaN, null),
+                listTransfers(null, accountId, Float.NaN, Float.NaN, Float.NaN, null));
+    }
+    /**
+     * Counts the {@link Transfer}s.
+     * @return The number of existing transfers.
+     */
+    default long countTransfers() {
+        return listTransfers().size();
+    }
+    /**
+     * Adds up the amounts of all {@link Transfer}s.
+     * Storages can override this to keep the total up to date as transfers are created and deleted, by default every transfer is read.
+     * @return The money moved by all transfers, in minor units.
+     */
+    default long transferVolumeMinorUnits() {
+        return listTransfers().stream().mapToLong(transfer -> toMinorUnits(transfer.getAmount())).sum();
+    }
+    /**
+     * Returns the number and volume of the {@link Transfer}s made in each of the last {@link LedgerStats#BUCKETS} buckets of time.
+     * Storages can override this to count transfers into buckets as they are created, by default the transfers listed
+     * since the start of the oldest bucket are counted.
+     * @return The buckets, oldest first, including those without transfers.
+     */
+    default List<LedgerStats.Volume> recentVolume() {
+        long current = Math.floorDiv(System.currentTimeMillis(), LedgerStats.BUCKET_MILLIS);
+        long oldest = current - LedgerStats.BUCKETS + 1;
+        long[] counts = new long[LedgerStats.BUCKETS];
+        long[] units = new long[LedgerStats.BUCKETS];
+        listTransfers(null, null, Float.NaN, Float.NaN, Float.NaN, Instant.ofEpochMilli(oldest * LedgerStats.BUCKET_MILLIS), null, null).forEach(transfer -> {
+            long bucket = Math.floorDiv(Instant.parse(transfer.getTimestamp()).toEpochMilli(), LedgerStats.BUCKET_MILLIS) - oldest;
+            if (bucket < LedgerStats.BUCKETS) {
+                counts[(int) bucket]++;
+                units[(int) bucket] += toMinorUnits(transfer.getAmount());
+            }
+        });
+        List<LedgerStats.Volume> volume = new ArrayList<>(LedgerStats.BUCKETS);
+        for (int i = 0; i < LedgerStats.BUCKETS; i++)
+            volume.add(new LedgerStats.Volume((oldest + i) * LedgerStats.BUCKET_MILLIS, counts[i], units[i]));
+        return volume;
+    }
     /**
      * Retrieves a certain {@link Transfer}.
      * @param id The transfer's id.
@@ -43,6 +161,36 @@ public interface TransferStorage {
      * @throws Account.InsufficientFundsException If the origin account does not have sufficient funds for the transfer.
      */
     Transfer createTransfer(Transfer transfer) throws ApplicationStore.AccountNotFoundException, Account.InsufficientFundsException;
+    /**
+     * Creates a batch of transfers, in order.
+     * Each transfer is validated and applied as in {@link #createTransfer(Transfer)}, a rejected transfer does not stop the batch,
+     * nor does one the storage can't take for now (IllegalStateException, e.g. while a {@link models.ShardedStore} clears its accounts).
+     * Storages can override this to share per-transfer work (id generation, timestamping) across the batch.
+     * @param transfers The transfers to be created.
+     * @return One outcome per transfer, in the same order.
+     */
+    default List<TransferOutcome> createTransfers(List<Transfer> transfers) {
+        List<TransferOutcome> outcomes = new ArrayList<>(transfers.size());
+        for (Transfer transfer : transfers) {
+            try {
+                outcomes.add(TransferOutcome.created(createTransfer(transfer)));
+            } catch (ApplicationStore.AccountNotFoundException | Account.InsufficientFundsException | IllegalArgumentException | IllegalStateException e) {
+                outcomes.add(TransferOutcome.failed(transfer, e));
+            }
+        }
+        return outcomes;
+    }
+    /**
+     * Creates a batch of transfers as a single all-or-nothing operation.
+     * Transfers are checked in order, so a transfer may spend money received earlier in the same batch.
+     * If any transfer is rejected no transfer of the batch is applied.
+     * @param transfers The transfers to be created.
+     * @return One outcome per transfer, in the same order. Either all of them are created or all of them failed.
+     * @throws UnsupportedOperationException if the storage can't apply a batch atomically.
+     */
+    default List<TransferOutcome> createTransfersAtomically(List<Transfer> transfers) {
+        throw new UnsupportedOperationException("All-or-nothing batches are not supported by this storage.");
+    }
     /**
      * Deletes a certain {@link Transfer}.
      * @param id The transfer's id.
@@ -0,0 +1,76 @@
+package util;
+
+import akka.NotUsed;
+import akka.stream.javadsl.Source;
+import akka.util.ByteString;
+import akka.util.ByteStringBuilder;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.stream.Stream;
+
+/**
+ * Serializes a stream of models as a JSON array, one chunk at a time, for chunked HTTP responses.
+ * Items are pulled from the stream only when the response needs more bytes and are written with a streaming
+ * Jackson generator of the shared {@link ModelJson} mapper, so memory stays flat no matter how many items are listed:
+ * no array of items, no JSON tree and no complete response body are ever built.
+ */
+public final class JsonStreams {
+
+    // items serialized into each chunk of the response
+    private static final int CHUNK_ITEMS = 256;
+
+    private JsonStreams() {
+    }
+
+    /**
+     * Returns the chunks of a JSON array with the items of a stream.
+     * The stream is consumed lazily, as the chunks are pulled, and can only be materialized once.
+     * @param items The items, in response order.
+     * @param <T> The type of the items.
+     * @return The source of the array's bytes.
+     */
+    public static <T> Source<ByteString, NotUsed> array(Stream<T> items) {
+        return Source.fromIterator(() -> new Chunks<>(items.iterator()));
+    }
+
+    private static final class Chunks<T> implements Iterator<ByteString> {
+        private final Iterator<T> items;
+        private boolean started;
+        private boolean finished;
+
+        private Chunks(Iterator<T> items) {
+            this.items = items;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !finished;
+        }
+
+        @Override
+        public ByteString next() {
+            ByteStringBuilder chunk = new ByteStringBuilder();
+            try (JsonGenerator generator = ModelJson.MAPPER.getFactory().createGenerator(chunk.asOutputStream())) {
+                if (!started)
+                    generator.writeRaw('[');
+                for (int i = 0; i < CHUNK_ITEMS && items.hasNext(); i++) {
+                    if (started)
+                        generator.writeRaw(',');
+                    started = true;
+                    ModelJson.MAPPER.writeValue(generator, items.next());
+                }
+                if (!items.hasNext()) {
+                    started = true;
+                    finished = true;
+                    generator.writeRaw(']');
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return chunk.result();
+        }
+    }
+}
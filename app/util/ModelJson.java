@@ -0,0 +1,111 @@
+package util;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.module.afterburner.AfterburnerModule;
+import models.Account;
+import models.AccountSummary;
+import models.LedgerStats;
+import models.Transfer;
+
+import java.io.IOException;
+
+/**
+ * Shared JSON serialization of {@link Account}s and {@link Transfer}s.
+ * Readers and writers are built once, with the (de)serializers for each model resolved up front and Afterburner
+ * generating bytecode accessors for their properties. They are immutable and thread-safe, so every request reuses them
+ * instead of creating a mapper or looking one up, and entities are written straight to bytes without a JSON tree.
+ */
+public final class ModelJson {
+
+    static final ObjectMapper MAPPER = new ObjectMapper().registerModule(new AfterburnerModule());
+
+    private static final ObjectReader ACCOUNT_READER = MAPPER.readerFor(Account.class);
+    private static final ObjectWriter ACCOUNT_WRITER = MAPPER.writerFor(Account.class);
+    private static final ObjectReader TRANSFER_READER = MAPPER.readerFor(Transfer.class);
+    private static final ObjectWriter TRANSFER_WRITER = MAPPER.writerFor(Transfer.class);
+    private static final ObjectWriter SUMMARY_WRITER = MAPPER.writerFor(AccountSummary.class);
+    private static final ObjectWriter STATS_WRITER = MAPPER.writerFor(LedgerStats.class);
+
+    static {
+        // separators between the elements of streamed arrays are written by hand, see JsonStreams
+        MAPPER.getFactory().setRootValueSeparator(null);
+    }
+
+    private ModelJson() {
+    }
+
+    /**
+     * Reads an {@link Account} from a request's JSON.
+     * @param json The JSON.
+     * @return The account, null if the JSON is not a valid account.
+     */
+    public static Account readAccount(JsonNode json) {
+        try {
+            return ACCOUNT_READER.readValue(json);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads a {@link Transfer} from a request's JSON.
+     * @param json The JSON.
+     * @return The transfer, null if the JSON is not a valid transfer.
+     */
+    public static Transfer readTransfer(JsonNode json) {
+        try {
+            return TRANSFER_READER.readValue(json);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Writes an {@link Account} as JSON.
+     * @param account The account.
+     * @return The UTF-8 encoded JSON.
+     */
+    public static byte[] toBytes(Account account) {
+        return write(ACCOUNT_WRITER, account);
+    }
+
+    /**
+     * Writes a {@link Transfer} as JSON.
+     * @param transfer The transfer.
+     * @return The UTF-8 encoded JSON.
+     */
+    public static byte[] toBytes(Transfer transfer) {
+        return write(TRANSFER_WRITER, transfer);
+    }
+
+    /**
+     * Writes an {@link AccountSummary} as JSON.
+     * @param summary The summary.
+     * @return The UTF-8 encoded JSON.
+     */
+    public static byte[] toBytes(AccountSummary summary) {
+        return write(SUMMARY_WRITER, summary);
+    }
+
+    /**
+     * Writes {@link LedgerStats} as JSON.
+     * @param stats The statistics.
+     * @return The UTF-8 encoded JSON.
+     */
+    public static byte[] toBytes(LedgerStats stats) {
+        return write(STATS_WRITER, stats);
+    }
+
+    private static byte[] write(ObjectWriter writer, Object value) {
+        try {
+            return writer.writeValueAsBytes(value);
+        } catch (JsonProcessingException e) {
+            // models only have plain properties, they always serialize
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package util;
+
+import akka.NotUsed;
+import akka.stream.javadsl.Source;
+import akka.util.ByteString;
+import akka.util.ByteStringBuilder;
+import models.Transfer;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Iterator;
+import java.util.stream.Stream;
+
+/**
+ * Compact binary encoding of {@link Transfer}s, an alternative to JSON for high volume clients.
+ * All numbers are big-endian. Strings are an unsigned 16 bit length followed by that many UTF-8 bytes,
+ * a length of 0xFFFF stands for null.
+ * A new transfer (request body of POST /transfers) is: origin account id, destination account id, amount (32 bit float).
+ * A transfer (responses) is: id, origin account id, destination account id, amount (32 bit float),
+ * timestamp (64 bit milliseconds since the epoch). A list of transfers is the transfers one after the other.
+ */
+public final class TransferCodec {
+
+    /**
+     * Media type of the binary encoding, for Content-Type and Accept headers.
+     */
+    public static final String MEDIA_TYPE = "application/vnd.moneytransfer.transfer+binary";
+
+    private static final int NULL_LENGTH = 0xFFFF;
+    // transfers encoded into each chunk of a streamed list
+    private static final int CHUNK_ITEMS = 256;
+
+    private TransferCodec() {
+    }
+
+    /**
+     * Reads a new transfer from a request body.
+     * @param body The body.
+     * @return The transfer, null if the body is not a valid new transfer.
+     */
+    public static Transfer readNewTransfer(ByteBuffer body) {
+        try {
+            Transfer transfer = new Transfer();
+            transfer.setOriginAccountId(readString(body));
+            transfer.setDestinationAccountId(readString(body));
+            transfer.setAmount(body.getFloat());
+            return body.hasRemaining() ? null : transfer;
+        } catch (BufferUnderflowException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Writes a new transfer, as a client does in a request body.
+     * @param transfer The transfer.
+     * @return The encoded transfer.
+     */
+    public static byte[] writeNewTransfer(Transfer transfer) {
+        byte[] origin = bytes(transfer.getOriginAccountId());
+        byte[] destination = bytes(transfer.getDestinationAccountId());
+        ByteBuffer buffer = ByteBuffer.allocate(stringSize(origin) + stringSize(destination) + 4);
+        putString(buffer, origin);
+        putString(buffer, destination);
+        buffer.putFloat(transfer.getAmount());
+        return buffer.array();
+    }
+
+    /**
+     * Reads a transfer, as a client does from a response.
+     * @param buffer The response, positioned at the transfer. It is left positioned after it.
+     * @return The transfer.
+     * @throws BufferUnderflowException If the buffer ends before the transfer does.
+     */
+    public static Transfer read(ByteBuffer buffer) {
+        Transfer transfer = new Transfer();
+        transfer.setId(readString(buffer));
+        transfer.setOriginAccountId(readString(buffer));
+        transfer.setDestinationAccountId(readString(buffer));
+        transfer.setAmount(buffer.getFloat());
+        transfer.setTimestamp(Instant.ofEpochMilli(buffer.getLong()).toString());
+        return transfer;
+    }
+
+    /**
+     * Writes a transfer.
+     * @param transfer The transfer.
+     * @return The encoded transfer.
+     */
+    public static byte[] write(Transfer transfer) {
+        byte[] id = bytes(transfer.getId());
+        byte[] origin = bytes(transfer.getOriginAccountId());
+        byte[] destination = bytes(transfer.getDestinationAccountId());
+        ByteBuffer buffer = ByteBuffer.allocate(stringSize(id) + stringSize(origin) + stringSize(destination) + 4 + 8);
+        putString(buffer, id);
+        putString(buffer, origin);
+        putString(buffer, destination);
+        buffer.putFloat(transfer.getAmount());
+        buffer.putLong(transfer.getTimestampMillis());
+        return buffer.array();
+    }
+
+    /**
+     * Returns the chunks of a list of transfers, for chunked responses.
+     * The stream is consumed lazily, as the chunks are pulled, and can only be materialized once.
+     * @param transfers The transfers, in response order.
+     * @return The source of the list's bytes.
+     */
+    public static Source<ByteString, NotUsed> stream(Stream<Transfer> transfers) {
+        return Source.fromIterator(() -> new Chunks(transfers.iterator()));
+    }
+
+    private static final class Chunks implements Iterator<ByteString> {
+        private final Iterator<Transfer> transfers;
+        private boolean finished;
+
+        private Chunks(Iterator<Transfer> transfers) {
+            this.transfers = transfers;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !finished;
+        }
+
+        @Override
+        public ByteString next() {
+            ByteStringBuilder chunk = new ByteStringBuilder();
+            for (int i = 0; i < CHUNK_ITEMS && transfers.hasNext(); i++)
+                chunk.putBytes(write(transfers.next()));
+            finished = !transfers.hasNext();
+            return chunk.result();
+        }
+    }
+
+    private static byte[] bytes(String value) {
+        if (value == null)
+            return null;
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length >= NULL_LENGTH)
+            throw new IllegalArgumentException("String too long for the binary encoding: " + bytes.length + " bytes");
+        return bytes;
+    }
+
+    private static int stringSize(byte[] bytes) {
+        return 2 + (bytes == null ? 0 : bytes.length);
+    }
+
+    private static void putString(ByteBuffer buffer, byte[] bytes) {
+        if (bytes == null) {
+            buffer.putShort((short) NULL_LENGTH);
+            return;
+        }
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getShort() & 0xFFFF;
+        if (length == NULL_LENGTH)
+            return null;
+        if (length > buffer.remaining())
+            throw new BufferUnderflowException();
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
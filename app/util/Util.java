@@ -1,7 +1,18 @@
 package util;
 
+import java.math.BigDecimal;
+import java.util.concurrent.CompletionException;
+
 public class Util {
 
+    /**
+     * Number of minor units (cents) in one unit of currency.
+     */
+    public static final int MINOR_UNITS_PER_UNIT = 100;
+
+    // versions start over with the store, ETags also carry when this run of the application started
+    private static final String ETAG_EPOCH = Long.toString(System.currentTimeMillis(), 36);
+
     /**
      * Validates if an amount is a positive float (non-zero, not NaN nor infinite).
      * @param amount
@@ -11,11 +22,91 @@ public class Util {
             throw new IllegalArgumentException("Amount must be greater than zero.");
     }
 
+    /**
+     * Validates if an amount is a positive float (non-zero, not NaN nor infinite).
+     * Primitive variant, avoids boxing on hot paths.
+     * @param amount
+     */
+    public static void validateAmount(float amount) {
+        if (!isAmountPositive(amount))
+            throw new IllegalArgumentException("Amount must be greater than zero.");
+    }
+
     public static boolean isAmountPositive(Float amount) {
         return amount != null && amount > 0 && !amount.isNaN() && !amount.isInfinite();
     }
 
+    public static boolean isAmountPositive(float amount) {
+        return amount > 0 && !Float.isInfinite(amount);
+    }
+
     public static boolean isAmountAtLeastZero(Float amount) {
         return amount != null && amount >= 0 && !amount.isNaN() && !amount.isInfinite();
     }
+
+    /**
+     * Converts an amount to an integer number of minor units, rounding to the nearest one.
+     * @param amount The amount in units of currency.
+     * @return The amount in minor units.
+     */
+    public static long toMinorUnits(float amount) {
+        return Math.round((double) amount * MINOR_UNITS_PER_UNIT);
+    }
+
+    /**
+     * Converts an integer number of minor units back to an amount.
+     * @param minorUnits The amount in minor units.
+     * @return The amount in units of currency.
+     */
+    public static float fromMinorUnits(long minorUnits) {
+        return (float) ((double) minorUnits / MINOR_UNITS_PER_UNIT);
+    }
+
+    /**
+     * Converts an integer number of minor units to an exact amount, for totals that a float can't hold to the cent.
+     * @param minorUnits The amount in minor units.
+     * @return The amount in units of currency.
+     */
+    public static BigDecimal toExactAmount(long minorUnits) {
+        return BigDecimal.valueOf(minorUnits).divide(BigDecimal.valueOf(MINOR_UNITS_PER_UNIT));
+    }
+
+    /**
+     * Builds the ETag of one representation of an entity's version.
+     * @param version The entity's version.
+     * @param representation Identifies the encoding, e.g. "json".
+     * @return The quoted ETag.
+     */
+    public static String etag(long version, String representation) {
+        return "\"" + ETAG_EPOCH + "-" + version + "-" + representation + "\"";
+    }
+
+    /**
+     * Tells whether an If-None-Match header matches an ETag, i.e. the client already has that representation.
+     * Weak ETags match their strong counterparts, as If-None-Match uses weak comparison.
+     * @param ifNoneMatch The header's value, null if there is none.
+     * @param etag The current ETag, quoted.
+     * @return True if the header is "*" or lists the ETag.
+     */
+    public static boolean matchesETag(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null)
+            return false;
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/"))
+                tag = tag.substring(2);
+            if (tag.equals("*") || tag.equals(etag))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the actual failure behind an asynchronous stage's exception.
+     * @param error The exception a stage completed with.
+     * @return The original exception.
+     */
+    public static Throwable unwrap(Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    }
 }
@@ -1,5 +1,13 @@
 import models.Account;
 import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import static org.junit.Assert.*;
 
 public class AccountTest {
@@ -87,4 +95,51 @@ public class AccountTest {
 
         account.withdraw(-20f);
     }
+
+    @Test
+    public void concurrentWithdrawalsNeverOverdrawTest() throws Exception {
+        Account account = new Account("name", "me", 1000f);
+        AtomicInteger succeeded = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            futures.add(executor.submit(() -> {
+                for (int j = 0; j < 500; j++) {
+                    try {
+                        account.withdraw(0.5f);
+                        succeeded.incrementAndGet();
+                    } catch (Account.InsufficientFundsException ignored) {
+                    }
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures)
+            future.get();
+        executor.shutdown();
+
+        assertEquals(2000, succeeded.get());
+        assertEquals(0f, account.getBalance(), 0.001);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void depositBelowOneCentTest() {
+        Account account = new Account("name", "me",20f);
+        account.deposit(0.001f);
+    }
+
+    @Test
+    public void depositOfFractionOfCentTest() {
+        Account account = new Account("name", "me",20f);
+        try {
+            account.deposit(10.005f);
+            fail("amount has three decimal places");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals(20f, account.getBalance(), 0);
+        account.deposit(10.01f);
+        account.deposit(0.1f);
+        assertEquals(30.11f, account.getBalance(), 0.001);
+    }
 }
@@ -0,0 +1,86 @@
+import models.Account;
+import models.ApplicationStore;
+import models.Transfer;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Concurrency tests for {@link ApplicationStore#createTransfer(Transfer)}: transfers between disjoint pairs of accounts
+ * run on many threads at once, and transfers in opposite directions between the same accounts must not deadlock.
+ */
+public class ApplicationStoreContentionTest {
+
+    private static final int TRANSFERS_PER_THREAD = 2000;
+
+    @Test(timeout = 30000)
+    public void disjointTransfersKeepEveryPairBalanced() throws Exception {
+        int threads = Math.max(4, Runtime.getRuntime().availableProcessors());
+        ApplicationStore store = ApplicationStore.newInstance();
+        List<Account[]> pairs = new ArrayList<>();
+        for (int i = 0; i < threads; i++)
+            pairs.add(new Account[]{ store.createAccount(new Account("a", "me", 100f)), store.createAccount(new Account("b", "me", 100f)) });
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (Account[] pair : pairs) {
+            futures.add(executor.submit(() -> {
+                start.await();
+                for (int j = 0; j < TRANSFERS_PER_THREAD; j++) {
+                    Account from = pair[j % 2];
+                    Account to = pair[(j + 1) % 2];
+                    store.createTransfer(new Transfer(from.getId(), to.getId(), 1f));
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> future : futures)
+            future.get();
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.SECONDS);
+
+        assertEquals(threads * TRANSFERS_PER_THREAD, store.listTransfers().size());
+        for (Account[] pair : pairs) {
+            // every thread made as many transfers each way, so both accounts are back where they started
+            assertEquals(100f, store.getAccount(pair[0].getId()).getBalance(), 0.01);
+            assertEquals(100f, store.getAccount(pair[1].getId()).getBalance(), 0.01);
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void opposingTransfersDoNotDeadlock() throws Exception {
+        ApplicationStore store = ApplicationStore.newInstance();
+        Account a = store.createAccount(new Account("a", "me", 1000f));
+        Account b = store.createAccount(new Account("b", "me", 1000f));
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            final boolean forward = i % 2 == 0;
+            futures.add(executor.submit(() -> {
+                for (int j = 0; j < TRANSFERS_PER_THREAD; j++) {
+                    try {
+                        store.createTransfer(forward ? new Transfer(a.getId(), b.getId(), 1f) : new Transfer(b.getId(), a.getId(), 1f));
+                    } catch (Account.InsufficientFundsException ignored) {
+                    }
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures)
+            future.get();
+        executor.shutdown();
+
+        assertEquals(2000f, store.getAccount(a.getId()).getBalance() + store.getAccount(b.getId()).getBalance(), 0.01);
+    }
+}
@@ -1,8 +1,23 @@
 import models.Account;
+import models.AccountSummary;
+import models.LedgerStats;
+import models.Page;
 import models.Transfer;
+import models.TransferOutcome;
 import org.junit.Test;
 import models.ApplicationStore;
 
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
 import static org.junit.Assert.*;
 
 public class ApplicationStoreTest {
@@ -71,6 +86,37 @@ public class ApplicationStoreTest {
         assertEquals(0, store.listAccounts().size());
     }
 
+    @Test
+    public void listAccountsByBalanceTest() throws ApplicationStore.AccountNotFoundException, Account.InsufficientFundsException {
+        ApplicationStore store = ApplicationStore.newInstance();
+        Account account1 = store.createAccount(new Account("name","me",10f));
+        Account account2 = store.createAccount(new Account("name","me",20.5f));
+        Account account3 = store.createAccount(new Account("name","you",30f));
+        Account account4 = store.createAccount(new Account("name","you",0f));
+
+        assertEquals(1, store.listAccounts(null, null, Float.NaN, 10f, 30f, null).count());
+        assertEquals(2, store.listAccounts(null, null, Float.NaN, 9.99f, 30f, null).count());
+        assertEquals(account2.getId(), store.listAccounts(null, null, 20.5f, Float.NaN, Float.NaN, null).findFirst().get().getId());
+        assertEquals(account4.getId(), store.listAccounts(null, null, Float.NaN, Float.NaN, 10f, "balance").findFirst().get().getId());
+        assertEquals(account3.getId(), store.listAccounts(null, null, Float.NaN, Float.NaN, Float.NaN, "-balance").findFirst().get().getId());
+        assertEquals(1, store.listAccounts(null, "you", Float.NaN, 0f, Float.NaN, null).count());
+
+        // the index follows balance changes
+        store.deposit(account4.getId(), 100f);
+        store.withdraw(account3.getId(), 29f);
+        store.createTransfer(new Transfer(account2.getId(), account1.getId(), 0.5f));
+        Account updated = new Account("name", "me", 15f);
+        updated.setId(account2.getId());
+        store.updateAccount(updated);
+        store.deleteAccount(account1.getId());
+
+        Object[] sorted = store.listAccounts(null, null, Float.NaN, Float.NaN, Float.NaN, "balance").map(Account::getId).toArray();
+        assertArrayEquals(new Object[] { account3.getId(), account2.getId(), account4.getId() }, sorted);
+        assertEquals(0, store.listAccounts(null, null, 10.5f, Float.NaN, Float.NaN, null).count());
+        assertEquals(account2.getId(), store.listAccounts(null, null, Float.NaN, 1f, 100f, null).findFirst().get().getId());
+        assertEquals(1, store.listAccounts(null, null, Float.NaN, 1f, 100f, null).count());
+    }
+
     @Test
     public void depositAccountTest() {
         ApplicationStore store = ApplicationStore.newInstance();
@@ -200,6 +246,459 @@ public class ApplicationStoreTest {
         assertEquals(0, store.listTransfers().size());
     }
 
+    @Test
+    public void listTransfersByAccountTest() throws ApplicationStore.AccountNotFoundException, Account.InsufficientFundsException {
+        ApplicationStore store = ApplicationStore.newInstance();
+        Account account1 = store.createAccount(new Account("name","me",10f));
+        Account account2 = store.createAccount(new Account("name","me",20f));
+        Account account3 = store.createAccount(new Account("name","me",30f));
+
+        Transfer transfer1 = store.createTransfer(new Transfer(account1.getId(), account2.getId(), 1f));
+        Transfer transfer2 = store.createTransfer(new Transfer(account2.getId(), account3.getId(), 2f));
+        Transfer transfer3 = store.createTransfer(new Transfer(account3.getId(), account2.getId(), 3f));
+        Transfer transfer4 = store.createTransfer(new Transfer(account1.getId(), account3.getId(), 4f));
+
+        assertEquals(2, store.listTransfers(account1.getId(), null, Float.NaN, Float.NaN, Float.NaN, null).count());
+        assertEquals(2, store.listTransfers(null, account2.getId(), Float.NaN, Float.NaN, Float.NaN, null).count());
+        assertEquals(transfer4.getId(), store.listTransfers(account1.getId(), account3.getId(), Float.NaN, Float.NaN, Float.NaN, null).findFirst().get().getId());
+        assertEquals(transfer3.getId(), store.listTransfers(null, account2.getId(), Float.NaN, 2f, Float.NaN, null).findFirst().get().getId());
+        assertEquals(0, store.listTransfers("unknown", null, Float.NaN, Float.NaN, Float.NaN, null).count());
+
+        assertTrue(store.deleteTransfer(transfer1.getId()));
+        assertEquals(1, store.listTransfers(account1.getId(), null, Float.NaN, Float.NaN, Float.NaN, null).count());
+        assertEquals(1, store.listTransfers(null, account2.getId(), Float.NaN, Float.NaN, Float.NaN, null).count());
+        assertEquals(transfer2.getId(), store.listTransfers(account2.getId(), null, Float.NaN, Float.NaN, Float.NaN, null).findFirst().get().getId());
+
+        store.clearTransfers();
+        assertEquals(0, store.listTransfers(account3.getId(), null, Float.NaN, Float.NaN, Float.NaN, null).count());
+    }
+
+    @Test
+    public void listTransfersByTimeTest() throws ApplicationStore.AccountNotFoundException, Account.InsufficientFundsException {
+        ApplicationStore store = ApplicationStore.newInstance();
+        Account account1 = store.createAccount(new Account("name","me",2000f));
+        Account account2 = store.createAccount(new Account("name","me",2000f));
+
+        Instant start = Instant.now();
+        List<Transfer> created = new ArrayList<>();
+        for (int i = 1; i <= 50; i++)
+            created.add(store.createTransfer(new Transfer(account1.getId(), account2.getId(), i)));
+        assertTrue(store.deleteTransfer(created.get(10).getId()));
+
+        // time ordered without sorting, deleted transfers left out
+        List<Transfer> ascending = store.listTransfers(null, null, Float.NaN, Float.NaN, Float.NaN, null, null, "timestamp").collect(Collectors.toList());
+        assertEquals(49, ascending.size());
+        for (int i = 1; i < ascending.size(); i++)
+            assertTrue(Instant.parse(ascending.get(i - 1).getTimestamp()).compareTo(Instant.parse(ascending.get(i).getTimestamp())) <= 0);
+        assertEquals(created.get(49).getId(), store.listTransfers(null, null, Float.NaN, Float.NaN, Float.NaN, null, null, "-timestamp").findFirst().get().getId());
+
+        Instant last = Instant.parse(created.get(49).getTimestamp());
+        assertEquals(0, store.listTransfers(null, null, Float.NaN, Float.NaN, Float.NaN, last.plusMillis(1), null, "timestamp").count());
+        assertEquals(49, store.listTransfers(null, null, Float.NaN, Float.NaN, Float.NaN, start.minusMillis(1), last.plusMillis(1), "timestamp").count());
+        assertEquals(0, store.listTransfers(null, null, Float.NaN, Float.NaN, Float.NaN, null, start.minusMillis(1), "timestamp").count());
+        assertEquals(1, store.listTransfers(null, null, Float.NaN, 49.5f, Float.NaN, last, null, "amount").count());
+        assertEquals(49, store.listTransfers(account1.getId(), null, Float.NaN, Float.NaN, Float.NaN, start.minusMillis(1), null, "timestamp").count());
+        // transfers keep the time they were made at, those of the same millisecond stay in the order they were made in
+        List<String> batch = store.createTransfers(Arrays.asList(new Transfer(account1.getId(), account2.getId(), 1f),
+                new Transfer(account2.getId(), account1.getId(), 2f), new Transfer(account1.getId(), account2.getId(), 3f)))
+                .stream().map(outcome -> outcome.getTransfer().getId()).collect(Collectors.toList());
+        Instant time = Instant.parse(store.getTransfer(batch.get(0)).getTimestamp());
+        for (String id : batch)
+            assertEquals(time, Instant.parse(store.getTransfer(id).getTimestamp()));
+        List<String> sameMillisecond = store.listTransfers(null, null, Float.NaN, Float.NaN, Float.NaN, time, time.plusMillis(1), "timestamp")
+                .map(Transfer::getId).collect(Collectors.toList());
+        assertEquals(batch, sameMillisecond.subList(sameMillisecond.size() - 3, sameMillisecond.size()));
+    }
+
+    @Test
+    public void listAccountsByPageTest() {
+        ApplicationStore store = ApplicationStore.newInstance();
+        for (int i = 0; i < 25; i++)
+            store.createAccount(new Account("name" + (i % 4), "me", (i % 5) * 10f));
+
+        for (String sort : Arrays.asList("balance", "-balance", "name", "-name", null)) {
+            List<String> paged = new ArrayList<>();
+            String cursor = null;
+            do {
+                Page<Account> page = store.listAccounts(null, null, Float.NaN, Float.NaN, Float.NaN, sort, cursor, 7);
+                assertTrue(page.getItems().size() <= 7);
+                page.getItems().forEach(account -> paged.add(account.getId()));
+                cursor = page.getNextCursor();
+            } while (cursor != null);
+
+            // every account exactly once, in (field, id) order
+            assertEquals(25, paged.size());
+            assertEquals(25, paged.stream().distinct().count());
+            List<Account> listed = paged.stream().map(store::getAccount).collect(Collectors.toList());
+            for (int i = 1; i < listed.size(); i++) {
+                Account previous = listed.get(i - 1);
+                Account current = listed.get(i);
+                int byField = "balance".equals(sort) || "-balance".equals(sort) ? Float.compare(previous.getBalance(), current.getBalance())
+                        : sort == null ? 0 : previous.getName().compareTo(current.getName());
+                int order = byField != 0 ? byField : previous.getId().compareTo(current.getId());
+                assertTrue(sort != null && sort.startsWith("-") ? order > 0 : order < 0);
+            }
+        }
+
+        Page<Account> rich = store.listAccounts(null, null, Float.NaN, 15f, Float.NaN, "-balance", null, 3);
+        assertEquals(3, rich.getItems().size());
+        assertEquals(40f, rich.getItems().get(0).getBalance(), 0.01);
+        Page<Account> rest = store.listAccounts(null, null, Float.NaN, 15f, Float.NaN, "-balance", rich.getNextCursor(), 100);
+        assertEquals(12, rest.getItems().size());
+        assertNull(rest.getNextCursor());
+
+        try {
+            store.listAccounts(null, null, Float.NaN, Float.NaN, Float.NaN, "name", rich.getNextCursor(), 3);
+            fail("cursor of another sort accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void listTransfersByPageTest() throws ApplicationStore.AccountNotFoundException, Account.InsufficientFundsException {
+        ApplicationStore store = ApplicationStore.newInstance();
+        Account account1 = store.createAccount(new Account("name","me",2000f));
+        Account account2 = store.createAccount(new Account("name","me",2000f));
+        List<Transfer> created = new ArrayList<>();
+        for (int i = 1; i <= 30; i++)
+            created.add(store.createTransfer(new Transfer(account1.getId(), account2.getId(), i % 7 + 1)));
+
+        Transfer latest = created.get(29);
+        for (String sort : Arrays.asList("timestamp", "-timestamp", "amount", "-amount")) {
+            List<String> paged = new ArrayList<>();
+            Page<Transfer> page = store.listTransfers(null, null, Float.NaN, Float.NaN, Float.NaN, null, null, sort, null, 4);
+            page.getItems().forEach(transfer -> paged.add(transfer.getId()));
+            // a transfer deleted between pages is skipped, without shifting the following pages
+            String deleted = null;
+            if (page.getNextCursor() != null) {
+                deleted = store.listTransfers(null, null, Float.NaN, Float.NaN, Float.NaN, null, null, sort, page.getNextCursor(), 1).getItems().get(0).getId();
+                assertTrue(store.deleteTransfer(deleted));
+            }
+            while (page.getNextCursor() != null) {
+                page = store.listTransfers(null, null, Float.NaN, Float.NaN, Float.NaN, null, null, sort, page.getNextCursor(), 4);
+                page.getItems().forEach(transfer -> paged.add(transfer.getId()));
+            }
+            assertEquals(29, paged.size());
+            assertEquals(29, paged.stream().distinct().count());
+            assertFalse(paged.contains(deleted));
+            if (sort.endsWith("timestamp"))
+                assertEquals(sort.startsWith("-") ? latest.getId() : created.get(0).getId(), paged.get(0));
+            latest = store.createTransfer(new Transfer(account1.getId(), account2.getId(), 1f));
+        }
+
+        Page<Transfer> outgoing = store.listTransfers(account1.getId(), null, Float.NaN, Float.NaN, Float.NaN, null, null, "timestamp", null, 100);
+        assertEquals(30, outgoing.getItems().size());
+        assertNull(outgoing.getNextCursor());
+
+        try {
+            store.listTransfers(null, null, Float.NaN, Float.NaN, Float.NaN, null, null, "timestamp", "not a cursor", 3);
+            fail("invalid cursor accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void numericAccountIdsTest() throws ApplicationStore.AccountNotFoundException, Account.InsufficientFundsException {
+        ApplicationStore store = ApplicationStore.newInstance(ApplicationStore.AccountLayout.NUMERIC_IDS);
+        List<Account> created = new ArrayList<>();
+        for (int i = 0; i < 3000; i++)
+            created.add(store.createAccount(new Account("name", "me", 100f)));
+        assertEquals(3000, store.listAccounts().size());
+        for (Account account : created)
+            assertSame(account, store.getAccount(account.getId()));
+
+        // only the canonical ids the store generates are found
+        String id = created.get(0).getId();
+        assertNull(store.getAccount("0" + id));
+        assertNull(store.getAccount("abc"));
+        assertNull(store.getAccount(""));
+
+        Transfer transfer = store.createTransfer(new Transfer(created.get(1).getId(), created.get(2).getId(), 40f));
+        assertNotNull(transfer);
+        assertEquals(60f, store.getAccount(created.get(1).getId()).getBalance(), 0.01);
+        assertEquals(140f, store.getAccount(created.get(2).getId()).getBalance(), 0.01);
+
+        Account update = new Account("renamed", "me", 100f);
+        update.setId(id);
+        assertEquals("renamed", store.updateAccount(update).getName());
+        assertEquals("renamed", store.getAccount(id).getName());
+
+        for (int i = 0; i < 2000; i++)
+            assertTrue(store.deleteAccount(created.get(i).getId()));
+        assertFalse(store.deleteAccount(id));
+        assertNull(store.getAccount(id));
+        assertEquals(1000, store.listAccounts().size());
+        assertEquals(1000, store.listAccounts(null, null, Float.NaN, Float.NaN, Float.NaN, null).count());
+
+        Account again = store.createAccount(new Account("name", "me", 1f));
+        assertSame(again, store.getAccount(again.getId()));
+        store.clearAccounts();
+        assertEquals(0, store.listAccounts().size());
+        assertNull(store.getAccount(again.getId()));
+    }
+
+    @Test
+    public void parallelScanTest() throws Exception {
+        ApplicationStore store = ApplicationStore.newInstance();
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 20000; i++)
+            ids.add(store.createAccount(new Account("name" + i % 13, "me" + i % 5, 1000f + i % 101)).getId());
+        for (int i = 0; i < 20000; i++)
+            store.createTransfer(new Transfer(ids.get(i % 50 + 100), ids.get(i % 7), 0.5f + i % 3));
+
+        List<Account> accounts = store.listAccounts("name3", null, Float.NaN, Float.NaN, Float.NaN, "-ownerName").collect(Collectors.toList());
+        long transfers = store.listTransfers(null, null, Float.NaN, 1f, Float.NaN, null).count();
+        List<Transfer> byAmount = store.listTransfers(null, null, Float.NaN, Float.NaN, Float.NaN, "-amount").collect(Collectors.toList());
+        List<Account> byName = pages(cursor -> store.listAccounts(null, null, Float.NaN, Float.NaN, Float.NaN, "name", cursor, 1500));
+        List<Transfer> fromAccount = pages(cursor -> store.listTransfers(ids.get(100), null, Float.NaN, Float.NaN, Float.NaN, null, null, "amount", cursor, 70));
+        List<Transfer> byOrigin = pages(cursor -> store.listTransfers(null, null, Float.NaN, 1f, Float.NaN, null, null, "-originAccountId", cursor, 999));
+
+        store.setParallelScan(1000, 4);
+        assertEquals(accounts, store.listAccounts("name3", null, Float.NaN, Float.NaN, Float.NaN, "-ownerName").collect(Collectors.toList()));
+        assertEquals(transfers, store.listTransfers(null, null, Float.NaN, 1f, Float.NaN, null).count());
+        assertEquals(byAmount, store.listTransfers(null, null, Float.NaN, Float.NaN, Float.NaN, "-amount").collect(Collectors.toList()));
+        assertEquals(byName, pages(cursor -> store.listAccounts(null, null, Float.NaN, Float.NaN, Float.NaN, "name", cursor, 1500)));
+        assertEquals(20000, byName.size());
+        assertEquals(fromAccount, pages(cursor -> store.listTransfers(ids.get(100), null, Float.NaN, Float.NaN, Float.NaN, null, null, "amount", cursor, 70)));
+        assertEquals(400, fromAccount.size());
+        assertEquals(byOrigin, pages(cursor -> store.listTransfers(null, null, Float.NaN, 1f, Float.NaN, null, null, "-originAccountId", cursor, 999)));
+        store.setParallelScan(0, 0);
+    }
+
+    private static <T> List<T> pages(Function<String, Page<T>> listing) {
+        List<T> items = new ArrayList<>();
+        String cursor = null;
+        do {
+            Page<T> page = listing.apply(cursor);
+            items.addAll(page.getItems());
+            cursor = page.getNextCursor();
+        } while (cursor != null);
+        return items;
+    }
+
+    @Test
+    public void exactStatsTest() throws Exception {
+        ApplicationStore store = ApplicationStore.newInstance();
+        // a hundred million cents, more than a float holds to the cent
+        for (int i = 0; i < 10; i++)
+            store.createAccount(new Account("name", "me", 100000.01f));
+        assertEquals(new BigDecimal("1000000.1"), LedgerStats.of(store, store).getTotalBalance());
+
+        // the same goes for an account's summary
+        Account origin = store.createAccount(new Account("name", "me", 2000000f));
+        Account destination = store.createAccount(new Account("name", "you", 0f));
+        for (int i = 0; i < 10; i++)
+            store.createTransfer(new Transfer(origin.getId(), destination.getId(), 100000.01f));
+        assertEquals(new BigDecimal("1000000.1"), store.summarize(origin.getId()).getTotalSent());
+        assertEquals(new BigDecimal("1000000.1"), store.summarize(destination.getId()).getTotalReceived());
+    }
+
+    @Test
+    public void summarizeTest() throws Exception {
+        ApplicationStore store = ApplicationStore.newInstance();
+        Account first = store.createAccount(new Account("name", "me", 100f));
+        Account second = store.createAccount(new Account("name", "you", 100f));
+        assertEquals(0, store.summarize(first.getId()).getTransferCount());
+
+        store.createTransfer(new Transfer(first.getId(), second.getId(), 30.25f));
+        Transfer back = store.createTransfer(new Transfer(second.getId(), first.getId(), 10f));
+        store.createTransfers(Arrays.asList(new Transfer(first.getId(), second.getId(), 5f), new Transfer(first.getId(), "404", 5f)));
+
+        AccountSummary summary = store.summarize(first.getId());
+        assertEquals(first.getId(), summary.getAccountId());
+        assertEquals(3, summary.getTransferCount());
+        assertEquals(new BigDecimal("35.25"), summary.getTotalSent());
+        assertEquals(new BigDecimal("10"), summary.getTotalReceived());
+
+        // same totals as adding up the transfers
+        AccountSummary listed = AccountSummary.of(first.getId(),
+                store.listTransfers(first.getId(), null, Float.NaN, Float.NaN, Float.NaN, null),
+                store.listTransfers(null, first.getId(), Float.NaN, Float.NaN, Float.NaN, null));
+        assertEquals(listed.getTransferCount(), summary.getTransferCount());
+        assertEquals(listed.getTotalSent(), summary.getTotalSent());
+
+        assertTrue(store.deleteTransfer(back.getId()));
+        assertEquals(2, store.summarize(first.getId()).getTransferCount());
+        assertEquals(BigDecimal.ZERO, store.summarize(first.getId()).getTotalReceived());
+        assertEquals(2, store.summarize(second.getId()).getTransferCount());
+        assertEquals(BigDecimal.ZERO, store.summarize(second.getId()).getTotalSent());
+
+        store.clearTransfers();
+        assertEquals(0, store.summarize(second.getId()).getTransferCount());
+    }
+
+    @Test
+    public void accountTransfersTest() throws Exception {
+        ApplicationStore store = ApplicationStore.newInstance();
+        Account first = store.createAccount(new Account("name", "me", 1000f));
+        Account second = store.createAccount(new Account("name", "you", 1000f));
+        Account third = store.createAccount(new Account("name", "them", 1000f));
+        List<Transfer> made = new ArrayList<>();
+        for (int i = 0; i < 100; i++)
+            made.add(store.createTransfer(i % 2 == 0 ? new Transfer(first.getId(), second.getId(), 1f) : new Transfer(third.getId(), first.getId(), 2f)));
+        store.createTransfer(new Transfer(second.getId(), third.getId(), 1f));
+
+        // the most recent page comes from the ring, deeper ones from the indexes
+        Page<Transfer> page = store.listAccountTransfers(first.getId(), null, 10);
+        assertEquals(10, page.getItems().size());
+        assertEquals(made.get(99).getId(), page.getItems().get(0).getId());
+        assertEquals(made.get(90).getId(), page.getItems().get(9).getId());
+        assertNotNull(page.getNextCursor());
+
+        assertTrue(store.deleteTransfer(made.get(95).getId()));
+        assertTrue(store.deleteTransfer(made.get(10).getId()));
+        List<String> listed = new ArrayList<>();
+        String cursor = null;
+        do {
+            page = store.listAccountTransfers(first.getId(), cursor, 7);
+            page.getItems().forEach(transfer -> listed.add(transfer.getId()));
+            cursor = page.getNextCursor();
+        } while (cursor != null);
+        List<String> expected = new ArrayList<>();
+        for (int i = 99; i >= 0; i--)
+            if (i != 95 && i != 10)
+                expected.add(made.get(i).getId());
+        assertEquals(expected, listed);
+
+        // same statement as the default listing
+        List<String> unbounded = store.listAccountTransfers(first.getId(), null, Integer.MAX_VALUE).getItems().stream().map(Transfer::getId).collect(Collectors.toList());
+        assertEquals(expected, unbounded);
+
+        assertEquals(0, store.listAccountTransfers("404", null, 10).getItems().size());
+        try {
+            store.listAccountTransfers(first.getId(), "abc", 10);
+            fail("invalid cursor accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        store.clearTransfers();
+        assertEquals(0, store.listAccountTransfers(first.getId(), null, 10).getItems().size());
+    }
+
+    @Test
+    public void clearAccountsDropsStatementsTest() throws Exception {
+        ApplicationStore store = ApplicationStore.newInstance();
+        Account first = store.createAccount(new Account("name", "me", 1000f));
+        Account second = store.createAccount(new Account("name", "you", 1000f));
+        store.createTransfer(new Transfer(first.getId(), second.getId(), 1f));
+        store.deleteAccount(second.getId());
+        assertEquals(0, store.listAccountTransfers(second.getId(), null, 10).getItems().size());
+
+        // as with a deleted account, the rings of cleared accounts are dropped
+        store.clearAccounts();
+        assertEquals(0, store.listAccountTransfers(first.getId(), null, 10).getItems().size());
+        assertEquals(1, store.listTransfers().size());
+    }
+
+    @Test
+    public void ledgerStatsTest() throws Exception {
+        for (ApplicationStore.AccountLayout layout : ApplicationStore.AccountLayout.values()) {
+            ApplicationStore store = ApplicationStore.newInstance(layout);
+            Account first = store.createAccount(new Account("name", "me", 100f));
+            Account second = store.createAccount(new Account("name", "you", 50.5f));
+            Account third = store.createAccount(new Account("name", "them", 10f));
+            store.deposit(first.getId(), 20f);
+            store.withdraw(second.getId(), 0.5f);
+            store.updateAccount(withBalance(third, 30f));
+            store.createTransfer(new Transfer(first.getId(), second.getId(), 12.25f));
+            Transfer deleted = store.createTransfer(new Transfer(second.getId(), third.getId(), 5f));
+            store.createTransfersAtomically(Arrays.asList(new Transfer(third.getId(), first.getId(), 1f), new Transfer(first.getId(), third.getId(), 2f)));
+            assertTrue(store.deleteTransfer(deleted.getId()));
+            assertTrue(store.deleteAccount(second.getId()));
+
+            LedgerStats stats = LedgerStats.of(store, store);
+            assertEquals(store.listAccounts().size(), stats.getAccountCount());
+            assertEquals(store.listTransfers().size(), stats.getTransferCount());
+            BigDecimal balance = BigDecimal.ZERO;
+            for (Account account : store.listAccounts())
+                balance = balance.add(new BigDecimal(Float.toString(account.getBalance())));
+            assertEquals(0, balance.compareTo(stats.getTotalBalance()));
+            assertEquals(new BigDecimal("15.25"), stats.getTransferVolume());
+
+            List<LedgerStats.Volume> volume = stats.getRecentVolume();
+            assertEquals(LedgerStats.BUCKETS, volume.size());
+            assertEquals(3, volume.stream().mapToLong(LedgerStats.Volume::getTransferCount).sum());
+            assertEquals(new BigDecimal("15.25"), volume.stream().map(LedgerStats.Volume::getTransferVolume).reduce(BigDecimal.ZERO, BigDecimal::add));
+            for (int i = 1; i < volume.size(); i++)
+                assertTrue(Instant.parse(volume.get(i - 1).getStart()).isBefore(Instant.parse(volume.get(i).getStart())));
+
+            store.clearTransfers();
+            assertEquals(0, store.countTransfers());
+            assertEquals(0, store.transferVolumeMinorUnits());
+            assertEquals(0, store.recentVolume().stream().mapToLong(LedgerStats.Volume::getTransferCount).sum());
+            store.clearAccounts();
+            assertEquals(0, store.countAccounts());
+            assertEquals(0, store.totalBalanceMinorUnits());
+        }
+    }
+
+    @Test
+    public void versionTest() throws Exception {
+        for (ApplicationStore.AccountLayout layout : ApplicationStore.AccountLayout.values()) {
+            ApplicationStore store = ApplicationStore.newInstance(layout);
+            Account first = store.createAccount(new Account("name", "me", 100f));
+            Account second = store.createAccount(new Account("name", "you", 0f));
+            long version = store.getAccount(first.getId()).getVersion();
+
+            store.deposit(first.getId(), 10f);
+            assertTrue(store.getAccount(first.getId()).getVersion() > version);
+            version = store.getAccount(first.getId()).getVersion();
+            store.withdraw(first.getId(), 5f);
+            assertTrue(store.getAccount(first.getId()).getVersion() > version);
+            version = store.getAccount(first.getId()).getVersion();
+            store.updateAccount(withBalance(first, 105f));
+            assertTrue(store.getAccount(first.getId()).getVersion() > version);
+            version = store.getAccount(first.getId()).getVersion();
+            long secondVersion = store.getAccount(second.getId()).getVersion();
+            store.createTransfer(new Transfer(first.getId(), second.getId(), 1f));
+            assertTrue(store.getAccount(first.getId()).getVersion() > version);
+            assertTrue(store.getAccount(second.getId()).getVersion() > secondVersion);
+
+            // rejected changes leave the version alone
+            version = store.getAccount(second.getId()).getVersion();
+            try {
+                store.withdraw(second.getId(), 50f);
+                fail("withdrawal beyond the balance");
+            } catch (Account.InsufficientFundsException e) {
+                // expected
+            }
+            assertEquals(version, store.getAccount(second.getId()).getVersion());
+        }
+    }
+
+    @Test
+    public void depositsRacingUpdatesTest() throws Exception {
+        for (ApplicationStore.AccountLayout layout : ApplicationStore.AccountLayout.values()) {
+            ApplicationStore store = ApplicationStore.newInstance(layout);
+            Account account = store.createAccount(new Account("name", "me", 0f));
+            long start = store.getAccount(account.getId()).getVersion();
+
+            ExecutorService executor = Executors.newFixedThreadPool(2);
+            Future<?> deposits = executor.submit(() -> {
+                for (int i = 0; i < 2000; i++)
+                    store.deposit(account.getId(), 1f);
+            });
+            Future<?> updates = executor.submit(() -> {
+                for (int i = 0; i < 2000; i++)
+                    store.updateAccount(withBalance(account, 5f));
+            });
+            deposits.get();
+            updates.get();
+            executor.shutdown();
+
+            // a deposit applied to an account object that was being replaced would not be counted
+            assertEquals(start + 4000, store.getAccount(account.getId()).getVersion());
+        }
+    }
+
+    private static Account withBalance(Account account, float balance) {
+        Account updated = new Account(account.getName(), account.getOwnerName(), balance);
+        updated.setId(account.getId());
+        return updated;
+    }
+
     @Test
     public void deleteNonExistingTransfer() throws ApplicationStore.AccountNotFoundException, Account.InsufficientFundsException {
         ApplicationStore store = ApplicationStore.newInstance();
@@ -214,4 +713,74 @@ public class ApplicationStoreTest {
         assertFalse(store.deleteTransfer("1"));
         assertEquals(1, store.listTransfers().size());
     }
+
+    @Test
+    public void createTransfersBatchTest() {
+        ApplicationStore store = ApplicationStore.newInstance();
+        Account account1 = store.createAccount(new Account("name","me",10f));
+        Account account2 = store.createAccount(new Account("name","me",20f));
+
+        List<TransferOutcome> outcomes = store.createTransfers(Arrays.asList(
+                new Transfer(account1.getId(), account2.getId(), 5f),
+                new Transfer(account1.getId(), account2.getId(), 50f),
+                new Transfer(account1.getId(), "404", 1f),
+                new Transfer(account2.getId(), account1.getId(), 1f)));
+        assertEquals(4, outcomes.size());
+        assertTrue(outcomes.get(0).isCreated());
+        assertTrue(outcomes.get(1).getError() instanceof Account.InsufficientFundsException);
+        assertTrue(outcomes.get(2).getError() instanceof ApplicationStore.AccountNotFoundException);
+        assertTrue(outcomes.get(3).isCreated());
+        assertNotEquals(outcomes.get(0).getTransfer().getId(), outcomes.get(3).getTransfer().getId());
+        assertEquals(2, store.listTransfers().size());
+        assertEquals(6f, store.getAccount(account1.getId()).getBalance(), 0.01);
+        assertEquals(24f, store.getAccount(account2.getId()).getBalance(), 0.01);
+    }
+
+    @Test
+    public void createTransfersAtomicallyOverflowTest() {
+        ApplicationStore store = ApplicationStore.newInstance();
+        Account account1 = store.createAccount(new Account("name","me",2e16f));
+        Account account2 = store.createAccount(new Account("name","me",10f));
+        Account account3 = store.createAccount(new Account("name","me",9e16f));
+
+        // the second transfer would overflow account3, the first one must not be applied either
+        List<TransferOutcome> outcomes = store.createTransfersAtomically(Arrays.asList(
+                new Transfer(account2.getId(), account1.getId(), 5f),
+                new Transfer(account1.getId(), account3.getId(), 1e16f)));
+        assertTrue(outcomes.get(0).getError() instanceof IllegalStateException);
+        assertTrue(outcomes.get(1).getError() instanceof IllegalArgumentException);
+        assertEquals(2e16f, store.getAccount(account1.getId()).getBalance(), 0f);
+        assertEquals(10f, store.getAccount(account2.getId()).getBalance(), 0.01);
+        assertEquals(9e16f, store.getAccount(account3.getId()).getBalance(), 0f);
+        assertEquals(0, store.listTransfers().size());
+    }
+
+    @Test
+    public void createTransfersAtomicallyTest() {
+        ApplicationStore store = ApplicationStore.newInstance();
+        Account account1 = store.createAccount(new Account("name","me",10f));
+        Account account2 = store.createAccount(new Account("name","me",0f));
+        Account account3 = store.createAccount(new Account("name","me",0f));
+
+        // account2 may spend what it receives earlier in the batch
+        List<TransferOutcome> outcomes = store.createTransfersAtomically(Arrays.asList(
+                new Transfer(account1.getId(), account2.getId(), 10f),
+                new Transfer(account2.getId(), account3.getId(), 7f)));
+        assertTrue(outcomes.get(0).isCreated());
+        assertTrue(outcomes.get(1).isCreated());
+        assertEquals(0f, store.getAccount(account1.getId()).getBalance(), 0.01);
+        assertEquals(3f, store.getAccount(account2.getId()).getBalance(), 0.01);
+        assertEquals(7f, store.getAccount(account3.getId()).getBalance(), 0.01);
+
+        // one rejected transfer rejects the whole batch
+        outcomes = store.createTransfersAtomically(Arrays.asList(
+                new Transfer(account3.getId(), account1.getId(), 7f),
+                new Transfer(account2.getId(), account1.getId(), 4f)));
+        assertFalse(outcomes.get(0).isCreated());
+        assertTrue(outcomes.get(1).getError() instanceof Account.InsufficientFundsException);
+        assertEquals(0f, store.getAccount(account1.getId()).getBalance(), 0.01);
+        assertEquals(3f, store.getAccount(account2.getId()).getBalance(), 0.01);
+        assertEquals(7f, store.getAccount(account3.getId()).getBalance(), 0.01);
+        assertEquals(2, store.listTransfers().size());
+    }
 }
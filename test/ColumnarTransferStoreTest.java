@@ -0,0 +1,176 @@
+import models.Account;
+import models.AccountSummary;
+import models.ApplicationStore;
+import models.ColumnarTransferStore;
+import models.Transfer;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class ColumnarTransferStoreTest {
+
+    @Test
+    public void createGetAndDeleteTest() throws Exception {
+        ApplicationStore accounts = ApplicationStore.newInstance();
+        ColumnarTransferStore store = ColumnarTransferStore.newInstance(accounts);
+        Account origin = accounts.createAccount(new Account("name", "me", 100f));
+        Account destination = accounts.createAccount(new Account("name", "you", 0f));
+
+        Transfer transfer = store.createTransfer(new Transfer(origin.getId(), destination.getId(), 30.5f));
+        assertEquals("1", transfer.getId());
+        assertNotNull(transfer.getTimestamp());
+        assertEquals(69.5f, accounts.getAccount(origin.getId()).getBalance(), 0.001);
+        assertEquals(30.5f, accounts.getAccount(destination.getId()).getBalance(), 0.001);
+
+        Transfer stored = store.getTransfer(transfer.getId());
+        assertEquals(origin.getId(), stored.getOriginAccountId());
+        assertEquals(destination.getId(), stored.getDestinationAccountId());
+        assertEquals(30.5f, stored.getAmount(), 0);
+        assertEquals(transfer.getTimestamp(), stored.getTimestamp());
+        assertNull(store.getTransfer("2"));
+        assertNull(store.getTransfer("abc"));
+
+        assertTrue(store.deleteTransfer(transfer.getId()));
+        assertFalse(store.deleteTransfer(transfer.getId()));
+        assertNull(store.getTransfer(transfer.getId()));
+        assertEquals(0, store.listTransfers().size());
+
+        store.createTransfer(new Transfer(origin.getId(), destination.getId(), 1f));
+        store.clearTransfers();
+        assertEquals(0, store.listTransfers().size());
+        // ids are not reused after clearing
+        assertEquals("3", store.createTransfer(new Transfer(origin.getId(), destination.getId(), 1f)).getId());
+    }
+
+    @Test
+    public void rejectedTransfersTest() throws Exception {
+        ApplicationStore accounts = ApplicationStore.newInstance();
+        ColumnarTransferStore store = ColumnarTransferStore.newInstance(accounts);
+        Account account = accounts.createAccount(new Account("name", "me", 10f));
+        Account other = accounts.createAccount(new Account("name", "you", 0f));
+        try {
+            store.createTransfer(new Transfer(account.getId(), "404", 5f));
+            fail("transfer to a missing account accepted");
+        } catch (ApplicationStore.AccountNotFoundException e) {
+            // expected
+        }
+        try {
+            store.createTransfer(new Transfer("404", account.getId(), 5f));
+            fail("transfer from a missing account accepted");
+        } catch (ApplicationStore.AccountNotFoundException e) {
+            // expected
+        }
+        try {
+            store.createTransfer(new Transfer(account.getId(), other.getId(), 11f));
+            fail("overdraft accepted");
+        } catch (Account.InsufficientFundsException e) {
+            // expected
+        }
+        assertEquals(10f, accounts.getAccount(account.getId()).getBalance(), 0.001);
+        assertEquals(0f, accounts.getAccount(other.getId()).getBalance(), 0.001);
+        assertEquals(0, store.listTransfers().size());
+    }
+
+    @Test
+    public void listTransfersTest() throws Exception {
+        ApplicationStore accounts = ApplicationStore.newInstance();
+        ColumnarTransferStore store = ColumnarTransferStore.newInstance(accounts);
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 4; i++)
+            ids.add(accounts.createAccount(new Account("name", "me", 100000f)).getId());
+        // enough transfers to span several segments
+        for (int i = 0; i < 10000; i++)
+            store.createTransfer(new Transfer(ids.get(i % 4), ids.get((i + 1) % 4), 1 + i % 7));
+
+        assertEquals(10000, store.listTransfers().size());
+        assertEquals(2500, store.listTransfers(ids.get(0), null, Float.NaN, Float.NaN, Float.NaN, null).count());
+        assertEquals(2500, store.listTransfers(ids.get(0), ids.get(1), Float.NaN, Float.NaN, Float.NaN, null).count());
+        assertEquals(0, store.listTransfers(ids.get(0), ids.get(2), Float.NaN, Float.NaN, Float.NaN, null).count());
+        assertEquals(0, store.listTransfers("abc", null, Float.NaN, Float.NaN, Float.NaN, null).count());
+        assertTrue(store.listTransfers(null, null, 7f, Float.NaN, Float.NaN, null).allMatch(transfer -> transfer.getAmount() == 7f));
+        assertTrue(store.listTransfers(null, null, Float.NaN, 2f, 5f, null).allMatch(transfer -> transfer.getAmount() > 2f && transfer.getAmount() < 5f));
+
+        List<Float> byAmount = store.listTransfers(null, null, Float.NaN, Float.NaN, Float.NaN, "-amount").map(Transfer::getAmount).collect(Collectors.toList());
+        assertEquals(10000, byAmount.size());
+        for (int i = 1; i < byAmount.size(); i++)
+            assertTrue(byAmount.get(i - 1) >= byAmount.get(i));
+
+        List<Transfer> byTime = store.listTransfers(null, null, Float.NaN, Float.NaN, Float.NaN, "-timestamp").collect(Collectors.toList());
+        for (int i = 1; i < byTime.size(); i++)
+            assertTrue(Instant.parse(byTime.get(i - 1).getTimestamp()).compareTo(Instant.parse(byTime.get(i).getTimestamp())) >= 0);
+
+        List<String> byOrigin = store.listTransfers(null, null, Float.NaN, Float.NaN, Float.NaN, "originAccountId").map(Transfer::getOriginAccountId).collect(Collectors.toList());
+        for (int i = 1; i < byOrigin.size(); i++)
+            assertTrue(byOrigin.get(i - 1).compareTo(byOrigin.get(i)) <= 0);
+
+        // statements fall back to the default listing
+        List<Transfer> statement = store.listAccountTransfers(ids.get(0), null, 10).getItems();
+        assertEquals(10, statement.size());
+        assertTrue(statement.stream().allMatch(transfer -> transfer.getOriginAccountId().equals(ids.get(0)) || transfer.getDestinationAccountId().equals(ids.get(0))));
+        for (int i = 1; i < statement.size(); i++)
+            assertTrue(Instant.parse(statement.get(i - 1).getTimestamp()).compareTo(Instant.parse(statement.get(i).getTimestamp())) >= 0);
+
+        // time ranges are binary searched on the timestamp column
+        Transfer middle = store.getTransfer("5000");
+        Instant from = Instant.parse(middle.getTimestamp());
+        assertTrue(store.listTransfers(null, null, Float.NaN, Float.NaN, Float.NaN, from, null, null)
+                .allMatch(transfer -> !Instant.parse(transfer.getTimestamp()).isBefore(from)));
+        assertTrue(store.listTransfers(null, null, Float.NaN, Float.NaN, Float.NaN, from, null, null)
+                .anyMatch(transfer -> transfer.getId().equals("10000")));
+        assertEquals(0, store.listTransfers(null, null, Float.NaN, Float.NaN, Float.NaN, from, from, null).count());
+    }
+
+    @Test
+    public void overflowingDepositMovesNothingTest() throws Exception {
+        ApplicationStore accounts = ApplicationStore.newInstance();
+        ColumnarTransferStore store = ColumnarTransferStore.newInstance(accounts);
+        Account origin = accounts.createAccount(new Account("name", "me", 2e16f));
+        Account destination = accounts.createAccount(new Account("name", "you", 9e16f));
+        try {
+            store.createTransfer(new Transfer(origin.getId(), destination.getId(), 1e16f));
+            fail("deposit overflows the destination");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals(2e16f, accounts.getAccount(origin.getId()).getBalance(), 0f);
+        assertEquals(9e16f, accounts.getAccount(destination.getId()).getBalance(), 0f);
+        assertTrue(store.listTransfers().isEmpty());
+    }
+
+    @Test
+    public void statsFollowWritesTest() throws Exception {
+        ApplicationStore accounts = ApplicationStore.newInstance();
+        ColumnarTransferStore store = ColumnarTransferStore.newInstance(accounts);
+        Account origin = accounts.createAccount(new Account("name", "me", 100f));
+        Account destination = accounts.createAccount(new Account("name", "you", 0f));
+
+        Transfer first = store.createTransfer(new Transfer(origin.getId(), destination.getId(), 10.25f));
+        store.createTransfer(new Transfer(destination.getId(), origin.getId(), 2f));
+        assertEquals(2, store.countTransfers());
+        assertEquals(1225, store.transferVolumeMinorUnits());
+        assertEquals(2, store.recentVolume().stream().mapToLong(v -> v.getTransferCount()).sum());
+        AccountSummary summary = store.summarize(origin.getId());
+        assertEquals(new BigDecimal("10.25"), summary.getTotalSent());
+        assertEquals(new BigDecimal("2"), summary.getTotalReceived());
+        assertEquals(2, summary.getTransferCount());
+
+        assertTrue(store.deleteTransfer(first.getId()));
+        assertEquals(1, store.countTransfers());
+        assertEquals(200, store.transferVolumeMinorUnits());
+        assertEquals(1, store.recentVolume().stream().mapToLong(v -> v.getTransferCount()).sum());
+        assertEquals(1, store.summarize(origin.getId()).getTransferCount());
+        assertEquals(new BigDecimal("2"), store.summarize(destination.getId()).getTotalSent());
+
+        store.clearTransfers();
+        assertEquals(0, store.countTransfers());
+        assertEquals(0, store.transferVolumeMinorUnits());
+        assertEquals(0, store.recentVolume().stream().mapToLong(v -> v.getTransferCount()).sum());
+        assertEquals(0, store.summarize(origin.getId()).getTransferCount());
+    }
+}
@@ -0,0 +1,143 @@
+import org.junit.Test;
+import services.IdempotencyCache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class IdempotencyCacheTest {
+
+    @Test
+    public void replaysFirstResponseTest() throws Exception {
+        IdempotencyCache cache = new IdempotencyCache(10, 1000, () -> 0);
+        AtomicInteger runs = new AtomicInteger();
+        IdempotencyCache.Response first = cache.get("key", "a", () -> respond(runs, 201)).toCompletableFuture().get();
+        IdempotencyCache.Response retry = cache.get("key", "a", () -> respond(runs, 201)).toCompletableFuture().get();
+        assertSame(first, retry);
+        assertEquals(1, runs.get());
+        assertEquals(1, cache.hits());
+        assertEquals(1, cache.misses());
+        assertEquals(0.5, cache.hitRate(), 0.0001);
+
+        try {
+            cache.get("key", "b", () -> respond(runs, 201));
+            fail("key reused for a different request");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals(1, runs.get());
+    }
+
+    @Test
+    public void retryWaitsForFirstAttemptTest() throws Exception {
+        IdempotencyCache cache = new IdempotencyCache(10, 1000, () -> 0);
+        CompletableFuture<IdempotencyCache.Response> running = new CompletableFuture<>();
+        CompletionStage<IdempotencyCache.Response> first = cache.get("key", "a", () -> running);
+        CompletionStage<IdempotencyCache.Response> retry = cache.get("key", "a", () -> {
+            throw new AssertionError("retry ran while the first attempt was running");
+        });
+        assertFalse(retry.toCompletableFuture().isDone());
+        IdempotencyCache.Response response = new IdempotencyCache.Response(201, new byte[0], "application/json", "/transfers/1");
+        running.complete(response);
+        assertSame(response, first.toCompletableFuture().get());
+        assertSame(response, retry.toCompletableFuture().get());
+    }
+
+    @Test
+    public void failedAttemptsAreForgottenTest() throws Exception {
+        IdempotencyCache cache = new IdempotencyCache(10, 1000, () -> 0);
+        AtomicInteger runs = new AtomicInteger();
+        CompletableFuture<IdempotencyCache.Response> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new IllegalStateException("engine stopped"));
+        assertTrue(cache.get("key", "a", () -> failed).toCompletableFuture().isCompletedExceptionally());
+        assertEquals(0, cache.size());
+        cache.get("key", "a", () -> respond(runs, 201)).toCompletableFuture().get();
+        assertEquals(1, runs.get());
+    }
+
+    @Test
+    public void expiryAndCapacityTest() throws Exception {
+        AtomicLong now = new AtomicLong();
+        IdempotencyCache cache = new IdempotencyCache(3, 1000, now::get);
+        AtomicInteger runs = new AtomicInteger();
+        for (int i = 0; i < 5; i++)
+            cache.get("key" + i, "a", () -> respond(runs, 201));
+        assertEquals(3, cache.size());
+        // the oldest keys were dropped, the newest ones are still replayed
+        cache.get("key0", "a", () -> respond(runs, 201));
+        assertEquals(6, runs.get());
+        cache.get("key4", "a", () -> respond(runs, 201));
+        assertEquals(6, runs.get());
+
+        now.set(1000);
+        cache.get("key4", "a", () -> respond(runs, 201));
+        assertEquals(7, runs.get());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void runningKeysAreNotEvictedTest() throws Exception {
+        AtomicLong now = new AtomicLong();
+        IdempotencyCache cache = new IdempotencyCache(2, 1000, now::get);
+        AtomicInteger runs = new AtomicInteger();
+        CompletableFuture<IdempotencyCache.Response> first = new CompletableFuture<>();
+        CompletableFuture<IdempotencyCache.Response> second = new CompletableFuture<>();
+        cache.get("key0", "a", () -> first);
+        cache.get("key1", "a", () -> second);
+        // every slot is running: a new key is refused rather than dropping one of them
+        try {
+            cache.get("key2", "a", () -> respond(runs, 201));
+            fail("new key admitted while the cache is full of running requests");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertEquals(0, runs.get());
+        assertEquals(2, cache.size());
+
+        // nor does expiry drop a running key, its retries still wait for it
+        now.set(1000);
+        assertFalse(cache.get("key0", "a", () -> respond(runs, 201)).toCompletableFuture().isDone());
+        assertEquals(0, runs.get());
+
+        first.complete(new IdempotencyCache.Response(201, new byte[0], "application/json", "/transfers/1"));
+        cache.get("key2", "a", () -> respond(runs, 201));
+        assertEquals(1, runs.get());
+        // the completed key made room, the running one is kept
+        assertEquals(2, cache.size());
+        assertFalse(cache.get("key1", "a", () -> respond(runs, 201)).toCompletableFuture().isDone());
+        assertEquals(1, runs.get());
+    }
+
+    @Test
+    public void concurrentRetriesRunOnceTest() throws Exception {
+        IdempotencyCache cache = new IdempotencyCache(1000, 60000, System::currentTimeMillis);
+        AtomicInteger runs = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            futures.add(executor.submit(() -> {
+                for (int i = 0; i < 500; i++)
+                    cache.get("key" + i, "a", () -> respond(runs, 201));
+            }));
+        }
+        for (Future<?> future : futures)
+            future.get();
+        executor.shutdown();
+        assertEquals(500, runs.get());
+        assertEquals(1500, cache.hits());
+        assertEquals(500, cache.size());
+    }
+
+    private static CompletionStage<IdempotencyCache.Response> respond(AtomicInteger runs, int status) {
+        runs.incrementAndGet();
+        return CompletableFuture.completedFuture(new IdempotencyCache.Response(status, new byte[0], "application/json", null));
+    }
+}
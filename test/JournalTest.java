@@ -0,0 +1,430 @@
+import models.Account;
+import models.ApplicationStore;
+import models.Journal;
+import models.Transfer;
+import models.TransferOutcome;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import static org.junit.Assert.*;
+
+public class JournalTest {
+
+    private Path directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("journal");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.walk(directory).sorted((a, b) -> b.compareTo(a)).forEach(path -> path.toFile().delete());
+    }
+
+    private Journal open(Journal.Durability durability) throws IOException {
+        // small chunks so that tests cross chunk boundaries
+        return Journal.open(directory.resolve("store.journal"), durability, 4096, 5);
+    }
+
+    @Test
+    public void recoverStoreTest() throws Exception {
+        Journal journal = open(Journal.Durability.GROUP);
+        ApplicationStore store = ApplicationStore.newInstance(journal);
+        Account first = store.createAccount(new Account("first", "me", 100f));
+        Account second = store.createAccount(new Account("second", "you", 50.25f));
+        Account third = store.createAccount(new Account("third", "them", 0f));
+        store.deposit(first.getId(), 10.5f);
+        store.withdraw(second.getId(), 0.25f);
+        Transfer transfer = store.createTransfer(new Transfer(first.getId(), second.getId(), 30f));
+        Transfer deleted = store.createTransfer(new Transfer(second.getId(), third.getId(), 20f));
+        store.deleteTransfer(deleted.getId());
+        Account updated = new Account("renamed", "me", 5f);
+        updated.setId(third.getId());
+        store.updateAccount(updated);
+        journal.close();
+
+        ApplicationStore recovered = ApplicationStore.newInstance(open(Journal.Durability.GROUP));
+        assertEquals(3, recovered.listAccounts().size());
+        assertEquals(80.5f, recovered.getAccount(first.getId()).getBalance(), 0.001);
+        assertEquals(60f, recovered.getAccount(second.getId()).getBalance(), 0.001);
+        assertEquals("renamed", recovered.getAccount(third.getId()).getName());
+        assertEquals(5f, recovered.getAccount(third.getId()).getBalance(), 0.001);
+        assertEquals(1, recovered.listTransfers().size());
+        Transfer replayed = recovered.getTransfer(transfer.getId());
+        assertEquals(transfer.getTimestamp(), replayed.getTimestamp());
+        assertEquals(30f, replayed.getAmount(), 0.001);
+
+        // ids keep counting after the recovered ones
+        Account fourth = recovered.createAccount(new Account("fourth", "me", 0f));
+        assertEquals("4", fourth.getId());
+    }
+
+    @Test
+    public void journalFailsHalfwayThroughBatchTest() throws Exception {
+        Journal journal = open(Journal.Durability.GROUP);
+        ApplicationStore store = ApplicationStore.newInstance(journal);
+        Account first = store.createAccount(new Account("first", "me", 100f));
+        Account second = store.createAccount(new Account("second", "you", 0f));
+        List<Transfer> batch = new ArrayList<>();
+        for (int i = 0; i < 5; i++)
+            batch.add(new Transfer(first.getId(), second.getId(), 10f));
+        // the journal breaks while the third transfer is checked, before it is journaled
+        batch.set(2, new Transfer(first.getId(), second.getId(), 10f) {
+            @Override
+            public Float getAmount() {
+                try {
+                    journal.close();
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+                return super.getAmount();
+            }
+        });
+
+        List<TransferOutcome> outcomes = store.createTransfers(batch);
+        assertEquals(5, outcomes.size());
+        assertTrue(outcomes.get(0).isCreated());
+        assertTrue(outcomes.get(1).isCreated());
+        for (TransferOutcome outcome : outcomes.subList(2, 5))
+            assertTrue(outcome.getError() instanceof IllegalStateException);
+        assertEquals(80f, store.getAccount(first.getId()).getBalance(), 0.001);
+        assertEquals(20f, store.getAccount(second.getId()).getBalance(), 0.001);
+        assertEquals(2, store.listTransfers().size());
+
+        // the transfers reported as created were journaled
+        ApplicationStore recovered = ApplicationStore.newInstance(open(Journal.Durability.GROUP));
+        assertEquals(20f, recovered.getAccount(second.getId()).getBalance(), 0.001);
+        for (TransferOutcome outcome : outcomes.subList(0, 2))
+            assertNotNull(recovered.getTransfer(outcome.getTransfer().getId()));
+    }
+
+    @Test
+    public void recoverSummariesTest() throws Exception {
+        Journal journal = open(Journal.Durability.GROUP);
+        Path snapshot = directory.resolve("store.snapshot");
+        ApplicationStore store = ApplicationStore.newInstance(journal);
+        Account first = store.createAccount(new Account("first", "me", 10f));
+        Account second = store.createAccount(new Account("second", "you", 0f));
+        store.createTransfer(new Transfer(first.getId(), second.getId(), 4f));
+        assertTrue(store.deleteAccount(second.getId()));
+        assertEquals(0, store.summarize(second.getId()).getTransferCount());
+        store.snapshot(snapshot);
+        journal.close();
+
+        // the deleted account's transfer is still loaded, but gives it no summary
+        Journal reopened = open(Journal.Durability.GROUP);
+        ApplicationStore recovered = ApplicationStore.newInstance(reopened, snapshot);
+        assertEquals(1, recovered.listTransfers().size());
+        assertEquals(1, recovered.summarize(first.getId()).getTransferCount());
+        assertEquals(0, recovered.summarize(second.getId()).getTransferCount());
+        reopened.close();
+    }
+
+    @Test
+    public void recoverAtomicBatchTest() throws Exception {
+        Journal journal = open(Journal.Durability.GROUP);
+        Path snapshot = directory.resolve("store.snapshot");
+        ApplicationStore store = ApplicationStore.newInstance(journal);
+        Account first = store.createAccount(new Account("first", "me", 10f));
+        Account second = store.createAccount(new Account("second", "you", 0f));
+        Account third = store.createAccount(new Account("third", "them", 0f));
+        store.snapshot(snapshot);
+
+        // the second transfer spends money received in the first one, the third sends some of it back
+        List<TransferOutcome> outcomes = store.createTransfersAtomically(Arrays.asList(
+                new Transfer(first.getId(), second.getId(), 10f),
+                new Transfer(second.getId(), third.getId(), 7f),
+                new Transfer(third.getId(), first.getId(), 2f)));
+        assertTrue(outcomes.stream().allMatch(TransferOutcome::isCreated));
+        // a rejected batch is not journaled
+        assertFalse(store.createTransfersAtomically(Arrays.asList(
+                new Transfer(third.getId(), second.getId(), 1f),
+                new Transfer(first.getId(), second.getId(), 100f))).get(0).isCreated());
+        journal.close();
+
+        for (Path from : Arrays.asList(snapshot, directory.resolve("missing.snapshot"))) {
+            Journal reopened = open(Journal.Durability.GROUP);
+            ApplicationStore recovered = ApplicationStore.newInstance(reopened, from);
+            assertEquals(2f, recovered.getAccount(first.getId()).getBalance(), 0.001);
+            assertEquals(3f, recovered.getAccount(second.getId()).getBalance(), 0.001);
+            assertEquals(5f, recovered.getAccount(third.getId()).getBalance(), 0.001);
+            assertEquals(3, recovered.listTransfers().size());
+            for (TransferOutcome outcome : outcomes)
+                assertNotNull(recovered.getTransfer(outcome.getTransfer().getId()));
+            reopened.close();
+        }
+    }
+
+    @Test
+    public void failedWriteIsNotAppliedTest() throws Exception {
+        Journal journal = open(Journal.Durability.GROUP);
+        ApplicationStore store = ApplicationStore.newInstance(journal);
+        Account first = store.createAccount(new Account("first", "me", 10f));
+        Account second = store.createAccount(new Account("second", "you", 0f));
+        journal.close();
+
+        // once the journal can't take a change, the change isn't made in memory either
+        try {
+            store.deposit(first.getId(), 5f);
+            fail("Deposit should fail with the journal closed");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        try {
+            store.createTransfer(new Transfer(first.getId(), second.getId(), 5f));
+            fail("Transfer should fail with the journal closed");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertEquals(10f, store.getAccount(first.getId()).getBalance(), 0.001);
+        assertEquals(0f, store.getAccount(second.getId()).getBalance(), 0.001);
+        assertTrue(store.listTransfers().isEmpty());
+    }
+
+    @Test
+    public void recoverConcurrentTransfersAcrossChunksTest() throws Exception {
+        Journal journal = open(Journal.Durability.GROUP);
+        ApplicationStore store = ApplicationStore.newInstance(journal);
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 8; i++)
+            ids.add(store.createAccount(new Account("name", "me", 1000f)).getId());
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            final int offset = t;
+            futures.add(executor.submit(() -> {
+                for (int i = 0; i < 200; i++) {
+                    try {
+                        store.createTransfer(new Transfer(ids.get((offset + i) % 8), ids.get((offset + i + 1) % 8), 1.5f));
+                    } catch (Account.InsufficientFundsException | ApplicationStore.AccountNotFoundException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }));
+        }
+        for (Future<?> future : futures)
+            future.get();
+        executor.shutdown();
+        journal.close();
+
+        ApplicationStore recovered = ApplicationStore.newInstance(open(Journal.Durability.GROUP));
+        assertEquals(1600, recovered.listTransfers().size());
+        for (String id : ids)
+            assertEquals(store.getAccount(id).getBalance(), recovered.getAccount(id).getBalance(), 0.001);
+    }
+
+    @Test
+    public void recoverFromSnapshotTakenDuringWritesTest() throws Exception {
+        Journal journal = open(Journal.Durability.ASYNC);
+        ApplicationStore store = ApplicationStore.newInstance(journal);
+        Path snapshot = directory.resolve("store.snapshot");
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 16; i++)
+            ids.add(store.createAccount(new Account("name" + i, "me", 1000f)).getId());
+
+        // writers keep going while snapshots are taken
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            final int offset = t;
+            futures.add(executor.submit(() -> {
+                for (int i = 0; i < 500; i++) {
+                    String origin = ids.get((offset * 3 + i) % 16);
+                    String destination = ids.get((offset * 3 + i + 5) % 16);
+                    try {
+                        store.createTransfer(new Transfer(origin, destination, 2.5f));
+                        store.deposit(origin, 0.5f);
+                        store.withdraw(destination, 0.25f);
+                    } catch (Account.InsufficientFundsException | ApplicationStore.AccountNotFoundException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }));
+        }
+        long position = 0;
+        while (!futures.stream().allMatch(Future::isDone))
+            position = store.snapshot(snapshot);
+        for (Future<?> future : futures)
+            future.get();
+        executor.shutdown();
+
+        // changes after the last snapshot only live in the journal
+        store.deleteAccount(ids.get(0));
+        store.updateAccount(renamed(ids.get(1)));
+        String deleted = store.listTransfers().iterator().next().getId();
+        store.deleteTransfer(deleted);
+        assertTrue(position > 0);
+
+        // no close: the process dies, the new journal sees what the old one had written
+        ApplicationStore recovered = ApplicationStore.newInstance(open(Journal.Durability.ASYNC), snapshot);
+        assertEquals(store.listAccounts().size(), recovered.listAccounts().size());
+        for (Account account : store.listAccounts()) {
+            Account copy = recovered.getAccount(account.getId());
+            assertEquals(account.getName(), copy.getName());
+            assertEquals(account.getOwnerName(), copy.getOwnerName());
+            assertEquals(account.getBalance(), copy.getBalance(), 0.001);
+        }
+        assertEquals(store.listTransfers().size(), recovered.listTransfers().size());
+        for (Transfer transfer : store.listTransfers())
+            assertEquals(transfer.getTimestamp(), recovered.getTransfer(transfer.getId()).getTimestamp());
+        assertNull(recovered.getTransfer(deleted));
+        assertNull(recovered.getAccount(ids.get(0)));
+        journal.close();
+    }
+
+    @Test
+    public void corruptSnapshotFallsBackToJournalTest() throws Exception {
+        Journal journal = open(Journal.Durability.SYNC);
+        ApplicationStore store = ApplicationStore.newInstance(journal);
+        Path snapshot = directory.resolve("store.snapshot");
+        Account account = store.createAccount(new Account("name", "me", 10f));
+        store.snapshot(snapshot);
+        store.deposit(account.getId(), 5f);
+        journal.close();
+
+        byte[] bytes = Files.readAllBytes(snapshot);
+        bytes[bytes.length / 2] ^= 0xFF;
+        Files.write(snapshot, bytes);
+
+        ApplicationStore recovered = ApplicationStore.newInstance(open(Journal.Durability.SYNC), snapshot);
+        assertEquals(15f, recovered.getAccount(account.getId()).getBalance(), 0.001);
+    }
+
+    @Test
+    public void snapshotOfLongNamesTest() throws Exception {
+        // chunks large enough for records of the long names
+        Journal journal = Journal.open(directory.resolve("store.journal"), Journal.Durability.SYNC, 1 << 20, 5);
+        ApplicationStore store = ApplicationStore.newInstance(journal);
+        Path snapshot = directory.resolve("store.snapshot");
+        StringBuilder name = new StringBuilder();
+        while (name.length() < 40000)
+            name.append("n\u00e9");
+        Account account = store.createAccount(new Account(name.toString(), "me", 10f));
+        store.snapshot(snapshot);
+        journal.close();
+
+        ApplicationStore recovered = ApplicationStore.newInstance(Journal.open(directory.resolve("store.journal"), Journal.Durability.SYNC, 1 << 20, 5), snapshot);
+        assertEquals(name.toString(), recovered.getAccount(account.getId()).getName());
+        assertEquals(10f, recovered.getAccount(account.getId()).getBalance(), 0.001);
+    }
+
+    @Test
+    public void readFirstSnapshotVersionTest() throws Exception {
+        Path snapshot = directory.resolve("store.snapshot");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        CheckedOutputStream checked = new CheckedOutputStream(bytes, new CRC32());
+        DataOutputStream out = new DataOutputStream(checked);
+        out.writeInt(0x534E4150);
+        out.writeInt(1);
+        out.writeLong(0);
+        out.writeLong(2);
+        // an account whose strings were written with writeUTF
+        out.writeByte(1);
+        out.writeUTF("1");
+        out.writeBoolean(true);
+        out.writeUTF("name");
+        out.writeBoolean(true);
+        out.writeUTF("me");
+        out.writeLong(1050);
+        out.writeLong(0);
+        out.writeByte(0);
+        out.flush();
+        out.writeInt((int) checked.getChecksum().getValue());
+        Files.write(snapshot, bytes.toByteArray());
+
+        ApplicationStore recovered = ApplicationStore.newInstance(open(Journal.Durability.SYNC), snapshot);
+        assertEquals("name", recovered.getAccount("1").getName());
+        assertEquals(10.5f, recovered.getAccount("1").getBalance(), 0.001);
+    }
+
+    @Test
+    public void snapshotTruncatesJournalTest() throws Exception {
+        Journal journal = open(Journal.Durability.GROUP);
+        Path snapshot = directory.resolve("store.snapshot");
+        ApplicationStore store = ApplicationStore.newInstance(journal);
+        Account first = store.createAccount(new Account("first", "me", 1000f));
+        Account second = store.createAccount(new Account("second", "you", 0f));
+        for (int i = 0; i < 200; i++)
+            store.createTransfer(new Transfer(first.getId(), second.getId(), 1f));
+        assertTrue(Files.exists(directory.resolve("store.journal.0")));
+
+        long position = store.snapshot(snapshot);
+        // every chunk before the one the snapshot's position is in is gone
+        assertEquals(position - position % 4096, journal.getStart());
+        assertFalse(Files.exists(directory.resolve("store.journal.0")));
+        store.deposit(second.getId(), 5f);
+        journal.close();
+
+        ApplicationStore recovered = ApplicationStore.newInstance(open(Journal.Durability.GROUP), snapshot);
+        assertEquals(800f, recovered.getAccount(first.getId()).getBalance(), 0.001);
+        assertEquals(205f, recovered.getAccount(second.getId()).getBalance(), 0.001);
+        assertEquals(200, recovered.listTransfers().size());
+
+        // without its snapshot a truncated journal can't rebuild the store, so recovery fails instead of losing data
+        byte[] bytes = Files.readAllBytes(snapshot);
+        bytes[bytes.length / 2] ^= 0xFF;
+        Files.write(snapshot, bytes);
+        Journal reopened = open(Journal.Durability.GROUP);
+        try {
+            ApplicationStore.newInstance(reopened, snapshot);
+            fail("Recovery should fail without the snapshot");
+        } catch (IOException e) {
+            // expected
+        } finally {
+            reopened.close();
+        }
+    }
+
+    private static Account renamed(String id) {
+        Account account = new Account("renamed", "someone else", 1f);
+        account.setId(id);
+        return account;
+    }
+
+    @Test
+    public void tornTailIsDiscardedTest() throws Exception {
+        Journal journal = open(Journal.Durability.SYNC);
+        ApplicationStore store = ApplicationStore.newInstance(journal);
+        Account account = store.createAccount(new Account("name", "me", 10f));
+        store.deposit(account.getId(), 5f);
+        journal.close();
+
+        // corrupt the last byte of the deposit record, as if the process died while writing it
+        Journal reopened = open(Journal.Durability.SYNC);
+        long end = reopened.replay(0, (position, record) -> { });
+        reopened.close();
+        Path file = directory.resolve("store.journal." + (end - 1) / 4096);
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.seek((end - 1) % 4096);
+            int last = raf.read();
+            raf.seek((end - 1) % 4096);
+            raf.write(last ^ 0xFF);
+        }
+
+        journal = open(Journal.Durability.SYNC);
+        ApplicationStore recovered = ApplicationStore.newInstance(journal);
+        assertEquals(10f, recovered.getAccount(account.getId()).getBalance(), 0.001);
+        // new records are appended where the torn one was
+        recovered.deposit(account.getId(), 1f);
+        journal.close();
+        assertEquals(11f, ApplicationStore.newInstance(open(Journal.Durability.ASYNC)).getAccount(account.getId()).getBalance(), 0.001);
+    }
+}
@@ -0,0 +1,72 @@
+import com.fasterxml.jackson.databind.ObjectMapper;
+import models.Account;
+import models.Transfer;
+import org.junit.Test;
+import util.ModelJson;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link ModelJson}: the shared writers produce the same JSON as a plain mapper,
+ * and answering a request with them doesn't allocate a mapper or a JSON tree every time.
+ */
+public class ModelJsonTest {
+
+    private static final int REQUESTS = 1000;
+
+    @Test
+    public void sharedWritersProduceTheSameJson() throws Exception {
+        ObjectMapper mapper = new ObjectMapper();
+        Transfer transfer = transfer(1);
+        Account account = new Account("savings", "me", 10.5f);
+        account.setId("1");
+
+        assertEquals(mapper.writeValueAsString(transfer), new String(ModelJson.toBytes(transfer), StandardCharsets.UTF_8));
+        assertEquals(mapper.writeValueAsString(account), new String(ModelJson.toBytes(account), StandardCharsets.UTF_8));
+
+        Transfer read = ModelJson.readTransfer(mapper.valueToTree(transfer));
+        assertEquals(transfer.getId(), read.getId());
+        assertEquals(transfer.getAmount(), read.getAmount());
+        assertNull(ModelJson.readTransfer(mapper.readTree("{\"amount\":\"not a number\"}")));
+    }
+
+    @Test
+    public void sharedWritersAllocateLessThanAMapperPerRequest() throws Exception {
+        Transfer transfer = transfer(1);
+        Request perRequestMapper = () -> {
+            ObjectMapper mapper = new ObjectMapper();
+            return mapper.writeValueAsBytes(mapper.valueToTree(transfer)).length;
+        };
+        Request shared = () -> ModelJson.toBytes(transfer).length;
+        // warm up both paths first, so class loading isn't counted
+        allocatedPerRequest(perRequestMapper);
+        allocatedPerRequest(shared);
+        assertTrue(allocatedPerRequest(shared) < allocatedPerRequest(perRequestMapper));
+    }
+
+    private interface Request {
+        int run() throws Exception;
+    }
+
+    private static long allocatedPerRequest(Request request) throws Exception {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long allocated = threads.getThreadAllocatedBytes(thread);
+        long written = 0;
+        for (int i = 0; i < REQUESTS; i++)
+            written += request.run();
+        allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+        assertTrue(written > 0);
+        return allocated / REQUESTS;
+    }
+
+    private static Transfer transfer(int i) {
+        Transfer transfer = new Transfer("origin" + i, "destination" + i, i + 0.5f);
+        transfer.setId("transfer" + i);
+        transfer.setTimestamp("2017-09-18T10:00:00.000Z");
+        return transfer;
+    }
+}
@@ -0,0 +1,221 @@
+import models.Account;
+import models.AccountSummary;
+import models.ApplicationStore;
+import models.ColumnarTransferStore;
+import models.OffHeapAccountStore;
+import models.Transfer;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class OffHeapAccountStoreTest {
+
+    @Test
+    public void createGetUpdateAndDeleteTest() throws Exception {
+        OffHeapAccountStore store = OffHeapAccountStore.newInstance();
+        Account account = store.createAccount(new Account("name", "m\u00e9", 100.5f));
+        assertEquals("1", account.getId());
+
+        Account stored = store.getAccount("1");
+        assertNotSame(account, stored);
+        assertEquals("name", stored.getName());
+        assertEquals("m\u00e9", stored.getOwnerName());
+        assertEquals(100.5f, stored.getBalance(), 0);
+        // copies don't change the store
+        stored.setName("changed");
+        assertEquals("name", store.getAccount("1").getName());
+
+        long version = stored.getVersion();
+        assertEquals(110.75f, store.deposit("1", 10.25f).getBalance(), 0.001);
+        assertEquals(100.75f, store.withdraw("1", 10f).getBalance(), 0.001);
+        assertEquals(version + 2, store.getAccount("1").getVersion());
+        try {
+            store.withdraw("1", 1000f);
+            fail("insufficient funds");
+        } catch (Account.InsufficientFundsException e) {
+            // expected
+        }
+
+        Account updated = new Account("renamed", "you", 5f);
+        updated.setId("1");
+        assertSame(updated, store.updateAccount(updated));
+        assertEquals(version + 3, updated.getVersion());
+        assertEquals("renamed", store.getAccount("1").getName());
+        assertEquals(5f, store.getAccount("1").getBalance(), 0);
+        Account missing = new Account("name", "me", 1f);
+        missing.setId("404");
+        assertNull(store.updateAccount(missing));
+
+        assertNull(store.getAccount("404"));
+        assertNull(store.getAccount("abc"));
+        assertNull(store.getAccount(null));
+        assertNull(store.deposit("404", 1f));
+        assertNull(store.withdraw("404", 1f));
+
+        assertTrue(store.deleteAccount("1"));
+        assertFalse(store.deleteAccount("1"));
+        assertNull(store.getAccount("1"));
+        assertEquals(0, store.countAccounts());
+    }
+
+    @Test
+    public void freedSlotsAreReusedTest() {
+        OffHeapAccountStore store = OffHeapAccountStore.newInstance();
+        List<String> ids = new ArrayList<>();
+        // more than a segment of slots and more than the index's initial capacity
+        for (int i = 0; i < 5000; i++)
+            ids.add(store.createAccount(new Account("name" + i, "me", (float) i)).getId());
+        for (int i = 0; i < 5000; i += 2)
+            assertTrue(store.deleteAccount(ids.get(i)));
+        for (int i = 0; i < 2500; i++)
+            store.createAccount(new Account("new" + i, "you", 1f));
+
+        assertEquals(5000, store.countAccounts());
+        assertEquals(5000, store.listAccounts().size());
+        for (int i = 0; i < 5000; i++) {
+            Account account = store.getAccount(ids.get(i));
+            if (i % 2 == 0) {
+                assertNull(account);
+            } else {
+                assertEquals("name" + i, account.getName());
+                assertEquals((float) i, account.getBalance(), 0);
+            }
+        }
+        assertNotNull(store.getAccount("7500"));
+        long expected = store.listAccounts().stream().mapToLong(account -> Math.round(account.getBalance() * 100.0)).sum();
+        assertEquals(expected, store.totalBalanceMinorUnits());
+        assertEquals(2500, store.listAccounts(null, "you", Float.NaN, Float.NaN, Float.NaN, null).count());
+
+        store.clearAccounts();
+        assertEquals(0, store.countAccounts());
+        assertEquals(0, store.totalBalanceMinorUnits());
+        assertTrue(store.listAccounts().isEmpty());
+        assertNull(store.getAccount(ids.get(1)));
+        // ids keep counting after clearing
+        assertEquals("7501", store.createAccount(new Account("name", "me", 1f)).getId());
+    }
+
+    @Test
+    public void namesLongerThanSlotTest() {
+        OffHeapAccountStore store = OffHeapAccountStore.newInstance();
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i < OffHeapAccountStore.MAX_TEXT_BYTES; i++)
+            name.append('n');
+        Account account = store.createAccount(new Account(name.toString(), "me", 1f));
+        assertEquals(name.toString(), store.getAccount(account.getId()).getName());
+        try {
+            store.createAccount(new Account(name + "n", "me", 1f));
+            fail("name longer than the slot");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        Account updated = new Account("name", name.substring(1) + "\u00e9", 1f);
+        updated.setId(account.getId());
+        try {
+            store.updateAccount(updated);
+            fail("owner name longer than the slot");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals(1, store.countAccounts());
+    }
+
+    @Test
+    public void transfersTest() throws Exception {
+        OffHeapAccountStore accounts = OffHeapAccountStore.newInstance();
+        ColumnarTransferStore transfers = ColumnarTransferStore.newInstance(accounts);
+        Account origin = accounts.createAccount(new Account("name", "me", 100f));
+        Account destination = accounts.createAccount(new Account("name", "you", 9e16f));
+
+        Transfer transfer = transfers.createTransfer(new Transfer(origin.getId(), destination.getId(), 30.5f));
+        assertEquals(69.5f, accounts.getAccount(origin.getId()).getBalance(), 0.001);
+        AccountSummary summary = transfers.summarize(origin.getId());
+        assertEquals(new BigDecimal("30.5"), summary.getTotalSent());
+        assertEquals(1, summary.getTransferCount());
+        assertEquals(new BigDecimal("30.5"), transfers.summarize(destination.getId()).getTotalReceived());
+
+        try {
+            transfers.createTransfer(new Transfer(origin.getId(), "404", 1f));
+            fail("destination doesn't exist");
+        } catch (ApplicationStore.AccountNotFoundException e) {
+            // expected
+        }
+        try {
+            transfers.createTransfer(new Transfer(origin.getId(), destination.getId(), 100f));
+            fail("insufficient funds");
+        } catch (Account.InsufficientFundsException e) {
+            // expected
+        }
+        Account rich = accounts.createAccount(new Account("name", "them", 2e16f));
+        try {
+            transfers.createTransfer(new Transfer(rich.getId(), destination.getId(), 1e16f));
+            fail("deposit overflows the destination");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals(2e16f, accounts.getAccount(rich.getId()).getBalance(), 0f);
+
+        assertTrue(transfers.deleteTransfer(transfer.getId()));
+        assertEquals(0, transfers.summarize(origin.getId()).getTransferCount());
+        transfers.clearTransfers();
+        assertEquals(0, transfers.summarize(destination.getId()).getTransferCount());
+        // deleting a transfer never gives the money back
+        assertEquals(69.5f, accounts.getAccount(origin.getId()).getBalance(), 0.001);
+    }
+
+    @Test
+    public void concurrentTransfersKeepMoneyTest() throws Exception {
+        OffHeapAccountStore accounts = OffHeapAccountStore.newInstance();
+        ColumnarTransferStore transfers = ColumnarTransferStore.newInstance(accounts);
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 600; i++)
+            ids.add(accounts.createAccount(new Account("name", "me", 100f)).getId());
+
+        // transfers in both directions between accounts of different stripes and of the same stripe,
+        // while other accounts are deleted and their slots reused
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            final int offset = t;
+            futures.add(executor.submit(() -> {
+                for (int i = 0; i < 2000; i++) {
+                    String origin = ids.get((offset + i) % 256);
+                    String destination = ids.get((offset + i * 7 + 1) % 256 + (i % 2 == 0 ? 0 : 256));
+                    try {
+                        transfers.createTransfer(new Transfer(origin, destination, 0.75f));
+                    } catch (Account.InsufficientFundsException | ApplicationStore.AccountNotFoundException e) {
+                        // the origin ran dry, nothing moved
+                    }
+                }
+                return null;
+            }));
+        }
+        futures.add(executor.submit(() -> {
+            for (int i = 512; i < 600; i++) {
+                accounts.deleteAccount(ids.get(i));
+                accounts.createAccount(new Account("name", "me", 0f));
+            }
+            return null;
+        }));
+        for (Future<?> future : futures)
+            future.get();
+        executor.shutdown();
+
+        long total = accounts.listAccounts().stream().mapToLong(account -> Math.round(account.getBalance() * 100.0)).sum();
+        assertEquals(512 * 10000, total);
+        assertEquals(total, accounts.totalBalanceMinorUnits());
+        List<Account> all = accounts.listAccounts().stream().collect(Collectors.toList());
+        long sent = all.stream().mapToLong(account -> transfers.summarize(account.getId()).getTotalSent().movePointRight(2).longValue()).sum();
+        long received = all.stream().mapToLong(account -> transfers.summarize(account.getId()).getTotalReceived().movePointRight(2).longValue()).sum();
+        assertEquals(transfers.transferVolumeMinorUnits(), sent);
+        assertEquals(sent, received);
+    }
+}
@@ -1,5 +1,7 @@
+import akka.stream.Materializer;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
 import models.Account;
 import static org.junit.Assert.*;
 import static play.test.Helpers.*;
@@ -14,6 +16,7 @@ import play.mvc.Http;
 import play.mvc.Result;
 import play.test.Helpers;
 import play.test.WithServer;
+import util.TransferCodec;
 import java.io.*;
 import java.util.concurrent.CompletionStage;
 
@@ -197,6 +200,19 @@ public class ServerTest extends WithServer {
             assertAccount(list.get(0), "savings", "john", 5000f);
             assertAccount(list.get(1), "savings", "vasco", 200f);
             assertAccount(list.get(2), "checking", "john", 50f);
+
+            // pages of sort by balance desc, the next page's cursor comes in a header
+            Result result = route(app, Helpers.fakeRequest(GET, "/accounts?sort=-balance&limit=2"));
+            assertEquals(OK, result.status());
+            list = getJsonNodeFromResult(result);
+            assertEquals(2, list.size());
+            assertAccount(list.get(0), "savings", "john", 5000f);
+            String cursor = result.header("X-Next-Cursor").get();
+            list = getJsonFromRequest(GET, "/accounts?sort=-balance&limit=2&cursor=" + cursor);
+            assertEquals(1, list.size());
+            assertAccount(list.get(0), "checking", "john", 50f);
+            assertEquals(BAD_REQUEST, route(app, Helpers.fakeRequest(GET, "/accounts?sort=name&cursor=" + cursor)).status());
+            assertEquals(BAD_REQUEST, route(app, Helpers.fakeRequest(GET, "/accounts?limit=-1")).status());
         }
         // Section 4: Deposits and withdrawals
         {
@@ -290,6 +306,21 @@ public class ServerTest extends WithServer {
             result = route(app, request);
             assertEquals(OK, result.status());
             assertTransfer(getJsonNodeFromResult(result), "1", "0", 25f);
+            // read it in the binary encoding
+            request = Helpers.fakeRequest(GET, "/transfers/" + transfer4.getId()).header("Accept", TransferCodec.MEDIA_TYPE);
+            result = route(app, request);
+            assertEquals(OK, result.status());
+            assertEquals(TransferCodec.MEDIA_TYPE, result.contentType().get());
+            assertEquals("Accept", result.header("Vary").get());
+            Transfer decoded = TransferCodec.read(Helpers.contentAsBytes(result, app.injector().instanceOf(Materializer.class)).toByteBuffer());
+            assertEquals(transfer4.getId(), decoded.getId());
+            assertEquals(25f, decoded.getAmount(), 0.01);
+            // invalid binary body
+            request = Helpers.fakeRequest(POST, "/transfers").bodyRaw(new byte[]{ 1, 2, 3 }).header("Content-Type", TransferCodec.MEDIA_TYPE);
+            assertEquals(BAD_REQUEST, route(app, request).status());
+            // binary body too large to be kept in memory
+            request = Helpers.fakeRequest(POST, "/transfers").bodyRaw(new byte[512 * 1024]).header("Content-Type", TransferCodec.MEDIA_TYPE);
+            assertEquals(BAD_REQUEST, route(app, request).status());
 
             // delete invalid transfer id
             request = Helpers.fakeRequest(DELETE, "/transfers/00");
@@ -371,6 +402,128 @@ public class ServerTest extends WithServer {
             assertTransfer(list.get(0), "0", "1", 100f);
             assertTransfer(list.get(1), "1", "0", 90f);
             assertTransfer(list.get(2), "0", "1", 10f);
+
+            // filter by time range
+            list = getJsonFromRequest(GET, "/transfers?from=2000-01-01T00:00:00Z");
+            assertEquals(3, list.size());
+            list = getJsonFromRequest(GET, "/transfers?to=2000-01-01T00:00:00Z");
+            assertEquals(0, list.size());
+            list = getJsonFromRequest(GET, "/transfers?from=2000-01-01T00:00:00Z&sort=-timestamp");
+            assertTransfer(list.get(0), "1", "0", 90f);
+            Result result = route(app, Helpers.fakeRequest(GET, "/transfers?from=yesterday"));
+            assertEquals(BAD_REQUEST, result.status());
+        }
+        // Section 8: batch of transfers
+        {
+            ArrayNode batch = Json.newArray();
+            batch.add(Json.toJson(new Transfer("0", "1", 1f)));
+            batch.add(Json.toJson(new Transfer("0", "0", 1f)));
+            batch.add(Json.toJson(new Transfer("1", "0", 1000000f)));
+            batch.add(Json.toJson(new Transfer("1", "0", 2f)));
+
+            // all-or-nothing batch with an invalid item is rejected entirely
+            Http.RequestBuilder request = Helpers.fakeRequest(POST, "/transfers/batch?atomic=true").bodyJson(batch);
+            Result result = route(app, request);
+            assertEquals(FORBIDDEN, result.status());
+            assertEquals(3, getJsonFromRequest(GET, "/transfers").size());
+
+            // otherwise each item gets its own result
+            request = Helpers.fakeRequest(POST, "/transfers/batch").bodyJson(batch);
+            result = route(app, request);
+            assertEquals(OK, result.status());
+            JsonNode results = getJsonNodeFromResult(result);
+            assertEquals(4, results.size());
+            assertNotNull(results.get(0).get("id"));
+            assertNotNull(results.get(1).get("error"));
+            assertNotNull(results.get(2).get("error"));
+            assertNotNull(results.get(3).get("id"));
+            assertEquals(5, getJsonFromRequest(GET, "/transfers").size());
+
+            // body must be an array
+            request = Helpers.fakeRequest(POST, "/transfers/batch").bodyJson(Json.toJson(new Transfer("0", "1", 1f)));
+            result = route(app, request);
+            assertEquals(BAD_REQUEST, result.status());
+        }
+        // Section 9: account summaries
+        {
+            JsonNode summary = getJsonFromRequest(GET, "/accounts/0/summary");
+            assertEquals("0", summary.get("accountId").asText());
+            assertEquals(5, summary.get("transferCount").asLong());
+            assertEquals(111f, summary.get("totalSent").floatValue(), 0.01);
+            assertEquals(92f, summary.get("totalReceived").floatValue(), 0.01);
+
+            Result result = route(app, Helpers.fakeRequest(GET, "/accounts/404/summary"));
+            assertEquals(NOT_FOUND, result.status());
+        }
+        // Section 10: ledger statistics
+        {
+            JsonNode stats = getJsonFromRequest(GET, "/stats");
+            JsonNode accounts = getJsonFromRequest(GET, "/accounts");
+            assertEquals(accounts.size(), stats.get("accountCount").asLong());
+            float balance = 0;
+            for (JsonNode account : accounts)
+                balance += account.get("balance").floatValue();
+            assertEquals(balance, stats.get("totalBalance").floatValue(), 0.01);
+            assertEquals(5, stats.get("transferCount").asLong());
+            assertEquals(60, stats.get("recentVolume").size());
+        }
+        // Section 11: account statements
+        {
+            JsonNode statement = getJsonFromRequest(GET, "/accounts/0/transfers");
+            assertEquals(5, statement.size());
+            for (int i = 1; i < statement.size(); i++)
+                assertTrue(statement.get(i - 1).get("timestamp").asText().compareTo(statement.get(i).get("timestamp").asText()) >= 0);
+
+            Result result = route(app, Helpers.fakeRequest(GET, "/accounts/0/transfers?limit=2"));
+            assertEquals(OK, result.status());
+            assertEquals(2, getJsonNodeFromResult(result).size());
+            String cursor = result.header("X-Next-Cursor").orElse(null);
+            assertNotNull(cursor);
+            assertEquals(3, getJsonFromRequest(GET, "/accounts/0/transfers?limit=5&cursor=" + cursor).size());
+
+            result = route(app, Helpers.fakeRequest(GET, "/accounts/404/transfers"));
+            assertEquals(NOT_FOUND, result.status());
+            result = route(app, Helpers.fakeRequest(GET, "/accounts/0/transfers?limit=-1"));
+            assertEquals(BAD_REQUEST, result.status());
+        }
+        // Section 12: idempotent transfer creation
+        {
+            JsonNode body = Json.toJson(new Transfer("1", "0", 1f));
+            Result first = route(app, Helpers.fakeRequest(POST, "/transfers").header("Idempotency-Key", "retry-1").bodyJson(body));
+            assertEquals(CREATED, first.status());
+            Result retry = route(app, Helpers.fakeRequest(POST, "/transfers").header("Idempotency-Key", "retry-1").bodyJson(body));
+            assertEquals(CREATED, retry.status());
+            assertEquals(first.header("Location"), retry.header("Location"));
+            assertEquals(6, getJsonFromRequest(GET, "/transfers").size());
+
+            Result reused = route(app, Helpers.fakeRequest(POST, "/transfers").header("Idempotency-Key", "retry-1").bodyJson(Json.toJson(new Transfer("1", "0", 2f))));
+            assertEquals(422, reused.status());
+
+            JsonNode stats = getJsonFromRequest(GET, "/stats/idempotency");
+            assertEquals(1, stats.get("size").asInt());
+            assertEquals(1, stats.get("hits").asLong());
+            assertEquals(0.5, stats.get("hitRate").asDouble(), 0.0001);
+        }
+        // Section 13: conditional reads
+        {
+            Result result = route(app, Helpers.fakeRequest(GET, "/accounts/0"));
+            assertEquals(OK, result.status());
+            String etag = result.header("ETag").get();
+            result = route(app, Helpers.fakeRequest(GET, "/accounts/0").header("If-None-Match", etag));
+            assertEquals(NOT_MODIFIED, result.status());
+            assertEquals(etag, result.header("ETag").get());
+
+            result = route(app, Helpers.fakeRequest(PUT, "/accounts/0/deposit/1"));
+            assertEquals(OK, result.status());
+            result = route(app, Helpers.fakeRequest(GET, "/accounts/0").header("If-None-Match", etag));
+            assertEquals(OK, result.status());
+            assertNotEquals(etag, result.header("ETag").get());
+
+            String location = route(app, Helpers.fakeRequest(POST, "/transfers").bodyJson(Json.toJson(new Transfer("0", "1", 1f)))).header("Location").get();
+            result = route(app, Helpers.fakeRequest(GET, location));
+            assertEquals(OK, result.status());
+            result = route(app, Helpers.fakeRequest(GET, location).header("If-None-Match", result.header("ETag").get()));
+            assertEquals(NOT_MODIFIED, result.status());
         }
     }
 
@@ -400,7 +553,7 @@ public class ServerTest extends WithServer {
         ObjectMapper mapper = new ObjectMapper();
         JsonNode json = null;
         try {
-            json = mapper.readValue(Helpers.contentAsString(result), JsonNode.class);
+            json = mapper.readValue(Helpers.contentAsString(result, app.injector().instanceOf(Materializer.class)), JsonNode.class);
         } catch (IOException e) {
             e.printStackTrace();
         }
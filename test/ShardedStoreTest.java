@@ -0,0 +1,198 @@
+import models.Account;
+import models.AccountSummary;
+import models.ApplicationStore;
+import models.ShardedStore;
+import models.Transfer;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class ShardedStoreTest {
+
+    private ShardedStore store;
+
+    @After
+    public void tearDown() {
+        // every test starts writer threads, one per shard
+        if (store != null)
+            store.shutdown();
+    }
+
+    @Test
+    public void createAndGetAccountTest() {
+        store = ShardedStore.newInstance(4);
+        Account account = store.createAccount(new Account("name", "me", 100.5f));
+        assertNotNull(account.getId());
+        assertEquals(100.5f, store.getAccount(account.getId()).getBalance(), 0.01);
+        assertEquals(1, store.listAccounts().size());
+        assertTrue(store.deleteAccount(account.getId()));
+        assertNull(store.getAccount(account.getId()));
+    }
+
+    @Test
+    public void transfersWithinAndAcrossShardsTest() throws Exception {
+        store = ShardedStore.newInstance(4);
+        List<Account> accounts = new ArrayList<>();
+        for (int i = 0; i < 8; i++)
+            accounts.add(store.createAccount(new Account("name", "me", 100f)));
+
+        // every pair, so both same-shard and cross-shard transfers happen
+        for (Account from : accounts)
+            for (Account to : accounts)
+                if (from != to) {
+                    Transfer transfer = store.createTransfer(new Transfer(from.getId(), to.getId(), 1f));
+                    assertNotNull(store.getTransfer(transfer.getId()));
+                }
+
+        for (Account account : accounts)
+            assertEquals(100f, store.getAccount(account.getId()).getBalance(), 0.01);
+        assertEquals(56, store.listTransfers().size());
+    }
+
+    @Test(expected = ApplicationStore.AccountNotFoundException.class)
+    public void createTransferNoDestinationAccountTest() throws Exception {
+        store = ShardedStore.newInstance(4);
+        Account account = store.createAccount(new Account("name", "me", 10f));
+        try {
+            store.createTransfer(new Transfer(account.getId(), "404", 9f));
+        } finally {
+            assertEquals(10f, store.getAccount(account.getId()).getBalance(), 0.01);
+        }
+    }
+
+    @Test(expected = Account.InsufficientFundsException.class)
+    public void createInsufficientFundsTransferTest() throws Exception {
+        store = ShardedStore.newInstance(2);
+        Account account1 = store.createAccount(new Account("name", "me", 10f));
+        Account account2 = store.createAccount(new Account("name", "me", 20f));
+        store.createTransfer(new Transfer(account1.getId(), account2.getId(), 20f));
+    }
+
+    @Test
+    public void concurrentTransfersConserveBalanceTest() throws Exception {
+        store = ShardedStore.newInstance(4);
+        List<Account> accounts = new ArrayList<>();
+        for (int i = 0; i < 16; i++)
+            accounts.add(store.createAccount(new Account("name", "me", 50f)));
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            final int seed = t;
+            futures.add(executor.submit(() -> {
+                for (int j = 0; j < 2000; j++) {
+                    Account from = accounts.get((seed + j) % accounts.size());
+                    Account to = accounts.get((seed * 7 + j * 3 + 1) % accounts.size());
+                    if (from == to)
+                        continue;
+                    try {
+                        store.createTransfer(new Transfer(from.getId(), to.getId(), 3f));
+                    } catch (Account.InsufficientFundsException ignored) {
+                    }
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures)
+            future.get();
+        executor.shutdown();
+
+        float total = 0;
+        for (Account account : store.listAccounts())
+            total += account.getBalance();
+        assertEquals(800f, total, 0.01);
+    }
+
+    @Test
+    public void refundWhenDepositOverflowsTest() throws Exception {
+        store = ShardedStore.newInstance(2);
+        // ids 1 and 2 live in different shards
+        Account origin = store.createAccount(new Account("name", "me", 2e16f));
+        Account destination = store.createAccount(new Account("name", "you", 9e16f));
+        try {
+            store.createTransfer(new Transfer(origin.getId(), destination.getId(), 1e16f));
+            fail("deposit overflows the destination");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals(2e16f, store.getAccount(origin.getId()).getBalance(), 0f);
+        assertEquals(9e16f, store.getAccount(destination.getId()).getBalance(), 0f);
+        // nothing is left in flight, so the origin can be deleted
+        assertTrue(store.deleteAccount(origin.getId()));
+        assertTrue(store.listTransfers().isEmpty());
+    }
+
+    @Test
+    public void clearDuringRefundTest() throws Exception {
+        store = ShardedStore.newInstance(2);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        for (int i = 0; i < 200; i++) {
+            // consecutive ids live in different shards, and the deposit overflows so the origin is refunded
+            Account origin = store.createAccount(new Account("name", "me", 2e16f));
+            Account destination = store.createAccount(new Account("name", "you", 9e16f));
+            Future<?> transfer = executor.submit(() -> {
+                try {
+                    store.createTransfer(new Transfer(origin.getId(), destination.getId(), 1e16f));
+                    fail("deposit overflows the destination");
+                } catch (IllegalArgumentException | IllegalStateException | ApplicationStore.AccountNotFoundException e) {
+                    // refunded, refused while clearing, or cleared before it started
+                }
+                return null;
+            });
+            store.clearAccounts();
+            transfer.get();
+            assertTrue(store.listAccounts().isEmpty());
+        }
+        executor.shutdown();
+        // nothing was left in flight
+        Account origin = store.createAccount(new Account("name", "me", 2e16f));
+        assertTrue(store.deleteAccount(origin.getId()));
+    }
+
+    @Test
+    public void statsFollowWritesTest() throws Exception {
+        store = ShardedStore.newInstance(4);
+        List<Account> accounts = new ArrayList<>();
+        for (int i = 0; i < 8; i++)
+            accounts.add(store.createAccount(new Account("name", "owner" + i, 100f)));
+        List<Transfer> transfers = new ArrayList<>();
+        for (int i = 0; i < 40; i++)
+            transfers.add(store.createTransfer(new Transfer(accounts.get(i % 8).getId(), accounts.get((i * 3 + 1) % 8).getId(), 1.25f)));
+        store.deposit(accounts.get(0).getId(), 10f);
+        store.withdraw(accounts.get(1).getId(), 5.5f);
+        store.deleteTransfer(transfers.get(0).getId());
+        store.deleteTransfer(transfers.get(7).getId());
+        store.deleteAccount(accounts.get(2).getId());
+        assertStatsMatchScan();
+
+        store.clearTransfers();
+        assertStatsMatchScan();
+        store.clearAccounts();
+        assertStatsMatchScan();
+    }
+
+    // the running totals must be what a scan of the accounts and transfers finds
+    private void assertStatsMatchScan() {
+        assertEquals(store.listAccounts().size(), store.countAccounts());
+        assertEquals(store.listAccounts().stream().mapToLong(a -> Math.round(a.getBalance() * 100.0)).sum(), store.totalBalanceMinorUnits());
+        assertEquals(store.listTransfers().size(), store.countTransfers());
+        assertEquals(store.listTransfers().stream().mapToLong(t -> Math.round(t.getAmount() * 100.0)).sum(), store.transferVolumeMinorUnits());
+        assertEquals(store.countTransfers(), store.recentVolume().stream().mapToLong(v -> v.getTransferCount()).sum());
+        for (Account account : store.listAccounts()) {
+            String id = account.getId();
+            AccountSummary expected = AccountSummary.of(id, store.listTransfers().stream().filter(t -> t.getOriginAccountId().equals(id)),
+                    store.listTransfers().stream().filter(t -> t.getDestinationAccountId().equals(id)));
+            AccountSummary summary = store.summarize(id);
+            assertEquals(expected.getTotalSent(), summary.getTotalSent());
+            assertEquals(expected.getTotalReceived(), summary.getTotalReceived());
+            assertEquals(expected.getTransferCount(), summary.getTransferCount());
+        }
+    }
+}
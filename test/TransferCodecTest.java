@@ -0,0 +1,56 @@
+import models.Transfer;
+import org.junit.Test;
+import util.TransferCodec;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class TransferCodecTest {
+
+    @Test
+    public void newTransferRoundTripTest() {
+        Transfer transfer = new Transfer("12", "34", 10.5f);
+        Transfer read = TransferCodec.readNewTransfer(ByteBuffer.wrap(TransferCodec.writeNewTransfer(transfer)));
+        assertNotNull(read);
+        assertEquals("12", read.getOriginAccountId());
+        assertEquals("34", read.getDestinationAccountId());
+        assertEquals(10.5f, read.getAmount(), 0.001);
+    }
+
+    @Test
+    public void invalidNewTransferTest() {
+        byte[] encoded = TransferCodec.writeNewTransfer(new Transfer("12", "34", 10.5f));
+        assertNull(TransferCodec.readNewTransfer(ByteBuffer.wrap(encoded, 0, encoded.length - 1)));
+        byte[] longer = new byte[encoded.length + 1];
+        System.arraycopy(encoded, 0, longer, 0, encoded.length);
+        assertNull(TransferCodec.readNewTransfer(ByteBuffer.wrap(longer)));
+        assertNull(TransferCodec.readNewTransfer(ByteBuffer.wrap(new byte[]{ (byte) 0x7F, 0 })));
+    }
+
+    @Test
+    public void transferRoundTripTest() {
+        Transfer transfer = new Transfer("12", "34", 99.99f);
+        transfer.setId("abc-1");
+        transfer.setTimestamp("2017-09-18T10:00:00.123Z");
+        Transfer other = new Transfer("56", "78", 1f);
+        other.setId("abc-2");
+        other.setTimestamp("2017-09-18T10:00:01Z");
+
+        byte[] first = TransferCodec.write(transfer);
+        byte[] second = TransferCodec.write(other);
+        ByteBuffer list = ByteBuffer.allocate(first.length + second.length).put(first).put(second);
+        list.flip();
+
+        Transfer read = TransferCodec.read(list);
+        assertEquals("abc-1", read.getId());
+        assertEquals("12", read.getOriginAccountId());
+        assertEquals("34", read.getDestinationAccountId());
+        assertEquals(99.99f, read.getAmount(), 0.001);
+        assertEquals("2017-09-18T10:00:00.123Z", read.getTimestamp());
+        read = TransferCodec.read(list);
+        assertEquals("abc-2", read.getId());
+        assertEquals("2017-09-18T10:00:01Z", read.getTimestamp());
+        assertFalse(list.hasRemaining());
+    }
+}
@@ -0,0 +1,122 @@
+import models.Account;
+import models.ApplicationStore;
+import models.Transfer;
+import models.TransferEngine;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class TransferEngineTest {
+
+    @Test
+    public void submitCreatesTransferTest() throws Exception {
+        ApplicationStore store = ApplicationStore.newInstance();
+        Account account1 = store.createAccount(new Account("name", "me", 10f));
+        Account account2 = store.createAccount(new Account("name", "me", 20f));
+        TransferEngine engine = TransferEngine.start(store, 8, 4);
+
+        Transfer transfer = engine.submit(new Transfer(account1.getId(), account2.getId(), 9f)).toCompletableFuture().get();
+        assertNotNull(transfer.getId());
+        assertNotNull(transfer.getTimestamp());
+        assertNotNull(store.getTransfer(transfer.getId()));
+        assertEquals(1f, store.getAccount(account1.getId()).getBalance(), 0.01);
+        assertEquals(29f, store.getAccount(account2.getId()).getBalance(), 0.01);
+        engine.shutdown();
+    }
+
+    @Test
+    public void rejectedTransferCompletesExceptionallyTest() throws Exception {
+        ApplicationStore store = ApplicationStore.newInstance();
+        Account account1 = store.createAccount(new Account("name", "me", 10f));
+        Account account2 = store.createAccount(new Account("name", "me", 20f));
+        TransferEngine engine = TransferEngine.start(store, 8, 4);
+
+        try {
+            engine.submit(new Transfer(account1.getId(), account2.getId(), 20f)).toCompletableFuture().get();
+            fail("Transfer should have been rejected");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof Account.InsufficientFundsException);
+        }
+        try {
+            engine.submit(new Transfer("404", account2.getId(), 1f)).toCompletableFuture().get();
+            fail("Transfer should have been rejected");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof ApplicationStore.AccountNotFoundException);
+        }
+        engine.shutdown();
+    }
+
+    @Test
+    public void manyPublishersThroughSmallRingTest() throws Exception {
+        ApplicationStore store = ApplicationStore.newInstance();
+        Account account1 = store.createAccount(new Account("name", "me", 100000f));
+        Account account2 = store.createAccount(new Account("name", "me", 0f));
+        // a ring much smaller than the number of requests forces publishers to wait for free slots
+        TransferEngine engine = TransferEngine.start(store, 16, 8);
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<List<CompletableFuture<Transfer>>>> publishers = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            publishers.add(executor.submit(() -> {
+                List<CompletableFuture<Transfer>> futures = new ArrayList<>();
+                for (int j = 0; j < 1000; j++)
+                    futures.add(engine.submit(new Transfer(account1.getId(), account2.getId(), 1f)).toCompletableFuture());
+                return futures;
+            }));
+        }
+        for (Future<List<CompletableFuture<Transfer>>> publisher : publishers)
+            for (CompletableFuture<Transfer> future : publisher.get())
+                assertNotNull(future.get().getId());
+        executor.shutdown();
+        engine.shutdown();
+
+        assertEquals(8000, store.listTransfers().size());
+        assertEquals(92000f, store.getAccount(account1.getId()).getBalance(), 0.01);
+        assertEquals(8000f, store.getAccount(account2.getId()).getBalance(), 0.01);
+    }
+
+    @Test(timeout = 30000)
+    public void submitRacingShutdownAlwaysCompletesTest() throws Exception {
+        for (int round = 0; round < 20; round++) {
+            ApplicationStore store = ApplicationStore.newInstance();
+            Account account1 = store.createAccount(new Account("name", "me", 100000f));
+            Account account2 = store.createAccount(new Account("name", "me", 0f));
+            TransferEngine engine = TransferEngine.start(store, 16, 8);
+
+            ExecutorService executor = Executors.newFixedThreadPool(4);
+            List<Future<List<CompletableFuture<Transfer>>>> publishers = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                publishers.add(executor.submit(() -> {
+                    List<CompletableFuture<Transfer>> futures = new ArrayList<>();
+                    for (int j = 0; j < 200; j++)
+                        futures.add(engine.submit(new Transfer(account1.getId(), account2.getId(), 1f)).toCompletableFuture());
+                    return futures;
+                }));
+            }
+            engine.shutdown();
+
+            // every transfer is either applied or rejected because the engine stopped, none is left hanging
+            int created = 0;
+            for (Future<List<CompletableFuture<Transfer>>> publisher : publishers) {
+                for (CompletableFuture<Transfer> future : publisher.get()) {
+                    try {
+                        assertNotNull(future.get().getId());
+                        created++;
+                    } catch (ExecutionException e) {
+                        assertTrue(e.getCause() instanceof IllegalStateException);
+                    }
+                }
+            }
+            executor.shutdown();
+            assertEquals(created, store.listTransfers().size());
+        }
+    }
+}